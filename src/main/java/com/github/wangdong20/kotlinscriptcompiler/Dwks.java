@@ -1,14 +1,17 @@
 package com.github.wangdong20.kotlinscriptcompiler;
 
 import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.ir.IrCodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.optimizer.ConstantFolder;
+import com.github.wangdong20.kotlinscriptcompiler.optimizer.DeadCodeEliminator;
 import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
 import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
-import com.github.wangdong20.kotlinscriptcompiler.token.Token;
 import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
 import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
 
 import java.io.*;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 public class Dwks {
@@ -16,39 +19,41 @@ public class Dwks {
     private static void welcome() {
         System.out.println("This is DwKotlinScriptCompiler written by Dong Wang. This compiler is based on JVM");
         System.out.println("Please use dwks path/src.ks to compile source code file with suffix .ks");
+        System.out.println("or dwks -ir path/src.ks to compile it through the control flow graph IR");
+        System.out.println("or dwks -java11 path/src.ks to compile it for Java 11 and later, strings joined by invokedynamic");
         System.out.println("Then you can use java src to run the program in JVM");
         System.out.println("Type quit to quit this compiler program\n");
     }
 
-    private static String readKsToString(String fileNameWithPath) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(fileNameWithPath));
-        StringBuilder stringBuilder = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            stringBuilder.append(line);
-            stringBuilder.append("\n");
-        }
-        // 删除最后一个新行分隔符
-        stringBuilder.deleteCharAt(stringBuilder.length() - 1);
-        reader.close();
-
-        return stringBuilder.toString();
-    }
-
-    private static void compileSourceCode(String fileNameWithPath) {
-        try {
-            File file = new File(fileNameWithPath.trim());
+    private static void compileSourceCode(String fileNameWithPath, boolean throughIr, boolean java11) {
+        File file = new File(fileNameWithPath.trim());
+        // Tokens are pulled from the mapped file while parsing, the source is never held in memory as a String.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
             String fileName = file.getName();
-            String input = readKsToString(fileNameWithPath);
-            Tokenizer tokenizer = new Tokenizer(input);
-            List<Token> tokenList = tokenizer.tokenize();
-            Token[] tokens = new Token[tokenList.size()];
-            tokenList.toArray(tokens);
-            Parser parser = new Parser(tokens);
+            Parser parser = new Parser(Tokenizer.forFile(channel));
             Program program = parser.parseToplevelProgram();
-            Typechecker.typecheckProgram(program);
-            CodeGenerator codeGenerator = new CodeGenerator(fileName.substring(0, fileName.lastIndexOf('.')), "compiledProgram");
-            codeGenerator.writeProgram(program);
+            Typechecker typechecker = new Typechecker();
+            typechecker.typecheck(program);
+            ConstantFolder folder = new ConstantFolder();
+            Program optimized = folder.fold(program);
+            System.out.println("Folded " + folder.getFolded() + " constant expression(s), propagated "
+                    + folder.getPropagated() + " val read(s)");
+            DeadCodeEliminator eliminator = new DeadCodeEliminator();
+            optimized = eliminator.eliminate(optimized);
+            System.out.println("Removed " + eliminator.getRemoved() + " dead statement(s)");
+            if(optimized != program) {
+                // the nodes folding and elimination built have no types yet
+                typechecker = new Typechecker();
+                typechecker.typecheck(optimized);
+                program = optimized;
+            }
+            String className = fileName.substring(0, fileName.lastIndexOf('.'));
+            if(throughIr) {
+                new IrCodeGenerator(className, "compiledProgram").writeProgram(program);
+            } else {
+                CodeGenerator codeGenerator = new CodeGenerator(className, "compiledProgram", java11);
+                codeGenerator.writeProgram(program, typechecker.getTypes());
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(0);
@@ -96,11 +101,12 @@ public class Dwks {
         while(!(command = sc.nextLine()).equals("quit")) {
 //            System.out.print("~ DwKotlinScriptCompiler$ ");
             String[] a = command.split("\\s+");
-            if(a.length == 2 && a[0].equals("dwks")) {
-                if(!a[1].endsWith(".ks")) {
-                    System.out.println("Unsupport file: " + a[1] + ", please enter file end with .ks");
+            if((a.length == 2 || a.length == 3 && (a[1].equals("-ir") || a[1].equals("-java11"))) && a[0].equals("dwks")) {
+                String source = a[a.length - 1];
+                if(!source.endsWith(".ks")) {
+                    System.out.println("Unsupport file: " + source + ", please enter file end with .ks");
                 } else {
-                    compileSourceCode(a[1]);
+                    compileSourceCode(source, a[1].equals("-ir"), a[1].equals("-java11"));
                 }
             }
 
@@ -0,0 +1,35 @@
+package com.github.wangdong20.kotlinscriptcompiler.codegen;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import org.objectweb.asm.MethodVisitor;
+
+import static org.objectweb.asm.Opcodes.*;
+
+// A String variable added to with += in a loop that never reads it.  While the loop is written the
+// variable lives in a StringBuilder in slot index, += appends to it, and it is made a String after the loop.
+public class AccumulatorEntry extends VariableEntry {
+    public final VariableEntry string;  // the variable's own entry, the String is stored back to it after the loop
+
+    public AccumulatorEntry(VariableEntry string, int index) {
+        super(string.variable, BasicType.TYPE_STRING, index);
+        this.string = string;
+    }
+
+    @Override
+    public void load(CodeGenerator codeGenerator, final MethodVisitor visitor) {
+        visitor.visitVarInsn(ALOAD, index);
+        visitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+    } // load
+
+    @Override
+    public void store(CodeGenerator codeGenerator, final MethodVisitor visitor) {
+        // the String is on the stack, the builder starts over with it
+        visitor.visitVarInsn(ALOAD, index);
+        visitor.visitInsn(DUP);
+        visitor.visitInsn(ICONST_0);
+        visitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "setLength", "(I)V", false);
+        visitor.visitInsn(SWAP);
+        visitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        visitor.visitInsn(POP);
+    } // store
+}
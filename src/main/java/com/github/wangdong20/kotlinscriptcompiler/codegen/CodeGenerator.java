@@ -1,13 +1,16 @@
 package com.github.wangdong20.kotlinscriptcompiler.codegen;
 
 import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Resolver;
 import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
 import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeMutableList;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.TypeTable;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 
@@ -15,34 +18,56 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class CodeGenerator {
     private static final String EMPTY_VOID = "()V";
+    private static final Handle MAKE_CONCAT_WITH_CONSTANTS = new Handle(H_INVOKESTATIC,
+            "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;",
+            false);
+    private static final int MAX_CONCAT_ARGUMENTS = 200;    // StringConcatFactory takes no more
     private final String outputClassName;
     private final String outputFunctionName;
+    private final boolean java11;   // class files for Java 11, string concatenation through invokedynamic
 
     private final Map<String, FunctionDeclareStmt> functionTable;
     private final ClassWriter classWriter;
-    private Map<Variable, VariableEntry> variables;
-    private int nextIndex;
+    private static final int NO_NAME = -1;     // in added for a temporary
+
+    private VariableEntry[] variables;  // in scope by name id
+    private int[] added;                // ids of locals in order of declaration, removed when their scope ends
+    private int addedCount;             // locals in scope, local i is in slot i, so slots are reused once a scope ends
     private MethodVisitor methodVisitor;
+    private TypeTable types;    // from Typechecker, null when the types are worked out here
 
     public CodeGenerator(final String outputClassName,
                          final String outputFunctionName) {
+        this(outputClassName, outputFunctionName, false);
+    } // CodeGenerator
+
+    public CodeGenerator(final String outputClassName,
+                         final String outputFunctionName,
+                         final boolean java11) {
         this.outputClassName = outputClassName;
         this.outputFunctionName = outputFunctionName;
+        this.java11 = java11;
         classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-        variables = null;
-        nextIndex = 0;
+        variables = new VariableEntry[16];
+        added = new int[16];
+        addedCount = 0;
 
         functionTable = new HashMap<>();
-        classWriter.visit(V1_8, // Java 1.8 in my laptop
+        classWriter.visit(java11 ? V11 : V1_8, // Java 1.8 in my laptop
                 ACC_PUBLIC, // public
                 outputClassName, // class name
                 null, // signature (null means not generic)
@@ -95,11 +120,9 @@ public class CodeGenerator {
     private void functionStart(final FunctionDeclareStmt function,
                                final String descriptor)
             throws CodeGeneratorException {
-        assert(variables == null);
-        assert(nextIndex == 0);
+        assert(addedCount == 0);
         assert(methodVisitor == null);
 
-        variables = new HashMap<>();
         if(function.getParameterList() != null) {
             for (Map.Entry<Exp, Type> entry : function.getParameterList().entrySet()) {
                 addEntry((Variable) entry.getKey(), entry.getValue());
@@ -115,21 +138,27 @@ public class CodeGenerator {
     } // functionStart
 
     private void functionEnd() {
-        assert(variables != null);
         assert(methodVisitor != null);
 
         methodVisitor.visitMaxs(0, 0);
-        nextIndex = 0;
-        variables = null;
+        removeEntries(0);
         methodVisitor = null;
     } // functionEnd
 
+    private VariableEntry entryOf(final Variable variable) {
+        if(variable instanceof VariableExp) {
+            final int id = ((VariableExp) variable).getId();
+            return id < variables.length ? variables[id] : null;
+        }
+        return null;
+    }
+
     private VariableEntry getEntryFor(final Variable variable) throws CodeGeneratorException {
-        final VariableEntry entry = variables.get(variable);
+        final VariableEntry entry = entryOf(variable);
         if (entry != null) {
             return entry;
         } else if(variable instanceof ArrayWithIndexExp) {
-            VariableEntry arrayEntry = variables.get(((ArrayWithIndexExp) variable).getVariableExp());
+            VariableEntry arrayEntry = entryOf(((ArrayWithIndexExp) variable).getVariableExp());
             return new VariableEntry(variable, arrayEntry.type, arrayEntry.index);
         } else {
             // should be caught by typechecker
@@ -138,22 +167,54 @@ public class CodeGenerator {
     } // getEntryFor
 
     private VariableEntry addEntry(final Variable variable, final Type type) throws CodeGeneratorException {
-        if (variables.containsKey(variable)) {
+        if (entryOf(variable) != null) {
             // should be caught by typechecker
             throw new CodeGeneratorException("Variable already in scope: " + variable);
         } else if(variable instanceof ArrayWithIndexExp) {
-            if(variables.containsKey(((ArrayWithIndexExp) variable).getVariableExp())) {
+            if(entryOf(((ArrayWithIndexExp) variable).getVariableExp()) != null) {
                 throw new CodeGeneratorException("Should not add ArrayWithIndexExp into entry.");
             } else {
                 throw new CodeGeneratorException("Array is not in scope: " + ((ArrayWithIndexExp) variable).getVariableExp());
             }
         } else {
-            final VariableEntry entry = new VariableEntry(variable, type, nextIndex++);
-            variables.put(variable, entry);
+            final int id = ((VariableExp) variable).getId();
+            if(id < 0) {
+                throw new CodeGeneratorException("Variable not resolved: " + variable);
+            }
+            if(id >= variables.length) {
+                variables = Arrays.copyOf(variables, Math.max(2 * variables.length, id + 1));
+            }
+            final VariableEntry entry = new VariableEntry(variable, type, push(id));
+            variables[id] = entry;
             return entry;
         }
     } // addEntry
 
+    // a local without a name, for values the generated code keeps, e.g. the index of a for loop over an array,
+    // removed with the variables of the scope it is added in
+    private VariableEntry addTemporary(final Type type) {
+        return new VariableEntry(null, type, push(NO_NAME));
+    } // addTemporary
+
+    // the slot of a new local
+    private int push(final int id) {
+        if(addedCount == added.length) {
+            added = Arrays.copyOf(added, 2 * added.length);
+        }
+        added[addedCount] = id;
+        return addedCount++;
+    } // push
+
+    // ends the scope of the locals added since addedCount was mark, their slots are free again
+    private void removeEntries(final int mark) {
+        while(addedCount > mark) {
+            final int id = added[--addedCount];
+            if(id != NO_NAME) {
+                variables[id] = null;
+            }
+        }
+    } // removeEntries
+
     private void writeIntLiteral(final int value) {
         switch (value) {
             case -1:
@@ -182,69 +243,85 @@ public class CodeGenerator {
         }
     } // writeIntLiteral
 
-    private void writeComparableOp(final ComparableOp op) throws CodeGeneratorException {
-        // there is no direct instruction for these, but instead a branching
-        // version IF.  Basic idea (with <):
-        //   push left (assumed written already)
-        //   push right (assumed written  already)
-        //   iflt is_less_than
-        //   push 0
-        //   goto after_less_than
-        // is_less_than:
-        //   push 1
-        // after_less_than:
-        final Label conditionTrue = new Label();
-        final Label afterCondition = new Label();
+    // the IF_ICMPxx jumping when left op right is jumpIf
+    private static int comparisonOpcode(final ComparableOp op, final boolean jumpIf) throws CodeGeneratorException {
         switch (op) {
             case OP_LESS_THAN:
-                methodVisitor.visitJumpInsn(IF_ICMPLT, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPLT : IF_ICMPGE;
             case OP_EQUAL_EQUAL:
-                methodVisitor.visitJumpInsn(IF_ICMPEQ, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPEQ : IF_ICMPNE;
             case OP_LESS_EQUAL:
-                methodVisitor.visitJumpInsn(IF_ICMPLE, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPLE : IF_ICMPGT;
             case OP_GREATER_THAN:
-                methodVisitor.visitJumpInsn(IF_ICMPGT, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPGT : IF_ICMPLE;
             case OP_GREATER_EQUAL:
-                methodVisitor.visitJumpInsn(IF_ICMPGE, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPGE : IF_ICMPLT;
             case OP_NOT_EQUAL:
-                methodVisitor.visitJumpInsn(IF_ICMPNE, conditionTrue);
-                break;
+                return jumpIf ? IF_ICMPNE : IF_ICMPEQ;
             default:
                 assert (false);
                 throw new CodeGeneratorException("Unrecognized operation: " + op);
         }
-        writeIntLiteral(0);
-        methodVisitor.visitJumpInsn(GOTO, afterCondition);
-        methodVisitor.visitLabel(conditionTrue);
-        writeIntLiteral(1);
-        methodVisitor.visitLabel(afterCondition);
-    } // writeComparableOp
-
-    private void writeComparableExp(ComparableExp exp) throws CodeGeneratorException {
-        Exp left = exp.getLeft();
-        Exp right = exp.getRight();
-        writeExp(left);
-        writeExp(right);
-        writeComparableOp(exp.getOp());
-    }
+    } // comparisonOpcode
+
+    // Jumps to target if condition is jumpIf, falls through otherwise.  Comparisons jump
+    // with IF_ICMPxx directly, ! swaps jumpIf, and && and || jump out as soon as one side decides:
+    //
+    //   a && b, jump if true:         a || b, jump if false:
+    //     a, if false jump to skip      a, if true jump to skip
+    //     b, if true jump to target     b, if false jump to target
+    //   skip:                         skip:
+    //
+    // a && b jumping if false and a || b jumping if true send both sides to target.
+    private void writeCondition(final Exp condition, final Label target, final boolean jumpIf) throws CodeGeneratorException {
+        switch(condition.getKind()) {
+            case EXP_BOOLEAN:
+                if(((BooleanExp) condition).getValue() == jumpIf) {
+                    methodVisitor.visitJumpInsn(GOTO, target);
+                }
+                break;
+            case EXP_COMPARABLE: {
+                final ComparableExp comparable = (ComparableExp) condition;
+                writeExp(comparable.getLeft());
+                writeExp(comparable.getRight());
+                methodVisitor.visitJumpInsn(comparisonOpcode(comparable.getOp(), jumpIf), target);
+                break;
+            }
+            case EXP_NOT:
+                writeCondition(((NotExp) condition).getValue(), target, !jumpIf);
+                break;
+            case EXP_BILOGICAL: {
+                final BiLogicalExp logical = (BiLogicalExp) condition;
+                // whether the left side alone decides the result when it is jumpIf
+                final boolean leftDecides = (logical.getOp() == BiLogicalOp.OP_OR) == jumpIf;
+                if(leftDecides) {
+                    writeCondition(logical.getLeft(), target, jumpIf);
+                    writeCondition(logical.getRight(), target, jumpIf);
+                } else {
+                    final Label skip = new Label();
+                    writeCondition(logical.getLeft(), skip, !jumpIf);
+                    writeCondition(logical.getRight(), target, jumpIf);
+                    methodVisitor.visitLabel(skip);
+                }
+                break;
+            }
+            default:
+                writeExp(condition);
+                methodVisitor.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+        }
+    } // writeCondition
 
-    private void writeNotExp(NotExp exp) throws CodeGeneratorException {
-        Exp e = exp.getValue();
-        writeExp(e);
-        Label ifTrue = new Label();
-        Label endIf = new Label();
-        methodVisitor.visitJumpInsn(IFEQ, ifTrue);
-        writeIntLiteral(0);
-        methodVisitor.visitJumpInsn(GOTO, endIf);
-        methodVisitor.visitLabel(ifTrue);
+    // a comparison, ! or && and || as a value, 1 if true and 0 if false
+    private void writeConditionValue(final Exp condition) throws CodeGeneratorException {
+        final Label conditionFalse = new Label();
+        final Label afterCondition = new Label();
+        writeCondition(condition, conditionFalse, false);
         writeIntLiteral(1);
-        methodVisitor.visitLabel(endIf);
-    }
+        methodVisitor.visitJumpInsn(GOTO, afterCondition);
+        methodVisitor.visitLabel(conditionFalse);
+        writeIntLiteral(0);
+        methodVisitor.visitLabel(afterCondition);
+    } // writeConditionValue
 
     private VariableEntry loadVariable(Variable variable) throws CodeGeneratorException {
         final VariableEntry entry = getEntryFor(variable);
@@ -252,91 +329,6 @@ public class CodeGenerator {
         return entry;
     }
 
-
-    private void writeBiLogicalExp(BiLogicalExp exp) throws CodeGeneratorException {
-        Exp left = exp.getLeft();
-        Exp right = exp.getRight();
-        Label ifFalse = new Label();
-        Label endIf = new Label();
-
-        switch (exp.getOp()) {
-            case OP_AND:
-                if(left instanceof BooleanExp) {
-                    writeIntLiteral(((BooleanExp) left).getValue() ? 1 : 0);
-                } else if(left instanceof ComparableExp) {
-                    writeComparableExp((ComparableExp) left);
-                } else if(left instanceof BiLogicalExp) {
-                    writeBiLogicalExp((BiLogicalExp) left);
-                } else if(left instanceof NotExp) {
-                    writeNotExp((NotExp) left);
-                } else if(left instanceof Variable) {
-                    loadVariable((Variable) left);
-                } else {
-                    throw new CodeGeneratorException("Bilogical expression's left value should be boolean type");
-                }
-
-                methodVisitor.visitJumpInsn(IFEQ, ifFalse);
-
-                if(right instanceof BooleanExp) {
-                    writeIntLiteral(((BooleanExp) right).getValue() ? 1 : 0);
-                } else if(right instanceof ComparableExp) {
-                    writeComparableExp((ComparableExp) right);
-                } else if(right instanceof BiLogicalExp) {
-                    writeBiLogicalExp((BiLogicalExp) right);
-                } else if(right instanceof NotExp) {
-                    writeNotExp((NotExp) right);
-                } else if(right instanceof Variable) {
-                    loadVariable((Variable) right);
-                }else {
-                    throw new CodeGeneratorException("Bilogical expression's right value should be boolean type");
-                }
-                methodVisitor.visitJumpInsn(IFEQ, ifFalse);
-                writeIntLiteral(1);
-                methodVisitor.visitJumpInsn(GOTO, endIf);
-                methodVisitor.visitLabel(ifFalse);
-                writeIntLiteral(0);
-                methodVisitor.visitLabel(endIf);
-                break;
-            case OP_OR:
-                if(left instanceof BooleanExp) {
-                    writeIntLiteral(((BooleanExp) left).getValue() ? 1 : 0);
-                } else if(left instanceof ComparableExp) {
-                    writeComparableExp((ComparableExp) left);
-                } else if(left instanceof BiLogicalExp) {
-                    writeBiLogicalExp((BiLogicalExp) left);
-                } else if(left instanceof NotExp) {
-                    writeNotExp((NotExp) left);
-                } else if(left instanceof Variable) {
-                    loadVariable((Variable) left);
-                } else {
-                    throw new CodeGeneratorException("Bilogical expression's left value should be boolean type");
-                }
-
-                methodVisitor.visitJumpInsn(IFNE, ifFalse);
-
-                if(right instanceof BooleanExp) {
-                    writeIntLiteral(((BooleanExp) right).getValue() ? 1 : 0);
-                } else if(right instanceof ComparableExp) {
-                    writeComparableExp((ComparableExp) right);
-                } else if(right instanceof BiLogicalExp) {
-                    writeBiLogicalExp((BiLogicalExp) right);
-                } else if(right instanceof NotExp) {
-                    writeNotExp((NotExp) right);
-                } else if(right instanceof Variable) {
-                    loadVariable((Variable) right);
-                } else {
-                    throw new CodeGeneratorException("Bilogical expression's right value should be boolean type");
-                }
-                methodVisitor.visitJumpInsn(IFNE, ifFalse);
-                writeIntLiteral(0);
-                methodVisitor.visitJumpInsn(GOTO, endIf);
-                methodVisitor.visitLabel(ifFalse);
-                writeIntLiteral(1);
-                methodVisitor.visitLabel(endIf);
-                break;
-        }
-    }
-
     private void writeSelfOperationExp(SelfOperationExp exp, boolean needLoad) throws CodeGeneratorException {
         int index = getEntryFor(exp.getVariableExp()).index;
         if(exp.getPreOrder()) {
@@ -373,11 +365,10 @@ public class CodeGenerator {
         final Label afterFor = new Label();
         final Label beforeInc = new Label();
 
-        Map<Variable, VariableEntry> gammaBefore = newCopy(variables);
+        final int scope = addedCount;
         VariableEntry entry;
         if(forStmt.getArrayExp() != null) {
             loadVariable(forStmt.getArrayExp());
-            String arrayLength = forStmt.hashCode() + forStmt.getArrayExp().getName() + ".length";
             Type type = typeOf(forStmt.getArrayExp());
             BasicType basicType;
             if(type instanceof TypeArray) {
@@ -387,19 +378,18 @@ public class CodeGenerator {
             } else {
                 throw new CodeGeneratorException("For in variable should be array or list");
             }
-            entry = addEntry(new VariableExp(arrayLength), BasicType.TYPE_INT);
+            final VariableEntry arrayLength = addTemporary(BasicType.TYPE_INT);
             methodVisitor.visitInsn(ARRAYLENGTH);
-            entry.store(this, methodVisitor);
-            String index = forStmt.hashCode() + forStmt.getArrayExp().getName() + ".index";
+            arrayLength.store(this, methodVisitor);
+            final VariableEntry index = addTemporary(BasicType.TYPE_INT);
             writeIntLiteral(0);
-            entry = addEntry(new VariableExp(index), BasicType.TYPE_INT);
-            entry.store(this, methodVisitor);
+            index.store(this, methodVisitor);
             methodVisitor.visitLabel(head);
-            loadVariable(new VariableExp(index));
-            loadVariable(new VariableExp(arrayLength));
+            index.load(this, methodVisitor);
+            arrayLength.load(this, methodVisitor);
             methodVisitor.visitJumpInsn(IF_ICMPGE, afterFor);
             loadVariable(forStmt.getArrayExp());
-            loadVariable(new VariableExp(index));
+            index.load(this, methodVisitor);
             int opcode = 0;
             switch (basicType) {
                 case TYPE_INT:
@@ -420,8 +410,7 @@ public class CodeGenerator {
 
             writeBlockStmtInLoop(forStmt.getBlockStmt(), head, beforeInc, afterFor);
             methodVisitor.visitLabel(beforeInc);
-            entry = getEntryFor(new VariableExp(index));
-            methodVisitor.visitIincInsn(entry.index, 1);
+            methodVisitor.visitIincInsn(index.index, 1);
             methodVisitor.visitJumpInsn(GOTO, head);
             methodVisitor.visitLabel(afterFor);
         } else {    // for in range case
@@ -429,27 +418,25 @@ public class CodeGenerator {
             writeExp(rangeExp.getStart());
             entry = addEntry(forStmt.getIteratorExp(), BasicType.TYPE_INT);
             entry.store(this, methodVisitor);
-            String end = forStmt.hashCode() + rangeExp.getEnd().toString();
             writeExp(rangeExp.getEnd());
-            entry = addEntry(new VariableExp(end), BasicType.TYPE_INT);
-            entry.store(this, methodVisitor);
+            final VariableEntry end = addTemporary(BasicType.TYPE_INT);
+            end.store(this, methodVisitor);
 
-            String step = null;
+            VariableEntry step = null;
             if(forStmt.getStepExp() != null) {
-                step = forStmt.hashCode() + forStmt.getStepExp().toString();
                 writeExp(forStmt.getStepExp());
-                entry = addEntry(new VariableExp(step), BasicType.TYPE_INT);
-                entry.store(this, methodVisitor);
+                step = addTemporary(BasicType.TYPE_INT);
+                step.store(this, methodVisitor);
             }
             methodVisitor.visitLabel(head);
             loadVariable(forStmt.getIteratorExp());
-            loadVariable(new VariableExp(end));
+            end.load(this, methodVisitor);
             methodVisitor.visitJumpInsn(IF_ICMPGE, afterFor);
             writeBlockStmtInLoop(forStmt.getBlockStmt(), head, beforeInc, afterFor);
             methodVisitor.visitLabel(beforeInc);
             loadVariable(forStmt.getIteratorExp());
             if(forStmt.getStepExp() != null) {
-                loadVariable(new VariableExp(step));
+                step.load(this, methodVisitor);
                 methodVisitor.visitInsn(IADD);
                 entry = getEntryFor(forStmt.getIteratorExp());
                 entry.store(this, methodVisitor);
@@ -464,11 +451,12 @@ public class CodeGenerator {
         }
 
         // After for loop
-        variables = gammaBefore;
+        removeEntries(scope);
     }
 
     private void writeBlockStmtInLoop(BlockStmt blockStmt, Label head, Label beforeInc, Label afterLoop) throws CodeGeneratorException {
         if(blockStmt != null) {
+            final int scope = addedCount;
             for (Stmt s : blockStmt.getStmtList()) {
                 if (s instanceof ControlLoopStmt) {
                     if (s == ControlLoopStmt.STMT_BREAK) {
@@ -482,44 +470,38 @@ public class CodeGenerator {
                     writeStatement(s);
                 }
             }
+            removeEntries(scope);
         }
     }
 
     private void writeBlockStmt(BlockStmt blockStmt) throws CodeGeneratorException {
         if(blockStmt != null && blockStmt.getStmtList() != null) {
-            // Copy gamma before block
-            Map<Variable, VariableEntry> gammaBefore = newCopy(variables);
+            final int scope = addedCount;
             writeStatements(blockStmt.getStmtList());
             // restore gamma after block
-            variables = gammaBefore;
+            removeEntries(scope);
         }
     }
 
-    private Map<Variable, VariableEntry> newCopy(final Map<Variable, VariableEntry> table) {
-        return new HashMap<>(table);
-    }
-
     private void writeIfStatementInLoop(final IfStmt ifStmt, Label head, Label beforeInc, Label afterLoop) throws CodeGeneratorException {
         // if false, jump to the else branch.  If true, fall through to true branch.
         // true branch needs to jump after the false.  Looks like this:
         //
-        //   condition_expression
-        //   if !condition, jump to false
+        //   condition, jump to false if it is false
         //   true stuff
         //   goto after_false
         // false:
         //   false stuff
         // after_false:
-
-        // condition is a boolean, which is represented with an integer which is either
-        // 0 or 1.  IFEQ jumps if the value on top of the operand stack is 0, so this naturally
-        // ends up giving us the if !condition (as odd as it looks)
+        //
+        // without a false branch the goto is left out.
         final Label falseLabel = new Label();
         final Label afterFalseLabel = new Label();
-        writeExp(ifStmt.getCondition());
-        methodVisitor.visitJumpInsn(IFEQ, falseLabel);
+        writeCondition(ifStmt.getCondition(), falseLabel, false);
         writeBlockStmtInLoop(ifStmt.getTrueBranch(), head, beforeInc, afterLoop);
-        methodVisitor.visitJumpInsn(GOTO, afterFalseLabel);
+        if(ifStmt.getFalseBranch() != null) {
+            methodVisitor.visitJumpInsn(GOTO, afterFalseLabel);
+        }
         methodVisitor.visitLabel(falseLabel);
         writeBlockStmtInLoop(ifStmt.getFalseBranch(), head, beforeInc, afterLoop);
         methodVisitor.visitLabel(afterFalseLabel);
@@ -529,47 +511,225 @@ public class CodeGenerator {
         // if false, jump to the else branch.  If true, fall through to true branch.
         // true branch needs to jump after the false.  Looks like this:
         //
-        //   condition_expression
-        //   if !condition, jump to false
+        //   condition, jump to false if it is false
         //   true stuff
         //   goto after_false
         // false:
         //   false stuff
         // after_false:
-
-        // condition is a boolean, which is represented with an integer which is either
-        // 0 or 1.  IFEQ jumps if the value on top of the operand stack is 0, so this naturally
-        // ends up giving us the if !condition (as odd as it looks)
+        //
+        // without a false branch the goto is left out.
         final Label falseLabel = new Label();
         final Label afterFalseLabel = new Label();
-        writeExp(ifStmt.getCondition());
-        methodVisitor.visitJumpInsn(IFEQ, falseLabel);
+        writeCondition(ifStmt.getCondition(), falseLabel, false);
         writeBlockStmt(ifStmt.getTrueBranch());
-        methodVisitor.visitJumpInsn(GOTO, afterFalseLabel);
+        if(ifStmt.getFalseBranch() != null) {
+            methodVisitor.visitJumpInsn(GOTO, afterFalseLabel);
+        }
         methodVisitor.visitLabel(falseLabel);
         writeBlockStmt(ifStmt.getFalseBranch());
         methodVisitor.visitLabel(afterFalseLabel);
     } // writeIfStatement
 
     private void writeWhileStatement(final WhileStmt whileStmt) throws CodeGeneratorException {
+        // the condition goes after the body, so each turn takes one jump instead of two:
+        //   goto condition
         // head:
-        //   condition_expression
-        //   if !condition, jump to after_while
         //   body
-        //   goto head
-        // after_while
-        Map<Variable, VariableEntry> gammaBefore = newCopy(variables);
+        // condition:
+        //   condition, jump to head if it is true
+        // after_while:
+        //
+        // continue jumps to condition.
+        final int scope = addedCount;
         final Label head = new Label();
+        final Label condition = new Label();
         final Label afterWhile = new Label();
+        methodVisitor.visitJumpInsn(GOTO, condition);
         methodVisitor.visitLabel(head);
-        writeExp(whileStmt.getCondition());
-        methodVisitor.visitJumpInsn(IFEQ, afterWhile);
-        writeBlockStmtInLoop(whileStmt.getBlockStmt(), head, null, afterWhile);
-        methodVisitor.visitJumpInsn(GOTO, head);
+        writeBlockStmtInLoop(whileStmt.getBlockStmt(), head, condition, afterWhile);
+        methodVisitor.visitLabel(condition);
+        writeCondition(whileStmt.getCondition(), head, true);
         methodVisitor.visitLabel(afterWhile);
-        variables = gammaBefore;
+        removeEntries(scope);
     } // whileWhileStatement
 
+    // Ids of the variables e reads
+    private static void collectReads(final Exp e, final Set<Integer> read) throws CodeGeneratorException {
+        if(e == null) {
+            return;
+        }
+        switch(e.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+                break;
+            case EXP_VARIABLE:
+                read.add(((VariableExp) e).getId());
+                break;
+            case EXP_STRING:
+                if(((StringExp) e).getInterpolationExp() != null) {
+                    for (Exp value : ((StringExp) e).getInterpolationExp().values()) {
+                        collectReads(value, read);
+                    }
+                }
+                break;
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                collectReads(((BinaryIntExp) e).getLeft(), read);
+                collectReads(((BinaryIntExp) e).getRight(), read);
+                break;
+            case EXP_COMPARABLE:
+                collectReads(((ComparableExp) e).getLeft(), read);
+                collectReads(((ComparableExp) e).getRight(), read);
+                break;
+            case EXP_BILOGICAL:
+                collectReads(((BiLogicalExp) e).getLeft(), read);
+                collectReads(((BiLogicalExp) e).getRight(), read);
+                break;
+            case EXP_NOT:
+                collectReads(((NotExp) e).getValue(), read);
+                break;
+            case EXP_ARRAY_WITH_INDEX:
+                collectReads(((ArrayWithIndexExp) e).getVariableExp(), read);
+                collectReads(((ArrayWithIndexExp) e).getIndexExp(), read);
+                break;
+            case EXP_SELF_OPERATION:
+                collectReads((Exp) ((SelfOperationExp) e).getVariableExp(), read);
+                break;
+            case EXP_FUNCTION_INSTANCE:
+                for (Exp parameter : ((FunctionInstanceExp) e).getParameterList()) {
+                    collectReads(parameter, read);
+                }
+                break;
+            case EXP_ARRAY_OF:
+                for (Exp element : ((ArrayOfExp) e).getExpList()) {
+                    collectReads(element, read);
+                }
+                break;
+            case EXP_ARRAY:
+                collectReads(((ArrayExp) e).getSize(), read);
+                collectReads(((ArrayExp) e).getLambdaExp().getReturnExp(), read);
+                break;
+            case EXP_RANGE:
+                collectReads(((RangeExp) e).getStart(), read);
+                collectReads(((RangeExp) e).getEnd(), read);
+                break;
+            default:
+                throw new CodeGeneratorException("Unsupported expression so far!");
+        }
+    } // collectReads
+
+    // The variables added to with += in stmt, nested loops and branches included, and the ids of
+    // those it reads.  The variable assigned to by += or = is not read by it.
+    private static void collectAccumulation(final Stmt stmt, final List<VariableExp> added, final Set<Integer> read)
+            throws CodeGeneratorException {
+        switch(stmt.getKind()) {
+            case STMT_COMPOUND_ASSIGN: {
+                final CompoundAssignStmt compound = (CompoundAssignStmt) stmt;
+                collectReads(compound.getExpression(), read);
+                if(compound.getOp() == CompoundAssignOp.EXP_PLUS_EQUAL && compound.getVariable() instanceof VariableExp) {
+                    added.add((VariableExp) compound.getVariable());
+                } else {
+                    collectReads((Exp) compound.getVariable(), read);
+                }
+                break;
+            }
+            case STMT_ASSIGN: {
+                final AssignStmt assign = (AssignStmt) stmt;
+                collectReads(assign.getExpression(), read);
+                if(!(assign.getVariable() instanceof VariableExp)) {
+                    collectReads((Exp) assign.getVariable(), read);
+                }
+                break;
+            }
+            case STMT_BLOCK:
+                collectAccumulation((BlockStmt) stmt, added, read);
+                break;
+            case STMT_IF:
+                collectReads(((IfStmt) stmt).getCondition(), read);
+                collectAccumulation(((IfStmt) stmt).getTrueBranch(), added, read);
+                collectAccumulation(((IfStmt) stmt).getFalseBranch(), added, read);
+                break;
+            case STMT_WHILE:
+                collectReads(((WhileStmt) stmt).getCondition(), read);
+                collectAccumulation(((WhileStmt) stmt).getBlockStmt(), added, read);
+                break;
+            case STMT_FOR:
+                collectReads(((ForStmt) stmt).getArrayExp(), read);
+                collectReads(((ForStmt) stmt).getRangeExp(), read);
+                collectReads(((ForStmt) stmt).getStepExp(), read);
+                collectAccumulation(((ForStmt) stmt).getBlockStmt(), added, read);
+                break;
+            case STMT_FUNCTION_INSTANCE:
+                collectReads(((FunctionInstanceStmt) stmt).getFunctionInstanceExp(), read);
+                break;
+            case STMT_PRINT:
+                collectReads(((PrintStmt) stmt).getValue(), read);
+                break;
+            case STMT_PRINTLN:
+                collectReads(((PrintlnStmt) stmt).getValue(), read);
+                break;
+            case STMT_RETURN:
+                collectReads(((ReturnStmt) stmt).getReturnExp(), read);
+                break;
+            case STMT_SELF_OPERATION:
+                collectReads(((SelfOperationStmt) stmt).getSelfOperationExp(), read);
+                break;
+            default:
+                break;
+        }
+    } // collectAccumulation
+
+    private static void collectAccumulation(final BlockStmt block, final List<VariableExp> added, final Set<Integer> read)
+            throws CodeGeneratorException {
+        if(block != null && block.getStmtList() != null) {
+            for (Stmt stmt : block.getStmtList()) {
+                collectAccumulation(stmt, added, read);
+            }
+        }
+    } // collectAccumulation
+
+    // A String only added to with += or assigned in the loop, and read nowhere in it, is built in
+    // one StringBuilder for the whole loop, not copied into a new one on every +=:
+    //   new StringBuilder(s), store to builder
+    //   loop, += appends to builder, s = e starts builder over
+    //   builder.toString(), store to s
+    // break leaves the loop at its end too, so s is up to date after the loop either way.
+    private void writeLoop(final Stmt loop) throws CodeGeneratorException {
+        final int scope = addedCount;
+        final List<AccumulatorEntry> accumulators = new ArrayList<>();
+        final List<VariableExp> added = new ArrayList<>();
+        final Set<Integer> read = new HashSet<>();
+        collectAccumulation(loop, added, read);
+        for (VariableExp variable : added) {
+            final VariableEntry entry = entryOf(variable);
+            // a String already built by an outer loop is not, nor one declared in this loop
+            if(entry != null && entry.type == BasicType.TYPE_STRING && !(entry instanceof AccumulatorEntry)
+                    && !read.contains(variable.getId())) {
+                final VariableEntry builder = addTemporary(BasicType.TYPE_ANY);
+                methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
+                methodVisitor.visitInsn(DUP);
+                entry.load(this, methodVisitor);
+                methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false);
+                builder.store(this, methodVisitor);
+                final AccumulatorEntry accumulator = new AccumulatorEntry(entry, builder.index);
+                variables[variable.getId()] = accumulator;
+                accumulators.add(accumulator);
+            }
+        }
+        if(loop.getKind() == StmtKind.STMT_WHILE) {
+            writeWhileStatement((WhileStmt) loop);
+        } else {
+            writeForStatement((ForStmt) loop);
+        }
+        for (AccumulatorEntry accumulator : accumulators) {
+            variables[((VariableExp) accumulator.variable).getId()] = accumulator.string;
+            accumulator.load(this, methodVisitor);
+            accumulator.string.store(this, methodVisitor);
+        }
+        removeEntries(scope);
+    } // writeLoop
+
     private void writeStatements(final List<Stmt> stmts) throws CodeGeneratorException {
         for (final Stmt statement : stmts) {
             writeStatement(statement);
@@ -577,97 +737,115 @@ public class CodeGenerator {
     } // writeStatements
 
     private void writeStatement(final Stmt stmt) throws CodeGeneratorException {
-        if (stmt instanceof VariableDeclareStmt) {
-            // Do nothing here until initialized in AssignStmt
-        } else if (stmt instanceof AssignStmt) {
-            final AssignStmt asAssign = (AssignStmt)stmt;
-            Type type = typeOf(asAssign.getExpression());
-            final VariableEntry entry;
-            if(((AssignStmt) stmt).isNew()) {
-                writeExp(asAssign.getExpression());
-                if(asAssign.getExpression() instanceof ArrayWithIndexExp) {
-                    entry = addEntry(asAssign.getVariable(), ((TypeArray) type).getBasicType());
+        switch(stmt.getKind()) {
+            case STMT_VARIABLE_DECLARE:
+                // Do nothing here until initialized in AssignStmt
+                break;
+            case STMT_ASSIGN: {
+                final AssignStmt asAssign = (AssignStmt)stmt;
+                Type type = typeOf(asAssign.getExpression());
+                final VariableEntry entry;
+                if(((AssignStmt) stmt).isNew()) {
+                    writeExp(asAssign.getExpression());
+                    if(asAssign.getExpression() instanceof ArrayWithIndexExp) {
+                        entry = addEntry(asAssign.getVariable(), ((TypeArray) type).getBasicType());
+                    } else {
+                        entry = addEntry(asAssign.getVariable(), type);
+                    }
                 } else {
-                    entry = addEntry(asAssign.getVariable(), type);
+                    entry = getEntryFor(((AssignStmt) stmt).getVariable());
+                    if(entry.variable instanceof ArrayWithIndexExp) {
+                        methodVisitor.visitVarInsn(ALOAD, entry.index);
+                        writeExp(((ArrayWithIndexExp) entry.variable).getIndexExp());
+                        writeExp(asAssign.getExpression());
+                    } else {
+                        writeExp(asAssign.getExpression());
+                    }
                 }
-            } else {
-                entry = getEntryFor(((AssignStmt) stmt).getVariable());
-                if(entry.variable instanceof ArrayWithIndexExp) {
+                entry.store(this, methodVisitor);
+                break;
+            }
+            case STMT_COMPOUND_ASSIGN: {
+                // support Int += first, then think about string +
+                final CompoundAssignStmt asAssign = (CompoundAssignStmt)stmt;
+                final VariableEntry entry = getEntryFor(asAssign.getVariable());
+                if(entry instanceof AccumulatorEntry) {
+                    // += is the only compound assignment on a String
+                    methodVisitor.visitVarInsn(ALOAD, entry.index);
+                    writeAppend(asAssign.getExpression());
+                    methodVisitor.visitInsn(POP);
+                    break;
+                }
+                boolean isStringAppend = false;
+                if(asAssign.getVariable() instanceof ArrayWithIndexExp) {
                     methodVisitor.visitVarInsn(ALOAD, entry.index);
                     writeExp(((ArrayWithIndexExp) entry.variable).getIndexExp());
-                    writeExp(asAssign.getExpression());
+                }
+                Type type = typeOf((Exp)asAssign.getVariable());
+                if(type == BasicType.TYPE_STRING) {
+                    isStringAppend = true;
+                } else if(type instanceof TypeArray && asAssign.getVariable() instanceof ArrayWithIndexExp && ((TypeArray) type).getBasicType() == BasicType.TYPE_STRING) {
+                    isStringAppend = true;
                 } else {
-                    writeExp(asAssign.getExpression());
+                    entry.load(this, methodVisitor);
                 }
-            }
-            entry.store(this, methodVisitor);
-        } else if(stmt instanceof CompoundAssignStmt) {
-            // support Int += first, then think about string +
-            final CompoundAssignStmt asAssign = (CompoundAssignStmt)stmt;
-            final VariableEntry entry = getEntryFor(asAssign.getVariable());
-            boolean isStringAppend = false;
-            if(asAssign.getVariable() instanceof ArrayWithIndexExp) {
-                methodVisitor.visitVarInsn(ALOAD, entry.index);
-                writeExp(((ArrayWithIndexExp) entry.variable).getIndexExp());
-            }
-            Type type = typeOf((Exp)asAssign.getVariable());
-            if(type == BasicType.TYPE_STRING) {
-                isStringAppend = true;
-            } else if(type instanceof TypeArray && asAssign.getVariable() instanceof ArrayWithIndexExp && ((TypeArray) type).getBasicType() == BasicType.TYPE_STRING) {
-                isStringAppend = true;
-            } else {
-                entry.load(this, methodVisitor);
-            }
 
-            switch (((CompoundAssignStmt) stmt).getOp()) {
-                case EXP_PLUS_EQUAL:
-                    if(isStringAppend) {
-                        writeExp(new AdditiveExp((Exp)asAssign.getVariable(), asAssign.getExpression(), AdditiveOp.EXP_PLUS));
-                    } else {
+                switch (((CompoundAssignStmt) stmt).getOp()) {
+                    case EXP_PLUS_EQUAL:
+                        if(isStringAppend) {
+                            writeExp(new AdditiveExp((Exp)asAssign.getVariable(), asAssign.getExpression(), AdditiveOp.EXP_PLUS));
+                        } else {
+                            writeExp(asAssign.getExpression());
+                            methodVisitor.visitInsn(IADD);
+                        }
+                        break;
+                    case EXP_MINUS_EQUAL:
                         writeExp(asAssign.getExpression());
-                        methodVisitor.visitInsn(IADD);
-                    }
-                    break;
-                case EXP_MINUS_EQUAL:
-                    writeExp(asAssign.getExpression());
-                    methodVisitor.visitInsn(ISUB);
-                    break;
-                case EXP_MULTIPLY_EQUAL:
-                    writeExp(asAssign.getExpression());
-                    methodVisitor.visitInsn(IMUL);
-                    break;
-                case EXP_DIVIDE_EQUAL:
-                    writeExp(asAssign.getExpression());
-                    methodVisitor.visitInsn(IDIV);
-                    break;
-            }
+                        methodVisitor.visitInsn(ISUB);
+                        break;
+                    case EXP_MULTIPLY_EQUAL:
+                        writeExp(asAssign.getExpression());
+                        methodVisitor.visitInsn(IMUL);
+                        break;
+                    case EXP_DIVIDE_EQUAL:
+                        writeExp(asAssign.getExpression());
+                        methodVisitor.visitInsn(IDIV);
+                        break;
+                }
 
-            entry.store(this, methodVisitor);
-        }
-        else if (stmt instanceof PrintStmt || stmt instanceof PrintlnStmt) {
-            if(stmt instanceof PrintStmt) {
+                entry.store(this, methodVisitor);
+                break;
+            }
+            case STMT_PRINT:
                 writePrint( ((PrintStmt)stmt).getValue(), false);
-            } else {
+                break;
+            case STMT_PRINTLN:
                 writePrint(((PrintlnStmt)stmt).getValue(), true);
-            }
-        } else if (stmt instanceof IfStmt) {
-            writeIfStatement((IfStmt)stmt);
-        } else if (stmt instanceof WhileStmt) {
-            writeWhileStatement((WhileStmt)stmt);
-        } else if(stmt instanceof ReturnStmt) {
-            writeExp(((ReturnStmt) stmt).getReturnExp());
-        } else if(stmt instanceof BlockStmt) {
-            writeBlockStmt((BlockStmt) stmt);
-        } else if(stmt instanceof FunctionInstanceStmt) {
-            writeFunctionInstance(((FunctionInstanceStmt) stmt).getFunctionInstanceExp());
-        } else if(stmt instanceof ForStmt) {
-            writeForStatement((ForStmt) stmt);
-        } else if(stmt instanceof SelfOperationStmt) {
-            writeSelfOperationExp(((SelfOperationStmt) stmt).getSelfOperationExp(), false);
-        }
-        else {
-//            assert(false);
-            throw new CodeGeneratorException("Unrecognized statement so far: " + stmt);
+                break;
+            case STMT_IF:
+                writeIfStatement((IfStmt)stmt);
+                break;
+            case STMT_WHILE:
+                writeLoop(stmt);
+                break;
+            case STMT_RETURN:
+                writeExp(((ReturnStmt) stmt).getReturnExp());
+                break;
+            case STMT_BLOCK:
+                writeBlockStmt((BlockStmt) stmt);
+                break;
+            case STMT_FUNCTION_INSTANCE:
+                writeFunctionInstance(((FunctionInstanceStmt) stmt).getFunctionInstanceExp());
+                break;
+            case STMT_FOR:
+                writeLoop(stmt);
+                break;
+            case STMT_SELF_OPERATION:
+                writeSelfOperationExp(((SelfOperationStmt) stmt).getSelfOperationExp(), false);
+                break;
+            default:
+//                assert(false);
+                throw new CodeGeneratorException("Unrecognized statement so far: " + stmt);
         }
     } // writeStatement
 
@@ -706,7 +884,7 @@ public class CodeGenerator {
     } // writeEntryPoint
 
     private Type writeFunctionInstance(final FunctionInstanceExp call) throws CodeGeneratorException {
-        final FunctionDeclareStmt function = functionTable.get(call.getFuncName().getName());
+        final FunctionDeclareStmt function = call.getFunction();
         if (function == null) {
             throw new CodeGeneratorException("Call to nonexistent function.");
         }
@@ -727,7 +905,7 @@ public class CodeGenerator {
     }
 
     private Type typeOfFunctionInstance(FunctionInstanceExp exp) throws CodeGeneratorException {
-        final FunctionDeclareStmt function = functionTable.get(exp.getFuncName().getName());
+        final FunctionDeclareStmt function = exp.getFunction();
         if (function == null) {
             throw new CodeGeneratorException("Call to nonexistent function.");
         }
@@ -735,11 +913,23 @@ public class CodeGenerator {
     }
 
     private Type typeOf(Exp temp) throws CodeGeneratorException {
+        if(temp == null) {
+            return null;
+        }
+        // Variables are typed by their entries, an indexed array by the array's entry, unlike in Typechecker
+        if(types != null && !(temp instanceof Variable)) {
+            final Type known = types.get(temp);
+            if(known != null) {
+                return known;
+            }
+        }
         Type type;
-        if(temp instanceof IntExp || temp instanceof SelfOperationExp) {
-            type = BasicType.TYPE_INT;
-        } else if(temp instanceof BinaryIntExp) {
-            if(temp instanceof AdditiveExp) {
+        switch(temp.getKind()) {
+            case EXP_INT:
+            case EXP_SELF_OPERATION:
+                type = BasicType.TYPE_INT;
+                break;
+            case EXP_ADDITIVE: {
                 Type left = typeOf(((BinaryIntExp) temp).getLeft());
                 if(((AdditiveExp) temp).getOp() == AdditiveOp.EXP_PLUS) {
                     if(left == BasicType.TYPE_STRING) {
@@ -750,105 +940,256 @@ public class CodeGenerator {
                 } else {
                     type = BasicType.TYPE_INT;
                 }
-            } else {
-                type = BasicType.TYPE_INT;
+                break;
             }
-        } else if(temp instanceof StringExp) {
-            type = BasicType.TYPE_STRING;
-        } else if(temp instanceof BooleanExp || temp instanceof ComparableExp ||
-                temp instanceof NotExp || temp instanceof BiLogicalExp) {
-            type = BasicType.TYPE_BOOLEAN;
-        } else if(temp instanceof VariableExp || temp instanceof ArrayWithIndexExp) {
-            type = typeOfVariable((Variable) temp);
-        } else if(temp instanceof FunctionInstanceExp) {
-            type = typeOfFunctionInstance((FunctionInstanceExp) temp);
-        } else if(temp instanceof ArrayOfExp) {
-            if(((ArrayOfExp) temp).getExpList().size() > 0) {
-                Exp t = ((ArrayOfExp) temp).getExpList().get(0);
-                BasicType basicType = (BasicType) typeOf(t);
-                boolean isAny = false;
-                for (Exp e : ((ArrayOfExp) temp).getExpList()) {
-                    if(basicType != typeOf(e)) {
-                        isAny = true;
-                        break;
+            case EXP_MULTIPLICATIVE:
+                type = BasicType.TYPE_INT;
+                break;
+            case EXP_STRING:
+                type = BasicType.TYPE_STRING;
+                break;
+            case EXP_BOOLEAN:
+            case EXP_COMPARABLE:
+            case EXP_NOT:
+            case EXP_BILOGICAL:
+                type = BasicType.TYPE_BOOLEAN;
+                break;
+            case EXP_VARIABLE:
+            case EXP_ARRAY_WITH_INDEX:
+                type = typeOfVariable((Variable) temp);
+                break;
+            case EXP_FUNCTION_INSTANCE:
+                type = typeOfFunctionInstance((FunctionInstanceExp) temp);
+                break;
+            case EXP_ARRAY_OF:
+                if(((ArrayOfExp) temp).getExpList().size() > 0) {
+                    Exp t = ((ArrayOfExp) temp).getExpList().get(0);
+                    BasicType basicType = (BasicType) typeOf(t);
+                    boolean isAny = false;
+                    for (Exp e : ((ArrayOfExp) temp).getExpList()) {
+                        if(basicType != typeOf(e)) {
+                            isAny = true;
+                            break;
+                        }
                     }
+                    if(isAny) {
+                        basicType = BasicType.TYPE_ANY;
+                    }
+                    type = TypeArray.of(basicType);
+                } else {
+                    throw new CodeGeneratorException("arrayOf(exp*) should has at least one parameter");
                 }
-                if(isAny) {
-                    basicType = BasicType.TYPE_ANY;
-                }
-                type = new TypeArray(basicType);
-            } else {
-                throw new CodeGeneratorException("arrayOf(exp*) should has at least one parameter");
+                break;
+            case EXP_ARRAY: {
+                Type genericType = typeOf(((ArrayExp) temp).getLambdaExp().getReturnExp());
+                type = TypeArray.of((BasicType) genericType);
+                break;
             }
-        } else if(temp instanceof ArrayExp) {
-            Type genericType = typeOf(((ArrayExp) temp).getLambdaExp().getReturnExp());
-            type = new TypeArray((BasicType) genericType);
-        } else if(temp == null) {
-            type = null;
-        }
-        else {
-            throw new CodeGeneratorException("Unrecognized expression type");
+            default:
+                throw new CodeGeneratorException("Unrecognized expression type");
         }
         return type;
     }
 
+    // room an interpolated value is guessed to take in a StringBuilder
+    private static int lengthEstimate(final Type type) {
+        if(type == BasicType.TYPE_INT) {
+            return 11;  // -2147483648
+        } else if(type == BasicType.TYPE_BOOLEAN) {
+            return 5;   // false
+        } else {
+            return 16;
+        }
+    } // lengthEstimate
+
     private void writeStringExp(StringExp s) throws CodeGeneratorException {
-        if(s.getStrWithoutInterpolation() == null) {
+        final String text = s.getStrWithoutInterpolation();
+        if(text == null) {
             throw new CodeGeneratorException("Null is StringExp!");
         } else if(s.getInterpolationExp() == null || s.getInterpolationExp().size() == 0) {
-            methodVisitor.visitLdcInsn(s.getStrWithoutInterpolation());
+            methodVisitor.visitLdcInsn(text);
+        } else if(java11) {
+            writeConcatenation(s);
         } else {
-            Integer[] indexs = new Integer[s.getInterpolationExp().size()];
-            Exp[] exps = new Exp[s.getInterpolationExp().size()];
-            s.getInterpolationExp().keySet().toArray(indexs);
-            s.getInterpolationExp().values().toArray(exps);
-            Type type;
+            // the text between interpolations is split here, each piece is appended as its own constant:
+            //   new StringBuilder(capacity)
+            //   append "text before first", append first value, ..., append "text after last"
+            // pieces with no text are left out
+            final List<Type> types = new ArrayList<>();
+            int capacity = text.length();
+            for (Exp exp : s.getInterpolationExp().values()) {
+                final Type type = concatenatedType(exp);
+                types.add(type);
+                capacity += lengthEstimate(type);
+            }
             methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
             methodVisitor.visitInsn(DUP);
-            methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-            for (int i = 0; i < indexs.length; i++) {
-                methodVisitor.visitLdcInsn(s.getStrWithoutInterpolation());
-                if (i == 0) {
-                    writeIntLiteral(0);
-                } else {
-                    writeIntLiteral(indexs[i - 1]);
-                }
-                writeIntLiteral(indexs[i]);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "substring", "(II)Ljava/lang/String;", false);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                writeExp(exps[i]);
-                type = typeOf(exps[i]);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + Descriptor.toDescriptorString(type) + ")Ljava/lang/StringBuilder;", false);
+            writeIntLiteral(capacity);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+            int start = 0;
+            int i = 0;
+            for (Map.Entry<Integer, Exp> interpolation : s.getInterpolationExp().entrySet()) {
+                writeStringAppend(text.substring(start, interpolation.getKey()));
+                writeExp(interpolation.getValue());
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + Descriptor.toDescriptorString(types.get(i++)) + ")Ljava/lang/StringBuilder;", false);
+                start = interpolation.getKey();
             }
-            methodVisitor.visitLdcInsn(s.getStrWithoutInterpolation());
-            writeIntLiteral(indexs[indexs.length - 1]);
-            writeIntLiteral(s.getStrWithoutInterpolation().length());
-            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "substring", "(II)Ljava/lang/String;", false);
-            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+            writeStringAppend(text.substring(start));
             methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
         }
     }
 
+    private boolean isConcatenation(final Exp exp) throws CodeGeneratorException {
+        return exp.getKind() == ExpKind.EXP_ADDITIVE && ((AdditiveExp) exp).getOp() == AdditiveOp.EXP_PLUS
+                && typeOf(exp) == BasicType.TYPE_STRING;
+    } // isConcatenation
+
+    // The type a value is passed to StringConcatFactory with, an indexed array is typed by its array
+    private Type concatenatedType(final Exp exp) throws CodeGeneratorException {
+        final Type type = typeOf(exp);
+        if(exp instanceof ArrayWithIndexExp && type instanceof TypeArray) {
+            return ((TypeArray) type).getBasicType();
+        }
+        return type;
+    } // concatenatedType
+
+    // A concatenation or template, with the ones nested in it, as one invokedynamic
+    // StringConcatFactory.makeConcatWithConstants.  The recipe has the constant text, with
+    // \1 where an argument goes and \2 for a constant holding \1 or \2 itself.  Past
+    // MAX_CONCAT_ARGUMENTS the string so far is made and passed on as the first argument.
+    private class Concatenation {
+        private final StringBuilder recipe = new StringBuilder();
+        private final StringBuilder descriptor = new StringBuilder("(");
+        private final List<Object> constants = new ArrayList<>();
+        private int arguments = 0;
+
+        private void add(final Exp exp) throws CodeGeneratorException {
+            switch(exp.getKind()) {
+                case EXP_INT:
+                    addConstant(String.valueOf(((IntExp) exp).getValue()));
+                    break;
+                case EXP_BOOLEAN:
+                    addConstant(String.valueOf(((BooleanExp) exp).getValue()));
+                    break;
+                case EXP_STRING: {
+                    final StringExp s = (StringExp) exp;
+                    final String text = s.getStrWithoutInterpolation();
+                    int start = 0;
+                    if(s.getInterpolationExp() != null) {
+                        for (Map.Entry<Integer, Exp> interpolation : s.getInterpolationExp().entrySet()) {
+                            addConstant(text.substring(start, interpolation.getKey()));
+                            add(interpolation.getValue());
+                            start = interpolation.getKey();
+                        }
+                    }
+                    addConstant(text.substring(start));
+                    break;
+                }
+                case EXP_ADDITIVE:
+                    if(isConcatenation(exp)) {
+                        add(((AdditiveExp) exp).getLeft());
+                        add(((AdditiveExp) exp).getRight());
+                        break;
+                    }
+                    // fall through, an Int sum is an argument
+                default:
+                    if(arguments == MAX_CONCAT_ARGUMENTS - 1) {
+                        write();
+                        recipe.setLength(0);
+                        descriptor.setLength(1);
+                        constants.clear();
+                        arguments = 0;
+                        addArgument(BasicType.TYPE_STRING);
+                    }
+                    writeExp(exp);
+                    addArgument(concatenatedType(exp));
+            }
+        }
+
+        private void addConstant(final String constant) {
+            if(constant.indexOf('\u0001') >= 0 || constant.indexOf('\u0002') >= 0) {
+                recipe.append('\u0002');
+                constants.add(constant);
+            } else {
+                recipe.append(constant);
+            }
+        }
+
+        private void addArgument(final Type type) throws CodeGeneratorException {
+            recipe.append('\u0001');
+            descriptor.append(Descriptor.toDescriptorString(type));
+            arguments++;
+        }
+
+        private void write() {
+            final Object[] bootstrapArguments = new Object[constants.size() + 1];
+            bootstrapArguments[0] = recipe.toString();
+            for (int i = 0; i < constants.size(); i++) {
+                bootstrapArguments[i + 1] = constants.get(i);
+            }
+            methodVisitor.visitInvokeDynamicInsn("makeConcatWithConstants", descriptor + ")Ljava/lang/String;",
+                    MAKE_CONCAT_WITH_CONSTANTS, bootstrapArguments);
+        }
+    } // Concatenation
+
+    private void writeConcatenation(final Exp exp) throws CodeGeneratorException {
+        final Concatenation concatenation = new Concatenation();
+        concatenation.add(exp);
+        concatenation.write();
+    } // writeConcatenation
+
+    // appends exp to the StringBuilder on the stack, a concatenation or template piece by piece
+    private void writeAppend(final Exp exp) throws CodeGeneratorException {
+        if(isConcatenation(exp)) {
+            writeAppend(((AdditiveExp) exp).getLeft());
+            writeAppend(((AdditiveExp) exp).getRight());
+        } else if(exp.getKind() == ExpKind.EXP_STRING) {
+            final StringExp s = (StringExp) exp;
+            final String text = s.getStrWithoutInterpolation();
+            int start = 0;
+            if(s.getInterpolationExp() != null) {
+                for (Map.Entry<Integer, Exp> interpolation : s.getInterpolationExp().entrySet()) {
+                    writeStringAppend(text.substring(start, interpolation.getKey()));
+                    writeAppend(interpolation.getValue());
+                    start = interpolation.getKey();
+                }
+            }
+            writeStringAppend(text.substring(start));
+        } else {
+            writeExp(exp);
+            final Type type = concatenatedType(exp);
+            final String descriptor = type == BasicType.TYPE_INT || type == BasicType.TYPE_BOOLEAN || type == BasicType.TYPE_STRING ?
+                    Descriptor.toDescriptorString(type) : "Ljava/lang/Object;";
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + descriptor + ")Ljava/lang/StringBuilder;", false);
+        }
+    } // writeAppend
+
+    // appends a constant to the StringBuilder on the stack, nothing for an empty one
+    private void writeStringAppend(final String constant) {
+        if(!constant.isEmpty()) {
+            methodVisitor.visitLdcInsn(constant);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        }
+    } // writeStringAppend
+
     // assume array is already created.
-    private void writeValueToInitArrayExp(int opcode, VariableExp iteratorExp, Exp initExp, String arrayPrefix, String sizeVar) throws CodeGeneratorException {
+    private void writeValueToInitArrayExp(int opcode, VariableExp iteratorExp, Exp initExp, VariableEntry size) throws CodeGeneratorException {
         final Label head = new Label();
         final Label afterFor = new Label();
-        VariableEntry entry;
         writeIntLiteral(0);
-        entry = addEntry(new VariableExp(arrayPrefix + ".index"), BasicType.TYPE_INT);
-        entry.store(this, methodVisitor);
+        final VariableEntry index = addTemporary(BasicType.TYPE_INT);
+        index.store(this, methodVisitor);
         methodVisitor.visitLabel(head);
-        loadVariable(new VariableExp(arrayPrefix + ".index"));
-        loadVariable(new VariableExp(sizeVar));
+        index.load(this, methodVisitor);
+        size.load(this, methodVisitor);
         methodVisitor.visitJumpInsn(IF_ICMPGE, afterFor);
         methodVisitor.visitInsn(DUP);
-        loadVariable(new VariableExp(arrayPrefix + ".index"));
+        index.load(this, methodVisitor);
         writeExp(initExp);
         methodVisitor.visitInsn(opcode);
-        entry = getEntryFor(new VariableExp(arrayPrefix + ".index"));
-        methodVisitor.visitIincInsn(entry.index, 1);
+        methodVisitor.visitIincInsn(index.index, 1);
         if(iteratorExp != null) {
-            entry = getEntryFor(iteratorExp);
+            final VariableEntry entry = getEntryFor(iteratorExp);
             methodVisitor.visitIincInsn(entry.index, 1);
         }
         methodVisitor.visitJumpInsn(GOTO, head);
@@ -856,7 +1197,7 @@ public class CodeGenerator {
     }
 
     private void writeArrayExp(ArrayExp arrayExp) throws CodeGeneratorException {
-        Map<Variable, VariableEntry> gammaBefore = newCopy(variables);
+        final int scope = addedCount;
         VariableEntry entry;
         LinkedHashMap<VariableExp, Type> parameters = arrayExp.getLambdaExp().getParameterList();
         VariableExp[] variableExps = new VariableExp[1];
@@ -869,37 +1210,35 @@ public class CodeGenerator {
         }
 
         Exp size = arrayExp.getSize();
-        String arrayPrefix = arrayExp.hashCode() + "";
-        String sizeVar = arrayExp.hashCode() + ".size";
         Exp returnExp = arrayExp.getLambdaExp().getReturnExp();
         writeExp(size);
-        entry = addEntry(new VariableExp(sizeVar), BasicType.TYPE_INT);
-        entry.store(this, methodVisitor);
+        final VariableEntry sizeEntry = addTemporary(BasicType.TYPE_INT);
+        sizeEntry.store(this, methodVisitor);
         Type type = typeOf(returnExp);
-        loadVariable(new VariableExp(sizeVar));
+        sizeEntry.load(this, methodVisitor);
 
         switch ((BasicType) type) {
             case TYPE_INT:
                 methodVisitor.visitIntInsn(NEWARRAY, T_INT);
-                writeValueToInitArrayExp(IASTORE, variableExps[0], returnExp, arrayPrefix, sizeVar);
+                writeValueToInitArrayExp(IASTORE, variableExps[0], returnExp, sizeEntry);
                 break;
             case TYPE_STRING:
                 methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/String");
-                writeValueToInitArrayExp(AASTORE, variableExps[0], returnExp, arrayPrefix, sizeVar);
+                writeValueToInitArrayExp(AASTORE, variableExps[0], returnExp, sizeEntry);
                 break;
             case TYPE_BOOLEAN:
                 methodVisitor.visitIntInsn(NEWARRAY, T_BOOLEAN);
-                writeValueToInitArrayExp(BASTORE, variableExps[0], returnExp, arrayPrefix, sizeVar);
+                writeValueToInitArrayExp(BASTORE, variableExps[0], returnExp, sizeEntry);
                 break;
             case TYPE_ANY:
                 methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-                writeValueToInitArrayExp(AASTORE, variableExps[0], returnExp, arrayPrefix, sizeVar);
+                writeValueToInitArrayExp(AASTORE, variableExps[0], returnExp, sizeEntry);
                 break;
             case TYPE_UNIT:
                 throw new CodeGeneratorException("Void type only from return in function");
         }
 
-        variables = gammaBefore;
+        removeEntries(scope);
     }
 
     private void writeValueToArray(BasicType type, List<Exp> exps) throws CodeGeneratorException {
@@ -957,65 +1296,66 @@ public class CodeGenerator {
         if(exp == null) {
             // Do nothing
             return null;
-        } else if(exp instanceof IntExp) {
-            writeIntLiteral(((IntExp) exp).getValue());
-            return BasicType.TYPE_INT;
-        } else if(exp instanceof BooleanExp) {
-            writeIntLiteral(((BooleanExp) exp).getValue() ? 1 : 0);
-            return BasicType.TYPE_BOOLEAN;
-        } else if(exp instanceof StringExp) {
-            writeStringExp((StringExp) exp);
-            return BasicType.TYPE_STRING;
-        } else if(exp instanceof VariableExp) {
-            return loadVariable((VariableExp)exp).type;
-        } else if(exp instanceof ArrayWithIndexExp) {
-            return loadVariable((ArrayWithIndexExp)exp).type;
-        } else if(exp instanceof SelfOperationExp) {
-            writeSelfOperationExp((SelfOperationExp) exp, true);
-            return BasicType.TYPE_INT;
-        } else if(exp instanceof BinaryIntExp) {
-            if(writeAdditiveExpOrMultplicativeExp((BinaryIntExp) exp)) {
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
-            }
-            return typeOf(exp);
-        } else if(exp instanceof ComparableExp) {
-            writeComparableExp((ComparableExp) exp);
-            return BasicType.TYPE_BOOLEAN;
-        } else if(exp instanceof NotExp) {
-            writeNotExp((NotExp) exp);
-            return BasicType.TYPE_BOOLEAN;
-        } else if(exp instanceof BiLogicalExp) {
-            writeBiLogicalExp((BiLogicalExp) exp);
-            return BasicType.TYPE_BOOLEAN;
-        } else if(exp instanceof FunctionInstanceExp) {
-            return writeFunctionInstance((FunctionInstanceExp) exp);
-        } else if(exp instanceof ArrayOfExp) {
-            if(((ArrayOfExp) exp).getExpList().size() > 0) {
-                Exp temp = ((ArrayOfExp) exp).getExpList().get(0);
-                BasicType type = (BasicType) typeOf(temp);
-                boolean isAny = false;
-                for (Exp e : ((ArrayOfExp) exp).getExpList()) {
-                    if(type != typeOf(e)) {
-                        isAny = true;
-                        break;
-                    }
-                }
-                if(isAny) {
-                    type = BasicType.TYPE_ANY;
+        }
+        switch(exp.getKind()) {
+            case EXP_INT:
+                writeIntLiteral(((IntExp) exp).getValue());
+                return BasicType.TYPE_INT;
+            case EXP_BOOLEAN:
+                writeIntLiteral(((BooleanExp) exp).getValue() ? 1 : 0);
+                return BasicType.TYPE_BOOLEAN;
+            case EXP_STRING:
+                writeStringExp((StringExp) exp);
+                return BasicType.TYPE_STRING;
+            case EXP_VARIABLE:
+                return loadVariable((VariableExp)exp).type;
+            case EXP_ARRAY_WITH_INDEX:
+                return loadVariable((ArrayWithIndexExp)exp).type;
+            case EXP_SELF_OPERATION:
+                writeSelfOperationExp((SelfOperationExp) exp, true);
+                return BasicType.TYPE_INT;
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                if(java11 && isConcatenation(exp)) {
+                    writeConcatenation(exp);
+                } else if(writeAdditiveExpOrMultplicativeExp((BinaryIntExp) exp)) {
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
                 }
+                return typeOf(exp);
+            case EXP_COMPARABLE:
+            case EXP_NOT:
+            case EXP_BILOGICAL:
+                writeConditionValue(exp);
+                return BasicType.TYPE_BOOLEAN;
+            case EXP_FUNCTION_INSTANCE:
+                return writeFunctionInstance((FunctionInstanceExp) exp);
+            case EXP_ARRAY_OF:
+                if(((ArrayOfExp) exp).getExpList().size() > 0) {
+                    Exp temp = ((ArrayOfExp) exp).getExpList().get(0);
+                    BasicType type = (BasicType) typeOf(temp);
+                    boolean isAny = false;
+                    for (Exp e : ((ArrayOfExp) exp).getExpList()) {
+                        if(type != typeOf(e)) {
+                            isAny = true;
+                            break;
+                        }
+                    }
+                    if(isAny) {
+                        type = BasicType.TYPE_ANY;
+                    }
 
-                writeValueToArray(type, ((ArrayOfExp) exp).getExpList());
-                return new TypeArray(type);
-            } else {
-                throw new CodeGeneratorException("arrayOf(exp*) should has at least one parameter");
+                    writeValueToArray(type, ((ArrayOfExp) exp).getExpList());
+                    return TypeArray.of(type);
+                } else {
+                    throw new CodeGeneratorException("arrayOf(exp*) should has at least one parameter");
+                }
+            case EXP_ARRAY: {
+                Type returnGenericType = typeOf(((ArrayExp) exp).getLambdaExp().getReturnExp());
+                writeArrayExp((ArrayExp) exp);
+                return TypeArray.of((BasicType) returnGenericType);
             }
-        } else if(exp instanceof ArrayExp) {
-            Type returnGenericType = typeOf(((ArrayExp) exp).getLambdaExp().getReturnExp());
-            writeArrayExp((ArrayExp) exp);
-            return new TypeArray((BasicType) returnGenericType);
-        }
-        else {
-            throw new CodeGeneratorException("Unsupported expression so far!");
+            default:
+                throw new CodeGeneratorException("Unsupported expression so far!");
         }
     }
 
@@ -1024,166 +1364,195 @@ public class CodeGenerator {
         Exp left = exp.getLeft();
         Exp right = exp.getRight();
         boolean isStringAppend = false;
-        if(left instanceof IntExp) {
-            writeIntLiteral(((IntExp) left).getValue());
-        } else if(left instanceof VariableExp) {
-            final VariableEntry entry = getEntryFor((VariableExp) left);
-            if(entry.type == BasicType.TYPE_INT) {
-                entry.load(this, methodVisitor);
-            } else if(entry.type == BasicType.TYPE_STRING) {
-                isStringAppend = true;
-                methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
-                methodVisitor.visitInsn(DUP);
-                methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-                entry.load(this, methodVisitor);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-            }
-            else {
-                assert (false);
-                throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT.");
+        switch(left.getKind()) {
+            case EXP_INT:
+                writeIntLiteral(((IntExp) left).getValue());
+                break;
+            case EXP_VARIABLE: {
+                final VariableEntry entry = getEntryFor((VariableExp) left);
+                if(entry.type == BasicType.TYPE_INT) {
+                    entry.load(this, methodVisitor);
+                } else if(entry.type == BasicType.TYPE_STRING) {
+                    isStringAppend = true;
+                    methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
+                    methodVisitor.visitInsn(DUP);
+                    methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+                    entry.load(this, methodVisitor);
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                }
+                else {
+                    assert (false);
+                    throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT.");
+                }
+                break;
             }
-        } else if(left instanceof StringExp) {
-            isStringAppend = true;
-            methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
-            methodVisitor.visitInsn(DUP);
-            methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-            writeStringExp((StringExp) left);
-            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-        } else if(left instanceof BinaryIntExp) {
-            isStringAppend = writeAdditiveExpOrMultplicativeExp((BinaryIntExp)left);
-        } else if(left instanceof SelfOperationExp) {
-            writeSelfOperationExp((SelfOperationExp) left, true);
-        } else if(left instanceof ArrayWithIndexExp) {
-            final VariableEntry entry = getEntryFor((ArrayWithIndexExp) left);
-            BasicType basicType = ((TypeArray) entry.type).getBasicType();
-            if(basicType == BasicType.TYPE_STRING) {
+            case EXP_STRING:
                 isStringAppend = true;
                 methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
                 methodVisitor.visitInsn(DUP);
                 methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-                entry.load(this, methodVisitor);
+                writeStringExp((StringExp) left);
                 methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-            } else {
-                entry.load(this, methodVisitor);
+                break;
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                isStringAppend = writeAdditiveExpOrMultplicativeExp((BinaryIntExp)left);
+                break;
+            case EXP_SELF_OPERATION:
+                writeSelfOperationExp((SelfOperationExp) left, true);
+                break;
+            case EXP_ARRAY_WITH_INDEX: {
+                final VariableEntry entry = getEntryFor((ArrayWithIndexExp) left);
+                BasicType basicType = ((TypeArray) entry.type).getBasicType();
+                if(basicType == BasicType.TYPE_STRING) {
+                    isStringAppend = true;
+                    methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
+                    methodVisitor.visitInsn(DUP);
+                    methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+                    entry.load(this, methodVisitor);
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                } else {
+                    entry.load(this, methodVisitor);
+                }
+                break;
             }
-        } else {
-            assert (false);
-            throw new CodeGeneratorException("IllTypedException should be handled in typechecker.");
+            default:
+                assert (false);
+                throw new CodeGeneratorException("IllTypedException should be handled in typechecker.");
         }
 
         // Do it again to load right Exp on stack
-        if(right instanceof IntExp) {
-            if(isStringAppend) {
-                writeIntLiteral(((IntExp) right).getValue());
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
-            } else {
-                writeIntLiteral(((IntExp) right).getValue());
-            }
-        } else if(right instanceof VariableExp) {
-            final VariableEntry entry = getEntryFor((VariableExp) right);
-            if(entry.type == BasicType.TYPE_INT) {
+        switch(right.getKind()) {
+            case EXP_INT:
                 if(isStringAppend) {
-                    entry.load(this, methodVisitor);
+                    writeIntLiteral(((IntExp) right).getValue());
                     methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
                 } else {
-                    entry.load(this, methodVisitor);
+                    writeIntLiteral(((IntExp) right).getValue());
                 }
-            } else if(entry.type == BasicType.TYPE_STRING) {
-                if(!isStringAppend) {
-                    throw new CodeGeneratorException("String Concatenation left value must be a string");
+                break;
+            case EXP_VARIABLE: {
+                final VariableEntry entry = getEntryFor((VariableExp) right);
+                if(entry.type == BasicType.TYPE_INT) {
+                    if(isStringAppend) {
+                        entry.load(this, methodVisitor);
+                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+                    } else {
+                        entry.load(this, methodVisitor);
+                    }
+                } else if(entry.type == BasicType.TYPE_STRING) {
+                    if(!isStringAppend) {
+                        throw new CodeGeneratorException("String Concatenation left value must be a string");
+                    } else {
+                        entry.load(this, methodVisitor);
+                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                    }
+                } else if(entry.type == BasicType.TYPE_BOOLEAN) {
+                    if(isStringAppend) {
+                        entry.load(this, methodVisitor);
+                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Z)Ljava/lang/StringBuilder;", false);
+                    } else {
+                        throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT or TYPE_STRING.");
+                    }
+                }
+                else {
+                    assert (false);
+                    throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT or TYPE_STRING.");
+                }
+                break;
+            }
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                if(isStringAppend) {
+                    // a concatenation is appended piece by piece, an Int sum as an Int
+                    writeAppend(right);
                 } else {
-                    entry.load(this, methodVisitor);
-                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                    writeAdditiveExpOrMultplicativeExp((BinaryIntExp)right);
                 }
-            } else if(entry.type == BasicType.TYPE_BOOLEAN) {
+                break;
+            case EXP_SELF_OPERATION:
                 if(isStringAppend) {
-                    entry.load(this, methodVisitor);
+                    writeSelfOperationExp((SelfOperationExp) right, true);
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+                } else {
+                    writeSelfOperationExp((SelfOperationExp) right, true);
+                }
+                break;
+            case EXP_BOOLEAN:
+                if(isStringAppend) {
+                    writeIntLiteral(((BooleanExp) right).getValue() ? 1 : 0);
                     methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Z)Ljava/lang/StringBuilder;", false);
                 } else {
                     throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT or TYPE_STRING.");
                 }
-            }
-            else {
-                assert (false);
-                throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT or TYPE_STRING.");
-            }
-        } else if(right instanceof BinaryIntExp) {
-            writeAdditiveExpOrMultplicativeExp((BinaryIntExp)right);
-        } else if(right instanceof SelfOperationExp) {
-            if(isStringAppend) {
-                writeSelfOperationExp((SelfOperationExp) right, true);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
-            } else {
-                writeSelfOperationExp((SelfOperationExp) right, true);
-            }
-        } else if(right instanceof BooleanExp) {
-            if(isStringAppend) {
-                writeIntLiteral(((BooleanExp) right).getValue() ? 1 : 0);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Z)Ljava/lang/StringBuilder;", false);
-            } else {
-                throw new CodeGeneratorException("Variable in AdditiveExp should be TYPE_INT or TYPE_STRING.");
-            }
-        }
-        else if(right instanceof ArrayWithIndexExp) {
-            final VariableEntry entry = getEntryFor((ArrayWithIndexExp) right);
-            if(isStringAppend) {
-                BasicType basicType = ((TypeArray) entry.type).getBasicType();
-                entry.load(this, methodVisitor);
-                switch (basicType) {
-                    case TYPE_INT:
-                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
-                        break;
-                    case TYPE_STRING:
-                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                        break;
-                    case TYPE_BOOLEAN:
-                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Z)Ljava/lang/StringBuilder;", false);
-                        break;
-                    case TYPE_ANY:
-                        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/Object;)Ljava/lang/StringBuilder;", false);
-                        break;
-                    case TYPE_UNIT:
-                        throw new CodeGeneratorException("Void type should only return from function declaration");
+                break;
+            case EXP_ARRAY_WITH_INDEX: {
+                final VariableEntry entry = getEntryFor((ArrayWithIndexExp) right);
+                if(isStringAppend) {
+                    BasicType basicType = ((TypeArray) entry.type).getBasicType();
+                    entry.load(this, methodVisitor);
+                    switch (basicType) {
+                        case TYPE_INT:
+                            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+                            break;
+                        case TYPE_STRING:
+                            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                            break;
+                        case TYPE_BOOLEAN:
+                            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Z)Ljava/lang/StringBuilder;", false);
+                            break;
+                        case TYPE_ANY:
+                            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/Object;)Ljava/lang/StringBuilder;", false);
+                            break;
+                        case TYPE_UNIT:
+                            throw new CodeGeneratorException("Void type should only return from function declaration");
+                    }
+                } else {
+                    entry.load(this, methodVisitor);
                 }
-            } else {
-                entry.load(this, methodVisitor);
-            }
-        } else if(right instanceof StringExp) {
-            if(isStringAppend) {
-                writeStringExp((StringExp) right);
-                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-            } else {
-                throw new CodeGeneratorException("String can be only in string + string operation.");
+                break;
             }
-        }
-        else {
-            assert (false);
-            throw new CodeGeneratorException("IllTypedException should be handled in typechecker.");
+            case EXP_STRING:
+                if(isStringAppend) {
+                    writeStringExp((StringExp) right);
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+                } else {
+                    throw new CodeGeneratorException("String can be only in string + string operation.");
+                }
+                break;
+            default:
+                assert (false);
+                throw new CodeGeneratorException("IllTypedException should be handled in typechecker.");
         }
 
-        if(exp instanceof AdditiveExp) {
-            AdditiveOp op = ((AdditiveExp) exp).getOp();
-            if(op == AdditiveOp.EXP_PLUS) {
-                if(!isStringAppend) {
-                    methodVisitor.visitInsn(IADD);
+        switch(exp.getKind()) {
+            case EXP_ADDITIVE: {
+                AdditiveOp op = ((AdditiveExp) exp).getOp();
+                if(op == AdditiveOp.EXP_PLUS) {
+                    if(!isStringAppend) {
+                        methodVisitor.visitInsn(IADD);
+                    }
+                } else {
+                    if(isStringAppend) {
+                        throw new CodeGeneratorException("String concatenation is only allow in +");
+                    }
+                    methodVisitor.visitInsn(ISUB);
                 }
-            } else {
+                break;
+            }
+            case EXP_MULTIPLICATIVE: {
                 if(isStringAppend) {
                     throw new CodeGeneratorException("String concatenation is only allow in +");
                 }
-                methodVisitor.visitInsn(ISUB);
-            }
-        } else if(exp instanceof MultiplicativeExp) {
-            if(isStringAppend) {
-                throw new CodeGeneratorException("String concatenation is only allow in +");
-            }
-            MultiplicativeOp op = ((MultiplicativeExp) exp).getOp();
-            if(op == MultiplicativeOp.OP_MULTIPLY) {
-                methodVisitor.visitInsn(IMUL);
-            } else if(op == MultiplicativeOp.OP_DIVIDE) {
-                methodVisitor.visitInsn(IDIV);
-            } else if(op == MultiplicativeOp.OP_MOD) {
-                methodVisitor.visitInsn(IREM);
+                MultiplicativeOp op = ((MultiplicativeExp) exp).getOp();
+                if(op == MultiplicativeOp.OP_MULTIPLY) {
+                    methodVisitor.visitInsn(IMUL);
+                } else if(op == MultiplicativeOp.OP_DIVIDE) {
+                    methodVisitor.visitInsn(IDIV);
+                } else if(op == MultiplicativeOp.OP_MOD) {
+                    methodVisitor.visitInsn(IREM);
+                }
+                break;
             }
         }
         return isStringAppend;
@@ -1245,6 +1614,18 @@ public class CodeGenerator {
     } // loadFunctionTable
 
     public void writeProgram(final Program program) throws CodeGeneratorException, IOException {
+        writeProgram(program, null);
+    } // writeProgram
+
+    /**
+     * Writes program with the types of its expressions looked up in types instead of worked out again,
+     * types must be from Typechecker checking this program, checked again after a pass rebuilt any of it.
+     */
+    public void writeProgram(final Program program, final TypeTable types) throws CodeGeneratorException, IOException {
+        this.types = types;
+        if(types == null) {     // else Typechecker resolved program
+            Resolver.resolve(program);
+        }
         loadFunctionTable(program);
         for (final FunctionDeclareStmt function : functionTable.values()) {
             writeFunction(function);
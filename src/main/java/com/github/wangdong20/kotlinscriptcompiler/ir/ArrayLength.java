@@ -0,0 +1,21 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+public class ArrayLength extends Value {
+    private final Value array;
+
+    public ArrayLength(final Value array) {
+        super(ValueKind.VALUE_ARRAY_LENGTH, BasicType.TYPE_INT);
+        this.array = array;
+    }
+
+    public Value getArray() {
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return array + ".length";
+    }
+}
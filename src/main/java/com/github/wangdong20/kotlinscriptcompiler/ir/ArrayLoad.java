@@ -0,0 +1,27 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+public class ArrayLoad extends Value {
+    private final Value array;
+    private final Value index;
+
+    public ArrayLoad(final Value array, final Value index, final BasicType elementType) {
+        super(ValueKind.VALUE_ARRAY_LOAD, elementType);
+        this.array = array;
+        this.index = index;
+    }
+
+    public Value getArray() {
+        return array;
+    }
+
+    public Value getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return array + "[" + index + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+public class ArrayStore extends Instruction {
+    private final Value array;
+    private final Value index;
+    private final Value value;
+    private final BasicType elementType;
+
+    public ArrayStore(final Value array, final Value index, final Value value, final BasicType elementType) {
+        super(InstructionKind.INSTR_ARRAY_STORE);
+        this.array = array;
+        this.index = index;
+        this.value = value;
+        this.elementType = elementType;
+    }
+
+    public Value getArray() {
+        return array;
+    }
+
+    public Value getIndex() {
+        return index;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public BasicType getElementType() {
+        return elementType;
+    }
+
+    @Override
+    public String toString() {
+        return array + "[" + index + "] = " + value;
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public class Assign extends Instruction {
+    private final Local target;
+    private final Value value;
+
+    public Assign(final Local target, final Value value) {
+        super(InstructionKind.INSTR_ASSIGN);
+        this.target = target;
+        this.value = value;
+    }
+
+    public Local getTarget() {
+        return target;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return target + " = " + value;
+    }
+}
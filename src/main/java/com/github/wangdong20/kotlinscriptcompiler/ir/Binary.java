@@ -0,0 +1,36 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+/**
+ * Arithmetic on, or comparison of, two Int or Boolean values.
+ */
+public class Binary extends Value {
+    private final BinaryOp op;
+    private final Value left;
+    private final Value right;
+
+    public Binary(final BinaryOp op, final Value left, final Value right) {
+        super(ValueKind.VALUE_BINARY, op.isComparison() ? BasicType.TYPE_BOOLEAN : BasicType.TYPE_INT);
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+
+    public BinaryOp getOp() {
+        return op;
+    }
+
+    public Value getLeft() {
+        return left;
+    }
+
+    public Value getRight() {
+        return right;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + left + " " + op + " " + right + ")";
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public enum BinaryOp {
+    OP_ADD("+"),
+    OP_SUBTRACT("-"),
+    OP_MULTIPLY("*"),
+    OP_DIVIDE("/"),
+    OP_MOD("%"),
+    OP_LESS_THAN("<"),
+    OP_LESS_EQUAL("<="),
+    OP_GREATER_THAN(">"),
+    OP_GREATER_EQUAL(">="),
+    OP_EQUAL_EQUAL("=="),
+    OP_NOT_EQUAL("!=");
+
+    private final String symbol;
+
+    BinaryOp(final String symbol) {
+        this.symbol = symbol;
+    }
+
+    public boolean isComparison() {
+        return ordinal() >= OP_LESS_THAN.ordinal();
+    }
+
+    /**
+     * The comparison true exactly when this one is false.
+     */
+    public BinaryOp negate() {
+        switch (this) {
+            case OP_LESS_THAN:
+                return OP_GREATER_EQUAL;
+            case OP_LESS_EQUAL:
+                return OP_GREATER_THAN;
+            case OP_GREATER_THAN:
+                return OP_LESS_EQUAL;
+            case OP_GREATER_EQUAL:
+                return OP_LESS_THAN;
+            case OP_EQUAL_EQUAL:
+                return OP_NOT_EQUAL;
+            case OP_NOT_EQUAL:
+                return OP_EQUAL_EQUAL;
+            default:
+                throw new IllegalStateException("Not a comparison: " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return symbol;
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A basic block: phis, then straight line instructions, then a terminator which is the only way out.
+ */
+public class Block {
+    private final int id;
+    private final List<Phi> phis = new ArrayList<>();
+    private final List<Instruction> instructions = new ArrayList<>();
+    private final List<Block> predecessors = new ArrayList<>();
+    private Instruction terminator;
+
+    public Block(final int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return "b" + id;
+    }
+
+    public List<Phi> getPhis() {
+        return phis;
+    }
+
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public List<Block> getPredecessors() {
+        return predecessors;
+    }
+
+    public Instruction getTerminator() {
+        return terminator;
+    }
+
+    public List<Block> getSuccessors() {
+        return terminator == null ? Collections.emptyList() : terminator.getTargets();
+    }
+
+    /**
+     * Ends this block with terminator and makes this block a predecessor of its targets.
+     */
+    public void setTerminator(final Instruction terminator) {
+        assert(this.terminator == null);
+        this.terminator = terminator;
+        for(Block target : terminator.getTargets()) {
+            target.predecessors.add(this);
+        }
+    }
+
+    // swaps in a terminator going to the same blocks, e.g. one with its values rewritten
+    void replaceTerminator(final Instruction terminator) {
+        assert(terminator.getTargets().equals(this.terminator.getTargets()));
+        this.terminator = terminator;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(getName()).append(":");
+        if(!predecessors.isEmpty()) {
+            builder.append("    // from");
+            for(Block predecessor : predecessors) {
+                builder.append(" ").append(predecessor.getName());
+            }
+        }
+        builder.append("\n");
+        for(Phi phi : phis) {
+            builder.append("    ").append(phi).append("\n");
+        }
+        for(Instruction instruction : instructions) {
+            builder.append("    ").append(instruction).append("\n");
+        }
+        if(terminator != null) {
+            builder.append("    ").append(terminator).append("\n");
+        }
+        return builder.toString();
+    }
+}
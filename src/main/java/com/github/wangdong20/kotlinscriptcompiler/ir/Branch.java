@@ -0,0 +1,40 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class Branch extends Instruction {
+    private final Value condition;
+    private final Block ifTrue;
+    private final Block ifFalse;
+
+    public Branch(final Value condition, final Block ifTrue, final Block ifFalse) {
+        super(InstructionKind.INSTR_BRANCH);
+        assert(ifTrue != ifFalse);
+        this.condition = condition;
+        this.ifTrue = ifTrue;
+        this.ifFalse = ifFalse;
+    }
+
+    public Value getCondition() {
+        return condition;
+    }
+
+    public Block getIfTrue() {
+        return ifTrue;
+    }
+
+    public Block getIfFalse() {
+        return ifFalse;
+    }
+
+    @Override
+    public List<Block> getTargets() {
+        return Arrays.asList(ifTrue, ifFalse);
+    }
+
+    @Override
+    public String toString() {
+        return "if " + condition + " goto " + ifTrue.getName() + " else " + ifFalse.getName();
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+import java.util.List;
+
+/**
+ * A call of a function of the program, a static method of the class written.
+ */
+public class Call extends Value {
+    private final String name;
+    private final String descriptor;
+    private final List<Value> arguments;
+
+    public Call(final String name, final String descriptor, final Type returnType, final List<Value> arguments) {
+        super(ValueKind.VALUE_CALL, returnType);
+        this.name = name;
+        this.descriptor = descriptor;
+        this.arguments = arguments;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public List<Value> getArguments() {
+        return arguments;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(name).append("(");
+        for(int i = 0; i < arguments.size(); i++) {
+            builder.append(i == 0 ? "" : ", ").append(arguments.get(i));
+        }
+        return builder.append(")").toString();
+    }
+}
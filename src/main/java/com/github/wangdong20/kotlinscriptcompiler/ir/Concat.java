@@ -0,0 +1,30 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+import java.util.List;
+
+/**
+ * The String made of parts appended in order, each converted to a String as StringBuilder.append does.
+ */
+public class Concat extends Value {
+    private final List<Value> parts;
+
+    public Concat(final List<Value> parts) {
+        super(ValueKind.VALUE_CONCAT, BasicType.TYPE_STRING);
+        this.parts = parts;
+    }
+
+    public List<Value> getParts() {
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("concat(");
+        for(int i = 0; i < parts.size(); i++) {
+            builder.append(i == 0 ? "" : ", ").append(parts.get(i));
+        }
+        return builder.append(")").toString();
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+import java.util.Objects;
+
+public class Constant extends Value {
+    public static final Constant TRUE = new Constant(BasicType.TYPE_BOOLEAN, true);
+    public static final Constant FALSE = new Constant(BasicType.TYPE_BOOLEAN, false);
+
+    private final Object value;     // Integer, Boolean, String or null
+
+    public Constant(final Type type, final Object value) {
+        super(ValueKind.VALUE_CONSTANT, type);
+        this.value = value;
+    }
+
+    public static Constant of(final int value) {
+        return new Constant(BasicType.TYPE_INT, value);
+    }
+
+    public static Constant of(final boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * What a local of type holds before it is assigned.
+     */
+    public static Constant defaultOf(final Type type) {
+        if(type == BasicType.TYPE_INT) {
+            return of(0);
+        } else if(type == BasicType.TYPE_BOOLEAN) {
+            return FALSE;
+        }
+        return new Constant(type, null);
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Constant && ((Constant) obj).getType() == getType()
+                && Objects.equals(((Constant) obj).value, value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return value instanceof String ? '"' + (String) value + '"' : String.valueOf(value);
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+/**
+ * Computes a value for its side effects only, e.g. a call whose result is not used.
+ */
+public class Eval extends Instruction {
+    private final Value value;
+
+    public Eval(final Value value) {
+        super(InstructionKind.INSTR_EVAL);
+        this.value = value;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value.toString();
+    }
+}
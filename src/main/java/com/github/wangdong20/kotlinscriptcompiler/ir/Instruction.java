@@ -0,0 +1,26 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A step of a Block. Jump, Branch and Return only end blocks, the others make up the body.
+ */
+public abstract class Instruction {
+    private final InstructionKind kind;
+
+    protected Instruction(final InstructionKind kind) {
+        this.kind = kind;
+    }
+
+    public final InstructionKind getKind() {
+        return kind;
+    }
+
+    /**
+     * The blocks control goes to after this instruction, empty unless it ends a block.
+     */
+    public List<Block> getTargets() {
+        return Collections.emptyList();
+    }
+}
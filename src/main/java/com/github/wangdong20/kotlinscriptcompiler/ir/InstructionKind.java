@@ -0,0 +1,12 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public enum InstructionKind {
+    INSTR_ASSIGN,
+    INSTR_ARRAY_STORE,
+    INSTR_PRINT,
+    INSTR_EVAL,
+    // the ones ending a block
+    INSTR_JUMP,
+    INSTR_BRANCH,
+    INSTR_RETURN
+}
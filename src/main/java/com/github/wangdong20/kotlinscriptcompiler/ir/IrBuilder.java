@@ -0,0 +1,1084 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGeneratorException;
+import com.github.wangdong20.kotlinscriptcompiler.codegen.Descriptor;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Resolver;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
+
+import java.util.*;
+
+/**
+ * Lowers a typechecked program to basic blocks. Loops, ifs, && and || become jumps between blocks,
+ * so break, continue and return are plain jumps too. Int and Boolean variables are put in SSA form
+ * while lowering, as in Braun et al., "Simple and Efficient Construction of Static Single Assignment Form":
+ * a read looks for the last assignment in the block and else in the predecessors, with a phi where
+ * they meet. Blocks still getting predecessors, loop heads, get their phis completed once all are known.
+ *
+ * Versions of a variable are never live at the same time, IrCodeGenerator keeps them in one local
+ * and the phis between them cost nothing. A value read before an assignment later in the same
+ * expression, e.g. i in i + i++, is first copied to a temporary to keep it that way.
+ */
+public class IrBuilder {
+    private Local[] variables;  // in scope by name id
+    private int[] added;        // ids of variables in order of declaration, removed when their scope ends
+    private int addedCount;
+
+    // of the function being lowered
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Map<Local, Value>> definitions = new ArrayList<>();     // by block id, last value of each variable
+    private final List<Map<Local, Phi>> incompletePhis = new ArrayList<>();    // by block id, null once the block is sealed
+    private Block current;
+    private Loop loop;
+    private Type returnType;
+    private int temporaries;
+
+    private static final class Loop {
+        private final Block continueTarget;
+        private final Block breakTarget;
+        private final Loop outer;
+
+        private Loop(final Block continueTarget, final Block breakTarget, final Loop outer) {
+            this.continueTarget = continueTarget;
+            this.breakTarget = breakTarget;
+            this.outer = outer;
+        }
+    }
+
+    // a point in a block instructions can be put at later
+    private static final class Mark {
+        private final Block block;
+        private final int index;
+
+        private Mark(final Block block, final int index) {
+            this.block = block;
+            this.index = index;
+        }
+    }
+
+    private IrBuilder() {
+        variables = new Local[16];
+        added = new int[16];
+        addedCount = 0;
+    }
+
+    /**
+     * Lowers the functions of program, and its top level statements to a function named entryPointName.
+     */
+    public static IrProgram build(final Program program, final String entryPointName) throws CodeGeneratorException {
+        Resolver.resolve(program);
+        final IrBuilder builder = new IrBuilder();
+        final List<IrFunction> functions = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        final List<Stmt> topLevel = new ArrayList<>();
+        for(Stmt s : program.getStmtList()) {
+            if(s.getKind() == StmtKind.STMT_FUNCTION_DECLARE) {
+                final FunctionDeclareStmt function = (FunctionDeclareStmt) s;
+                if(!names.add(function.getFuncName().getName())) {
+                    throw new CodeGeneratorException("Duplicate function name: " + function.getFuncName().getName());
+                }
+                functions.add(builder.buildFunction(function.getFuncName().getName(),
+                        Descriptor.toDescriptorString(function),
+                        function.getReturnType(),
+                        function.getParameterList(),
+                        function.getBlockStmt() == null ? null : function.getBlockStmt().getStmtList()));
+            } else {
+                topLevel.add(s);
+            }
+        }
+        final IrFunction entryPoint = builder.buildFunction(entryPointName, "()V", BasicType.TYPE_UNIT, null, topLevel);
+        functions.add(entryPoint);
+        return new IrProgram(functions, entryPoint);
+    } // build
+
+    private IrFunction buildFunction(final String name, final String descriptor, final Type returnType,
+                                     final LinkedHashMap<Exp, Type> parameterList, final List<Stmt> body)
+            throws CodeGeneratorException {
+        blocks.clear();
+        definitions.clear();
+        incompletePhis.clear();
+        loop = null;
+        temporaries = 0;
+        this.returnType = returnType;
+
+        final Block entry = newBlock();
+        seal(entry);
+        current = entry;
+        final List<Local> parameters = new ArrayList<>();
+        if(parameterList != null) {
+            for(Map.Entry<Exp, Type> parameter : parameterList.entrySet()) {
+                final Local local = declare((VariableExp) parameter.getKey(), parameter.getValue());
+                if(local.isSsa()) {
+                    writeVariable(local, entry, new Use(local));
+                }
+                parameters.add(local);
+            }
+        }
+        if(body != null) {
+            lowerStatements(body);
+        }
+        // falling off the end
+        current.setTerminator(new Return(returnType == BasicType.TYPE_UNIT ? null : Constant.defaultOf(returnType)));
+        removeEntries(0);
+        return new IrFunction(name, descriptor, returnType, parameters, finish(entry));
+    } // buildFunction
+
+    // ---BEGIN SCOPES AND SSA---
+    private Local declare(final VariableExp variable, final Type type) throws CodeGeneratorException {
+        final int id = variable.getId();
+        if(id < 0) {
+            throw new CodeGeneratorException("Variable not resolved: " + variable);
+        }
+        if(id >= variables.length) {
+            variables = Arrays.copyOf(variables, Math.max(2 * variables.length, id + 1));
+        }
+        if(variables[id] != null) {
+            // should be caught by typechecker
+            throw new CodeGeneratorException("Variable already in scope: " + variable);
+        }
+        if(addedCount == added.length) {
+            added = Arrays.copyOf(added, 2 * added.length);
+        }
+        final Local local = new Local(variable.getName(), type);
+        variables[id] = local;
+        added[addedCount++] = id;
+        return local;
+    } // declare
+
+    // ends the scope of the variables declared since addedCount was mark
+    private void removeEntries(final int mark) {
+        while(addedCount > mark) {
+            variables[added[--addedCount]] = null;
+        }
+    } // removeEntries
+
+    private Local lookup(final VariableExp variable) throws CodeGeneratorException {
+        final int id = variable.getId();
+        final Local local = id >= 0 && id < variables.length ? variables[id] : null;
+        if(local == null) {
+            // should be caught by typechecker
+            throw new CodeGeneratorException("no such variable declared: " + variable);
+        }
+        return local;
+    } // lookup
+
+    private Value read(final Local variable) {
+        return variable.isSsa() ? readVariable(variable, current) : new Use(variable);
+    }
+
+    private void assign(final Local variable, final Value value) {
+        if(variable.isSsa()) {
+            final Local version = variable.newVersion();
+            emit(new Assign(version, value));
+            writeVariable(variable, current, new Use(version));
+        } else {
+            emit(new Assign(variable, value));
+        }
+    } // assign
+
+    private void writeVariable(final Local variable, final Block block, final Value value) {
+        definitions.get(block.getId()).put(variable, value);
+    }
+
+    private Value readVariable(final Local variable, final Block block) {
+        Value value = definitions.get(block.getId()).get(variable);
+        if(value != null) {
+            return value;
+        }
+        final Map<Local, Phi> incomplete = incompletePhis.get(block.getId());
+        if(incomplete != null) {
+            final Phi phi = new Phi(variable.newVersion());
+            block.getPhis().add(phi);
+            incomplete.put(variable, phi);
+            value = new Use(phi.getTarget());
+        } else if(block.getPredecessors().isEmpty()) {
+            // read before any assignment, or in a block nothing jumps to
+            value = Constant.defaultOf(variable.getType());
+        } else if(block.getPredecessors().size() == 1) {
+            value = readVariable(variable, block.getPredecessors().get(0));
+        } else {
+            final Phi phi = new Phi(variable.newVersion());
+            block.getPhis().add(phi);
+            value = new Use(phi.getTarget());
+            writeVariable(variable, block, value);     // reads around a loop end at this phi
+            addPhiOperands(variable, phi, block);
+        }
+        writeVariable(variable, block, value);
+        return value;
+    } // readVariable
+
+    private void addPhiOperands(final Local variable, final Phi phi, final Block block) {
+        for(Block predecessor : block.getPredecessors()) {
+            phi.getOperands().add(readVariable(variable, predecessor));
+        }
+    }
+
+    private Block newBlock() {
+        final Block block = new Block(blocks.size());
+        blocks.add(block);
+        definitions.add(new HashMap<>());
+        incompletePhis.add(new HashMap<>());
+        return block;
+    } // newBlock
+
+    // where lowering goes on after a jump, nothing jumps here
+    private Block newUnreachableBlock() {
+        final Block block = newBlock();
+        seal(block);
+        return block;
+    }
+
+    // block gets no more predecessors
+    private void seal(final Block block) {
+        final Map<Local, Phi> incomplete = incompletePhis.get(block.getId());
+        incompletePhis.set(block.getId(), null);
+        for(Map.Entry<Local, Phi> entry : incomplete.entrySet()) {
+            addPhiOperands(entry.getKey(), entry.getValue(), block);
+        }
+    } // seal
+
+    private Local newTemporary(final Type type) {
+        return Local.temporary(temporaries++, type);
+    }
+
+    // an unnamed variable, assigned more than once, e.g. the index of a for loop over an array
+    private Local newCounter() {
+        return new Local("%" + temporaries++, BasicType.TYPE_INT);
+    }
+    // ---END SCOPES AND SSA---
+
+    private void emit(final Instruction instruction) {
+        current.getInstructions().add(instruction);
+    }
+
+    private void jump(final Block target) {
+        current.setTerminator(new Jump(target));
+    }
+
+    private Mark mark() {
+        return new Mark(current, current.getInstructions().size());
+    }
+
+    private boolean emittedSince(final Mark mark) {
+        return mark.block != current || mark.index != current.getInstructions().size();
+    }
+
+    // whether value is the same wherever it is evaluated in an expression
+    private static boolean isStable(final Value value) {
+        if(value.getKind() == ValueKind.VALUE_CONSTANT) {
+            return true;
+        } else if(value.getKind() == ValueKind.VALUE_USE) {
+            // locals of other types are not assigned inside an expression
+            return ((Use) value).getLocal().isTemporary() || !((Use) value).getLocal().isSsa();
+        }
+        return false;
+    } // isStable
+
+    /**
+     * Value, lowered when mark was made, or a temporary it is assigned to at mark if something was emitted
+     * since, so it is evaluated before that.
+     */
+    private Value evaluatedAt(final Mark mark, final Value value) {
+        if(isStable(value) || !emittedSince(mark)) {
+            return value;
+        }
+        final Local temporary = newTemporary(value.getType());
+        mark.block.getInstructions().add(mark.index, new Assign(temporary, value));
+        return new Use(temporary);
+    } // evaluatedAt
+
+    // value evaluated once, here, for using it more than once
+    private Value evaluatedOnce(final Value value) {
+        if(isStable(value)) {
+            return value;
+        }
+        final Local temporary = newTemporary(value.getType());
+        emit(new Assign(temporary, value));
+        return new Use(temporary);
+    } // evaluatedOnce
+
+    // ---BEGIN EXPRESSIONS---
+    private List<Value> lowerOperands(final List<Exp> operands) throws CodeGeneratorException {
+        final List<Value> values = new ArrayList<>(operands.size());
+        final List<Mark> marks = new ArrayList<>(operands.size());
+        for(Exp operand : operands) {
+            values.add(lowerExp(operand));
+            marks.add(mark());
+        }
+        // last first, a temporary goes in front of those of later operands at the same mark
+        for(int i = values.size() - 2; i >= 0; i--) {
+            values.set(i, evaluatedAt(marks.get(i), values.get(i)));
+        }
+        return values;
+    } // lowerOperands
+
+    private Value lowerExp(final Exp exp) throws CodeGeneratorException {
+        switch(exp.getKind()) {
+            case EXP_INT:
+                return Constant.of(((IntExp) exp).getValue());
+            case EXP_BOOLEAN:
+                return Constant.of(((BooleanExp) exp).getValue());
+            case EXP_STRING:
+                return lowerString((StringExp) exp);
+            case EXP_VARIABLE:
+                return read(lookup((VariableExp) exp));
+            case EXP_ARRAY_WITH_INDEX: {
+                final Local array = lookup(((ArrayWithIndexExp) exp).getVariableExp());
+                final Value index = lowerExp(((ArrayWithIndexExp) exp).getIndexExp());
+                return new ArrayLoad(new Use(array), index, elementTypeOf(array));
+            }
+            case EXP_SELF_OPERATION:
+                return lowerSelfOperation((SelfOperationExp) exp, true);
+            case EXP_ADDITIVE: {
+                final AdditiveExp additive = (AdditiveExp) exp;
+                final List<Value> operands = lowerOperands(Arrays.asList(additive.getLeft(), additive.getRight()));
+                if(operands.get(0).getType() == BasicType.TYPE_STRING) {
+                    if(additive.getOp() != AdditiveOp.EXP_PLUS) {
+                        throw new CodeGeneratorException("String concatenation is only allow in +");
+                    }
+                    return concat(operands.get(0), operands.get(1));
+                } else if(operands.get(1).getType() == BasicType.TYPE_STRING) {
+                    throw new CodeGeneratorException("String Concatenation left value must be a string");
+                }
+                return new Binary(additive.getOp() == AdditiveOp.EXP_PLUS ? BinaryOp.OP_ADD : BinaryOp.OP_SUBTRACT,
+                        operands.get(0), operands.get(1));
+            }
+            case EXP_MULTIPLICATIVE: {
+                final MultiplicativeExp multiplicative = (MultiplicativeExp) exp;
+                final List<Value> operands = lowerOperands(Arrays.asList(multiplicative.getLeft(), multiplicative.getRight()));
+                final BinaryOp op;
+                switch(multiplicative.getOp()) {
+                    case OP_MULTIPLY:
+                        op = BinaryOp.OP_MULTIPLY;
+                        break;
+                    case OP_DIVIDE:
+                        op = BinaryOp.OP_DIVIDE;
+                        break;
+                    default:
+                        op = BinaryOp.OP_MOD;
+                }
+                return new Binary(op, operands.get(0), operands.get(1));
+            }
+            case EXP_COMPARABLE: {
+                final ComparableExp comparable = (ComparableExp) exp;
+                final List<Value> operands = lowerOperands(Arrays.asList(comparable.getLeft(), comparable.getRight()));
+                return new Binary(comparisonOf(comparable.getOp()), operands.get(0), operands.get(1));
+            }
+            case EXP_NOT:
+                return new Not(lowerExp(((NotExp) exp).getValue()));
+            case EXP_BILOGICAL: {
+                // true or false depending on the block the condition jumps to
+                final Block ifTrue = newBlock();
+                final Block ifFalse = newBlock();
+                final Block join = newBlock();
+                lowerCondition(exp, ifTrue, ifFalse);
+                seal(ifTrue);
+                seal(ifFalse);
+                current = ifTrue;
+                jump(join);
+                current = ifFalse;
+                jump(join);
+                seal(join);
+                current = join;
+                final Phi phi = new Phi(newTemporary(BasicType.TYPE_BOOLEAN));
+                phi.getOperands().add(Constant.TRUE);
+                phi.getOperands().add(Constant.FALSE);
+                join.getPhis().add(phi);
+                return new Use(phi.getTarget());
+            }
+            case EXP_FUNCTION_INSTANCE:
+                return lowerCall((FunctionInstanceExp) exp);
+            case EXP_ARRAY_OF:
+                return lowerArrayOf((ArrayOfExp) exp);
+            case EXP_ARRAY:
+                return lowerArray((ArrayExp) exp);
+            default:
+                throw new CodeGeneratorException("Unsupported expression so far!");
+        }
+    } // lowerExp
+
+    private static BinaryOp comparisonOf(final ComparableOp op) {
+        switch(op) {
+            case OP_LESS_THAN:
+                return BinaryOp.OP_LESS_THAN;
+            case OP_LESS_EQUAL:
+                return BinaryOp.OP_LESS_EQUAL;
+            case OP_GREATER_THAN:
+                return BinaryOp.OP_GREATER_THAN;
+            case OP_GREATER_EQUAL:
+                return BinaryOp.OP_GREATER_EQUAL;
+            case OP_EQUAL_EQUAL:
+                return BinaryOp.OP_EQUAL_EQUAL;
+            default:
+                return BinaryOp.OP_NOT_EQUAL;
+        }
+    } // comparisonOf
+
+    private static BasicType elementTypeOf(final Local array) throws CodeGeneratorException {
+        if(!(array.getType() instanceof TypeArray)) {
+            throw new CodeGeneratorException(array + " is not an array");
+        }
+        return ((TypeArray) array.getType()).getBasicType();
+    }
+
+    // one Concat for a chain of +, like the StringBuilder CodeGenerator appends all of them to
+    private static Value concat(final Value left, final Value right) {
+        final List<Value> parts = new ArrayList<>();
+        for(Value value : Arrays.asList(left, right)) {
+            if(value.getKind() == ValueKind.VALUE_CONCAT) {
+                parts.addAll(((Concat) value).getParts());
+            } else {
+                parts.add(value);
+            }
+        }
+        return new Concat(parts);
+    } // concat
+
+    private Value lowerString(final StringExp s) throws CodeGeneratorException {
+        final String str = s.getStrWithoutInterpolation();
+        if(str == null) {
+            throw new CodeGeneratorException("Null is StringExp!");
+        } else if(s.getInterpolationExp() == null || s.getInterpolationExp().isEmpty()) {
+            return new Constant(BasicType.TYPE_STRING, str);
+        }
+        final List<Value> values = lowerOperands(new ArrayList<>(s.getInterpolationExp().values()));
+        final List<Value> parts = new ArrayList<>();
+        int start = 0;
+        int i = 0;
+        for(Integer position : s.getInterpolationExp().keySet()) {
+            if(position > start) {
+                parts.add(new Constant(BasicType.TYPE_STRING, str.substring(start, position)));
+            }
+            parts.add(values.get(i++));
+            start = position;
+        }
+        if(start < str.length()) {
+            parts.add(new Constant(BasicType.TYPE_STRING, str.substring(start)));
+        }
+        return new Concat(parts);
+    } // lowerString
+
+    // the value of ++i or i++ when needValue, else null
+    private Value lowerSelfOperation(final SelfOperationExp exp, final boolean needValue) throws CodeGeneratorException {
+        final BinaryOp op = exp.getOp() == SelfOp.OP_SELF_INCREASE ? BinaryOp.OP_ADD : BinaryOp.OP_SUBTRACT;
+        final Constant one = Constant.of(1);
+        if(exp.getVariableExp() instanceof ArrayWithIndexExp) {
+            final ArrayWithIndexExp element = (ArrayWithIndexExp) exp.getVariableExp();
+            final Local array = lookup(element.getVariableExp());
+            if(elementTypeOf(array) != BasicType.TYPE_INT) {
+                throw new CodeGeneratorException("Variable in SelfOperationExp should be TYPE_INT.");
+            }
+            final Value arrayValue = new Use(array);
+            final Value index = evaluatedOnce(lowerExp(element.getIndexExp()));
+            final Value before = new ArrayLoad(arrayValue, index, BasicType.TYPE_INT);
+            if(!needValue) {
+                emit(new ArrayStore(arrayValue, index, new Binary(op, before, one), BasicType.TYPE_INT));
+                return null;
+            }
+            final Local result = newTemporary(BasicType.TYPE_INT);
+            if(exp.getPreOrder()) {
+                emit(new Assign(result, new Binary(op, before, one)));
+                emit(new ArrayStore(arrayValue, index, new Use(result), BasicType.TYPE_INT));
+            } else {
+                emit(new Assign(result, before));
+                emit(new ArrayStore(arrayValue, index, new Binary(op, new Use(result), one), BasicType.TYPE_INT));
+            }
+            return new Use(result);
+        }
+        final Local variable = lookup((VariableExp) exp.getVariableExp());
+        if(variable.getType() != BasicType.TYPE_INT) {
+            throw new CodeGeneratorException("Variable in SelfOperationExp should be TYPE_INT.");
+        }
+        final Value before = read(variable);
+        Value result = null;
+        if(needValue && !exp.getPreOrder()) {
+            result = evaluatedOnce(before);
+        }
+        assign(variable, new Binary(op, before, one));
+        if(needValue && exp.getPreOrder()) {
+            result = read(variable);
+        }
+        return result;
+    } // lowerSelfOperation
+
+    private Call lowerCall(final FunctionInstanceExp call) throws CodeGeneratorException {
+        final FunctionDeclareStmt function = call.getFunction();
+        if(function == null) {
+            throw new CodeGeneratorException("Call to nonexistent function.");
+        }
+        final List<Value> arguments = call.getParameterList() == null ? new ArrayList<>()
+                : lowerOperands(call.getParameterList());
+        return new Call(function.getFuncName().getName(),
+                Descriptor.toDescriptorString(function),
+                function.getReturnType(),
+                arguments);
+    } // lowerCall
+
+    private Value lowerArrayOf(final ArrayOfExp exp) throws CodeGeneratorException {
+        final List<Exp> expList = exp.getExpList();
+        if(expList.isEmpty()) {
+            throw new CodeGeneratorException("arrayOf(exp*) should has at least one parameter");
+        }
+        final List<Value> values = lowerOperands(expList);
+        final Type first = values.get(0).getType();
+        if(!(first instanceof BasicType)) {
+            throw new CodeGeneratorException("Unsupported type in array: " + first);
+        }
+        BasicType elementType = (BasicType) first;
+        for(Value value : values) {
+            if(value.getType() != first) {
+                elementType = BasicType.TYPE_ANY;
+                break;
+            }
+        }
+        final Local array = newTemporary(TypeArray.of(elementType));
+        emit(new Assign(array, new NewArray(elementType, Constant.of(values.size()))));
+        for(int i = 0; i < values.size(); i++) {
+            emit(new ArrayStore(new Use(array), Constant.of(i), values.get(i), elementType));
+        }
+        return new Use(array);
+    } // lowerArrayOf
+
+    // Array(size) { i -> element }, a loop storing the element for i from 0 until size
+    private Value lowerArray(final ArrayExp exp) throws CodeGeneratorException {
+        final int scope = addedCount;
+        final LambdaExp lambda = exp.getLambdaExp();
+        Local parameter = null;
+        if(lambda.getParameterList() != null && lambda.getParameterList().size() == 1) {
+            parameter = declare(lambda.getParameterList().keySet().iterator().next(), BasicType.TYPE_INT);
+            assign(parameter, Constant.of(0));
+        }
+        final Value size = evaluatedOnce(lowerExp(exp.getSize()));
+        // the array is allocated here once the type of its elements is known
+        final Mark allocation = mark();
+        final Local index = newCounter();
+        assign(index, Constant.of(0));
+        final Block head = newBlock();
+        final Block body = newBlock();
+        final Block after = newBlock();
+        jump(head);
+        current = head;
+        current.setTerminator(new Branch(new Binary(BinaryOp.OP_LESS_THAN, read(index), size), body, after));
+        seal(body);
+        current = body;
+        final Value element = lowerExp(lambda.getReturnExp());
+        if(!(element.getType() instanceof BasicType) || element.getType() == BasicType.TYPE_UNIT) {
+            throw new CodeGeneratorException("Unsupported type in array: " + element.getType());
+        }
+        final BasicType elementType = (BasicType) element.getType();
+        final Local array = newTemporary(TypeArray.of(elementType));
+        emit(new ArrayStore(new Use(array), read(index), element, elementType));
+        assign(index, new Binary(BinaryOp.OP_ADD, read(index), Constant.of(1)));
+        if(parameter != null) {
+            assign(parameter, new Binary(BinaryOp.OP_ADD, read(parameter), Constant.of(1)));
+        }
+        jump(head);
+        seal(head);
+        seal(after);
+        current = after;
+        allocation.block.getInstructions().add(allocation.index, new Assign(array, new NewArray(elementType, size)));
+        removeEntries(scope);
+        return new Use(array);
+    } // lowerArray
+
+    /**
+     * Ends the current block jumping to ifTrue when condition holds and to ifFalse when it does not.
+     * && and || jump past their right operand instead of computing a Boolean.
+     */
+    private void lowerCondition(final Exp condition, final Block ifTrue, final Block ifFalse) throws CodeGeneratorException {
+        switch(condition.getKind()) {
+            case EXP_BOOLEAN:
+                jump(((BooleanExp) condition).getValue() ? ifTrue : ifFalse);
+                break;
+            case EXP_NOT:
+                lowerCondition(((NotExp) condition).getValue(), ifFalse, ifTrue);
+                break;
+            case EXP_BILOGICAL: {
+                final BiLogicalExp logical = (BiLogicalExp) condition;
+                final Block right = newBlock();
+                if(logical.getOp() == BiLogicalOp.OP_AND) {
+                    lowerCondition(logical.getLeft(), right, ifFalse);
+                } else {
+                    lowerCondition(logical.getLeft(), ifTrue, right);
+                }
+                seal(right);
+                current = right;
+                lowerCondition(logical.getRight(), ifTrue, ifFalse);
+                break;
+            }
+            default:
+                current.setTerminator(new Branch(lowerExp(condition), ifTrue, ifFalse));
+        }
+    } // lowerCondition
+    // ---END EXPRESSIONS---
+
+    // ---BEGIN STATEMENTS---
+    private void lowerStatements(final List<Stmt> stmts) throws CodeGeneratorException {
+        for(Stmt stmt : stmts) {
+            lowerStatement(stmt);
+        }
+    }
+
+    private void lowerBlock(final BlockStmt blockStmt) throws CodeGeneratorException {
+        if(blockStmt != null && blockStmt.getStmtList() != null) {
+            final int scope = addedCount;
+            lowerStatements(blockStmt.getStmtList());
+            removeEntries(scope);
+        }
+    } // lowerBlock
+
+    private void lowerStatement(final Stmt stmt) throws CodeGeneratorException {
+        switch(stmt.getKind()) {
+            case STMT_VARIABLE_DECLARE: {
+                final VariableDeclareStmt declare = (VariableDeclareStmt) stmt;
+                final Local variable = declare(declare.getVariableExp(), declare.getType());
+                if(!variable.isSsa()) {
+                    // so it has a value on every path, Int and Boolean ones read as 0 and false before assignment
+                    assign(variable, Constant.defaultOf(variable.getType()));
+                }
+                break;
+            }
+            case STMT_ASSIGN:
+                lowerAssign((AssignStmt) stmt);
+                break;
+            case STMT_COMPOUND_ASSIGN:
+                lowerCompoundAssign((CompoundAssignStmt) stmt);
+                break;
+            case STMT_PRINT:
+                lowerPrint(((PrintStmt) stmt).getValue(), false);
+                break;
+            case STMT_PRINTLN:
+                lowerPrint(((PrintlnStmt) stmt).getValue(), true);
+                break;
+            case STMT_IF:
+                lowerIf((IfStmt) stmt);
+                break;
+            case STMT_WHILE:
+                lowerWhile((WhileStmt) stmt);
+                break;
+            case STMT_FOR:
+                if(((ForStmt) stmt).getArrayExp() != null) {
+                    lowerForArray((ForStmt) stmt);
+                } else {
+                    lowerForRange((ForStmt) stmt);
+                }
+                break;
+            case STMT_RETURN: {
+                final Exp returnExp = ((ReturnStmt) stmt).getReturnExp();
+                Value value = returnExp == null ? null : lowerExp(returnExp);
+                if(value != null && returnType == BasicType.TYPE_UNIT) {
+                    emit(new Eval(value));
+                    value = null;
+                }
+                current.setTerminator(new Return(value));
+                current = newUnreachableBlock();
+                break;
+            }
+            case STMT_CONTROL_LOOP:
+                if(loop == null) {
+                    throw new CodeGeneratorException(stmt + " outside of a loop");
+                }
+                jump(stmt == ControlLoopStmt.STMT_BREAK ? loop.breakTarget : loop.continueTarget);
+                current = newUnreachableBlock();
+                break;
+            case STMT_BLOCK:
+                lowerBlock((BlockStmt) stmt);
+                break;
+            case STMT_FUNCTION_INSTANCE:
+                emit(new Eval(lowerCall(((FunctionInstanceStmt) stmt).getFunctionInstanceExp())));
+                break;
+            case STMT_SELF_OPERATION:
+                lowerSelfOperation(((SelfOperationStmt) stmt).getSelfOperationExp(), false);
+                break;
+            default:
+                throw new CodeGeneratorException("Unrecognized statement so far: " + stmt);
+        }
+    } // lowerStatement
+
+    private void lowerAssign(final AssignStmt stmt) throws CodeGeneratorException {
+        if(stmt.isNew()) {
+            final Value value = lowerExp(stmt.getExpression());
+            assign(declare((VariableExp) stmt.getVariable(), value.getType()), value);
+        } else if(stmt.getVariable() instanceof ArrayWithIndexExp) {
+            final ArrayWithIndexExp element = (ArrayWithIndexExp) stmt.getVariable();
+            final Local array = lookup(element.getVariableExp());
+            final List<Value> operands = lowerOperands(Arrays.asList(element.getIndexExp(), stmt.getExpression()));
+            emit(new ArrayStore(new Use(array), operands.get(0), operands.get(1), elementTypeOf(array)));
+        } else {
+            final Local variable = lookup((VariableExp) stmt.getVariable());
+            assign(variable, lowerExp(stmt.getExpression()));
+        }
+    } // lowerAssign
+
+    private void lowerCompoundAssign(final CompoundAssignStmt stmt) throws CodeGeneratorException {
+        final BinaryOp op;
+        switch(stmt.getOp()) {
+            case EXP_PLUS_EQUAL:
+                op = BinaryOp.OP_ADD;
+                break;
+            case EXP_MINUS_EQUAL:
+                op = BinaryOp.OP_SUBTRACT;
+                break;
+            case EXP_MULTIPLY_EQUAL:
+                op = BinaryOp.OP_MULTIPLY;
+                break;
+            default:
+                op = BinaryOp.OP_DIVIDE;
+        }
+        if(stmt.getVariable() instanceof ArrayWithIndexExp) {
+            final ArrayWithIndexExp element = (ArrayWithIndexExp) stmt.getVariable();
+            final Local array = lookup(element.getVariableExp());
+            final BasicType elementType = elementTypeOf(array);
+            final Value index = evaluatedOnce(lowerExp(element.getIndexExp()));
+            final Mark mark = mark();
+            final Value right = lowerExp(stmt.getExpression());
+            final Value before = evaluatedAt(mark, new ArrayLoad(new Use(array), index, elementType));
+            emit(new ArrayStore(new Use(array), index, combine(op, before, right), elementType));
+        } else {
+            final Local variable = lookup((VariableExp) stmt.getVariable());
+            final Value before = read(variable);
+            final Mark mark = mark();
+            final Value right = lowerExp(stmt.getExpression());
+            assign(variable, combine(op, evaluatedAt(mark, before), right));
+        }
+    } // lowerCompoundAssign
+
+    private static Value combine(final BinaryOp op, final Value left, final Value right) throws CodeGeneratorException {
+        if(left.getType() == BasicType.TYPE_STRING) {
+            if(op != BinaryOp.OP_ADD) {
+                throw new CodeGeneratorException("String concatenation is only allow in +");
+            }
+            return concat(left, right);
+        }
+        return new Binary(op, left, right);
+    } // combine
+
+    private void lowerPrint(final Exp exp, final boolean newLine) throws CodeGeneratorException {
+        emit(new Print(exp == null ? null : lowerExp(exp), newLine));
+    }
+
+    private void lowerIf(final IfStmt stmt) throws CodeGeneratorException {
+        final Block ifTrue = newBlock();
+        final Block after = newBlock();
+        final Block ifFalse = stmt.getFalseBranch() != null ? newBlock() : after;
+        lowerCondition(stmt.getCondition(), ifTrue, ifFalse);
+        seal(ifTrue);
+        current = ifTrue;
+        lowerBlock(stmt.getTrueBranch());
+        jump(after);
+        if(ifFalse != after) {
+            seal(ifFalse);
+            current = ifFalse;
+            lowerBlock(stmt.getFalseBranch());
+            jump(after);
+        }
+        seal(after);
+        current = after;
+    } // lowerIf
+
+    private void lowerWhile(final WhileStmt stmt) throws CodeGeneratorException {
+        final Block head = newBlock();
+        final Block body = newBlock();
+        final Block after = newBlock();
+        jump(head);
+        current = head;
+        lowerCondition(stmt.getCondition(), body, after);
+        seal(body);
+        current = body;
+        lowerLoopBody(stmt.getBlockStmt(), head, after);
+        jump(head);
+        seal(head);
+        seal(after);
+        current = after;
+    } // lowerWhile
+
+    private void lowerLoopBody(final BlockStmt body, final Block continueTarget, final Block breakTarget) throws CodeGeneratorException {
+        loop = new Loop(continueTarget, breakTarget, loop);
+        lowerBlock(body);
+        loop = loop.outer;
+    }
+
+    // for(i in start..end step s), i from start while less than end
+    private void lowerForRange(final ForStmt stmt) throws CodeGeneratorException {
+        final int scope = addedCount;
+        final RangeExp range = stmt.getRangeExp();
+        final Value start = lowerExp(range.getStart());
+        // declared before end and step are lowered, as CodeGenerator does
+        final Local iterator = declare(stmt.getIteratorExp(), BasicType.TYPE_INT);
+        assign(iterator, start);
+        final Value end = evaluatedOnce(lowerExp(range.getEnd()));
+        final Value step = stmt.getStepExp() == null ? Constant.of(1) : evaluatedOnce(lowerExp(stmt.getStepExp()));
+        final Block head = newBlock();
+        final Block body = newBlock();
+        final Block increment = newBlock();
+        final Block after = newBlock();
+        jump(head);
+        current = head;
+        current.setTerminator(new Branch(new Binary(BinaryOp.OP_LESS_THAN, read(iterator), end), body, after));
+        seal(body);
+        current = body;
+        lowerLoopBody(stmt.getBlockStmt(), increment, after);
+        jump(increment);
+        seal(increment);
+        current = increment;
+        assign(iterator, new Binary(BinaryOp.OP_ADD, read(iterator), step));
+        jump(head);
+        seal(head);
+        seal(after);
+        current = after;
+        removeEntries(scope);
+    } // lowerForRange
+
+    private void lowerForArray(final ForStmt stmt) throws CodeGeneratorException {
+        final int scope = addedCount;
+        final Local array = lookup(stmt.getArrayExp());
+        final BasicType elementType = elementTypeOf(array);
+        final Value length = evaluatedOnce(new ArrayLength(new Use(array)));
+        final Local index = newCounter();
+        assign(index, Constant.of(0));
+        final Block head = newBlock();
+        final Block body = newBlock();
+        final Block increment = newBlock();
+        final Block after = newBlock();
+        jump(head);
+        current = head;
+        current.setTerminator(new Branch(new Binary(BinaryOp.OP_LESS_THAN, read(index), length), body, after));
+        seal(body);
+        current = body;
+        final Local iterator = declare(stmt.getIteratorExp(), elementType);
+        assign(iterator, new ArrayLoad(new Use(array), read(index), elementType));
+        lowerLoopBody(stmt.getBlockStmt(), increment, after);
+        jump(increment);
+        seal(increment);
+        current = increment;
+        assign(index, new Binary(BinaryOp.OP_ADD, read(index), Constant.of(1)));
+        jump(head);
+        seal(head);
+        seal(after);
+        current = after;
+        removeEntries(scope);
+    } // lowerForArray
+    // ---END STATEMENTS---
+
+    // ---BEGIN CLEANUP---
+    // the blocks reachable from entry in reverse postorder, without phis choosing between one value
+    private List<Block> finish(final Block entry) {
+        final List<Block> order = reversePostorder(entry);
+        final boolean[] reachable = new boolean[blocks.size()];
+        for(Block block : order) {
+            reachable[block.getId()] = true;
+        }
+        for(Block block : order) {
+            final List<Block> predecessors = block.getPredecessors();
+            for(int i = predecessors.size() - 1; i >= 0; i--) {
+                if(!reachable[predecessors.get(i).getId()]) {
+                    predecessors.remove(i);
+                    for(Phi phi : block.getPhis()) {
+                        phi.getOperands().remove(i);
+                    }
+                }
+            }
+        }
+        removeTrivialPhis(order);
+        return order;
+    } // finish
+
+    // successors last to first, so the first successor comes right after a block, e.g. the body after a loop head
+    private List<Block> reversePostorder(final Block entry) {
+        final List<Block> postorder = new ArrayList<>();
+        final boolean[] visited = new boolean[blocks.size()];
+        final int[] next = new int[blocks.size()];
+        final Deque<Block> stack = new ArrayDeque<>();
+        visited[entry.getId()] = true;
+        next[entry.getId()] = entry.getSuccessors().size() - 1;
+        stack.push(entry);
+        while(!stack.isEmpty()) {
+            final Block block = stack.peek();
+            if(next[block.getId()] >= 0) {
+                final Block successor = block.getSuccessors().get(next[block.getId()]--);
+                if(!visited[successor.getId()]) {
+                    visited[successor.getId()] = true;
+                    next[successor.getId()] = successor.getSuccessors().size() - 1;
+                    stack.push(successor);
+                }
+            } else {
+                postorder.add(stack.pop());
+            }
+        }
+        Collections.reverse(postorder);
+        return postorder;
+    } // reversePostorder
+
+    // a phi all of whose operands are one value, or itself, is replaced by that value
+    private static void removeTrivialPhis(final List<Block> blocks) {
+        final Map<Local, Value> replaced = new HashMap<>();
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Block block : blocks) {
+                for(Phi phi : block.getPhis()) {
+                    if(replaced.containsKey(phi.getTarget())) {
+                        continue;
+                    }
+                    Value same = null;
+                    boolean trivial = true;
+                    for(Value operand : phi.getOperands()) {
+                        final Value value = resolve(operand, replaced);
+                        if(value.getKind() == ValueKind.VALUE_USE && ((Use) value).getLocal() == phi.getTarget()) {
+                            continue;
+                        }
+                        if(same == null) {
+                            same = value;
+                        } else if(!sameValue(same, value)) {
+                            trivial = false;
+                            break;
+                        }
+                    }
+                    if(trivial) {
+                        replaced.put(phi.getTarget(), same == null ? Constant.defaultOf(phi.getTarget().getType()) : same);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if(replaced.isEmpty()) {
+            return;
+        }
+        for(Block block : blocks) {
+            block.getPhis().removeIf(phi -> replaced.containsKey(phi.getTarget()));
+            for(Phi phi : block.getPhis()) {
+                phi.getOperands().replaceAll(operand -> substitute(operand, replaced));
+            }
+            block.getInstructions().replaceAll(instruction -> substitute(instruction, replaced));
+            final Instruction terminator = block.getTerminator();
+            final Instruction substituted = substitute(terminator, replaced);
+            if(substituted != terminator) {
+                block.replaceTerminator(substituted);
+            }
+        }
+    } // removeTrivialPhis
+
+    private static boolean sameValue(final Value a, final Value b) {
+        if(a.getKind() == ValueKind.VALUE_USE && b.getKind() == ValueKind.VALUE_USE) {
+            return ((Use) a).getLocal() == ((Use) b).getLocal();
+        }
+        return a.getKind() == ValueKind.VALUE_CONSTANT && a.equals(b);
+    }
+
+    private static Value resolve(Value value, final Map<Local, Value> replaced) {
+        while(value.getKind() == ValueKind.VALUE_USE && replaced.containsKey(((Use) value).getLocal())) {
+            value = replaced.get(((Use) value).getLocal());
+        }
+        return value;
+    }
+
+    private static Instruction substitute(final Instruction instruction, final Map<Local, Value> replaced) {
+        switch(instruction.getKind()) {
+            case INSTR_ASSIGN: {
+                final Assign assign = (Assign) instruction;
+                final Value value = substitute(assign.getValue(), replaced);
+                return value == assign.getValue() ? assign : new Assign(assign.getTarget(), value);
+            }
+            case INSTR_ARRAY_STORE: {
+                final ArrayStore store = (ArrayStore) instruction;
+                final Value array = substitute(store.getArray(), replaced);
+                final Value index = substitute(store.getIndex(), replaced);
+                final Value value = substitute(store.getValue(), replaced);
+                return array == store.getArray() && index == store.getIndex() && value == store.getValue() ? store
+                        : new ArrayStore(array, index, value, store.getElementType());
+            }
+            case INSTR_PRINT: {
+                final Print print = (Print) instruction;
+                if(print.getValue() == null) {
+                    return print;
+                }
+                final Value value = substitute(print.getValue(), replaced);
+                return value == print.getValue() ? print : new Print(value, print.isNewLine());
+            }
+            case INSTR_EVAL: {
+                final Value value = substitute(((Eval) instruction).getValue(), replaced);
+                return value == ((Eval) instruction).getValue() ? instruction : new Eval(value);
+            }
+            case INSTR_BRANCH: {
+                final Branch branch = (Branch) instruction;
+                final Value condition = substitute(branch.getCondition(), replaced);
+                return condition == branch.getCondition() ? branch : new Branch(condition, branch.getIfTrue(), branch.getIfFalse());
+            }
+            case INSTR_RETURN: {
+                final Value value = ((Return) instruction).getValue();
+                if(value == null) {
+                    return instruction;
+                }
+                final Value substituted = substitute(value, replaced);
+                return substituted == value ? instruction : new Return(substituted);
+            }
+            default:
+                return instruction;
+        }
+    } // substitute
+
+    private static Value substitute(final Value value, final Map<Local, Value> replaced) {
+        switch(value.getKind()) {
+            case VALUE_USE:
+                return resolve(value, replaced);
+            case VALUE_BINARY: {
+                final Binary binary = (Binary) value;
+                final Value left = substitute(binary.getLeft(), replaced);
+                final Value right = substitute(binary.getRight(), replaced);
+                return left == binary.getLeft() && right == binary.getRight() ? binary : new Binary(binary.getOp(), left, right);
+            }
+            case VALUE_NOT: {
+                final Value inner = substitute(((Not) value).getValue(), replaced);
+                return inner == ((Not) value).getValue() ? value : new Not(inner);
+            }
+            case VALUE_CONCAT: {
+                final List<Value> parts = substitute(((Concat) value).getParts(), replaced);
+                return parts == ((Concat) value).getParts() ? value : new Concat(parts);
+            }
+            case VALUE_CALL: {
+                final Call call = (Call) value;
+                final List<Value> arguments = substitute(call.getArguments(), replaced);
+                return arguments == call.getArguments() ? call
+                        : new Call(call.getName(), call.getDescriptor(), call.getType(), arguments);
+            }
+            case VALUE_ARRAY_LOAD: {
+                final ArrayLoad load = (ArrayLoad) value;
+                final Value array = substitute(load.getArray(), replaced);
+                final Value index = substitute(load.getIndex(), replaced);
+                return array == load.getArray() && index == load.getIndex() ? load
+                        : new ArrayLoad(array, index, (BasicType) load.getType());
+            }
+            case VALUE_ARRAY_LENGTH: {
+                final Value array = substitute(((ArrayLength) value).getArray(), replaced);
+                return array == ((ArrayLength) value).getArray() ? value : new ArrayLength(array);
+            }
+            case VALUE_NEW_ARRAY: {
+                final NewArray newArray = (NewArray) value;
+                final Value size = substitute(newArray.getSize(), replaced);
+                return size == newArray.getSize() ? newArray : new NewArray(newArray.getElementType(), size);
+            }
+            default:
+                return value;
+        }
+    } // substitute
+
+    // values, or a new list if any of them changes
+    private static List<Value> substitute(final List<Value> values, final Map<Local, Value> replaced) {
+        List<Value> result = values;
+        for(int i = 0; i < values.size(); i++) {
+            final Value value = substitute(values.get(i), replaced);
+            if(value != values.get(i)) {
+                if(result == values) {
+                    result = new ArrayList<>(values);
+                }
+                result.set(i, value);
+            }
+        }
+        return result;
+    } // substitute
+    // ---END CLEANUP---
+}
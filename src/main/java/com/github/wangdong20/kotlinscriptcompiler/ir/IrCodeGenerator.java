@@ -0,0 +1,532 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGeneratorException;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeMutableList;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Writes a class like CodeGenerator does, from the IrBuilder lowering of the program instead of its AST.
+ * All versions of a variable share its local, so a phi is only written as a store, at the end of the
+ * predecessor, when its operand is something else, e.g. a constant.
+ */
+public class IrCodeGenerator {
+    private static final String EMPTY_VOID = "()V";
+    private final String outputClassName;
+    private final String outputFunctionName;
+
+    private final ClassWriter classWriter;
+    private final Map<Local, Integer> slots;    // by origin
+    private MethodVisitor methodVisitor;
+    private Label[] labels;                     // by block id
+    private List<Block[]> edges;                // predecessor and successor of branches going through a label of copies
+    private List<Label> edgeLabels;
+
+    public IrCodeGenerator(final String outputClassName,
+                           final String outputFunctionName) {
+        this.outputClassName = outputClassName;
+        this.outputFunctionName = outputFunctionName;
+        slots = new HashMap<>();
+        classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        classWriter.visit(V1_8,
+                ACC_PUBLIC,
+                outputClassName,
+                null,
+                "java/lang/Object",
+                new String[0]);
+
+        final MethodVisitor constructor =
+                classWriter.visitMethod(ACC_PUBLIC, "<init>", EMPTY_VOID, null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(ALOAD, 0);
+        constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", EMPTY_VOID, false);
+        constructor.visitInsn(RETURN);
+        constructor.visitMaxs(0, 0);
+
+        final MethodVisitor main =
+                classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", null, null);
+        main.visitCode();
+        main.visitMethodInsn(INVOKESTATIC, outputClassName, outputFunctionName, EMPTY_VOID, false);
+        main.visitInsn(RETURN);
+        main.visitMaxs(0, 0);
+
+        methodVisitor = null;
+    } // IrCodeGenerator
+
+    public void writeProgram(final Program program) throws CodeGeneratorException, IOException {
+        writeProgram(IrBuilder.build(program, outputFunctionName));
+    } // writeProgram
+
+    /**
+     * Writes program, which must have been built with this generator's output function name as entry point.
+     */
+    public void writeProgram(final IrProgram program) throws CodeGeneratorException, IOException {
+        for(IrFunction function : program.getFunctions()) {
+            writeFunction(function);
+        }
+        classWriter.visitEnd();
+
+        final BufferedOutputStream output =
+                new BufferedOutputStream(new FileOutputStream(new File(outputClassName + ".class")));
+        output.write(classWriter.toByteArray());
+        output.close();
+    } // writeProgram
+
+    private int slotOf(final Local local) {
+        final Local origin = local.getOrigin();
+        Integer slot = slots.get(origin);
+        if(slot == null) {
+            slot = slots.size();
+            slots.put(origin, slot);
+        }
+        return slot;
+    } // slotOf
+
+    private void writeFunction(final IrFunction function) throws CodeGeneratorException {
+        slots.clear();
+        for(Local parameter : function.getParameters()) {
+            slotOf(parameter);
+        }
+        methodVisitor = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC,
+                function.getName(),
+                function.getDescriptor(),
+                null,
+                null);
+        methodVisitor.visitCode();
+
+        final List<Block> blocks = function.getBlocks();
+        int maxId = 0;
+        for(Block block : blocks) {
+            maxId = Math.max(maxId, block.getId());
+        }
+        labels = new Label[maxId + 1];
+        for(Block block : blocks) {
+            labels[block.getId()] = new Label();
+        }
+        edges = new ArrayList<>();
+        edgeLabels = new ArrayList<>();
+        for(int i = 0; i < blocks.size(); i++) {
+            final Block block = blocks.get(i);
+            methodVisitor.visitLabel(labels[block.getId()]);
+            for(Instruction instruction : block.getInstructions()) {
+                writeInstruction(instruction);
+            }
+            writeTerminator(block, i + 1 < blocks.size() ? blocks.get(i + 1) : null, function.getReturnType());
+        }
+        for(int i = 0; i < edges.size(); i++) {
+            methodVisitor.visitLabel(edgeLabels.get(i));
+            writeCopies(edges.get(i)[0], edges.get(i)[1]);
+            methodVisitor.visitJumpInsn(GOTO, labels[edges.get(i)[1].getId()]);
+        }
+
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+        methodVisitor = null;
+    } // writeFunction
+
+    // ---BEGIN BLOCK ENDS---
+    private void writeTerminator(final Block block, final Block next, final Type returnType) throws CodeGeneratorException {
+        final Instruction terminator = block.getTerminator();
+        switch(terminator.getKind()) {
+            case INSTR_JUMP: {
+                final Block target = ((Jump) terminator).getTarget();
+                writeCopies(block, target);
+                if(target != next) {
+                    methodVisitor.visitJumpInsn(GOTO, labels[target.getId()]);
+                }
+                break;
+            }
+            case INSTR_BRANCH: {
+                final Branch branch = (Branch) terminator;
+                final Label ifTrue = labelOfEdge(block, branch.getIfTrue());
+                final Label ifFalse = labelOfEdge(block, branch.getIfFalse());
+                if(next != null && ifTrue == labels[next.getId()]) {
+                    writeJump(branch.getCondition(), false, ifFalse);
+                } else {
+                    writeJump(branch.getCondition(), true, ifTrue);
+                    if(next == null || ifFalse != labels[next.getId()]) {
+                        methodVisitor.visitJumpInsn(GOTO, ifFalse);
+                    }
+                }
+                break;
+            }
+            case INSTR_RETURN: {
+                final Value value = ((Return) terminator).getValue();
+                if(value != null) {
+                    writeValue(value);
+                }
+                writeReturnFor(returnType);
+                break;
+            }
+            default:
+                throw new CodeGeneratorException("Block does not end with a jump or return: " + terminator);
+        }
+    } // writeTerminator
+
+    private void writeReturnFor(final Type type) throws CodeGeneratorException {
+        if(type == BasicType.TYPE_INT || type == BasicType.TYPE_BOOLEAN) {
+            methodVisitor.visitInsn(IRETURN);
+        } else if(type == BasicType.TYPE_UNIT) {
+            methodVisitor.visitInsn(RETURN);
+        } else if(type instanceof TypeArray || type instanceof TypeMutableList || type == BasicType.TYPE_STRING) {
+            methodVisitor.visitInsn(ARETURN);
+        } else {
+            throw new CodeGeneratorException("Unrecognized return type: " + type);
+        }
+    } // writeReturnFor
+
+    // where a branch from block to target goes, a label doing the copies for target's phis first if it has some
+    private Label labelOfEdge(final Block block, final Block target) {
+        if(!needsCopies(block, target)) {
+            return labels[target.getId()];
+        }
+        final Label label = new Label();
+        edges.add(new Block[] { block, target });
+        edgeLabels.add(label);
+        return label;
+    } // labelOfEdge
+
+    private boolean needsCopies(final Block block, final Block target) {
+        final int predecessor = target.getPredecessors().indexOf(block);
+        for(Phi phi : target.getPhis()) {
+            if(!isInPlace(phi.getOperands().get(predecessor), phi.getTarget())) {
+                return true;
+            }
+        }
+        return false;
+    } // needsCopies
+
+    private boolean isInPlace(final Value operand, final Local target) {
+        return operand.getKind() == ValueKind.VALUE_USE && slotOf(((Use) operand).getLocal()) == slotOf(target);
+    }
+
+    // assigns the phis of target their operands for coming from block, all operands read before any is stored
+    private void writeCopies(final Block block, final Block target) throws CodeGeneratorException {
+        final int predecessor = target.getPredecessors().indexOf(block);
+        final List<Phi> copied = new ArrayList<>();
+        for(Phi phi : target.getPhis()) {
+            final Value operand = phi.getOperands().get(predecessor);
+            if(!isInPlace(operand, phi.getTarget())) {
+                writeValue(operand);
+                copied.add(phi);
+            }
+        }
+        for(int i = copied.size() - 1; i >= 0; i--) {
+            writeStore(copied.get(i).getTarget());
+        }
+    } // writeCopies
+
+    /**
+     * Jumps to target if condition is jumpIf, comparisons straight to it with an IF_ICMP,
+     * and ! by jumping on the opposite.
+     */
+    private void writeJump(final Value condition, final boolean jumpIf, final Label target) throws CodeGeneratorException {
+        switch(condition.getKind()) {
+            case VALUE_CONSTANT:
+                if((Boolean) ((Constant) condition).getValue() == jumpIf) {
+                    methodVisitor.visitJumpInsn(GOTO, target);
+                }
+                break;
+            case VALUE_NOT:
+                writeJump(((Not) condition).getValue(), !jumpIf, target);
+                break;
+            case VALUE_BINARY: {
+                final Binary comparison = (Binary) condition;
+                writeValue(comparison.getLeft());
+                writeValue(comparison.getRight());
+                methodVisitor.visitJumpInsn(compareOpcode(jumpIf ? comparison.getOp() : comparison.getOp().negate()), target);
+                break;
+            }
+            default:
+                writeValue(condition);
+                methodVisitor.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+        }
+    } // writeJump
+
+    private static int compareOpcode(final BinaryOp op) throws CodeGeneratorException {
+        switch(op) {
+            case OP_LESS_THAN:
+                return IF_ICMPLT;
+            case OP_LESS_EQUAL:
+                return IF_ICMPLE;
+            case OP_GREATER_THAN:
+                return IF_ICMPGT;
+            case OP_GREATER_EQUAL:
+                return IF_ICMPGE;
+            case OP_EQUAL_EQUAL:
+                return IF_ICMPEQ;
+            case OP_NOT_EQUAL:
+                return IF_ICMPNE;
+            default:
+                throw new CodeGeneratorException("Unrecognized comparison: " + op);
+        }
+    } // compareOpcode
+    // ---END BLOCK ENDS---
+
+    // ---BEGIN INSTRUCTIONS---
+    private void writeInstruction(final Instruction instruction) throws CodeGeneratorException {
+        switch(instruction.getKind()) {
+            case INSTR_ASSIGN: {
+                final Assign assign = (Assign) instruction;
+                if(!writeIncrement(assign)) {
+                    writeValue(assign.getValue());
+                    writeStore(assign.getTarget());
+                }
+                break;
+            }
+            case INSTR_ARRAY_STORE: {
+                final ArrayStore store = (ArrayStore) instruction;
+                writeValue(store.getArray());
+                writeValue(store.getIndex());
+                writeValue(store.getValue());
+                if(store.getElementType() == BasicType.TYPE_ANY) {
+                    writeBox(store.getValue().getType());
+                }
+                methodVisitor.visitInsn(arrayStoreOpcode(store.getElementType()));
+                break;
+            }
+            case INSTR_PRINT: {
+                final Value value = ((Print) instruction).getValue();
+                methodVisitor.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+                if(value != null) {
+                    writeValue(value);
+                }
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL,
+                        "java/io/PrintStream",
+                        ((Print) instruction).isNewLine() ? "println" : "print",
+                        value == null ? EMPTY_VOID : "(" + argumentDescriptor(value.getType()) + ")V",
+                        false);
+                break;
+            }
+            case INSTR_EVAL: {
+                final Value value = ((Eval) instruction).getValue();
+                writeValue(value);
+                if(value.getType() != BasicType.TYPE_UNIT) {
+                    methodVisitor.visitInsn(POP);
+                }
+                break;
+            }
+            default:
+                throw new CodeGeneratorException("Jump or return inside a block: " + instruction);
+        }
+    } // writeInstruction
+
+    // x = x + c as one IINC, true if assign is one
+    private boolean writeIncrement(final Assign assign) {
+        if(assign.getValue().getKind() != ValueKind.VALUE_BINARY || assign.getTarget().getType() != BasicType.TYPE_INT) {
+            return false;
+        }
+        final Binary binary = (Binary) assign.getValue();
+        if((binary.getOp() != BinaryOp.OP_ADD && binary.getOp() != BinaryOp.OP_SUBTRACT)
+                || binary.getLeft().getKind() != ValueKind.VALUE_USE
+                || binary.getRight().getKind() != ValueKind.VALUE_CONSTANT
+                || slotOf(((Use) binary.getLeft()).getLocal()) != slotOf(assign.getTarget())) {
+            return false;
+        }
+        final int constant = (Integer) ((Constant) binary.getRight()).getValue();
+        final int increment = binary.getOp() == BinaryOp.OP_ADD ? constant : -constant;
+        if(increment < Short.MIN_VALUE || increment > Short.MAX_VALUE || constant == Integer.MIN_VALUE) {
+            return false;
+        }
+        methodVisitor.visitIincInsn(slotOf(assign.getTarget()), increment);
+        return true;
+    } // writeIncrement
+
+    private void writeStore(final Local local) {
+        methodVisitor.visitVarInsn(isIntLike(local.getType()) ? ISTORE : ASTORE, slotOf(local));
+    }
+
+    private void writeLoad(final Local local) {
+        methodVisitor.visitVarInsn(isIntLike(local.getType()) ? ILOAD : ALOAD, slotOf(local));
+    }
+
+    // both are treated as integers at the bytecode level
+    private static boolean isIntLike(final Type type) {
+        return type == BasicType.TYPE_INT || type == BasicType.TYPE_BOOLEAN;
+    }
+
+    private void writeBox(final Type type) {
+        if(type == BasicType.TYPE_INT) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+        } else if(type == BasicType.TYPE_BOOLEAN) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
+        }
+    } // writeBox
+
+    // descriptor of a parameter of print or StringBuilder.append taking a value of type
+    private static String argumentDescriptor(final Type type) {
+        if(type == BasicType.TYPE_INT) {
+            return "I";
+        } else if(type == BasicType.TYPE_BOOLEAN) {
+            return "Z";
+        } else if(type == BasicType.TYPE_STRING) {
+            return "Ljava/lang/String;";
+        }
+        return "Ljava/lang/Object;";
+    } // argumentDescriptor
+
+    private static int arrayLoadOpcode(final Type elementType) throws CodeGeneratorException {
+        if(elementType == BasicType.TYPE_INT) {
+            return IALOAD;
+        } else if(elementType == BasicType.TYPE_BOOLEAN) {
+            return BALOAD;
+        } else if(elementType == BasicType.TYPE_STRING || elementType == BasicType.TYPE_ANY) {
+            return AALOAD;
+        }
+        throw new CodeGeneratorException("Unsupported type in array: " + elementType);
+    } // arrayLoadOpcode
+
+    private static int arrayStoreOpcode(final Type elementType) throws CodeGeneratorException {
+        if(elementType == BasicType.TYPE_INT) {
+            return IASTORE;
+        } else if(elementType == BasicType.TYPE_BOOLEAN) {
+            return BASTORE;
+        } else if(elementType == BasicType.TYPE_STRING || elementType == BasicType.TYPE_ANY) {
+            return AASTORE;
+        }
+        throw new CodeGeneratorException("Unsupported type in array: " + elementType);
+    } // arrayStoreOpcode
+    // ---END INSTRUCTIONS---
+
+    // ---BEGIN VALUES---
+    private void writeValue(final Value value) throws CodeGeneratorException {
+        switch(value.getKind()) {
+            case VALUE_CONSTANT: {
+                final Object constant = ((Constant) value).getValue();
+                if(constant instanceof Integer) {
+                    writeIntLiteral((Integer) constant);
+                } else if(constant instanceof Boolean) {
+                    methodVisitor.visitInsn((Boolean) constant ? ICONST_1 : ICONST_0);
+                } else if(constant == null) {
+                    methodVisitor.visitInsn(ACONST_NULL);
+                } else {
+                    methodVisitor.visitLdcInsn(constant);
+                }
+                break;
+            }
+            case VALUE_USE:
+                writeLoad(((Use) value).getLocal());
+                break;
+            case VALUE_BINARY: {
+                final Binary binary = (Binary) value;
+                if(binary.getOp().isComparison()) {
+                    final Label isTrue = new Label();
+                    final Label after = new Label();
+                    writeJump(binary, true, isTrue);
+                    methodVisitor.visitInsn(ICONST_0);
+                    methodVisitor.visitJumpInsn(GOTO, after);
+                    methodVisitor.visitLabel(isTrue);
+                    methodVisitor.visitInsn(ICONST_1);
+                    methodVisitor.visitLabel(after);
+                } else {
+                    writeValue(binary.getLeft());
+                    writeValue(binary.getRight());
+                    methodVisitor.visitInsn(arithmeticOpcode(binary.getOp()));
+                }
+                break;
+            }
+            case VALUE_NOT:
+                writeValue(((Not) value).getValue());
+                methodVisitor.visitInsn(ICONST_1);
+                methodVisitor.visitInsn(IXOR);
+                break;
+            case VALUE_CONCAT:
+                methodVisitor.visitTypeInsn(NEW, "java/lang/StringBuilder");
+                methodVisitor.visitInsn(DUP);
+                methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", EMPTY_VOID, false);
+                for(Value part : ((Concat) value).getParts()) {
+                    writeValue(part);
+                    methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                            "(" + argumentDescriptor(part.getType()) + ")Ljava/lang/StringBuilder;", false);
+                }
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+                break;
+            case VALUE_CALL: {
+                final Call call = (Call) value;
+                for(Value argument : call.getArguments()) {
+                    writeValue(argument);
+                }
+                methodVisitor.visitMethodInsn(INVOKESTATIC, outputClassName, call.getName(), call.getDescriptor(), false);
+                break;
+            }
+            case VALUE_ARRAY_LOAD:
+                writeValue(((ArrayLoad) value).getArray());
+                writeValue(((ArrayLoad) value).getIndex());
+                methodVisitor.visitInsn(arrayLoadOpcode(value.getType()));
+                break;
+            case VALUE_ARRAY_LENGTH:
+                writeValue(((ArrayLength) value).getArray());
+                methodVisitor.visitInsn(ARRAYLENGTH);
+                break;
+            case VALUE_NEW_ARRAY: {
+                final NewArray newArray = (NewArray) value;
+                writeValue(newArray.getSize());
+                switch(newArray.getElementType()) {
+                    case TYPE_INT:
+                        methodVisitor.visitIntInsn(NEWARRAY, T_INT);
+                        break;
+                    case TYPE_BOOLEAN:
+                        methodVisitor.visitIntInsn(NEWARRAY, T_BOOLEAN);
+                        break;
+                    case TYPE_STRING:
+                        methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/String");
+                        break;
+                    case TYPE_ANY:
+                        methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+                        break;
+                    default:
+                        throw new CodeGeneratorException("Unsupported type in array: " + newArray.getElementType());
+                }
+                break;
+            }
+            default:
+                throw new CodeGeneratorException("Unsupported value: " + value);
+        }
+    } // writeValue
+
+    private static int arithmeticOpcode(final BinaryOp op) throws CodeGeneratorException {
+        switch(op) {
+            case OP_ADD:
+                return IADD;
+            case OP_SUBTRACT:
+                return ISUB;
+            case OP_MULTIPLY:
+                return IMUL;
+            case OP_DIVIDE:
+                return IDIV;
+            case OP_MOD:
+                return IREM;
+            default:
+                throw new CodeGeneratorException("Not arithmetic: " + op);
+        }
+    } // arithmeticOpcode
+
+    private void writeIntLiteral(final int value) {
+        if(value >= -1 && value <= 5) {
+            methodVisitor.visitInsn(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            methodVisitor.visitIntInsn(BIPUSH, value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            methodVisitor.visitIntInsn(SIPUSH, value);
+        } else {
+            methodVisitor.visitLdcInsn(value);
+        }
+    } // writeIntLiteral
+    // ---END VALUES---
+}
@@ -0,0 +1,54 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+import java.util.List;
+
+/**
+ * A function lowered to basic blocks, the entry block first and every block reachable from it.
+ */
+public class IrFunction {
+    private final String name;
+    private final String descriptor;
+    private final Type returnType;
+    private final List<Local> parameters;
+    private final List<Block> blocks;
+
+    public IrFunction(final String name, final String descriptor, final Type returnType,
+                      final List<Local> parameters, final List<Block> blocks) {
+        this.name = name;
+        this.descriptor = descriptor;
+        this.returnType = returnType;
+        this.parameters = parameters;
+        this.blocks = blocks;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    public List<Local> getParameters() {
+        return parameters;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("fun ").append(name).append(descriptor).append(" ").append(parameters).append("\n");
+        for(Block block : blocks) {
+            builder.append(block);
+        }
+        return builder.toString();
+    }
+}
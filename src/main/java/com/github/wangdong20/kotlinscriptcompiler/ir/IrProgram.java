@@ -0,0 +1,34 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.List;
+
+public class IrProgram {
+    private final List<IrFunction> functions;
+    private final IrFunction entryPoint;
+
+    public IrProgram(final List<IrFunction> functions, final IrFunction entryPoint) {
+        this.functions = functions;
+        this.entryPoint = entryPoint;
+    }
+
+    /**
+     * The functions the program declares, in program order, and then the entry point.
+     */
+    public List<IrFunction> getFunctions() {
+        return functions;
+    }
+
+    // the top level statements of the program
+    public IrFunction getEntryPoint() {
+        return entryPoint;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for(IrFunction function : functions) {
+            builder.append(function).append("\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.Collections;
+import java.util.List;
+
+public class Jump extends Instruction {
+    private final Block target;
+
+    public Jump(final Block target) {
+        super(InstructionKind.INSTR_JUMP);
+        this.target = target;
+    }
+
+    public Block getTarget() {
+        return target;
+    }
+
+    @Override
+    public List<Block> getTargets() {
+        return Collections.singletonList(target);
+    }
+
+    @Override
+    public String toString() {
+        return "goto " + target.getName();
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+/**
+ * A local variable of an IrFunction. Int and Boolean locals are in SSA form: a variable of the program has
+ * one version for each of its assignments and phis, each assigned exactly once, and they all share the
+ * variable as origin. Locals of other types are assigned in place and are their own origin.
+ */
+public class Local {
+    private final String name;
+    private final Type type;
+    private final Local origin;
+    private final int version;
+    private final boolean temporary;
+    private int versions;
+
+    private Local(final String name, final Type type, final Local origin, final int version, final boolean temporary) {
+        this.name = name;
+        this.type = type;
+        this.origin = origin == null ? this : origin;
+        this.version = version;
+        this.temporary = temporary;
+    }
+
+    public Local(final String name, final Type type) {
+        this(name, type, null, 0, false);
+    }
+
+    /**
+     * A local holding an intermediate value, assigned once and not a variable of the program.
+     */
+    public static Local temporary(final int number, final Type type) {
+        return new Local("%" + number, type, null, 0, true);
+    }
+
+    public Local newVersion() {
+        assert(origin == this && isSsa());
+        return new Local(name, type, this, ++versions, temporary);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Local getOrigin() {
+        return origin;
+    }
+
+    public boolean isSsa() {
+        return type == BasicType.TYPE_INT || type == BasicType.TYPE_BOOLEAN;
+    }
+
+    public boolean isTemporary() {
+        return temporary;
+    }
+
+    @Override
+    public String toString() {
+        return version == 0 ? name : name + "." + version;
+    }
+}
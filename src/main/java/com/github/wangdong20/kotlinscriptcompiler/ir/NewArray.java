@@ -0,0 +1,26 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
+
+public class NewArray extends Value {
+    private final Value size;
+
+    public NewArray(final BasicType elementType, final Value size) {
+        super(ValueKind.VALUE_NEW_ARRAY, TypeArray.of(elementType));
+        this.size = size;
+    }
+
+    public BasicType getElementType() {
+        return ((TypeArray) getType()).getBasicType();
+    }
+
+    public Value getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "new " + getElementType() + "[" + size + "]";
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
+
+public class Not extends Value {
+    private final Value value;
+
+    public Not(final Value value) {
+        super(ValueKind.VALUE_NOT, BasicType.TYPE_BOOLEAN);
+        this.value = value;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "!" + value;
+    }
+}
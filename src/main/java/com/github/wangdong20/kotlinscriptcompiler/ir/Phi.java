@@ -0,0 +1,34 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns target, at the start of a block, the operand for the predecessor control came from.
+ * Operands are in the order of Block.getPredecessors().
+ */
+public class Phi {
+    private final Local target;
+    private final List<Value> operands = new ArrayList<>();
+
+    public Phi(final Local target) {
+        this.target = target;
+    }
+
+    public Local getTarget() {
+        return target;
+    }
+
+    public List<Value> getOperands() {
+        return operands;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(target.toString()).append(" = phi(");
+        for(int i = 0; i < operands.size(); i++) {
+            builder.append(i == 0 ? "" : ", ").append(operands.get(i));
+        }
+        return builder.append(")").toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public class Print extends Instruction {
+    private final Value value;      // null to print nothing
+    private final boolean newLine;
+
+    public Print(final Value value, final boolean newLine) {
+        super(InstructionKind.INSTR_PRINT);
+        this.value = value;
+        this.newLine = newLine;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public boolean isNewLine() {
+        return newLine;
+    }
+
+    @Override
+    public String toString() {
+        return (newLine ? "println " : "print ") + (value == null ? "" : value);
+    }
+}
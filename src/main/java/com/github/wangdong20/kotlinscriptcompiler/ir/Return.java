@@ -0,0 +1,19 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public class Return extends Instruction {
+    private final Value value;      // null in a function returning Unit
+
+    public Return(final Value value) {
+        super(InstructionKind.INSTR_RETURN);
+        this.value = value;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value == null ? "return" : "return " + value;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public class Use extends Value {
+    private final Local local;
+
+    public Use(final Local local) {
+        super(ValueKind.VALUE_USE, local.getType());
+        this.local = local;
+    }
+
+    public Local getLocal() {
+        return local;
+    }
+
+    @Override
+    public String toString() {
+        return local.toString();
+    }
+}
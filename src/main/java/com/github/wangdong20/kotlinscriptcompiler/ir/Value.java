@@ -0,0 +1,25 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+/**
+ * An expression tree computed by an instruction. Values have no side effects on locals, so a tree
+ * can be evaluated at the instruction holding it, calls and array loads in it left to right.
+ */
+public abstract class Value {
+    private final ValueKind kind;
+    private final Type type;
+
+    protected Value(final ValueKind kind, final Type type) {
+        this.kind = kind;
+        this.type = type;
+    }
+
+    public final ValueKind getKind() {
+        return kind;
+    }
+
+    public final Type getType() {
+        return type;
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.wangdong20.kotlinscriptcompiler.ir;
+
+public enum ValueKind {
+    VALUE_CONSTANT,
+    VALUE_USE,
+    VALUE_BINARY,
+    VALUE_NOT,
+    VALUE_CONCAT,
+    VALUE_CALL,
+    VALUE_ARRAY_LOAD,
+    VALUE_ARRAY_LENGTH,
+    VALUE_NEW_ARRAY
+}
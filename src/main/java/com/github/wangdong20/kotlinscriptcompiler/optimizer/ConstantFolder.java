@@ -0,0 +1,455 @@
+package com.github.wangdong20.kotlinscriptcompiler.optimizer;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.ExpFactory;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Resolver;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.ScopeMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds the operators of a type checked program whose operands are literals into literals, before code generation.
+ * Reads of a val initialized with a literal are replaced by that literal first, so folding goes on from there,
+ * e.g. val NUMPERLINE = 10 makes NUMPERLINE + 1 the literal 11. Scopes are the ones Typechecker checked
+ * the program in: a function body sees the vals declared before the function.
+ * Nodes are immutable, so an expression with a folded operand is a new node, everything else is shared
+ * with the program folded. Division and remainder by zero are left to throw when the program runs.
+ */
+public class ConstantFolder {
+    private final ExpFactory factory = new ExpFactory(false);
+    private ScopeMap<Exp> scope = ScopeMap.empty();     // by name id, the literal of a val, else the variable itself
+    private int folded;
+    private int propagated;
+
+    public ConstantFolder() {
+    }
+
+    /**
+     * Operators and interpolations of the program folded last which were replaced by a literal or by an operand.
+     */
+    public int getFolded() {
+        return folded;
+    }
+
+    /**
+     * Reads of vals of the program folded last which were replaced by the literal the val was initialized with.
+     */
+    public int getPropagated() {
+        return propagated;
+    }
+
+    /**
+     * The program with constant expressions folded, program itself when there is none. Program must type check,
+     * the program returned is resolved again.
+     */
+    public Program fold(final Program program) {
+        scope = ScopeMap.empty();
+        folded = 0;
+        propagated = 0;
+        final List<Stmt> stmtList = foldStmts(program.getStmtList());
+        if(stmtList == program.getStmtList()) {
+            return program;
+        }
+        final Program result = new Program(stmtList);
+        Resolver.resolve(result);   // calls refer to the folded declarations
+        return result;
+    }
+
+    private static boolean isLiteral(final Exp e) {
+        switch(e.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+                return true;
+            case EXP_STRING:
+                return isPlainString(e);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isPlainString(final Exp e) {
+        return e.getKind() == ExpKind.EXP_STRING
+                && (((StringExp) e).getInterpolationExp() == null || ((StringExp) e).getInterpolationExp().isEmpty());
+    }
+
+    // What the literal appends to a StringBuilder
+    private static String textOf(final Exp literal) {
+        switch(literal.getKind()) {
+            case EXP_INT:
+                return String.valueOf(((IntExp) literal).getValue());
+            case EXP_BOOLEAN:
+                return String.valueOf(((BooleanExp) literal).getValue());
+            default:
+                return ((StringExp) literal).getStrWithoutInterpolation();
+        }
+    }
+
+    private static int intOf(final Exp literal) {
+        return ((IntExp) literal).getValue();
+    }
+
+    private static boolean booleanOf(final Exp literal) {
+        return ((BooleanExp) literal).getValue();
+    }
+
+    private Exp foldExp(final Exp e) {
+        switch(e.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+                return e;
+            case EXP_VARIABLE: {
+                final Exp bound = scope.get(((VariableExp) e).getId());
+                if(bound != null && bound != e) {
+                    propagated++;
+                    return bound;
+                }
+                return e;
+            }
+            case EXP_STRING:
+                return foldString((StringExp) e);
+            case EXP_ADDITIVE:
+                return foldAdditive((AdditiveExp) e);
+            case EXP_MULTIPLICATIVE:
+                return foldMultiplicative((MultiplicativeExp) e);
+            case EXP_COMPARABLE:
+                return foldComparable((ComparableExp) e);
+            case EXP_BILOGICAL:
+                return foldBiLogical((BiLogicalExp) e);
+            case EXP_NOT: {
+                final Exp value = foldExp(((NotExp) e).getValue());
+                if(value.getKind() == ExpKind.EXP_BOOLEAN) {
+                    folded++;
+                    return factory.booleanExp(!booleanOf(value));
+                }
+                return value == ((NotExp) e).getValue() ? e : new NotExp(value);
+            }
+            case EXP_ARRAY_WITH_INDEX:
+                return foldIndex((ArrayWithIndexExp) e);
+            case EXP_SELF_OPERATION: {
+                final SelfOperationExp asSelf = (SelfOperationExp) e;
+                final Variable variable = foldVariable(asSelf.getVariableExp());
+                return variable == asSelf.getVariableExp() ? e
+                        : new SelfOperationExp(variable, asSelf.getOp(), asSelf.getPreOrder());
+            }
+            case EXP_FUNCTION_INSTANCE: {
+                final FunctionInstanceExp call = (FunctionInstanceExp) e;
+                final List<Exp> parameterList = foldExps(call.getParameterList());
+                if(parameterList == call.getParameterList()) {
+                    return e;
+                }
+                final FunctionInstanceExp result = new FunctionInstanceExp(call.getFuncName(), parameterList);
+                result.setFunction(call.getFunction());
+                return result;
+            }
+            case EXP_ARRAY_OF: {
+                final List<Exp> expList = foldExps(((ArrayOfExp) e).getExpList());
+                return expList == ((ArrayOfExp) e).getExpList() ? e : new ArrayOfExp(expList);
+            }
+            case EXP_MUTABLE_LIST_OF: {
+                final List<Exp> expList = foldExps(((MutableListOfExp) e).getExpList());
+                return expList == ((MutableListOfExp) e).getExpList() ? e : new MutableListOfExp(expList);
+            }
+            case EXP_ARRAY: {
+                final Exp size = foldExp(((ArrayExp) e).getSize());
+                final LambdaExp lambdaExp = foldLambda(((ArrayExp) e).getLambdaExp());
+                return size == ((ArrayExp) e).getSize() && lambdaExp == ((ArrayExp) e).getLambdaExp() ? e
+                        : new ArrayExp(size, lambdaExp);
+            }
+            case EXP_MUTABLE_LIST: {
+                final Exp size = foldExp(((MutableListExp) e).getSize());
+                final LambdaExp lambdaExp = foldLambda(((MutableListExp) e).getLambdaExp());
+                return size == ((MutableListExp) e).getSize() && lambdaExp == ((MutableListExp) e).getLambdaExp() ? e
+                        : new MutableListExp(size, lambdaExp);
+            }
+            case EXP_LAMBDA:
+                return foldLambda((LambdaExp) e);
+            case EXP_RANGE: {
+                final Exp start = foldExp(((RangeExp) e).getStart());
+                final Exp end = foldExp(((RangeExp) e).getEnd());
+                return start == ((RangeExp) e).getStart() && end == ((RangeExp) e).getEnd() ? e : new RangeExp(start, end);
+            }
+            default:
+                throw new IllegalArgumentException("Cannot fold " + e);
+        }
+    }
+
+    // The list itself when none of its expressions folded
+    private List<Exp> foldExps(final List<Exp> exps) {
+        if(exps == null) {
+            return null;
+        }
+        List<Exp> result = null;
+        for(int i = 0; i < exps.size(); i++) {
+            final Exp exp = foldExp(exps.get(i));
+            if(result == null && exp != exps.get(i)) {
+                result = new ArrayList<>(exps.subList(0, i));
+            }
+            if(result != null) {
+                result.add(exp);
+            }
+        }
+        return result == null ? exps : result;
+    }
+
+    // Indexed arrays get their index folded, variables stay as they are, they are assigned to or incremented
+    private Variable foldVariable(final Variable variable) {
+        return variable instanceof ArrayWithIndexExp ? foldIndex((ArrayWithIndexExp) variable) : variable;
+    }
+
+    private ArrayWithIndexExp foldIndex(final ArrayWithIndexExp e) {
+        final Exp index = foldExp(e.getIndexExp());
+        return index == e.getIndexExp() ? e : new ArrayWithIndexExp(e.getVariableExp(), index);
+    }
+
+    private LambdaExp foldLambda(final LambdaExp e) {
+        final ScopeMap<Exp> outer = scope;
+        if(e.getParameterList() != null) {
+            for(VariableExp parameter : e.getParameterList().keySet()) {
+                scope = scope.plus(parameter.getId(), parameter);
+            }
+        }
+        final Exp returnExp = foldExp(e.getReturnExp());
+        scope = outer;
+        return returnExp == e.getReturnExp() ? e : new LambdaExp(e.getParameterList(), returnExp);
+    }
+
+    // Literal values are written into the string, positions of the interpolations after them move along
+    private Exp foldString(final StringExp e) {
+        if(isPlainString(e)) {
+            return e;
+        }
+        final String str = e.getStrWithoutInterpolation();
+        final StringBuilder text = new StringBuilder(str.length());
+        final LinkedHashMap<Integer, Exp> interpolationExp = new LinkedHashMap<>();
+        boolean changed = false;
+        int last = 0;
+        for(Map.Entry<Integer, Exp> entry : e.getInterpolationExp().entrySet()) {
+            final Exp value = foldExp(entry.getValue());
+            text.append(str, last, entry.getKey());
+            last = entry.getKey();
+            if(isLiteral(value)) {
+                folded++;
+                text.append(textOf(value));
+                changed = true;
+            } else {
+                interpolationExp.put(text.length(), value);
+                changed |= value != entry.getValue();
+            }
+        }
+        if(!changed) {
+            return e;
+        }
+        text.append(str, last, str.length());
+        return new StringExp(text.toString(), interpolationExp.isEmpty() ? null : interpolationExp);
+    }
+
+    private Exp foldAdditive(final AdditiveExp e) {
+        final Exp left = foldExp(e.getLeft());
+        final Exp right = foldExp(e.getRight());
+        if(left.getKind() == ExpKind.EXP_INT && right.getKind() == ExpKind.EXP_INT) {
+            folded++;
+            return factory.intExp(e.getOp() == AdditiveOp.EXP_PLUS ? intOf(left) + intOf(right) : intOf(left) - intOf(right));
+        }
+        if(e.getOp() == AdditiveOp.EXP_PLUS && isPlainString(left) && isLiteral(right)) {
+            folded++;
+            return new StringExp(textOf(left) + textOf(right), null);
+        }
+        return left == e.getLeft() && right == e.getRight() ? e : new AdditiveExp(left, right, e.getOp());
+    }
+
+    private Exp foldMultiplicative(final MultiplicativeExp e) {
+        final Exp left = foldExp(e.getLeft());
+        final Exp right = foldExp(e.getRight());
+        if(left.getKind() == ExpKind.EXP_INT && right.getKind() == ExpKind.EXP_INT
+                && (e.getOp() == MultiplicativeOp.OP_MULTIPLY || intOf(right) != 0)) {
+            folded++;
+            switch(e.getOp()) {
+                case OP_MULTIPLY:
+                    return factory.intExp(intOf(left) * intOf(right));
+                case OP_DIVIDE:
+                    return factory.intExp(intOf(left) / intOf(right));
+                default:
+                    return factory.intExp(intOf(left) % intOf(right));
+            }
+        }
+        return left == e.getLeft() && right == e.getRight() ? e : new MultiplicativeExp(left, right, e.getOp());
+    }
+
+    private Exp foldComparable(final ComparableExp e) {
+        final Exp left = foldExp(e.getLeft());
+        final Exp right = foldExp(e.getRight());
+        if(left.getKind() == ExpKind.EXP_INT && right.getKind() == ExpKind.EXP_INT) {
+            final int compared = Integer.compare(intOf(left), intOf(right));
+            final boolean value;
+            switch(e.getOp()) {
+                case OP_GREATER_THAN:
+                    value = compared > 0;
+                    break;
+                case OP_LESS_THAN:
+                    value = compared < 0;
+                    break;
+                case OP_GREATER_EQUAL:
+                    value = compared >= 0;
+                    break;
+                case OP_LESS_EQUAL:
+                    value = compared <= 0;
+                    break;
+                case OP_EQUAL_EQUAL:
+                    value = compared == 0;
+                    break;
+                default:
+                    value = compared != 0;
+                    break;
+            }
+            folded++;
+            return factory.booleanExp(value);
+        }
+        return left == e.getLeft() && right == e.getRight() ? e : new ComparableExp(left, right, e.getOp());
+    }
+
+    // A literal on the left decides the value or leaves the right operand, which is evaluated either way then
+    private Exp foldBiLogical(final BiLogicalExp e) {
+        final Exp left = foldExp(e.getLeft());
+        final Exp right = foldExp(e.getRight());
+        if(left.getKind() == ExpKind.EXP_BOOLEAN) {
+            folded++;
+            if(booleanOf(left) == (e.getOp() == BiLogicalOp.OP_AND)) {
+                return right;
+            }
+            return left;
+        }
+        return left == e.getLeft() && right == e.getRight() ? e : new BiLogicalExp(left, right, e.getOp());
+    }
+
+    // The list itself when none of its statements folded
+    private List<Stmt> foldStmts(final List<Stmt> stmts) {
+        List<Stmt> result = null;
+        for(int i = 0; i < stmts.size(); i++) {
+            final Stmt stmt = foldStmt(stmts.get(i));
+            if(result == null && stmt != stmts.get(i)) {
+                result = new ArrayList<>(stmts.subList(0, i));
+            }
+            if(result != null) {
+                result.add(stmt);
+            }
+        }
+        return result == null ? stmts : result;
+    }
+
+    // Folds block in a scope of its own
+    private BlockStmt foldBlock(final BlockStmt block) {
+        if(block == null || block.getStmtList() == null) {
+            return block;
+        }
+        final ScopeMap<Exp> outer = scope;
+        final List<Stmt> stmtList = foldStmts(block.getStmtList());
+        scope = outer;
+        return stmtList == block.getStmtList() ? block : new BlockStmt(stmtList);
+    }
+
+    private Exp foldNullable(final Exp e) {
+        return e == null ? null : foldExp(e);
+    }
+
+    private Stmt foldStmt(final Stmt s) {
+        switch(s.getKind()) {
+            case STMT_CONTROL_LOOP:
+                return s;
+            case STMT_VARIABLE_DECLARE: {
+                final VariableExp variable = ((VariableDeclareStmt) s).getVariableExp();
+                scope = scope.plus(variable.getId(), variable);
+                return s;
+            }
+            case STMT_ASSIGN: {
+                final AssignStmt asAssign = (AssignStmt) s;
+                final Exp expression = foldExp(asAssign.getExpression());
+                final Variable variable = foldVariable(asAssign.getVariable());
+                if(asAssign.isNew()) {
+                    final VariableExp declared = (VariableExp) asAssign.getVariable();
+                    scope = scope.plus(declared.getId(), asAssign.isReadOnly() && isLiteral(expression) ? expression : declared);
+                }
+                return expression == asAssign.getExpression() && variable == asAssign.getVariable() ? s
+                        : new AssignStmt(expression, variable, asAssign.getType(), asAssign.isReadOnly(), asAssign.isNew());
+            }
+            case STMT_COMPOUND_ASSIGN: {
+                final CompoundAssignStmt asCompound = (CompoundAssignStmt) s;
+                final Exp expression = foldExp(asCompound.getExpression());
+                final Variable variable = foldVariable(asCompound.getVariable());
+                return expression == asCompound.getExpression() && variable == asCompound.getVariable() ? s
+                        : new CompoundAssignStmt(expression, variable, asCompound.getOp());
+            }
+            case STMT_BLOCK:
+                return foldBlock((BlockStmt) s);
+            case STMT_FOR: {
+                final ForStmt asFor = (ForStmt) s;
+                final RangeExp rangeExp = asFor.getRangeExp() == null ? null : (RangeExp) foldExp(asFor.getRangeExp());
+                final Exp stepExp = foldNullable(asFor.getStepExp());
+                final ScopeMap<Exp> outer = scope;
+                scope = scope.plus(asFor.getIteratorExp().getId(), asFor.getIteratorExp());
+                final BlockStmt blockStmt = foldBlock(asFor.getBlockStmt());
+                scope = outer;
+                if(rangeExp == asFor.getRangeExp() && stepExp == asFor.getStepExp() && blockStmt == asFor.getBlockStmt()) {
+                    return s;
+                }
+                return asFor.getArrayExp() != null ? new ForStmt(asFor.getIteratorExp(), asFor.getArrayExp(), blockStmt)
+                        : new ForStmt(asFor.getIteratorExp(), rangeExp, stepExp, blockStmt);
+            }
+            case STMT_WHILE: {
+                final Exp condition = foldExp(((WhileStmt) s).getCondition());
+                final BlockStmt blockStmt = foldBlock(((WhileStmt) s).getBlockStmt());
+                return condition == ((WhileStmt) s).getCondition() && blockStmt == ((WhileStmt) s).getBlockStmt() ? s
+                        : new WhileStmt(condition, blockStmt);
+            }
+            case STMT_IF: {
+                final IfStmt asIf = (IfStmt) s;
+                final Exp condition = foldExp(asIf.getCondition());
+                final BlockStmt trueBranch = foldBlock(asIf.getTrueBranch());
+                final BlockStmt falseBranch = foldBlock(asIf.getFalseBranch());
+                return condition == asIf.getCondition() && trueBranch == asIf.getTrueBranch() && falseBranch == asIf.getFalseBranch()
+                        ? s : new IfStmt(condition, trueBranch, falseBranch);
+            }
+            case STMT_FUNCTION_DECLARE: {
+                final FunctionDeclareStmt asFunction = (FunctionDeclareStmt) s;
+                final ScopeMap<Exp> outer = scope;
+                if(asFunction.getParameterList() != null) {
+                    for(Exp parameter : asFunction.getParameterList().keySet()) {
+                        scope = scope.plus(((VariableExp) parameter).getId(), parameter);
+                    }
+                }
+                final BlockStmt blockStmt = foldBlock(asFunction.getBlockStmt());
+                scope = outer;
+                return blockStmt == asFunction.getBlockStmt() ? s : new FunctionDeclareStmt(asFunction.getFuncName(),
+                        asFunction.getReturnType(), asFunction.getParameterList(), blockStmt);
+            }
+            case STMT_FUNCTION_INSTANCE: {
+                final FunctionInstanceExp call = ((FunctionInstanceStmt) s).getFunctionInstanceExp();
+                final Exp result = foldExp(call);
+                return result == call ? s : new FunctionInstanceStmt((FunctionInstanceExp) result);
+            }
+            case STMT_PRINT: {
+                final Exp value = foldNullable(((PrintStmt) s).getValue());
+                return value == ((PrintStmt) s).getValue() ? s : new PrintStmt(value);
+            }
+            case STMT_PRINTLN: {
+                final Exp value = foldNullable(((PrintlnStmt) s).getValue());
+                return value == ((PrintlnStmt) s).getValue() ? s : new PrintlnStmt(value);
+            }
+            case STMT_RETURN: {
+                final Exp returnExp = foldNullable(((ReturnStmt) s).getReturnExp());
+                return returnExp == ((ReturnStmt) s).getReturnExp() ? s : new ReturnStmt(returnExp);
+            }
+            case STMT_SELF_OPERATION: {
+                final SelfOperationExp exp = ((SelfOperationStmt) s).getSelfOperationExp();
+                final Exp result = foldExp(exp);
+                return result == exp ? s : new SelfOperationStmt((SelfOperationExp) result);
+            }
+            default:
+                throw new IllegalArgumentException("Cannot fold " + s);
+        }
+    }
+}
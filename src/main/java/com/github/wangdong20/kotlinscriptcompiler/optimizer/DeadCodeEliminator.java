@@ -0,0 +1,517 @@
+package com.github.wangdong20.kotlinscriptcompiler.optimizer;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.ExpFactory;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Resolver;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Removes statements of a type checked program which cannot run or have no effect, best after ConstantFolder
+ * made conditions literals. That is the branch of an if which a literal condition never takes, while(false),
+ * statements after return, break or continue, and after an if each of whose branches ends in one, stores to
+ * variables which are never read when every value stored to them has no side effects, together with their
+ * declarations, and loops and ifs with empty bodies which are sure to end and have no effects left.
+ * A while with a body is kept even when it is empty, it might not end.
+ * Reads are counted by name over the whole program, so a store is only removed when no variable of its name
+ * is read anywhere. Removing stores can leave more variables unread, so this goes on until nothing changes.
+ */
+public class DeadCodeEliminator {
+    private final ExpFactory factory = new ExpFactory(false);
+    private boolean[] read;     // by name id, some variable of the name is read
+    private boolean[] impure;   // by name id, some variable of the name is assigned a value with side effects
+    private int removed;
+
+    public DeadCodeEliminator() {
+    }
+
+    /**
+     * Statements of the program eliminated last which were removed, those in removed blocks counted too.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * The program without dead code, program itself when there is none. Program must type check,
+     * the program returned is resolved again.
+     */
+    public Program eliminate(final Program program) {
+        removed = 0;
+        final int names = Resolver.resolve(program).getNameCount();
+        List<Stmt> stmtList = program.getStmtList();
+        while(true) {
+            read = new boolean[names];
+            impure = new boolean[names];
+            for(Stmt s : stmtList) {
+                collectStmt(s);
+            }
+            final List<Stmt> next = eliminateStmts(stmtList);
+            if(next == stmtList) {
+                break;
+            }
+            stmtList = next;
+        }
+        if(stmtList == program.getStmtList()) {
+            return program;
+        }
+        final Program result = new Program(stmtList);
+        Resolver.resolve(result);   // calls refer to the remaining declarations
+        return result;
+    }
+
+    /**
+     * Whether evaluating e can do nothing but give its value, no call, no indexing out of bounds,
+     * no division by zero.
+     */
+    static boolean isPure(final Exp e) {
+        switch(e.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+            case EXP_VARIABLE:
+                return true;
+            case EXP_STRING:
+                if(((StringExp) e).getInterpolationExp() != null) {
+                    for(Exp value : ((StringExp) e).getInterpolationExp().values()) {
+                        if(!isPure(value)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            case EXP_ADDITIVE:
+                return isPure(((AdditiveExp) e).getLeft()) && isPure(((AdditiveExp) e).getRight());
+            case EXP_MULTIPLICATIVE: {
+                final MultiplicativeExp asMultiplicative = (MultiplicativeExp) e;
+                final Exp right = asMultiplicative.getRight();
+                return isPure(asMultiplicative.getLeft()) && isPure(right) && (asMultiplicative.getOp() == MultiplicativeOp.OP_MULTIPLY
+                        || right.getKind() == ExpKind.EXP_INT && ((IntExp) right).getValue() != 0);
+            }
+            case EXP_COMPARABLE:
+                return isPure(((ComparableExp) e).getLeft()) && isPure(((ComparableExp) e).getRight());
+            case EXP_BILOGICAL:
+                return isPure(((BiLogicalExp) e).getLeft()) && isPure(((BiLogicalExp) e).getRight());
+            case EXP_NOT:
+                return isPure(((NotExp) e).getValue());
+            case EXP_ARRAY_OF:
+                if(((ArrayOfExp) e).getExpList() != null) {
+                    for(Exp exp : ((ArrayOfExp) e).getExpList()) {
+                        if(!isPure(exp)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isDead(final VariableExp variable) {
+        return !read[variable.getId()] && !impure[variable.getId()];
+    }
+
+    private void collectExps(final Collection<? extends Exp> exps) {
+        if(exps != null) {
+            for(Exp exp : exps) {
+                collectExp(exp);
+            }
+        }
+    }
+
+    // Marks the variables e reads
+    private void collectExp(final Exp e) {
+        if(e == null) {
+            return;
+        }
+        switch(e.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+                break;
+            case EXP_VARIABLE:
+                read[((VariableExp) e).getId()] = true;
+                break;
+            case EXP_STRING:
+                if(((StringExp) e).getInterpolationExp() != null) {
+                    collectExps(((StringExp) e).getInterpolationExp().values());
+                }
+                break;
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                collectExp(((BinaryIntExp) e).getLeft());
+                collectExp(((BinaryIntExp) e).getRight());
+                break;
+            case EXP_COMPARABLE:
+                collectExp(((ComparableExp) e).getLeft());
+                collectExp(((ComparableExp) e).getRight());
+                break;
+            case EXP_BILOGICAL:
+                collectExp(((BiLogicalExp) e).getLeft());
+                collectExp(((BiLogicalExp) e).getRight());
+                break;
+            case EXP_NOT:
+                collectExp(((NotExp) e).getValue());
+                break;
+            case EXP_ARRAY_WITH_INDEX:
+                collectExp(((ArrayWithIndexExp) e).getVariableExp());
+                collectExp(((ArrayWithIndexExp) e).getIndexExp());
+                break;
+            case EXP_SELF_OPERATION:
+                collectExp((Exp) ((SelfOperationExp) e).getVariableExp());
+                break;
+            case EXP_FUNCTION_INSTANCE:
+                collectExps(((FunctionInstanceExp) e).getParameterList());
+                break;
+            case EXP_ARRAY_OF:
+                collectExps(((ArrayOfExp) e).getExpList());
+                break;
+            case EXP_MUTABLE_LIST_OF:
+                collectExps(((MutableListOfExp) e).getExpList());
+                break;
+            case EXP_ARRAY:
+                collectExp(((ArrayExp) e).getSize());
+                collectExp(((ArrayExp) e).getLambdaExp());
+                break;
+            case EXP_MUTABLE_LIST:
+                collectExp(((MutableListExp) e).getSize());
+                collectExp(((MutableListExp) e).getLambdaExp());
+                break;
+            case EXP_LAMBDA:
+                collectExp(((LambdaExp) e).getReturnExp());
+                break;
+            case EXP_RANGE:
+                collectExp(((RangeExp) e).getStart());
+                collectExp(((RangeExp) e).getEnd());
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot eliminate dead code in " + e);
+        }
+    }
+
+    private void collectBlock(final BlockStmt block) {
+        if(block != null && block.getStmtList() != null) {
+            for(Stmt s : block.getStmtList()) {
+                collectStmt(s);
+            }
+        }
+    }
+
+    // Marks the variables s reads and those it assigns values with side effects
+    private void collectStmt(final Stmt s) {
+        switch(s.getKind()) {
+            case STMT_CONTROL_LOOP:
+            case STMT_VARIABLE_DECLARE:
+                break;
+            case STMT_ASSIGN: {
+                final AssignStmt asAssign = (AssignStmt) s;
+                collectExp(asAssign.getExpression());
+                if(asAssign.getVariable() instanceof VariableExp) {
+                    if(!isPure(asAssign.getExpression())) {
+                        impure[((VariableExp) asAssign.getVariable()).getId()] = true;
+                    }
+                } else {
+                    collectExp((Exp) asAssign.getVariable());
+                }
+                break;
+            }
+            case STMT_COMPOUND_ASSIGN:
+                collectExp(((CompoundAssignStmt) s).getExpression());
+                collectExp((Exp) ((CompoundAssignStmt) s).getVariable());
+                break;
+            case STMT_BLOCK:
+                collectBlock((BlockStmt) s);
+                break;
+            case STMT_FOR:
+                collectExp(((ForStmt) s).getArrayExp());
+                collectExp(((ForStmt) s).getRangeExp());
+                collectExp(((ForStmt) s).getStepExp());
+                collectBlock(((ForStmt) s).getBlockStmt());
+                break;
+            case STMT_WHILE:
+                collectExp(((WhileStmt) s).getCondition());
+                collectBlock(((WhileStmt) s).getBlockStmt());
+                break;
+            case STMT_IF:
+                collectExp(((IfStmt) s).getCondition());
+                collectBlock(((IfStmt) s).getTrueBranch());
+                collectBlock(((IfStmt) s).getFalseBranch());
+                break;
+            case STMT_FUNCTION_DECLARE:
+                collectBlock(((FunctionDeclareStmt) s).getBlockStmt());
+                break;
+            case STMT_FUNCTION_INSTANCE:
+                collectExp(((FunctionInstanceStmt) s).getFunctionInstanceExp());
+                break;
+            case STMT_PRINT:
+                collectExp(((PrintStmt) s).getValue());
+                break;
+            case STMT_PRINTLN:
+                collectExp(((PrintlnStmt) s).getValue());
+                break;
+            case STMT_RETURN:
+                collectExp(((ReturnStmt) s).getReturnExp());
+                break;
+            case STMT_SELF_OPERATION:
+                collectExp(((SelfOperationStmt) s).getSelfOperationExp());
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot eliminate dead code in " + s);
+        }
+    }
+
+    private static boolean isEmpty(final BlockStmt block) {
+        return block == null || block.getStmtList() == null || block.getStmtList().isEmpty();
+    }
+
+    private static int count(final BlockStmt block) {
+        return isEmpty(block) ? 0 : count(block.getStmtList());
+    }
+
+    private static int count(final List<Stmt> stmts) {
+        int n = 0;
+        for(Stmt s : stmts) {
+            n += count(s);
+        }
+        return n;
+    }
+
+    // Statements in s, s included
+    private static int count(final Stmt s) {
+        switch(s.getKind()) {
+            case STMT_BLOCK:
+                return 1 + count((BlockStmt) s);
+            case STMT_FOR:
+                return 1 + count(((ForStmt) s).getBlockStmt());
+            case STMT_WHILE:
+                return 1 + count(((WhileStmt) s).getBlockStmt());
+            case STMT_IF:
+                return 1 + count(((IfStmt) s).getTrueBranch()) + count(((IfStmt) s).getFalseBranch());
+            case STMT_FUNCTION_DECLARE:
+                return 1 + count(((FunctionDeclareStmt) s).getBlockStmt());
+            default:
+                return 1;
+        }
+    }
+
+    // Whether the statements after s are never reached
+    private static boolean terminates(final Stmt s) {
+        switch(s.getKind()) {
+            case STMT_RETURN:
+            case STMT_CONTROL_LOOP:
+                return true;
+            case STMT_BLOCK:
+                return endsInTerminator((BlockStmt) s);
+            case STMT_IF:
+                return endsInTerminator(((IfStmt) s).getTrueBranch()) && endsInTerminator(((IfStmt) s).getFalseBranch());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean endsInTerminator(final BlockStmt block) {
+        return !isEmpty(block) && terminates(block.getStmtList().get(block.getStmtList().size() - 1));
+    }
+
+    // Whether the statements declare a variable in their own scope
+    private static boolean declares(final List<Stmt> stmts) {
+        for(Stmt s : stmts) {
+            if(s instanceof VariableDeclareStmt || s instanceof AssignStmt && ((AssignStmt) s).isNew()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a break or continue in the statements leaves the loop around them
+    private static boolean controlsLoop(final List<Stmt> stmts) {
+        for(Stmt s : stmts) {
+            switch(s.getKind()) {
+                case STMT_CONTROL_LOOP:
+                    return true;
+                case STMT_BLOCK:
+                    if(!isEmpty((BlockStmt) s) && controlsLoop(((BlockStmt) s).getStmtList())) {
+                        return true;
+                    }
+                    break;
+                case STMT_IF:
+                    if(!isEmpty(((IfStmt) s).getTrueBranch()) && controlsLoop(((IfStmt) s).getTrueBranch().getStmtList())
+                            || !isEmpty(((IfStmt) s).getFalseBranch()) && controlsLoop(((IfStmt) s).getFalseBranch().getStmtList())) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    // The list itself when nothing in it is dead
+    private List<Stmt> eliminateStmts(final List<Stmt> stmts) {
+        final List<Stmt> result = new ArrayList<>(stmts.size());
+        boolean changed = false;
+        for(int i = 0; i < stmts.size(); i++) {
+            final Stmt s = stmts.get(i);
+            changed |= eliminateStmt(s, result);
+            if(!result.isEmpty() && terminates(result.get(result.size() - 1)) && i < stmts.size() - 1) {
+                removed += count(stmts.subList(i + 1, stmts.size()));
+                changed = true;
+                break;
+            }
+        }
+        return changed ? result : stmts;
+    }
+
+    // The block itself when nothing in it is dead
+    private BlockStmt eliminateBlock(final BlockStmt block) {
+        if(isEmpty(block)) {
+            return block;
+        }
+        final List<Stmt> stmtList = eliminateStmts(block.getStmtList());
+        return stmtList == block.getStmtList() ? block : new BlockStmt(stmtList);
+    }
+
+    // Adds what is left of s to result, whether that is not s itself
+    private boolean eliminateStmt(final Stmt s, final List<Stmt> result) {
+        switch(s.getKind()) {
+            case STMT_VARIABLE_DECLARE:
+                if(isDead(((VariableDeclareStmt) s).getVariableExp())) {
+                    removed++;
+                    return true;
+                }
+                break;
+            case STMT_ASSIGN:
+                if(((AssignStmt) s).getVariable() instanceof VariableExp && isDead((VariableExp) ((AssignStmt) s).getVariable())) {
+                    removed++;
+                    return true;
+                }
+                break;
+            case STMT_BLOCK: {
+                final BlockStmt block = eliminateBlock((BlockStmt) s);
+                if(isEmpty(block)) {
+                    removed++;
+                    return true;
+                }
+                result.add(block);
+                return block != s;
+            }
+            case STMT_IF:
+                return eliminateIf((IfStmt) s, result);
+            case STMT_WHILE: {
+                final WhileStmt asWhile = (WhileStmt) s;
+                if(asWhile.getCondition().getKind() == ExpKind.EXP_BOOLEAN && !((BooleanExp) asWhile.getCondition()).getValue()) {
+                    removed += count(s);
+                    return true;
+                }
+                final BlockStmt blockStmt = eliminateBlock(asWhile.getBlockStmt());
+                result.add(blockStmt == asWhile.getBlockStmt() ? s : new WhileStmt(asWhile.getCondition(), blockStmt));
+                return blockStmt != asWhile.getBlockStmt();
+            }
+            case STMT_FOR: {
+                final ForStmt asFor = (ForStmt) s;
+                if(neverRuns(asFor)) {
+                    removed += count(s);
+                    return true;
+                }
+                final BlockStmt blockStmt = eliminateBlock(asFor.getBlockStmt());
+                if(isEmpty(blockStmt) && alwaysEnds(asFor)) {
+                    removed += 1 + count(blockStmt);
+                    return true;
+                }
+                if(blockStmt == asFor.getBlockStmt()) {
+                    break;
+                }
+                result.add(asFor.getArrayExp() != null ? new ForStmt(asFor.getIteratorExp(), asFor.getArrayExp(), blockStmt)
+                        : new ForStmt(asFor.getIteratorExp(), asFor.getRangeExp(), asFor.getStepExp(), blockStmt));
+                return true;
+            }
+            case STMT_FUNCTION_DECLARE: {
+                final FunctionDeclareStmt asFunction = (FunctionDeclareStmt) s;
+                final BlockStmt blockStmt = eliminateBlock(asFunction.getBlockStmt());
+                if(blockStmt == asFunction.getBlockStmt()) {
+                    break;
+                }
+                result.add(new FunctionDeclareStmt(asFunction.getFuncName(), asFunction.getReturnType(),
+                        asFunction.getParameterList(), blockStmt));
+                return true;
+            }
+            default:
+                break;
+        }
+        result.add(s);
+        return false;
+    }
+
+    // A literal condition leaves one branch in place of the if, without a scope of its own when it declares nothing
+    private boolean eliminateIf(final IfStmt s, final List<Stmt> result) {
+        final Exp condition = s.getCondition();
+        if(condition.getKind() == ExpKind.EXP_BOOLEAN) {
+            final boolean value = ((BooleanExp) condition).getValue();
+            final BlockStmt dead = value ? s.getFalseBranch() : s.getTrueBranch();
+            final BlockStmt taken = eliminateBlock(value ? s.getTrueBranch() : s.getFalseBranch());
+            removed += 1 + count(dead);
+            if(isEmpty(taken)) {
+                return true;
+            }
+            if(!declares(taken.getStmtList())) {
+                result.addAll(taken.getStmtList());
+            } else if(!controlsLoop(taken.getStmtList())) {
+                result.add(taken);
+                removed--;
+            } else if(value && s.getFalseBranch() == null && taken == s.getTrueBranch()) {
+                result.add(s);
+                removed--;
+                return false;
+            } else {    // CodeGenerator only takes break and continue in a loop body or an if in it
+                result.add(new IfStmt(factory.booleanExp(true), taken));
+                removed--;
+            }
+            return true;
+        }
+        final BlockStmt trueBranch = eliminateBlock(s.getTrueBranch());
+        final BlockStmt falseBranch = eliminateBlock(s.getFalseBranch());
+        if(isEmpty(trueBranch) && isEmpty(falseBranch) && isPure(condition)) {
+            removed += 1 + count(trueBranch) + count(falseBranch);
+            return true;
+        }
+        if(trueBranch == s.getTrueBranch() && falseBranch == s.getFalseBranch()) {
+            result.add(s);
+            return false;
+        }
+        result.add(new IfStmt(condition, trueBranch, isEmpty(falseBranch) ? null : falseBranch));
+        return true;
+    }
+
+    // A range of literals which is empty, for(i in a..b) runs while i < b
+    private static boolean neverRuns(final ForStmt s) {
+        final RangeExp range = s.getRangeExp();
+        return range != null && range.getStart().getKind() == ExpKind.EXP_INT && range.getEnd().getKind() == ExpKind.EXP_INT
+                && ((IntExp) range.getStart()).getValue() >= ((IntExp) range.getEnd()).getValue()
+                && (s.getStepExp() == null || isPure(s.getStepExp()));
+    }
+
+    // Whether the loop ends with no effect but its iterations.  A range with a step that is not positive might not,
+    // nor one with a step past 1 whose end is too close to Integer.MAX_VALUE, i would overflow before reaching it
+    private static boolean alwaysEnds(final ForStmt s) {
+        if(s.getArrayExp() != null) {
+            return true;
+        }
+        final Exp end = s.getRangeExp().getEnd();
+        if(!isPure(s.getRangeExp().getStart()) || !isPure(end)) {
+            return false;
+        }
+        if(s.getStepExp() == null) {
+            return true;
+        }
+        if(s.getStepExp().getKind() != ExpKind.EXP_INT) {
+            return false;
+        }
+        final int step = ((IntExp) s.getStepExp()).getValue();
+        return step == 1 || step > 1 && end.getKind() == ExpKind.EXP_INT
+                && ((IntExp) end).getValue() <= Integer.MAX_VALUE - step + 1;
+    }
+}
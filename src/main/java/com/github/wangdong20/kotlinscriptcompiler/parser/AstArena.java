@@ -0,0 +1,660 @@
+package com.github.wangdong20.kotlinscriptcompiler.parser;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A program stored as parallel arrays instead of one object per node: kind, operator, payload and children of
+ * every node. A node is its index. Nodes are added children first, so the children of a node have smaller indexes
+ * and a whole subtree is the range of nodes from its leftmost leaf up to its root. Names and string literals are
+ * kept once in a pool, and so are types, payloads index into them. An absent child, e.g. the else branch of an
+ * if, is NONE, a list which is null instead of empty has FLAG_NULL_LIST.
+ * Parser.parseToplevelArena() builds one statement by statement, toProgram() and toStmt(node) give the objects back.
+ * Nothing here recurses, so an arena takes trees of any depth.
+ */
+public class AstArena {
+    private static final int INITIAL_SIZE = 1024;
+
+    public static final int NONE = -1;
+
+    // Kinds of expressions, with what the payload is and which children there are
+    public static final int KIND_INT = 0;               // payload value
+    public static final int KIND_BOOLEAN = 1;           // payload 1 for true, 0 for false
+    public static final int KIND_STRING = 2;            // payload string without interpolation, KIND_PLACEHOLDER children
+    public static final int KIND_PLACEHOLDER = 3;       // payload position in the string, the expression
+    public static final int KIND_VARIABLE = 4;          // payload name
+    public static final int KIND_ADDITIVE = 5;          // left, right
+    public static final int KIND_MULTIPLICATIVE = 6;    // left, right
+    public static final int KIND_COMPARABLE = 7;        // left, right
+    public static final int KIND_BILOGICAL = 8;         // left, right
+    public static final int KIND_NOT = 9;               // value
+    public static final int KIND_ARRAY_WITH_INDEX = 10; // variable, index
+    public static final int KIND_SELF_OPERATION = 11;   // variable, FLAG_PRE_ORDER for ++i
+    public static final int KIND_FUNCTION_INSTANCE = 12;    // name, arguments
+    public static final int KIND_ARRAY_OF = 13;         // elements
+    public static final int KIND_MUTABLE_LIST_OF = 14;  // elements
+    public static final int KIND_ARRAY = 15;            // size, lambda
+    public static final int KIND_MUTABLE_LIST = 16;     // size, lambda
+    public static final int KIND_LAMBDA = 17;           // return expression, KIND_PARAMETER children
+    public static final int KIND_PARAMETER = 18;        // payload type, the name
+    public static final int KIND_RANGE = 19;            // start, end
+    // Kinds of statements
+    public static final int KIND_ASSIGN = 20;           // payload type, expression, variable, FLAG_READ_ONLY, FLAG_NEW
+    public static final int KIND_BLOCK = 21;            // statements
+    public static final int KIND_COMPOUND_ASSIGN = 22;  // expression, variable
+    public static final int KIND_BREAK = 23;
+    public static final int KIND_CONTINUE = 24;
+    public static final int KIND_FOR_ARRAY = 25;        // iterator, array, block
+    public static final int KIND_FOR_RANGE = 26;        // iterator, range, step, block
+    public static final int KIND_FUNCTION_DECLARE = 27; // payload return type, name, block, KIND_PARAMETER children
+    public static final int KIND_FUNCTION_INSTANCE_STMT = 28;   // the KIND_FUNCTION_INSTANCE
+    public static final int KIND_IF = 29;               // condition, true branch, false branch
+    public static final int KIND_PRINT = 30;            // value
+    public static final int KIND_PRINTLN = 31;          // value
+    public static final int KIND_RETURN = 32;           // value
+    public static final int KIND_SELF_OPERATION_STMT = 33;  // the KIND_SELF_OPERATION
+    public static final int KIND_VARIABLE_DECLARE = 34; // payload type, variable, FLAG_READ_ONLY
+    public static final int KIND_WHILE = 35;            // condition, block
+
+    // Flags in the operator byte of nodes without an operator, the ordinal of the operator enum is there otherwise
+    public static final int FLAG_NULL_LIST = 1;
+    public static final int FLAG_READ_ONLY = 2;
+    public static final int FLAG_NEW = 4;
+    public static final int FLAG_PRE_ORDER = 8;
+
+    private static final AdditiveOp[] ADDITIVE_OPS = AdditiveOp.values();
+    private static final MultiplicativeOp[] MULTIPLICATIVE_OPS = MultiplicativeOp.values();
+    private static final ComparableOp[] COMPARABLE_OPS = ComparableOp.values();
+    private static final BiLogicalOp[] BILOGICAL_OPS = BiLogicalOp.values();
+    private static final SelfOp[] SELF_OPS = SelfOp.values();
+    private static final CompoundAssignOp[] COMPOUND_ASSIGN_OPS = CompoundAssignOp.values();
+    private static final Object[] NO_CHILDREN = new Object[0];
+
+    private byte[] kinds;
+    private byte[] ops;         // operator ordinal or flags
+    private int[] payloads;
+    private int[] childStarts;  // node i has children[childStarts[i], childStarts[i + 1])
+    private int[] children;
+    private int size;
+    private int[] statements;   // top level statements
+    private int statementCount;
+    private final List<String> strings;
+    private final Map<String, Integer> stringIndexes;
+    private final List<Type> types;
+    private final Map<Type, Integer> typeIndexes;
+    private final List<Frame> frames;   // stack of add(), kept to not allocate it for every statement
+
+    public AstArena() {
+        this.kinds = new byte[INITIAL_SIZE];
+        this.ops = new byte[INITIAL_SIZE];
+        this.payloads = new int[INITIAL_SIZE];
+        this.childStarts = new int[INITIAL_SIZE + 1];
+        this.children = new int[INITIAL_SIZE];
+        this.size = 0;
+        this.statements = new int[16];
+        this.statementCount = 0;
+        this.strings = new ArrayList<>();
+        this.stringIndexes = new HashMap<>();
+        this.types = new ArrayList<>();
+        this.typeIndexes = new HashMap<>();
+        this.frames = new ArrayList<>();
+    }
+
+    public static AstArena of(final Program program) {
+        final AstArena arena = new AstArena();
+        for(Stmt stmt : program.getStmtList()) {
+            arena.add(stmt);
+        }
+        arena.trimToSize();
+        return arena;
+    }
+
+    // A node being added: what goes into the arrays for it, and its children added so far
+    private static class Frame {
+        private int kind;
+        private int op;
+        private int payload;
+        private Object[] children;  // Stmt, Exp or Map.Entry of a parameter or placeholder, null when absent
+        private int[] childNodes;
+        private int next;
+    }
+
+    /**
+     * Adds stmt and its subtree as the next top level statement, returns its node.
+     */
+    public int add(final Stmt stmt) {
+        int depth = 0;
+        push(stmt, depth++);
+        while(true) {
+            final Frame frame = frames.get(depth - 1);
+            if(frame.next < frame.children.length) {
+                final Object child = frame.children[frame.next];
+                if(child == null) {
+                    frame.childNodes[frame.next++] = NONE;
+                } else {
+                    push(child, depth++);
+                }
+                continue;
+            }
+            final int node = addNode(frame.kind, frame.op, frame.payload, frame.childNodes);
+            frame.children = null;      // let the objects go
+            if(--depth == 0) {
+                if(statementCount == statements.length) {
+                    statements = Arrays.copyOf(statements, Math.max(16, statementCount * 2));
+                }
+                statements[statementCount++] = node;
+                return node;
+            }
+            final Frame parent = frames.get(depth - 1);
+            parent.childNodes[parent.next++] = node;
+        }
+    }
+
+    private void push(final Object node, final int depth) {
+        if(depth == frames.size()) {
+            frames.add(new Frame());
+        }
+        final Frame frame = frames.get(depth);
+        frame.op = 0;
+        frame.payload = 0;
+        frame.next = 0;
+        describe(node, frame);
+        frame.childNodes = frame.children.length == 0 ? null : new int[frame.children.length];
+    }
+
+    private int addNode(final int kind, final int op, final int payload, final int[] childNodes) {
+        final int childCount = childNodes == null ? 0 : childNodes.length;
+        if(size == kinds.length) {
+            final int capacity = Math.max(INITIAL_SIZE, size * 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            ops = Arrays.copyOf(ops, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            childStarts = Arrays.copyOf(childStarts, capacity + 1);
+        }
+        final int start = childStarts[size];
+        if(start + childCount > children.length) {
+            children = Arrays.copyOf(children, Math.max(children.length * 2, start + childCount));
+        }
+        if(childCount > 0) {
+            System.arraycopy(childNodes, 0, children, start, childCount);
+        }
+        kinds[size] = (byte) kind;
+        ops[size] = (byte) op;
+        payloads[size] = payload;
+        childStarts[size + 1] = start + childCount;
+        return size++;
+    }
+
+    // Drops the room left for more nodes, once all are added, the arrays grow again on the next add()
+    void trimToSize() {
+        kinds = Arrays.copyOf(kinds, size);
+        ops = Arrays.copyOf(ops, size);
+        payloads = Arrays.copyOf(payloads, size);
+        childStarts = Arrays.copyOf(childStarts, size + 1);
+        children = Arrays.copyOf(children, childStarts[size]);
+        statements = Arrays.copyOf(statements, statementCount);
+        frames.clear();
+    }
+
+    private int stringIndex(final String string) {
+        Integer index = stringIndexes.get(string);
+        if(index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    private int typeIndex(final Type type) {
+        if(type == null) {
+            return NONE;
+        }
+        Integer index = typeIndexes.get(type);
+        if(index == null) {
+            index = types.size();
+            types.add(type);
+            typeIndexes.put(type, index);
+        }
+        return index;
+    }
+
+    private static Object[] listChildren(final List<?> list, final Object... before) {
+        if(list == null) {
+            return before;
+        }
+        final Object[] children = Arrays.copyOf(before, before.length + list.size());
+        for(int i = 0; i < list.size(); i++) {
+            children[before.length + i] = list.get(i);
+        }
+        return children;
+    }
+
+    private static Object[] entryChildren(final Map<?, ?> map, final Object... before) {
+        if(map == null) {
+            return before;
+        }
+        final Object[] children = Arrays.copyOf(before, before.length + map.size());
+        int i = before.length;
+        for(Map.Entry<?, ?> entry : map.entrySet()) {
+            children[i++] = entry;
+        }
+        return children;
+    }
+
+    // Fills in kind, op, payload and children of node
+    private void describe(final Object node, final Frame frame) {
+        frame.children = NO_CHILDREN;
+        if(node instanceof IntExp) {
+            frame.kind = KIND_INT;
+            frame.payload = ((IntExp) node).getValue();
+        } else if(node instanceof BooleanExp) {
+            frame.kind = KIND_BOOLEAN;
+            frame.payload = ((BooleanExp) node).getValue() ? 1 : 0;
+        } else if(node instanceof StringExp) {
+            final StringExp stringExp = (StringExp) node;
+            frame.kind = KIND_STRING;
+            frame.payload = stringIndex(stringExp.getStrWithoutInterpolation());
+            frame.op = stringExp.getInterpolationExp() == null ? FLAG_NULL_LIST : 0;
+            frame.children = entryChildren(stringExp.getInterpolationExp());
+        } else if(node instanceof Map.Entry) {
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) node;
+            if(entry.getKey() instanceof Integer) {
+                frame.kind = KIND_PLACEHOLDER;
+                frame.payload = (Integer) entry.getKey();
+                frame.children = new Object[]{entry.getValue()};
+            } else {
+                frame.kind = KIND_PARAMETER;
+                frame.payload = typeIndex((Type) entry.getValue());
+                frame.children = new Object[]{entry.getKey()};
+            }
+        } else if(node instanceof VariableExp) {
+            frame.kind = KIND_VARIABLE;
+            frame.payload = stringIndex(((VariableExp) node).getName());
+        } else if(node instanceof AdditiveExp) {
+            final AdditiveExp exp = (AdditiveExp) node;
+            frame.kind = KIND_ADDITIVE;
+            frame.op = exp.getOp().ordinal();
+            frame.children = new Object[]{exp.getLeft(), exp.getRight()};
+        } else if(node instanceof MultiplicativeExp) {
+            final MultiplicativeExp exp = (MultiplicativeExp) node;
+            frame.kind = KIND_MULTIPLICATIVE;
+            frame.op = exp.getOp().ordinal();
+            frame.children = new Object[]{exp.getLeft(), exp.getRight()};
+        } else if(node instanceof ComparableExp) {
+            final ComparableExp exp = (ComparableExp) node;
+            frame.kind = KIND_COMPARABLE;
+            frame.op = exp.getOp().ordinal();
+            frame.children = new Object[]{exp.getLeft(), exp.getRight()};
+        } else if(node instanceof BiLogicalExp) {
+            final BiLogicalExp exp = (BiLogicalExp) node;
+            frame.kind = KIND_BILOGICAL;
+            frame.op = exp.getOp().ordinal();
+            frame.children = new Object[]{exp.getLeft(), exp.getRight()};
+        } else if(node instanceof NotExp) {
+            frame.kind = KIND_NOT;
+            frame.children = new Object[]{((NotExp) node).getValue()};
+        } else if(node instanceof ArrayWithIndexExp) {
+            final ArrayWithIndexExp exp = (ArrayWithIndexExp) node;
+            frame.kind = KIND_ARRAY_WITH_INDEX;
+            frame.children = new Object[]{exp.getVariableExp(), exp.getIndexExp()};
+        } else if(node instanceof SelfOperationExp) {
+            final SelfOperationExp exp = (SelfOperationExp) node;
+            frame.kind = KIND_SELF_OPERATION;
+            frame.op = exp.getOp().ordinal() | (exp.getPreOrder() ? FLAG_PRE_ORDER : 0);
+            frame.children = new Object[]{exp.getVariableExp()};
+        } else if(node instanceof FunctionInstanceExp) {
+            final FunctionInstanceExp exp = (FunctionInstanceExp) node;
+            frame.kind = KIND_FUNCTION_INSTANCE;
+            frame.op = exp.getParameterList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = listChildren(exp.getParameterList(), exp.getFuncName());
+        } else if(node instanceof ArrayOfExp) {
+            final ArrayOfExp exp = (ArrayOfExp) node;
+            frame.kind = KIND_ARRAY_OF;
+            frame.op = exp.getExpList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = listChildren(exp.getExpList());
+        } else if(node instanceof MutableListOfExp) {
+            final MutableListOfExp exp = (MutableListOfExp) node;
+            frame.kind = KIND_MUTABLE_LIST_OF;
+            frame.op = exp.getExpList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = listChildren(exp.getExpList());
+        } else if(node instanceof ArrayExp) {
+            final ArrayExp exp = (ArrayExp) node;
+            frame.kind = KIND_ARRAY;
+            frame.children = new Object[]{exp.getSize(), exp.getLambdaExp()};
+        } else if(node instanceof MutableListExp) {
+            final MutableListExp exp = (MutableListExp) node;
+            frame.kind = KIND_MUTABLE_LIST;
+            frame.children = new Object[]{exp.getSize(), exp.getLambdaExp()};
+        } else if(node instanceof LambdaExp) {
+            final LambdaExp exp = (LambdaExp) node;
+            frame.kind = KIND_LAMBDA;
+            frame.op = exp.getParameterList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = entryChildren(exp.getParameterList(), exp.getReturnExp());
+        } else if(node instanceof RangeExp) {
+            final RangeExp exp = (RangeExp) node;
+            frame.kind = KIND_RANGE;
+            frame.children = new Object[]{exp.getStart(), exp.getEnd()};
+        } else if(node instanceof AssignStmt) {
+            final AssignStmt stmt = (AssignStmt) node;
+            frame.kind = KIND_ASSIGN;
+            frame.payload = typeIndex(stmt.getType());
+            frame.op = (stmt.isReadOnly() ? FLAG_READ_ONLY : 0) | (stmt.isNew() ? FLAG_NEW : 0);
+            frame.children = new Object[]{stmt.getExpression(), stmt.getVariable()};
+        } else if(node instanceof BlockStmt) {
+            final BlockStmt stmt = (BlockStmt) node;
+            frame.kind = KIND_BLOCK;
+            frame.op = stmt.getStmtList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = listChildren(stmt.getStmtList());
+        } else if(node instanceof CompoundAssignStmt) {
+            final CompoundAssignStmt stmt = (CompoundAssignStmt) node;
+            frame.kind = KIND_COMPOUND_ASSIGN;
+            frame.op = stmt.getOp().ordinal();
+            frame.children = new Object[]{stmt.getExpression(), stmt.getVariable()};
+        } else if(node == ControlLoopStmt.STMT_BREAK) {
+            frame.kind = KIND_BREAK;
+        } else if(node == ControlLoopStmt.STMT_CONTINUE) {
+            frame.kind = KIND_CONTINUE;
+        } else if(node instanceof ForStmt) {
+            final ForStmt stmt = (ForStmt) node;
+            if(stmt.getArrayExp() != null) {
+                frame.kind = KIND_FOR_ARRAY;
+                frame.children = new Object[]{stmt.getIteratorExp(), stmt.getArrayExp(), stmt.getBlockStmt()};
+            } else {
+                frame.kind = KIND_FOR_RANGE;
+                frame.children = new Object[]{stmt.getIteratorExp(), stmt.getRangeExp(), stmt.getStepExp(),
+                        stmt.getBlockStmt()};
+            }
+        } else if(node instanceof FunctionDeclareStmt) {
+            final FunctionDeclareStmt stmt = (FunctionDeclareStmt) node;
+            frame.kind = KIND_FUNCTION_DECLARE;
+            frame.payload = typeIndex(stmt.getReturnType());
+            frame.op = stmt.getParameterList() == null ? FLAG_NULL_LIST : 0;
+            frame.children = entryChildren(stmt.getParameterList(), stmt.getFuncName(), stmt.getBlockStmt());
+        } else if(node instanceof FunctionInstanceStmt) {
+            frame.kind = KIND_FUNCTION_INSTANCE_STMT;
+            frame.children = new Object[]{((FunctionInstanceStmt) node).getFunctionInstanceExp()};
+        } else if(node instanceof IfStmt) {
+            final IfStmt stmt = (IfStmt) node;
+            frame.kind = KIND_IF;
+            frame.children = new Object[]{stmt.getCondition(), stmt.getTrueBranch(), stmt.getFalseBranch()};
+        } else if(node instanceof PrintStmt) {
+            frame.kind = KIND_PRINT;
+            frame.children = new Object[]{((PrintStmt) node).getValue()};
+        } else if(node instanceof PrintlnStmt) {
+            frame.kind = KIND_PRINTLN;
+            frame.children = new Object[]{((PrintlnStmt) node).getValue()};
+        } else if(node instanceof ReturnStmt) {
+            frame.kind = KIND_RETURN;
+            frame.children = new Object[]{((ReturnStmt) node).getReturnExp()};
+        } else if(node instanceof SelfOperationStmt) {
+            frame.kind = KIND_SELF_OPERATION_STMT;
+            frame.children = new Object[]{((SelfOperationStmt) node).getSelfOperationExp()};
+        } else if(node instanceof VariableDeclareStmt) {
+            final VariableDeclareStmt stmt = (VariableDeclareStmt) node;
+            frame.kind = KIND_VARIABLE_DECLARE;
+            frame.payload = typeIndex(stmt.getType());
+            frame.op = stmt.isReadOnly() ? FLAG_READ_ONLY : 0;
+            frame.children = new Object[]{stmt.getVariableExp()};
+        } else if(node instanceof WhileStmt) {
+            final WhileStmt stmt = (WhileStmt) node;
+            frame.kind = KIND_WHILE;
+            frame.children = new Object[]{stmt.getCondition(), stmt.getBlockStmt()};
+        } else {
+            throw new IllegalArgumentException("No arena kind for " + node);
+        }
+    }
+
+    /**
+     * Number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getStmtCount() {
+        return statementCount;
+    }
+
+    /**
+     * Node of top level statement i.
+     */
+    public int getStmt(final int i) {
+        if(i < 0 || i >= statementCount) {
+            throw new IndexOutOfBoundsException("No statement " + i);
+        }
+        return statements[i];
+    }
+
+    public int kind(final int node) {
+        return kinds[node];
+    }
+
+    /**
+     * Ordinal of the operator enum of the node, e.g. AdditiveOp for KIND_ADDITIVE, or its flags.
+     */
+    public int op(final int node) {
+        return ops[node];
+    }
+
+    public boolean hasFlag(final int node, final int flag) {
+        return (ops[node] & flag) != 0;
+    }
+
+    public int payload(final int node) {
+        return payloads[node];
+    }
+
+    public int childCount(final int node) {
+        return childStarts[node + 1] - childStarts[node];
+    }
+
+    /**
+     * Child i of node, NONE when it is absent.
+     */
+    public int child(final int node, final int i) {
+        if(i < 0 || i >= childCount(node)) {
+            throw new IndexOutOfBoundsException("Node " + node + " has no child " + i);
+        }
+        return children[childStarts[node] + i];
+    }
+
+    /**
+     * Name of KIND_VARIABLE, string without interpolation of KIND_STRING.
+     */
+    public String string(final int node) {
+        return strings.get(payloads[node]);
+    }
+
+    /**
+     * Type of KIND_ASSIGN, KIND_VARIABLE_DECLARE, KIND_PARAMETER and KIND_FUNCTION_DECLARE, null when there is none.
+     */
+    public Type type(final int node) {
+        final int index = payloads[node];
+        return index == NONE ? null : types.get(index);
+    }
+
+    public Program toProgram() {
+        final List<Stmt> stmtList = new ArrayList<>(statementCount);
+        for(int i = 0; i < statementCount; i++) {
+            stmtList.add(toStmt(statements[i]));
+        }
+        return new Program(stmtList);
+    }
+
+    public Stmt toStmt(final int node) {
+        return (Stmt) toObject(node);
+    }
+
+    public Exp toExp(final int node) {
+        return (Exp) toObject(node);
+    }
+
+    // The subtree of node is the range from its leftmost leaf to node, its objects are made in that order
+    private Object toObject(final int node) {
+        int first = node;
+        boolean descend = true;
+        while(descend) {
+            descend = false;
+            for(int i = childStarts[first]; i < childStarts[first + 1]; i++) {
+                if(children[i] != NONE) {
+                    first = children[i];
+                    descend = true;
+                    break;
+                }
+            }
+        }
+        final Object[] objects = new Object[node - first + 1];
+        for(int n = first; n <= node; n++) {
+            objects[n - first] = newObject(n, objects, first);
+        }
+        return objects[node - first];
+    }
+
+    private Object childObject(final int node, final int i, final Object[] objects, final int first) {
+        final int child = children[childStarts[node] + i];
+        return child == NONE ? null : objects[child - first];
+    }
+
+    private <T> List<T> childList(final int node, final int from, final Object[] objects, final int first) {
+        if(hasFlag(node, FLAG_NULL_LIST)) {
+            return null;
+        }
+        final int count = childCount(node);
+        final List<T> list = new ArrayList<>(count - from);
+        for(int i = from; i < count; i++) {
+            @SuppressWarnings("unchecked")
+            final T element = (T) childObject(node, i, objects, first);
+            list.add(element);
+        }
+        return list;
+    }
+
+    // Keys of the KIND_PARAMETER children from from on, with their types
+    private <K> LinkedHashMap<K, Type> parameters(final int node, final int from, final Object[] objects, final int first) {
+        if(hasFlag(node, FLAG_NULL_LIST)) {
+            return null;
+        }
+        final LinkedHashMap<K, Type> parameters = new LinkedHashMap<>();
+        for(int i = from; i < childCount(node); i++) {
+            final int parameter = child(node, i);
+            @SuppressWarnings("unchecked")
+            final K key = (K) childObject(parameter, 0, objects, first);
+            parameters.put(key, type(parameter));
+        }
+        return parameters;
+    }
+
+    private Object newObject(final int node, final Object[] objects, final int first) {
+        switch (kinds[node]) {
+            case KIND_INT:
+                return new IntExp(payloads[node]);
+            case KIND_BOOLEAN:
+                return new BooleanExp(payloads[node] != 0);
+            case KIND_STRING: {
+                LinkedHashMap<Integer, Exp> interpolation = null;
+                if(!hasFlag(node, FLAG_NULL_LIST)) {
+                    interpolation = new LinkedHashMap<>();
+                    for(int i = 0; i < childCount(node); i++) {
+                        final int placeholder = child(node, i);
+                        interpolation.put(payloads[placeholder], (Exp) childObject(placeholder, 0, objects, first));
+                    }
+                }
+                return new StringExp(string(node), interpolation);
+            }
+            case KIND_PLACEHOLDER:
+            case KIND_PARAMETER:
+                return null;    // made by the parent
+            case KIND_VARIABLE:
+                return new VariableExp(string(node));
+            case KIND_ADDITIVE:
+                return new AdditiveExp((Exp) childObject(node, 0, objects, first),
+                        (Exp) childObject(node, 1, objects, first), ADDITIVE_OPS[ops[node]]);
+            case KIND_MULTIPLICATIVE:
+                return new MultiplicativeExp((Exp) childObject(node, 0, objects, first),
+                        (Exp) childObject(node, 1, objects, first), MULTIPLICATIVE_OPS[ops[node]]);
+            case KIND_COMPARABLE:
+                return new ComparableExp((Exp) childObject(node, 0, objects, first),
+                        (Exp) childObject(node, 1, objects, first), COMPARABLE_OPS[ops[node]]);
+            case KIND_BILOGICAL:
+                return new BiLogicalExp((Exp) childObject(node, 0, objects, first),
+                        (Exp) childObject(node, 1, objects, first), BILOGICAL_OPS[ops[node]]);
+            case KIND_NOT:
+                return new NotExp((Exp) childObject(node, 0, objects, first));
+            case KIND_ARRAY_WITH_INDEX:
+                return new ArrayWithIndexExp((VariableExp) childObject(node, 0, objects, first),
+                        (Exp) childObject(node, 1, objects, first));
+            case KIND_SELF_OPERATION:
+                return new SelfOperationExp((Variable) childObject(node, 0, objects, first),
+                        SELF_OPS[ops[node] & ~FLAG_PRE_ORDER], hasFlag(node, FLAG_PRE_ORDER));
+            case KIND_FUNCTION_INSTANCE:
+                return new FunctionInstanceExp((VariableExp) childObject(node, 0, objects, first),
+                        childList(node, 1, objects, first));
+            case KIND_ARRAY_OF:
+                return new ArrayOfExp(childList(node, 0, objects, first));
+            case KIND_MUTABLE_LIST_OF:
+                return new MutableListOfExp(childList(node, 0, objects, first));
+            case KIND_ARRAY:
+                return new ArrayExp((Exp) childObject(node, 0, objects, first),
+                        (LambdaExp) childObject(node, 1, objects, first));
+            case KIND_MUTABLE_LIST:
+                return new MutableListExp((Exp) childObject(node, 0, objects, first),
+                        (LambdaExp) childObject(node, 1, objects, first));
+            case KIND_LAMBDA:
+                return new LambdaExp(parameters(node, 1, objects, first), (Exp) childObject(node, 0, objects, first));
+            case KIND_RANGE:
+                return new RangeExp((Exp) childObject(node, 0, objects, first), (Exp) childObject(node, 1, objects, first));
+            case KIND_ASSIGN:
+                return new AssignStmt((Exp) childObject(node, 0, objects, first),
+                        (Variable) childObject(node, 1, objects, first), type(node),
+                        hasFlag(node, FLAG_READ_ONLY), hasFlag(node, FLAG_NEW));
+            case KIND_BLOCK:
+                return new BlockStmt(childList(node, 0, objects, first));
+            case KIND_COMPOUND_ASSIGN:
+                return new CompoundAssignStmt((Exp) childObject(node, 0, objects, first),
+                        (Variable) childObject(node, 1, objects, first), COMPOUND_ASSIGN_OPS[ops[node]]);
+            case KIND_BREAK:
+                return ControlLoopStmt.STMT_BREAK;
+            case KIND_CONTINUE:
+                return ControlLoopStmt.STMT_CONTINUE;
+            case KIND_FOR_ARRAY:
+                return new ForStmt((VariableExp) childObject(node, 0, objects, first),
+                        (VariableExp) childObject(node, 1, objects, first), (BlockStmt) childObject(node, 2, objects, first));
+            case KIND_FOR_RANGE:
+                return new ForStmt((VariableExp) childObject(node, 0, objects, first),
+                        (RangeExp) childObject(node, 1, objects, first), (Exp) childObject(node, 2, objects, first),
+                        (BlockStmt) childObject(node, 3, objects, first));
+            case KIND_FUNCTION_DECLARE:
+                return new FunctionDeclareStmt((VariableExp) childObject(node, 0, objects, first), type(node),
+                        parameters(node, 2, objects, first), (BlockStmt) childObject(node, 1, objects, first));
+            case KIND_FUNCTION_INSTANCE_STMT:
+                return new FunctionInstanceStmt((FunctionInstanceExp) childObject(node, 0, objects, first));
+            case KIND_IF:
+                return new IfStmt((Exp) childObject(node, 0, objects, first),
+                        (BlockStmt) childObject(node, 1, objects, first), (BlockStmt) childObject(node, 2, objects, first));
+            case KIND_PRINT:
+                return new PrintStmt((Exp) childObject(node, 0, objects, first));
+            case KIND_PRINTLN:
+                return new PrintlnStmt((Exp) childObject(node, 0, objects, first));
+            case KIND_RETURN:
+                return new ReturnStmt((Exp) childObject(node, 0, objects, first));
+            case KIND_SELF_OPERATION_STMT:
+                return new SelfOperationStmt((SelfOperationExp) childObject(node, 0, objects, first));
+            case KIND_VARIABLE_DECLARE:
+                return new VariableDeclareStmt((VariableExp) childObject(node, 0, objects, first), type(node),
+                        hasFlag(node, FLAG_READ_ONLY));
+            case KIND_WHILE:
+                return new WhileStmt((Exp) childObject(node, 0, objects, first), (BlockStmt) childObject(node, 1, objects, first));
+            default:
+                throw new IllegalStateException("Unknown kind " + kinds[node] + " of node " + node);
+        }
+    }
+}
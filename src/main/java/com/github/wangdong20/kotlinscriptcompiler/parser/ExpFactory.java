@@ -0,0 +1,90 @@
+package com.github.wangdong20.kotlinscriptcompiler.parser;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.BooleanExp;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.Exp;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.IntExp;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.VariableExp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical expressions for Parser. Equal leaves, variables and Int and Boolean literals, are one shared instance.
+ * With shareSubtrees, so are equal expressions of operators, !, indexing and ranges, each one is looked up once
+ * its operands are canonical, so equal subtrees are found bottom up in one step each.
+ * All of these are immutable and cache their hash code, so sharing changes nothing but memory, and map lookups
+ * keyed by them, e.g. variables in Typechecker and CodeGenerator, find the very same key.
+ * Subtrees are not shared by default: a pass keeping a side table by node identity would see one node
+ * where the source has several. Not thread safe, every Parser has its own.
+ */
+public class ExpFactory {
+    private static final int SMALL_INT_MIN = -128;
+    private static final int SMALL_INT_MAX = 1023;
+    private static final IntExp[] SMALL_INTS = new IntExp[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+    private static final BooleanExp TRUE = new BooleanExp(true);
+    private static final BooleanExp FALSE = new BooleanExp(false);
+
+    static {
+        for(int i = 0; i < SMALL_INTS.length; i++) {
+            SMALL_INTS[i] = new IntExp(SMALL_INT_MIN + i);
+        }
+    }
+
+    private final boolean shareSubtrees;
+    private final Map<String, VariableExp> variables;
+    private final Map<Integer, IntExp> ints;    // other than the small ones
+    private final Map<Exp, Exp> subtrees;
+
+    public ExpFactory(final boolean shareSubtrees) {
+        this.shareSubtrees = shareSubtrees;
+        this.variables = new HashMap<>();
+        this.ints = new HashMap<>();
+        this.subtrees = new HashMap<>();
+    }
+
+    public boolean isShareSubtrees() {
+        return shareSubtrees;
+    }
+
+    public VariableExp variable(final String name) {
+        VariableExp variable = variables.get(name);
+        if(variable == null) {
+            variable = new VariableExp(name);
+            variables.put(name, variable);
+        }
+        return variable;
+    }
+
+    public IntExp intExp(final int value) {
+        if(value >= SMALL_INT_MIN && value <= SMALL_INT_MAX) {
+            return SMALL_INTS[value - SMALL_INT_MIN];
+        }
+        IntExp intExp = ints.get(value);
+        if(intExp == null) {
+            intExp = new IntExp(value);
+            ints.put(value, intExp);
+        }
+        return intExp;
+    }
+
+    public BooleanExp booleanExp(final boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * The instance equal to exp seen first, exp itself when subtrees are not shared.
+     * Only for expressions which are immutable and cache their hash code.
+     */
+    public <T extends Exp> T share(final T exp) {
+        if(!shareSubtrees) {
+            return exp;
+        }
+        final Exp canonical = subtrees.putIfAbsent(exp, exp);
+        if(canonical == null) {
+            return exp;
+        }
+        @SuppressWarnings("unchecked")
+        final T shared = (T) canonical;
+        return shared;
+    }
+}
@@ -9,13 +9,72 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Parser {
+    private static final int INITIAL_WINDOW_SIZE = 256;
+    private static final int BATCH_TOKENS = 4096;     // tokens of function declarations parsed by one parallel task
 
-    private final Token[] tokens;
+    // Positions are absolute, tokens[i] holds the token at position tokensStart + i.
+    // With a TokenSource, tokens is only a window: tokens are pulled when needed and dropped
+    // once a top level statement is parsed, so memory stays bounded for big programs.
+    private Token[] tokens;
+    private int tokensStart;
+    private int tokensEnd;
+    private final TokenSource source;     // null when all tokens are given up front
+    private final PackedTokenBuffer packed;     // when not null tokens are read from it instead of tokens
+    private ExpFactory expFactory = new ExpFactory(false);
+
+    // Stacks of parseExpression, kept to not allocate them for every expression
+    private final List<ExpFrame> frames = new ArrayList<>();
+    private final List<Exp> operands = new ArrayList<>();
+    private final List<Token> operators = new ArrayList<>();
 
     public Parser(final Token[] tokens) {
         this.tokens = tokens;
+        this.tokensStart = 0;
+        this.tokensEnd = tokens.length;
+        this.source = null;
+        this.packed = null;
+    }
+
+    public Parser(final TokenSource source) {
+        this.tokens = new Token[INITIAL_WINDOW_SIZE];
+        this.tokensStart = 0;
+        this.tokensEnd = 0;
+        this.source = source;
+        this.packed = null;
+    }
+
+    /**
+     * Reads the tokens in place from the packed buffer, nothing is copied per token.
+     */
+    public Parser(final PackedTokenBuffer packed) {
+        this.tokens = null;
+        this.tokensStart = 0;
+        this.tokensEnd = packed.size();
+        this.source = null;
+        this.packed = packed;
+    }
+
+    // Parser over the same tokens, to parse a part of the program on another thread. Tokens are only read.
+    private Parser(final Parser parent) {
+        this.tokens = parent.tokens;
+        this.tokensStart = parent.tokensStart;
+        this.tokensEnd = parent.tokensEnd;
+        this.source = null;
+        this.packed = parent.packed;
+        this.expFactory = new ExpFactory(parent.expFactory.isShareSubtrees());
+    }
+
+    /**
+     * Whether equal subtrees of operators, !, indexing and ranges become one shared instance, see ExpFactory.
+     * Off by default, equal leaves are always shared.
+     */
+    public void setShareSubtrees(final boolean shareSubtrees) {
+        this.expFactory = new ExpFactory(shareSubtrees);
     }
 
     private class ParseResult<A> {
@@ -32,189 +91,358 @@ public class Parser {
         final Token tokenHere = readToken(position);
         if (!tokenHere.equals(token)) {
             throw new ParseException("Expected: " + token.toString() +
-                    "\nReceived: " + tokens[position].toString());
+                    "\nReceived: " + tokenHere.toString());
         }
     }
 
-    private Token checkTokenIsOr(final int position, final Token... token) throws ParseException {
-        for(Token t : token) {
-            final Token tokenHere = readToken(position);
-            if (tokenHere.equals(t)) {
-               return t;
-            }
+    private Token checkTokenIsOr(final int position, final Token first, final Token second) throws ParseException {
+        final Token tokenHere = readToken(position);
+        if (tokenHere.equals(first)) {
+            return first;
+        } else if (tokenHere.equals(second)) {
+            return second;
         }
-        throw new ParseException("Expected: " + Arrays.toString(token) +
-                "\nReceived: " + tokens[position].toString());
+        throw new ParseException("Expected: " + Arrays.toString(new Token[]{first, second}) +
+                "\nReceived: " + tokenHere.toString());
+    }
+
+    // Token at position or null at the end of tokens, for deciding by lookahead without exceptions.
+    private Token tokenAt(final int position) throws ParseException {
+        return hasTokenAt(position) ? readToken(position) : null;
     }
 
     private Token readToken(final int position) throws ParseException {
-        if (position < tokens.length) {
-            return tokens[position];
+        if (hasTokenAt(position)) {
+            return packed != null ? packed.token(position) : tokens[position - tokensStart];
         } else {
             throw new ParseException("Position out of bounds: " + position);
         }
     } // readToken
 
-    private ParseResult<Exp> parseAdditiveExpHelper(final int startPos, final Exp leftExp) {
-        int curPos = startPos;
-        Exp resultExp = leftExp;
-
-        while(curPos < tokens.length) {
-            try {
-                Token t = checkTokenIsOr(curPos, BinopToken.TK_PLUS, BinopToken.TK_MINUS);
-                final ParseResult<Exp> curPrimary = parseNotExp(curPos + 1);
-                curPos = curPrimary.nextPos;
-                resultExp = new AdditiveExp(resultExp, curPrimary.result, (t == BinopToken.TK_PLUS) ? AdditiveOp.EXP_PLUS :
-                        AdditiveOp.EXP_MINUS);
-            } catch (ParseException e) {
-                break;
+    private boolean hasTokenAt(final int position) throws ParseException {
+        while (position >= tokensEnd) {
+            if (!pullToken()) {
+                return false;
             }
         }
-        return new ParseResult<>(resultExp, curPos);
+        return true;
     }
 
-    private ParseResult<Exp> parseMultiplicativeExpHelper(final int startPos, final Exp leftExp) {
-        int curPos = startPos;
-        Exp resultExp = leftExp;
-        MultiplicativeOp op = null;
+    private boolean isEnd(final int position) throws ParseException {
+        return !hasTokenAt(position);
+    }
 
-        while(curPos < tokens.length) {
-            try {
-                Token t = checkTokenIsOr(curPos, BinopToken.TK_MULTIPLY, BinopToken.TK_DIVIDE, BinopToken.TK_MOD);
-                final ParseResult<Exp> curPrimary = parsePrimary(curPos + 1);
-                curPos = curPrimary.nextPos;
-                switch ((BinopToken)t) {
-                    case TK_MULTIPLY:
-                        op = MultiplicativeOp.OP_MULTIPLY;
-                        break;
-                    case TK_DIVIDE:
-                        op = MultiplicativeOp.OP_DIVIDE;
-                        break;
-                    case TK_MOD:
-                        op = MultiplicativeOp.OP_MOD;
-                        break;
-                }
-                resultExp = new MultiplicativeExp(resultExp, curPrimary.result, op);
-            } catch (ParseException e) {
-                break;
-            }
+    // Read one more token from source into the window, false when source is used up.
+    private boolean pullToken() throws ParseException {
+        if (source == null) {
+            return false;
+        }
+        final Token token;
+        try {
+            token = source.nextToken();
+        } catch (TokenizerException e) {
+            throw new ParseException(e.getMessage());
+        }
+        if (token == null) {
+            return false;
         }
+        if (tokensEnd - tokensStart == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
+        }
+        tokens[tokensEnd - tokensStart] = token;
+        tokensEnd++;
+        return true;
+    }
 
-        return new ParseResult<>(resultExp, curPos);
+    // Tokens before position will never be read again, drop them from the window.
+    private void releaseTokensBefore(final int position) {
+        if (source != null && position > tokensStart) {
+            final int drop = Math.min(position, tokensEnd) - tokensStart;
+            System.arraycopy(tokens, drop, tokens, 0, tokensEnd - tokensStart - drop);
+            Arrays.fill(tokens, tokensEnd - tokensStart - drop, tokensEnd - tokensStart, null);
+            tokensStart += drop;
+        }
     }
 
-    private ParseResult<Exp> parseAdditiveExp(final int startPos, Exp resultExp) {
-        return parseAdditiveExpHelper(startPos, resultExp);
+    // Operators of expressions by how tight they bind, higher binds tighter. ! only takes a multiplicative term,
+    // so !a * b is !(a * b) but !a + b is (!a) + b.
+    private static final int PRECEDENCE_NONE = -1;
+    private static final int PRECEDENCE_OR = 0;
+    private static final int PRECEDENCE_AND = 1;
+    private static final int PRECEDENCE_COMPARABLE = 2;
+    private static final int PRECEDENCE_ADDITIVE = 3;
+    private static final int PRECEDENCE_NOT = 4;
+    private static final int PRECEDENCE_MULTIPLICATIVE = 5;
+
+    private static final int[] BINOP_PRECEDENCE = new int[BinopToken.values().length];     // by ordinal
+
+    static {
+        Arrays.fill(BINOP_PRECEDENCE, PRECEDENCE_NONE);
+        BINOP_PRECEDENCE[BinopToken.TK_OR.ordinal()] = PRECEDENCE_OR;
+        BINOP_PRECEDENCE[BinopToken.TK_AND.ordinal()] = PRECEDENCE_AND;
+        for(BinopToken token : new BinopToken[]{BinopToken.TK_LESS_THAN, BinopToken.TK_GREATER_THAN,
+                BinopToken.TK_LESS_OR_EQUAL, BinopToken.TK_GREATER_OR_EQUAL, BinopToken.TK_EQUAL_EQUAL,
+                BinopToken.TK_NOT_EQUAL}) {
+            BINOP_PRECEDENCE[token.ordinal()] = PRECEDENCE_COMPARABLE;
+        }
+        BINOP_PRECEDENCE[BinopToken.TK_PLUS.ordinal()] = PRECEDENCE_ADDITIVE;
+        BINOP_PRECEDENCE[BinopToken.TK_MINUS.ordinal()] = PRECEDENCE_ADDITIVE;
+        BINOP_PRECEDENCE[BinopToken.TK_MULTIPLY.ordinal()] = PRECEDENCE_MULTIPLICATIVE;
+        BINOP_PRECEDENCE[BinopToken.TK_DIVIDE.ordinal()] = PRECEDENCE_MULTIPLICATIVE;
+        BINOP_PRECEDENCE[BinopToken.TK_MOD.ordinal()] = PRECEDENCE_MULTIPLICATIVE;
     }
 
-    private ParseResult<Exp> parseMultiplicative(final int startPos) throws ParseException {
-        final ParseResult<Exp> starting = parsePrimary(startPos);
-        Exp resultExp = starting.result;
-        return parseMultiplicativeExpHelper(starting.nextPos, resultExp);
+    private static int precedenceOf(final Token token) {
+        if(token instanceof BinopToken) {
+            return BINOP_PRECEDENCE[((BinopToken) token).ordinal()];
+        } else if(token == UnopToken.TK_NOT) {
+            return PRECEDENCE_NOT;
+        }
+        return PRECEDENCE_NONE;
     }
 
-    private ParseResult<Exp> parseNotExp(final int startPos) throws ParseException {
-        Token t = readToken(startPos);
-        if(t == UnopToken.TK_NOT) {
-            ParseResult<Exp> result = parseMultiplicative(startPos + 1);
-            Exp resultExp = new NotExp(result.result);
-            return new ParseResult<>(resultExp, result.nextPos);
-        } else {
-            return parseMultiplicative(startPos);
+    private Exp binaryExp(final Token op, final Exp left, final Exp right) {
+        switch ((BinopToken)op) {
+            case TK_PLUS:
+                return expFactory.share(new AdditiveExp(left, right, AdditiveOp.EXP_PLUS));
+            case TK_MINUS:
+                return expFactory.share(new AdditiveExp(left, right, AdditiveOp.EXP_MINUS));
+            case TK_MULTIPLY:
+                return expFactory.share(new MultiplicativeExp(left, right, MultiplicativeOp.OP_MULTIPLY));
+            case TK_DIVIDE:
+                return expFactory.share(new MultiplicativeExp(left, right, MultiplicativeOp.OP_DIVIDE));
+            case TK_MOD:
+                return expFactory.share(new MultiplicativeExp(left, right, MultiplicativeOp.OP_MOD));
+            case TK_GREATER_THAN:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_GREATER_THAN));
+            case TK_LESS_THAN:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_LESS_THAN));
+            case TK_GREATER_OR_EQUAL:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_GREATER_EQUAL));
+            case TK_LESS_OR_EQUAL:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_LESS_EQUAL));
+            case TK_EQUAL_EQUAL:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_EQUAL_EQUAL));
+            case TK_NOT_EQUAL:
+                return expFactory.share(new ComparableExp(left, right, ComparableOp.OP_NOT_EQUAL));
+            case TK_AND:
+                return expFactory.share(new BiLogicalExp(left, right, BiLogicalOp.OP_AND));
+            case TK_OR:
+                return expFactory.share(new BiLogicalExp(left, right, BiLogicalOp.OP_OR));
+            default:
+                throw new IllegalArgumentException("Not an operator of expressions: " + op);
         }
     }
 
-    private ParseResult<Exp> parseComparableExp(final int startPos, Exp leftExp) throws ParseException{
-//        int curPos = startPos;
-        ParseResult<Exp> result = null;
-        ComparableOp op = null;
+    // Pops the operators of the current expression binding at least as tight as precedence and builds their
+    // expressions, so operators of the same precedence group to the left.
+    private void reduce(final List<Exp> operands, final List<Token> operators, final int operatorBase,
+                               final int precedence) {
+        while(operators.size() > operatorBase) {
+            final Token op = operators.get(operators.size() - 1);
+            if(precedenceOf(op) < precedence) {
+                break;
+            }
+            operators.remove(operators.size() - 1);
+            final Exp right = operands.remove(operands.size() - 1);
+            if(op == UnopToken.TK_NOT) {
+                operands.add(expFactory.share(new NotExp(right)));
+            } else {
+                final Exp left = operands.remove(operands.size() - 1);
+                operands.add(binaryExp(op, left, right));
+            }
+        }
+    }
 
-        if(startPos < tokens.length) {
-            try {
-                Token t = checkTokenIsOr(startPos, BinopToken.TK_GREATER_THAN, BinopToken.TK_LESS_THAN,
-                        BinopToken.TK_GREATER_OR_EQUAL, BinopToken.TK_LESS_OR_EQUAL, BinopToken.TK_EQUAL_EQUAL,
-                        BinopToken.TK_NOT_EQUAL);
+    private static SelfOp selfOp(final Token token) {
+        return token == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE;
+    }
 
-                switch ((BinopToken)t) {
-                    case TK_GREATER_THAN:
-                        op = ComparableOp.OP_GREATER_THAN;
-                        break;
-                    case TK_LESS_THAN:
-                        op = ComparableOp.OP_LESS_THAN;
-                        break;
-                    case TK_GREATER_OR_EQUAL:
-                        op = ComparableOp.OP_GREATER_EQUAL;
-                        break;
-                    case TK_LESS_OR_EQUAL:
-                        op = ComparableOp.OP_LESS_EQUAL;
-                        break;
-                    case TK_EQUAL_EQUAL:
-                        op = ComparableOp.OP_EQUAL_EQUAL;
-                        break;
-                    case TK_NOT_EQUAL:
-                        op = ComparableOp.OP_NOT_EQUAL;
-                        break;
-                }
-                result =  parseNotExp(startPos + 1);
-                if(result.nextPos - startPos >= 1) {    // at least parse primary
-                    result = parseAdditiveExp(result.nextPos, result.result);
-                }
+    private static final int FRAME_EXP = 0;             // whole expression
+    private static final int FRAME_PRIMARY = 1;         // whole expression, only one primary
+    private static final int FRAME_PAREN = 2;           // ( exp )
+    private static final int FRAME_INDEX = 3;           // array[exp] and array[exp]++
+    private static final int FRAME_PREFIX_INDEX = 4;    // ++array[exp]
 
-            } catch (ParseException e) {
-                if(op != null) {
-                    throw new ParseException("Unable to parse right value in comparable expression!");
-                }
-            }
-        }
-        if(result == null || result.nextPos - startPos < 1) {    // at least parse primary
-            return new ParseResult<>(leftExp, startPos);
-        } else {
-            return new ParseResult<>(new ComparableExp(leftExp, result.result, op), result.nextPos);
+    // An expression being parsed, the nested ones are kept on a stack instead of the call stack.
+    private static class ExpFrame {
+        private final int kind;
+        private final int startPos;
+        private final int operatorBase;     // operators below belong to enclosing expressions
+        private final VariableExp array;    // FRAME_INDEX and FRAME_PREFIX_INDEX
+        private final SelfOp selfOp;        // FRAME_PREFIX_INDEX
+        private boolean compared;           // comparison since the last && or ||, comparisons do not chain
+
+        private ExpFrame(final int kind, final int startPos, final int operatorBase,
+                         final VariableExp array, final SelfOp selfOp) {
+            this.kind = kind;
+            this.startPos = startPos;
+            this.operatorBase = operatorBase;
+            this.array = array;
+            this.selfOp = selfOp;
+            this.compared = false;
         }
     }
 
-    private ParseResult<Exp> parseBilogicalExp(final int startPos, Exp leftExp) throws ParseException{
-        int curPos = startPos;
-        ParseResult<Exp> result = null;
-        BiLogicalOp op = null;
+    private static final int STATE_START = 0;       // first token of an expression
+    private static final int STATE_PRIMARY = 1;     // expecting an operand
+    private static final int STATE_OPERATOR = 2;    // after an operand, expecting an operator or the end
+    private static final int STATE_END = 3;         // expression done, its value is in value
 
-        while(curPos < tokens.length) {
-            try {
-                Token t = checkTokenIsOr(curPos, BinopToken.TK_AND, BinopToken.TK_OR);
+    /**
+     * Precedence climbing with explicit operand and operator stacks. Parentheses and array indexes push a frame
+     * instead of recursing, so neither nesting nor long operator chains are limited by the call stack, and every
+     * token is looked at a constant number of times.
+     */
+    private ParseResult<Exp> parseExpression(final int startPos, final boolean primaryOnly) throws ParseException {
+        // the stacks are shared with the expressions parsed inside this one, e.g. in a lambda,
+        // everything above the sizes at the start belongs to this call
+        final int framesBase = frames.size();
+        final int operandsBase = operands.size();
+        final int operatorsBase = operators.size();
+        try {
+            return parseExpression(startPos, primaryOnly, operatorsBase);
+        } finally {
+            frames.subList(framesBase, frames.size()).clear();
+            operands.subList(operandsBase, operands.size()).clear();
+            operators.subList(operatorsBase, operators.size()).clear();
+        }
+    }
 
-                switch ((BinopToken)t) {
-                    case TK_AND:
-                        op = BiLogicalOp.OP_AND;
-                        break;
-                    case TK_OR:
-                        op = BiLogicalOp.OP_OR;
+    private ParseResult<Exp> parseExpression(final int startPos, final boolean primaryOnly, final int operatorsBase)
+            throws ParseException {
+        ExpFrame frame = new ExpFrame(primaryOnly ? FRAME_PRIMARY : FRAME_EXP, startPos, operatorsBase, null, null);
+        int state = primaryOnly ? STATE_PRIMARY : STATE_START;
+        int pos = startPos;
+        Exp value = null;
+
+        while(true) {
+            switch (state) {
+                case STATE_START: {
+                    final Token tokenHere = readToken(pos);
+                    if(tokenHere == KeywordToken.TK_ARRAY_OF || tokenHere == KeywordToken.TK_MUTABLE_LIST_OF ||
+                            tokenHere == TypeToken.TK_ARRAY || tokenHere == TypeToken.TK_MUTABLE_LIST ||
+                            tokenHere == BracketsToken.TK_LCURLY) {
+                        final ParseResult<Exp> result = parseCollectionOrLambdaExp(tokenHere, pos);
+                        value = result.result;
+                        pos = result.nextPos;
+                        state = STATE_END;
+                    } else {
+                        if(tokenHere == UnopToken.TK_NOT) {
+                            operators.add(tokenHere);
+                            pos++;
+                        }
+                        state = STATE_PRIMARY;
+                    }
+                    break;
+                }
+                case STATE_PRIMARY: {
+                    final Token tokenHere = readToken(pos);
+                    if(tokenHere == BracketsToken.TK_LPAREN) {
+                        frames.add(frame);
+                        frame = new ExpFrame(FRAME_PAREN, pos + 1, operators.size(), null, null);
+                        pos++;
+                        state = STATE_START;
+                    } else if(tokenHere instanceof VariableToken && hasTokenAt(pos + 1) &&
+                            readToken(pos + 1) == BracketsToken.TK_LBRACKET) {
+                        frames.add(frame);
+                        frame = new ExpFrame(FRAME_INDEX, pos + 2, operators.size(),
+                                expFactory.variable(((VariableToken) tokenHere).getName()), null);
+                        pos += 2;
+                        state = STATE_START;
+                    } else if((tokenHere == UnopToken.TK_PLUS_PLUS || tokenHere == UnopToken.TK_MINUS_MINUS) &&
+                            hasTokenAt(pos + 1) && readToken(pos + 1) instanceof VariableToken &&
+                            hasTokenAt(pos + 2) && readToken(pos + 2) == BracketsToken.TK_LBRACKET) {
+                        frames.add(frame);
+                        frame = new ExpFrame(FRAME_PREFIX_INDEX, pos + 3, operators.size(),
+                                expFactory.variable(((VariableToken) readToken(pos + 1)).getName()), selfOp(tokenHere));
+                        pos += 3;
+                        state = STATE_START;
+                    } else {
+                        final ParseResult<Exp> result = parseSimplePrimary(tokenHere, pos);
+                        operands.add(result.result);
+                        pos = result.nextPos;
+                        state = STATE_OPERATOR;
+                    }
+                    break;
+                }
+                case STATE_OPERATOR: {
+                    final Token op = frame.kind == FRAME_PRIMARY ? null : tokenAt(pos);
+                    int precedence = precedenceOf(op);
+                    if(op == UnopToken.TK_NOT || (precedence == PRECEDENCE_COMPARABLE && frame.compared) ||
+                            (pos == frame.startPos && precedence != PRECEDENCE_MULTIPLICATIVE)) {
+                        // ! is no binary operator, comparisons do not chain, and an expression without
+                        // even a primary ends right away
+                        precedence = PRECEDENCE_NONE;
+                    }
+                    reduce(operands, operators, frame.operatorBase, precedence);
+                    if(precedence == PRECEDENCE_NONE) {
+                        value = operands.remove(operands.size() - 1);
+                        state = STATE_END;
                         break;
+                    }
+                    operators.add(op);
+                    pos++;
+                    if(precedence == PRECEDENCE_COMPARABLE) {
+                        frame.compared = true;
+                    } else if(precedence <= PRECEDENCE_AND) {
+                        frame.compared = false;
+                    }
+                    if(precedence != PRECEDENCE_MULTIPLICATIVE && readToken(pos) == UnopToken.TK_NOT) {
+                        operators.add(UnopToken.TK_NOT);
+                        pos++;
+                    }
+                    state = STATE_PRIMARY;
+                    break;
                 }
-                result =  parseNotExp(curPos + 1);
-                if(result.nextPos - startPos >= 1) {    // at least parse primary
-                    result = parseAdditiveExp(result.nextPos, result.result);
-                    result = parseComparableExp(result.nextPos, result.result);
+                case STATE_END: {
+                    switch (frame.kind) {
+                        case FRAME_PAREN:
+                            checkTokenIs(pos, BracketsToken.TK_RPAREN);
+                            pos++;
+                            break;
+                        case FRAME_INDEX:
+                            checkTokenIs(pos, BracketsToken.TK_RBRACKET);
+                            pos++;
+                            final ArrayWithIndexExp element = expFactory.share(new ArrayWithIndexExp(frame.array, value));
+                            value = element;
+                            if(hasTokenAt(pos)) {
+                                final Token next = readToken(pos);
+                                if(next == UnopToken.TK_PLUS_PLUS || next == UnopToken.TK_MINUS_MINUS) {
+                                    value = new SelfOperationExp(element, selfOp(next), false);
+                                    pos++;
+                                }
+                            }
+                            break;
+                        case FRAME_PREFIX_INDEX:
+                            checkTokenIs(pos, BracketsToken.TK_RBRACKET);
+                            pos++;
+                            value = new SelfOperationExp(expFactory.share(new ArrayWithIndexExp(frame.array, value)), frame.selfOp, true);
+                            break;
+                        default:
+                            return new ParseResult<>(value, pos);
+                    }
+                    frame = frames.remove(frames.size() - 1);
+                    operands.add(value);
+                    state = STATE_OPERATOR;
+                    break;
                 }
-                curPos = result.nextPos;
-            } catch (ParseException e) {
-                break;
             }
         }
-        if(result == null || result.nextPos - startPos < 1) {    // at least parse primary
-            return new ParseResult<>(leftExp, startPos);
-        } else {
-            return new ParseResult<>(new BiLogicalExp(leftExp, result.result, op), result.nextPos);
-        }
     }
 
     private ParseResult<Exp> parsePrimary(final int startPos) throws ParseException {
-        final Token tokenHere = readToken(startPos);
+        return parseExpression(startPos, true);
+    }
+
+    // Primaries without a nested expression, null without moving on when the token starts no primary
+    private ParseResult<Exp> parseSimplePrimary(final Token tokenHere, final int startPos) throws ParseException {
         // We will consider variable or function variable instance as primary
         if (tokenHere instanceof VariableToken) {
             final VariableToken asVar = (VariableToken)tokenHere;
-            if(startPos + 1 < tokens.length) {  // we dont want throw exception now.
+            if(hasTokenAt(startPos + 1)) {  // we dont want throw exception now.
                 Token next = readToken(startPos + 1);
-                VariableExp name = new VariableExp(asVar.getName());
+                VariableExp name = expFactory.variable(asVar.getName());
 
                 if(next == BracketsToken.TK_LPAREN) {
                     Token temp;
@@ -222,13 +450,13 @@ public class Parser {
                     List<Exp> parameterList = new ArrayList<>();
                     while((temp = readToken(pos)) != BracketsToken.TK_RPAREN) {
                         if(temp instanceof VariableToken) {
-                            parameterList.add(new VariableExp(((VariableToken) temp).getName()));
+                            parameterList.add(expFactory.variable(((VariableToken) temp).getName()));
                         } else if(temp instanceof IntToken) {
-                            parameterList.add(new IntExp(((IntToken) temp).getValue()));
+                            parameterList.add(expFactory.intExp(((IntToken) temp).getValue()));
                         } else if(temp instanceof StringToken) {
                             parameterList.add(parseString(temp, pos).result);
                         } else if(temp == KeywordToken.TK_TRUE || temp == KeywordToken.TK_FALSE) {
-                            parameterList.add(new BooleanExp(temp == KeywordToken.TK_TRUE));
+                            parameterList.add(expFactory.booleanExp(temp == KeywordToken.TK_TRUE));
                         } else {
                             throw new ParseException("Unsupport function parameter!");
                         }
@@ -242,144 +470,59 @@ public class Parser {
                     checkTokenIs(pos, BracketsToken.TK_RPAREN);
                     return new ParseResult<>(new FunctionInstanceExp(name, parameterList), pos + 1);
                 } else if(next == UnopToken.TK_PLUS_PLUS || next == UnopToken.TK_MINUS_MINUS) {
-                    return new ParseResult<>(new SelfOperationExp(name,
-                            next == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
-                            false), startPos + 2);
-                } else if(next == BracketsToken.TK_LBRACKET) {  // array with index case
-                    int pos = startPos + 2;
-                    ParseResult<Exp> result = parseExp(pos);
-                    pos = result.nextPos;
-                    checkTokenIs(pos, BracketsToken.TK_RBRACKET);
-                    pos++;
-                    if(pos < tokens.length) {
-                        Token temp = readToken(pos);
-                        if (temp == UnopToken.TK_PLUS_PLUS || temp == UnopToken.TK_MINUS_MINUS) {
-                            pos++;
-                            return new ParseResult<>(new SelfOperationExp(new ArrayWithIndexExp(name, result.result),
-                                    temp == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
-                                    false), pos);
-                        } else {
-                            return new ParseResult<>(new ArrayWithIndexExp(name, result.result), pos);
-                        }
-                    }
-                    return new ParseResult<>(new ArrayWithIndexExp(name, result.result), pos);
-                }
-                else {
-                    return new ParseResult<>(new VariableExp(asVar.getName()), startPos + 1);
+                    return new ParseResult<>(new SelfOperationExp(name, selfOp(next), false), startPos + 2);
+                } else {
+                    return new ParseResult<>(name, startPos + 1);
                 }
             }
-            return new ParseResult<>(new VariableExp(asVar.getName()), startPos + 1);
+            return new ParseResult<>(expFactory.variable(asVar.getName()), startPos + 1);
         } else if(tokenHere instanceof IntToken) {
             final IntToken asInt = (IntToken) tokenHere;
-            return new ParseResult<>(new IntExp(asInt.getValue()), startPos + 1);
+            return new ParseResult<>(expFactory.intExp(asInt.getValue()), startPos + 1);
         } else if(tokenHere instanceof StringToken) {
             return parseString(tokenHere, startPos);
         } else if(tokenHere == KeywordToken.TK_TRUE || tokenHere == KeywordToken.TK_FALSE) {
             if(tokenHere == KeywordToken.TK_TRUE) {
-                return new ParseResult<>(new BooleanExp(true),startPos + 1);
+                return new ParseResult<>(expFactory.booleanExp(true),startPos + 1);
             } else {
-                return new ParseResult<>(new BooleanExp(false), startPos + 1);
+                return new ParseResult<>(expFactory.booleanExp(false), startPos + 1);
             }
         } else if(tokenHere == UnopToken.TK_PLUS_PLUS || tokenHere == UnopToken.TK_MINUS_MINUS) {
-            if(startPos + 1 < tokens.length) {
+            if(hasTokenAt(startPos + 1)) {
                 Token next = readToken(startPos + 1);
                 if(next instanceof VariableToken) {
-                    if(startPos + 2 < tokens.length) {
-                        int pos = startPos + 2;
-                        if(readToken(pos) == BracketsToken.TK_LBRACKET) {   // array with index case
-                            pos++;
-                            ParseResult<Exp> result = parseExp(pos);
-                            pos = result.nextPos;
-                            checkTokenIs(pos, BracketsToken.TK_RBRACKET);
-                            pos++;
-                            return new ParseResult<>(new SelfOperationExp(new ArrayWithIndexExp(new VariableExp(((VariableToken) next).getName()), result.result),
-                                    tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
-                                    true), pos);
-                        }
-                    }
-                    return new ParseResult<>(new SelfOperationExp(new VariableExp(((VariableToken) next).getName()),
-                            tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
-                            true), startPos + 2);
+                    return new ParseResult<>(new SelfOperationExp(expFactory.variable(((VariableToken) next).getName()),
+                            selfOp(tokenHere), true), startPos + 2);
                 } else {
                     throw new ParseException("VariableToken expected after self increase or decrease operator!");
                 }
             } else {
                 throw new ParseException("VariableToken expected after self increase or decrease operator!");
             }
-        } else if(tokenHere == BracketsToken.TK_LPAREN){
-            final ParseResult<Exp> inner = parseExp(startPos + 1);
-            checkTokenIs(inner.nextPos, BracketsToken.TK_RPAREN);
-            return new ParseResult<>(inner.result,
-                    inner.nextPos + 1);
         } else {
             return new ParseResult<>(null, startPos);
         }
     }
 
     private ParseResult<Exp> parseString(final Token token, final int startPos) throws ParseException {
-        String value = ((StringToken)token).getValue();
-        String temp = value;
-        int index = 0;
-        int location = 0;
-        LinkedHashMap<Integer, Exp> map = new LinkedHashMap<>();
-        int length = value.length();
-        String interpolation = "";
-        boolean isBlockInterpolation = false;
-
-        while(index < value.length()) {
-            if(value.charAt(index) == '$') {
-                if(index + 1 < length && value.charAt(index + 1) == '{') {
-                    index += 2;
-                    for(int i = index; i < length; i++) {
-                        if(value.charAt(i) == '}') {
-                            isBlockInterpolation = true;
-                            break;
-                        }
-                    }
-                    if(isBlockInterpolation) {
-                        while (index < value.length() && value.charAt(index) != '}') {
-                            interpolation += value.charAt(index);
-                            index++;
-                        }
-                        index++;
-//                        location++;
-                    } else {
-                        throw new ParseException("Invalid string interpolation! Expect }");
-                    }
-                } else if(index + 1 < length && Character.isLetter(value.charAt(index + 1))) {
-                    index++;
-                    interpolation += value.charAt(index);
-                    index++;
-                    StringBuilder buffer = new StringBuilder(interpolation);
-                    while(index < length && Character.isLetterOrDigit(value.charAt(index))) {
-                        buffer.append(value.charAt(index));
-                        index++;
-                    }
-                    interpolation = buffer.toString();
-                } else if(index + 1 < length && Character.isWhitespace(value.charAt(index + 1))){
-                    index++;
-                    location += 2;   // Now $ count
-                }
-                if(interpolation.length() > 0) {
-                    try {
-                        Tokenizer tokenizer = new Tokenizer(interpolation);
-                        Token[] tokens = tokenizer.tokenize().stream().toArray(Token[]::new);
-                        Parser parser = new Parser(tokens);
-                        ParseResult<Exp> result = parser.parseExp(0);
-                        map.put(location, result.result);
-                        temp = temp.replace(isBlockInterpolation ? "${" + interpolation + "}" : "$" + interpolation, "");
-                        isBlockInterpolation = false;
-                        interpolation = "";
-                    } catch (TokenizerException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                index++;
-                location++;
-            }
+        final StringTemplate template;
+        try {
+            template = ((StringToken)token).getTemplate();
+        } catch (TokenizerException e) {
+            throw new ParseException(e.getMessage());
         }
-        return new ParseResult<>(map.size() > 0 ? new StringExp(temp, map) : new StringExp(temp, null), startPos + 1);
+        if(template.size() == 0) {
+            return new ParseResult<>(new StringExp(template.getLiteral(), null), startPos + 1);
+        }
+        // One parser for all placeholders, its end is moved to the end of the placeholder being parsed
+        final Parser parser = new Parser(template.getTokens());
+        parser.expFactory = expFactory;
+        final LinkedHashMap<Integer, Exp> map = new LinkedHashMap<>();
+        for(int i = 0; i < template.size(); i++) {
+            parser.tokensEnd = template.getEnd(i);
+            map.put(template.getPosition(i), parser.parseExp(template.getStart(i)).result);
+        }
+        return new ParseResult<>(new StringExp(template.getLiteral(), map), startPos + 1);
     }
 
     private ParseResult<Exp> parseLambdaExp(final int startPos) throws ParseException {
@@ -391,7 +534,7 @@ public class Parser {
         LinkedHashMap<VariableExp, Type> parameterList = new LinkedHashMap<>();
         while((tokenHere = readToken(pos)) != SymbolToken.TK_ARROW) {
             if (tokenHere instanceof VariableToken) {
-                variableExp = new VariableExp(((VariableToken)tokenHere).getName());
+                variableExp = expFactory.variable(((VariableToken)tokenHere).getName());
                 pos++;
                 tokenHere = readToken(pos);
                 if(tokenHere == SymbolToken.TK_COLON) {
@@ -421,8 +564,8 @@ public class Parser {
                         case TK_ARRAY: case TK_MUTABLE_LIST:
                             pos++;
                             ParseResult<BasicType> genericType = parseGenericType(pos);
-                            type = tokenHere == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                                    new TypeMutableList(genericType.result);
+                            type = tokenHere == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                                    TypeMutableList.of(genericType.result);
                             pos = genericType.nextPos;
                             break;
                     }
@@ -437,6 +580,8 @@ public class Parser {
                 } else {
                     pos++;
                 }
+            } else {
+                throw new ParseException("Parameter expected in lambda expression!");
             }
             type = null;
         }
@@ -446,8 +591,12 @@ public class Parser {
         return new ParseResult<>(new LambdaExp(parameterList, returnExp.result), returnExp.nextPos + 1);
     }
 
-    private  ParseResult<Exp> parseExp(final int startPos) throws ParseException {
-        final Token tokenHere = readToken(startPos);
+    private ParseResult<Exp> parseExp(final int startPos) throws ParseException {
+        return parseExpression(startPos, false);
+    }
+
+    // Expressions which are not made of operators: arrayOf(...), Array(n, lambda), lambda
+    private ParseResult<Exp> parseCollectionOrLambdaExp(final Token tokenHere, final int startPos) throws ParseException {
         if(tokenHere == KeywordToken.TK_ARRAY_OF || tokenHere == KeywordToken.TK_MUTABLE_LIST_OF) {
             checkTokenIs(startPos + 1, BracketsToken.TK_LPAREN);
             int pos = startPos + 2;
@@ -482,26 +631,15 @@ public class Parser {
             checkTokenIs(resultParse.nextPos, BracketsToken.TK_RPAREN);
             return new ParseResult<>(tokenHere == TypeToken.TK_ARRAY ? new ArrayExp(intResult.result, lambdaExp) :
                     new MutableListExp(intResult.result, lambdaExp), resultParse.nextPos + 1);
-        } else if(tokenHere == BracketsToken.TK_LCURLY) {
+        } else {
             return parseLambdaExp(startPos);    // Include TK_LCURLY
         }
-        else {
-            ParseResult<Exp> result =  parseNotExp(startPos);
-            if(result.nextPos - startPos >= 1) {    // at least parse primary
-                result = parseAdditiveExp(result.nextPos, result.result);
-                result = parseComparableExp(result.nextPos, result.result);
-                result = parseBilogicalExp(result.nextPos, result.result);
-                return result;
-            } else {
-                return result;
-            }
-        }
     }
 
     public Exp parseToplevelExp() throws ParseException {
         final ParseResult<Exp> result = parseExp(0);
 
-        if(result.nextPos == tokens.length) {
+        if(isEnd(result.nextPos)) {
             return result.result;
         } else {
             throw new ParseException("Extra tokens at end");
@@ -566,8 +704,8 @@ public class Parser {
                 case TK_ARRAY: case TK_MUTABLE_LIST:
                     pos++;
                     ParseResult<BasicType> genericType = parseGenericType(pos);
-                    parameterTypes.add(temp == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                            new TypeMutableList(genericType.result));
+                    parameterTypes.add(temp == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                            TypeMutableList.of(genericType.result));
                     pos = genericType.nextPos;
                     break;
             }
@@ -604,8 +742,8 @@ public class Parser {
             case TK_ARRAY: case TK_MUTABLE_LIST:
                 pos++;
                 ParseResult<BasicType> genericType = parseGenericType(pos);
-                retureType = temp == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                        new TypeMutableList(genericType.result);
+                retureType = temp == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                        TypeMutableList.of(genericType.result);
                 pos = genericType.nextPos;
                 break;
         }
@@ -617,15 +755,15 @@ public class Parser {
         ParseResult<Stmt> stmtResult = null;
         if(tokenHere instanceof VariableToken) {
             final VariableToken asVar = (VariableToken)tokenHere;
-            if(startPos + 1 < tokens.length) {
+            if(hasTokenAt(startPos + 1)) {
                 Token next = readToken(startPos + 1);
                 if(next == BinopToken.TK_EQUAL) {
                     ParseResult<Exp> expParseResult = parseExp(startPos + 2);
-                    if(expParseResult.nextPos == tokens.length) {
-                        stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new VariableExp(asVar.getName()), false, false), expParseResult.nextPos);
+                    if(isEnd(expParseResult.nextPos)) {
+                        stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, expFactory.variable(asVar.getName()), false, false), expParseResult.nextPos);
                     } else {
                         checkTokenIsOr(expParseResult.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new VariableExp(asVar.getName()), false, false), expParseResult.nextPos + 1);
+                        stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, expFactory.variable(asVar.getName()), false, false), expParseResult.nextPos + 1);
                     }
                 } else if(next == BinopToken.TK_PLUS_EQUAL || next == BinopToken.TK_MULTIPLY_EQUAL
                     || next == BinopToken.TK_MINUS_EQUAL || next == BinopToken.TK_DIVIDE_EQUAL) {
@@ -644,21 +782,21 @@ public class Parser {
                         case TK_DIVIDE_EQUAL:
                             op = CompoundAssignOp.EXP_DIVIDE_EQUAL;
                     }
-                    if(expParseResult.nextPos == tokens.length) {
+                    if(isEnd(expParseResult.nextPos)) {
                         stmtResult = new ParseResult<>(new CompoundAssignStmt(expParseResult.result,
-                                new VariableExp(asVar.getName()), op), expParseResult.nextPos);
+                                expFactory.variable(asVar.getName()), op), expParseResult.nextPos);
                     } else {
                         checkTokenIsOr(expParseResult.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
                         stmtResult = new ParseResult<>(new CompoundAssignStmt(expParseResult.result,
-                                new VariableExp(asVar.getName()), op), expParseResult.nextPos + 1);
+                                expFactory.variable(asVar.getName()), op), expParseResult.nextPos + 1);
                     }
                 } else if(next == UnopToken.TK_PLUS_PLUS || next == UnopToken.TK_MINUS_MINUS) {
-                    if(startPos + 2 == tokens.length) {
-                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new VariableExp(asVar.getName()),
+                    if(isEnd(startPos + 2)) {
+                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(expFactory.variable(asVar.getName()),
                                 next == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE, false)), startPos + 2);
                     } else {
                         checkTokenIsOr(startPos + 2, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new VariableExp(asVar.getName()),
+                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(expFactory.variable(asVar.getName()),
                                 next == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE, false)), startPos + 3);
                     }
                 } else if(next == BracketsToken.TK_LPAREN) {
@@ -667,13 +805,13 @@ public class Parser {
                     List<Exp> parameterList = new ArrayList<>();
                     while((temp = readToken(pos)) != BracketsToken.TK_RPAREN) {
                         if(temp instanceof VariableToken) {
-                            parameterList.add(new VariableExp(((VariableToken) temp).getName()));
+                            parameterList.add(expFactory.variable(((VariableToken) temp).getName()));
                         } else if(temp instanceof IntToken) {
-                            parameterList.add(new IntExp(((IntToken) temp).getValue()));
+                            parameterList.add(expFactory.intExp(((IntToken) temp).getValue()));
                         } else if(temp instanceof StringToken) {
                             parameterList.add(parseString(temp, pos).result);
                         } else if(temp == KeywordToken.TK_TRUE || temp == KeywordToken.TK_FALSE) {
-                            parameterList.add(new BooleanExp(temp == KeywordToken.TK_TRUE));
+                            parameterList.add(expFactory.booleanExp(temp == KeywordToken.TK_TRUE));
                         } else {
                             throw new ParseException("Unsupport function parameter!");
                         }
@@ -685,11 +823,11 @@ public class Parser {
                         }
                     }
                     checkTokenIs(pos, BracketsToken.TK_RPAREN);
-                    if(pos + 1 == tokens.length) {
-                        stmtResult = new ParseResult<>(new FunctionInstanceStmt(new FunctionInstanceExp(new VariableExp(asVar.getName()), parameterList)), pos + 1);
+                    if(isEnd(pos + 1)) {
+                        stmtResult = new ParseResult<>(new FunctionInstanceStmt(new FunctionInstanceExp(expFactory.variable(asVar.getName()), parameterList)), pos + 1);
                     } else {
                         checkTokenIsOr(pos + 1, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new FunctionInstanceStmt(new FunctionInstanceExp(new VariableExp(asVar.getName()), parameterList)), pos + 2);
+                        stmtResult = new ParseResult<>(new FunctionInstanceStmt(new FunctionInstanceExp(expFactory.variable(asVar.getName()), parameterList)), pos + 2);
                     }
                 } else if(next == BracketsToken.TK_LBRACKET) {  // Array with index case
                     int pos = startPos + 2;
@@ -697,18 +835,18 @@ public class Parser {
                     pos = result.nextPos;
                     checkTokenIs(pos, BracketsToken.TK_RBRACKET);
                     pos++;
-                    if(pos < tokens.length) {
+                    if(hasTokenAt(pos)) {
                         Token temp = readToken(pos);
                         pos++;
                         if (temp == UnopToken.TK_PLUS_PLUS || temp == UnopToken.TK_MINUS_MINUS) {
-                            if(pos == tokens.length) {
-                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(new VariableExp(asVar.getName()), result.result),
+                            if(isEnd(pos)) {
+                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(expFactory.variable(asVar.getName()), result.result),
                                         temp == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
                                         false)), pos);
                             } else {
                                 checkTokenIsOr(pos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
                                 pos++;
-                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(new VariableExp(asVar.getName()), result.result),
+                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(expFactory.variable(asVar.getName()), result.result),
                                         temp == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
                                         false)), pos);
                             }
@@ -729,21 +867,21 @@ public class Parser {
                                 case TK_DIVIDE_EQUAL:
                                     op = CompoundAssignOp.EXP_DIVIDE_EQUAL;
                             }
-                            if(expParseResult.nextPos == tokens.length) {
+                            if(isEnd(expParseResult.nextPos)) {
                                 stmtResult = new ParseResult<>(new CompoundAssignStmt(expParseResult.result,
-                                        new VariableExp(asVar.getName()), op), expParseResult.nextPos);
+                                        expFactory.variable(asVar.getName()), op), expParseResult.nextPos);
                             } else {
                                 checkTokenIsOr(expParseResult.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
                                 stmtResult = new ParseResult<>(new CompoundAssignStmt(expParseResult.result,
-                                        new ArrayWithIndexExp(new VariableExp(asVar.getName()), result.result), op), expParseResult.nextPos + 1);
+                                        new ArrayWithIndexExp(expFactory.variable(asVar.getName()), result.result), op), expParseResult.nextPos + 1);
                             }
                         } else if(temp == BinopToken.TK_EQUAL) {
                             ParseResult<Exp> expParseResult = parseExp(pos);
-                            if(expParseResult.nextPos == tokens.length) {
-                                stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new ArrayWithIndexExp(new VariableExp(asVar.getName()), result.result), false, false), expParseResult.nextPos);
+                            if(isEnd(expParseResult.nextPos)) {
+                                stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new ArrayWithIndexExp(expFactory.variable(asVar.getName()), result.result), false, false), expParseResult.nextPos);
                             } else {
                                 checkTokenIsOr(expParseResult.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                                stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new ArrayWithIndexExp(new VariableExp(asVar.getName()), result.result), false, false), expParseResult.nextPos + 1);
+                                stmtResult = new ParseResult<>(new AssignStmt(expParseResult.result, new ArrayWithIndexExp(expFactory.variable(asVar.getName()), result.result), false, false), expParseResult.nextPos + 1);
                             }
                         } else {
                             throw new ParseException("Token expected after array[] expression!");
@@ -756,11 +894,11 @@ public class Parser {
                 throw new ParseException("Token expected after variable!");
             }
         } else if(tokenHere == UnopToken.TK_PLUS_PLUS || tokenHere == UnopToken.TK_MINUS_MINUS) {
-            if(startPos + 1 < tokens.length) {
+            if(hasTokenAt(startPos + 1)) {
                 Token next = readToken(startPos + 1);
                 if(next instanceof VariableToken) {
-                    if(startPos + 2 == tokens.length) {
-                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new VariableExp(((VariableToken) next).getName()),
+                    if(isEnd(startPos + 2)) {
+                        stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(expFactory.variable(((VariableToken) next).getName()),
                                 tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE, true)), startPos + 2);
                     } else {
                         int pos = startPos + 2;
@@ -771,20 +909,20 @@ public class Parser {
                             pos = result.nextPos;
                             checkTokenIs(pos, BracketsToken.TK_RBRACKET);
                             pos++;
-                            if(pos == tokens.length) {
-                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(new VariableExp(((VariableToken) next).getName()), result.result),
+                            if(isEnd(pos)) {
+                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(expFactory.variable(((VariableToken) next).getName()), result.result),
                                         tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
                                         true)), pos);
                             } else {
                                 checkTokenIsOr(pos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
                                 pos++;
-                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(new VariableExp(((VariableToken) next).getName()), result.result),
+                                stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new ArrayWithIndexExp(expFactory.variable(((VariableToken) next).getName()), result.result),
                                         tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE,
                                         true)), pos);
                             }
                         } else {
                             checkTokenIsOr(startPos + 2, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                            stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(new VariableExp(((VariableToken) next).getName()),
+                            stmtResult = new ParseResult<>(new SelfOperationStmt(new SelfOperationExp(expFactory.variable(((VariableToken) next).getName()),
                                     tokenHere == UnopToken.TK_PLUS_PLUS ? SelfOp.OP_SELF_INCREASE : SelfOp.OP_SELF_DECREASE, true)), startPos + 3);
                         }
                     }
@@ -833,29 +971,29 @@ public class Parser {
                             case TK_ARRAY: case TK_MUTABLE_LIST:
                                 pos++;
                                 ParseResult<BasicType> genericType = parseGenericType(pos);
-                                type = next == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                                        new TypeMutableList(genericType.result);
+                                type = next == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                                        TypeMutableList.of(genericType.result);
                                 pos = genericType.nextPos;
                                 break;
                         }
                     }
                 }
-                if(pos < tokens.length && readToken(pos) == BinopToken.TK_EQUAL) {
+                if(hasTokenAt(pos) && readToken(pos) == BinopToken.TK_EQUAL) {
                     ParseResult<Exp> resultExp = parseExp(pos + 1);
-                    if (resultExp.nextPos == tokens.length) {
-                        stmtResult = new ParseResult<>(new AssignStmt(resultExp.result, new VariableExp(asVar.getName()),
+                    if (isEnd(resultExp.nextPos)) {
+                        stmtResult = new ParseResult<>(new AssignStmt(resultExp.result, expFactory.variable(asVar.getName()),
                                 type, tokenHere == KeywordToken.TK_VAL, true), resultExp.nextPos);
                     } else {
                         checkTokenIsOr(resultExp.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new AssignStmt(resultExp.result, new VariableExp(asVar.getName()),
+                        stmtResult = new ParseResult<>(new AssignStmt(resultExp.result, expFactory.variable(asVar.getName()),
                                 type, tokenHere == KeywordToken.TK_VAL, true), resultExp.nextPos + 1);
                     }
                 } else {    // VariableDeclareStmt
-                    if(pos == tokens.length) {
-                        stmtResult = new ParseResult<>(new VariableDeclareStmt(new VariableExp(asVar.getName()), type, tokenHere == KeywordToken.TK_VAL), pos);
+                    if(isEnd(pos)) {
+                        stmtResult = new ParseResult<>(new VariableDeclareStmt(expFactory.variable(asVar.getName()), type, tokenHere == KeywordToken.TK_VAL), pos);
                     } else {
                         checkTokenIsOr(pos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new VariableDeclareStmt(new VariableExp(asVar.getName()), type, tokenHere == KeywordToken.TK_VAL), pos + 1);
+                        stmtResult = new ParseResult<>(new VariableDeclareStmt(expFactory.variable(asVar.getName()), type, tokenHere == KeywordToken.TK_VAL), pos + 1);
                     }
                 }
             } else {
@@ -865,7 +1003,7 @@ public class Parser {
             checkTokenIs(startPos + 1, BracketsToken.TK_LPAREN);
             ParseResult<Exp> resultExp = parseExp(startPos + 2);
             checkTokenIs(resultExp.nextPos, BracketsToken.TK_RPAREN);
-            if(resultExp.nextPos + 1 == tokens.length) {
+            if(isEnd(resultExp.nextPos + 1)) {
                 stmtResult = new ParseResult<>(tokenHere == KeywordToken.TK_PRINT ?
                         new PrintStmt(resultExp.result) : new PrintlnStmt(resultExp.result), resultExp.nextPos + 1);
             } else {
@@ -874,7 +1012,7 @@ public class Parser {
                         new PrintStmt(resultExp.result) : new PrintlnStmt(resultExp.result), resultExp.nextPos + 2);
             }
         } else if(tokenHere == KeywordToken.TK_BREAK || tokenHere == KeywordToken.TK_CONTINUE) {
-            if(startPos + 1 == tokens.length) {
+            if(isEnd(startPos + 1)) {
                 stmtResult = new ParseResult<>(tokenHere == KeywordToken.TK_BREAK ?
                         ControlLoopStmt.STMT_BREAK : ControlLoopStmt.STMT_CONTINUE, startPos + 1);
             } else {
@@ -883,27 +1021,14 @@ public class Parser {
                         ControlLoopStmt.STMT_BREAK : ControlLoopStmt.STMT_CONTINUE, startPos + 2);
             }
         } else if(tokenHere == KeywordToken.TK_RETURN) {
-            boolean nothingReturn = false;
-            if(startPos + 1 < tokens.length) {
-                ParseResult<Exp> returnExp = null;
-                try {
-                    returnExp = parseExp(startPos + 1);
-                } catch (ParseException e) {
-                    if(startPos + 1 == tokens.length) {
-                        stmtResult = new ParseResult<>(new ReturnStmt(null), startPos + 1);
-                    } else {
-                        checkTokenIsOr(startPos + 1, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new ReturnStmt(null), startPos + 2);
-                    }
-                    nothingReturn = true;
-                }
-                if(!nothingReturn) {
-                    if (returnExp.nextPos == tokens.length) {
-                        stmtResult = new ParseResult<>(new ReturnStmt(returnExp.result), returnExp.nextPos);
-                    } else {
-                        checkTokenIsOr(returnExp.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
-                        stmtResult = new ParseResult<>(new ReturnStmt(returnExp.result), returnExp.nextPos + 1);
-                    }
+            if(hasTokenAt(startPos + 1)) {
+                // Nothing returned gives a null expression here, parsing it can only fail on a real syntax error
+                final ParseResult<Exp> returnExp = parseExp(startPos + 1);
+                if (isEnd(returnExp.nextPos)) {
+                    stmtResult = new ParseResult<>(new ReturnStmt(returnExp.result), returnExp.nextPos);
+                } else {
+                    checkTokenIsOr(returnExp.nextPos, SymbolToken.TK_LINE_BREAK, SymbolToken.TK_SEMICOLON);
+                    stmtResult = new ParseResult<>(new ReturnStmt(returnExp.result), returnExp.nextPos + 1);
                 }
             } else {
                 stmtResult = new ParseResult<>(new ReturnStmt(null), startPos + 1);
@@ -914,17 +1039,17 @@ public class Parser {
     }
 
     private int skipLineBreakOrSemicolon(final int startPos) throws ParseException {
-        if(startPos < tokens.length) {
+        if(hasTokenAt(startPos)) {
             Token token = readToken(startPos);
             if (token != SymbolToken.TK_LINE_BREAK && token != SymbolToken.TK_SEMICOLON) {
                 return startPos;
             } else {
                 int pos = startPos + 1;
-                if (pos < tokens.length) {
+                if (hasTokenAt(pos)) {
                     token = readToken(pos);
                     while (token == SymbolToken.TK_SEMICOLON || token == SymbolToken.TK_LINE_BREAK) {
                         pos++;
-                        if (pos < tokens.length) {
+                        if (hasTokenAt(pos)) {
                             token = readToken(pos);
                         } else {
                             break;
@@ -999,7 +1124,7 @@ public class Parser {
         pos++;
 
         if((tokenHere = readToken(pos)) instanceof VariableToken) {
-            VariableExp variableExp = new VariableExp(((VariableToken)tokenHere).getName());
+            VariableExp variableExp = expFactory.variable(((VariableToken)tokenHere).getName());
             pos++;
             checkTokenIs(pos, KeywordToken.TK_IN);
             pos++;
@@ -1022,18 +1147,18 @@ public class Parser {
                 pos++;
                 ParseResult<BlockStmt> blockStmt = parseBlockStmt(pos);
                 pos = blockStmt.nextPos;
-                if(pos < tokens.length) {   // not the end the program
+                if(hasTokenAt(pos)) {   // not the end the program
                     checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                     pos++;
                 }
-                return new ParseResult<>(new ForStmt(variableExp, new RangeExp(startExp, endExp), stepExp, blockStmt.result), pos);
+                return new ParseResult<>(new ForStmt(variableExp, expFactory.share(new RangeExp(startExp, endExp)), stepExp, blockStmt.result), pos);
 
             } else {
                 checkTokenIs(pos, BracketsToken.TK_RPAREN);
                 pos++;
                 ParseResult<BlockStmt> blockStmt = parseBlockStmt(pos);
                 pos = blockStmt.nextPos;
-                if(pos < tokens.length) {   // not the end the program
+                if(hasTokenAt(pos)) {   // not the end the program
                     checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                     pos++;
                 }
@@ -1053,7 +1178,7 @@ public class Parser {
         } else if(tokenHere == KeywordToken.TK_FUN) {
             pos++;
             if((tokenHere = readToken(pos)) instanceof VariableToken) {
-                VariableExp asVar = new VariableExp(((VariableToken) tokenHere).getName());
+                VariableExp asVar = expFactory.variable(((VariableToken) tokenHere).getName());
                 VariableExp variableExp;
                 Type type = null;
                 pos++;
@@ -1062,7 +1187,7 @@ public class Parser {
                 LinkedHashMap<Exp, Type> parameterList = new LinkedHashMap<>();
                 while((tokenHere = readToken(pos)) != BracketsToken.TK_RPAREN) {
                     if (tokenHere instanceof VariableToken) {
-                        variableExp = new VariableExp(((VariableToken)tokenHere).getName());
+                        variableExp = expFactory.variable(((VariableToken)tokenHere).getName());
                         pos++;
                         tokenHere = readToken(pos);
                         if(tokenHere == SymbolToken.TK_COLON) {
@@ -1092,8 +1217,8 @@ public class Parser {
                                 case TK_ARRAY: case TK_MUTABLE_LIST:
                                     pos++;
                                     ParseResult<BasicType> genericType = parseGenericType(pos);
-                                    type = tokenHere == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                                            new TypeMutableList(genericType.result);
+                                    type = tokenHere == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                                            TypeMutableList.of(genericType.result);
                                     pos = genericType.nextPos;
                                     break;
                             }
@@ -1148,14 +1273,14 @@ public class Parser {
                         case TK_ARRAY: case TK_MUTABLE_LIST:
                             pos++;
                             ParseResult<BasicType> genericType = parseGenericType(pos);
-                            retureType = tokenHere == TypeToken.TK_ARRAY ? new TypeArray(genericType.result) :
-                                    new TypeMutableList(genericType.result);
+                            retureType = tokenHere == TypeToken.TK_ARRAY ? TypeArray.of(genericType.result) :
+                                    TypeMutableList.of(genericType.result);
                             pos = genericType.nextPos;
                             break;
                     }
                     ParseResult<BlockStmt> blockStmt = parseBlockStmt(pos);
                     pos = blockStmt.nextPos;
-                    if(pos < tokens.length) {   // not the end the program
+                    if(hasTokenAt(pos)) {   // not the end the program
                         checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                         pos++;
                     }
@@ -1166,7 +1291,7 @@ public class Parser {
                 } else if(readToken(pos) == BracketsToken.TK_LCURLY) {
                     ParseResult<BlockStmt> blockStmt = parseBlockStmt(pos);
                     pos = blockStmt.nextPos;
-                    if(pos < tokens.length) {   // not the end the program
+                    if(hasTokenAt(pos)) {   // not the end the program
                         checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                         pos++;
                     }
@@ -1192,7 +1317,7 @@ public class Parser {
                 elseBlock = parseBlockStmt(blockStmt.nextPos + 1);
             }
             pos = elseBlock == null ? blockStmt.nextPos : elseBlock.nextPos;
-            if(pos < tokens.length) {   // not the end the program
+            if(hasTokenAt(pos)) {   // not the end the program
                 checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                 pos++;
             }
@@ -1208,7 +1333,7 @@ public class Parser {
             pos++;
             ParseResult<BlockStmt> blockStmt = parseBlockStmt(pos);
             pos = blockStmt.nextPos;
-            if(pos < tokens.length) {   // not the end the program
+            if(hasTokenAt(pos)) {   // not the end the program
                 checkTokenIsOr(pos, SymbolToken.TK_SEMICOLON, SymbolToken.TK_LINE_BREAK);
                 pos++;
             }
@@ -1223,7 +1348,7 @@ public class Parser {
         final ParseResult<Stmt> result = parseStmt(pos);
         pos = skipLineBreakOrSemicolon(result.nextPos);
 
-        if(pos == tokens.length) {
+        if(isEnd(pos)) {
             return result.result;
         } else {
             throw new ParseException("Extra tokens at end");
@@ -1233,11 +1358,12 @@ public class Parser {
     private ParseResult<Program> parseProgram(final int startPos) throws ParseException {
         List<Stmt> stmtList = new ArrayList<>();
         int pos = startPos;
-        while(pos < tokens.length) {
+        while(hasTokenAt(pos)) {
             pos = skipLineBreakOrSemicolon(pos);
             ParseResult<Stmt> stmtParseResult = parseStmt(pos);
             stmtList.add(stmtParseResult.result);
             pos = skipLineBreakOrSemicolon(stmtParseResult.nextPos);
+            releaseTokensBefore(pos);
         }
         return new ParseResult<>(new Program(stmtList), pos);
     }
@@ -1245,10 +1371,173 @@ public class Parser {
     public Program parseToplevelProgram() throws ParseException {
         final ParseResult<Program> result = parseProgram(0);
 
-        if(result.nextPos == tokens.length) {
+        if(isEnd(result.nextPos)) {
             return result.result;
         } else {
             throw new ParseException("Extra tokens at end");
         }
     }
+
+    /**
+     * Same program as parseToplevelProgram(), stored in an AstArena. Every top level statement is moved into
+     * the arena as soon as it is parsed, so the objects of only one statement are alive at a time.
+     */
+    public AstArena parseToplevelArena() throws ParseException {
+        final AstArena arena = new AstArena();
+        int pos = 0;
+        while(hasTokenAt(pos)) {
+            pos = skipLineBreakOrSemicolon(pos);
+            final ParseResult<Stmt> stmtParseResult = parseStmt(pos);
+            arena.add(stmtParseResult.result);
+            pos = skipLineBreakOrSemicolon(stmtParseResult.nextPos);
+            releaseTokensBefore(pos);
+        }
+        if(!isEnd(pos)) {
+            throw new ParseException("Extra tokens at end");
+        }
+        arena.trimToSize();
+        return arena;
+    }
+
+    /**
+     * Same result as parseToplevelProgram(), but the top level function declarations are parsed in parallel.
+     * A scan matching curly brackets finds where each declaration ends, batches of declarations are parsed
+     * by tasks on pool while the other statements are parsed on the calling thread, and all statements are
+     * put together in source order. If anything does not go as the scan expected, e.g. a syntax error,
+     * the program is parsed again sequentially, so errors are the same as parseToplevelProgram() gives.
+     */
+    public Program parseToplevelProgram(final ForkJoinPool pool) throws ParseException {
+        try {
+            while(pullToken()) {
+                // the scan needs all tokens in memory
+            }
+            final Program program = parseProgramInParallel(pool);
+            if(program != null) {
+                return program;
+            }
+        } catch (ParseException | RuntimeException e) {
+            // parsed again below, which reports the error
+        }
+        return parseToplevelProgram();
+    }
+
+    // null when a declaration did not parse to where the scan said it ends
+    private Program parseProgramInParallel(final ForkJoinPool pool) throws ParseException {
+        final List<Stmt> stmtList = new ArrayList<>();
+        final List<FunctionBatch> batches = new ArrayList<>();
+        final List<ForkJoinTask<Boolean>> tasks = new ArrayList<>();
+        FunctionBatch batch = null;
+        int pos = 0;
+        try {
+            while(hasTokenAt(pos)) {
+                pos = skipLineBreakOrSemicolon(pos);
+                final int end = tokenAt(pos) == KeywordToken.TK_FUN ? endOfFunction(pos) : -1;
+                if(end < 0) {
+                    final ParseResult<Stmt> stmtParseResult = parseStmt(pos);
+                    stmtList.add(stmtParseResult.result);
+                    pos = skipLineBreakOrSemicolon(stmtParseResult.nextPos);
+                    continue;
+                }
+                if(batch == null) {
+                    batch = new FunctionBatch();
+                }
+                batch.add(stmtList.size(), pos, end);
+                stmtList.add(null);     // filled in by the batch
+                if(batch.tokens >= BATCH_TOKENS) {
+                    batches.add(batch);
+                    tasks.add(pool.submit(batch));
+                    batch = null;
+                }
+                pos = skipLineBreakOrSemicolon(end);
+            }
+            if(batch != null) {
+                batches.add(batch);
+                tasks.add(pool.submit(batch));
+            }
+            for(int i = 0; i < tasks.size(); i++) {
+                if(!tasks.get(i).join()) {
+                    return null;
+                }
+                batches.get(i).copyTo(stmtList);
+            }
+            return new Program(stmtList);
+        } finally {
+            for(ForkJoinTask<Boolean> task : tasks) {
+                task.cancel(false);     // no effect on the finished ones
+            }
+        }
+    }
+
+    // Position after the function declaration at startPos including the ; or line break after it,
+    // or -1 when curly brackets do not tell where it ends.
+    private int endOfFunction(final int startPos) throws ParseException {
+        int pos = startPos + 1;
+        // name, parameters and return type have no curly bracket, the first one starts the body
+        while(hasTokenAt(pos) && readToken(pos) != BracketsToken.TK_LCURLY) {
+            pos++;
+        }
+        int depth = 0;
+        while(hasTokenAt(pos)) {
+            final Token token = readToken(pos);
+            pos++;
+            if(token == BracketsToken.TK_LCURLY) {
+                depth++;
+            } else if(token == BracketsToken.TK_RCURLY && --depth == 0) {
+                if(!hasTokenAt(pos)) {
+                    return pos;
+                }
+                final Token next = readToken(pos);
+                return next == SymbolToken.TK_SEMICOLON || next == SymbolToken.TK_LINE_BREAK ? pos + 1 : -1;
+            }
+        }
+        return -1;
+    }
+
+    // Function declarations parsed by one task, the declaration at starts[i] is statement indexes[i] of the program
+    private class FunctionBatch implements Callable<Boolean> {
+        private int[] indexes = new int[16];
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int size = 0;
+        private int tokens = 0;
+        private Stmt[] stmts;
+
+        private void add(final int index, final int start, final int end) {
+            if(size == starts.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            indexes[size] = index;
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+            tokens += end - start;
+        }
+
+        // false when a declaration has a syntax error or does not end where the scan said
+        @Override
+        public Boolean call() {
+            final Parser parser = new Parser(Parser.this);
+            stmts = new Stmt[size];
+            try {
+                for(int i = 0; i < size; i++) {
+                    final ParseResult<Stmt> result = parser.parseStmt(starts[i]);
+                    if(result.nextPos != ends[i]) {
+                        return false;
+                    }
+                    stmts[i] = result.result;
+                }
+                return true;
+            } catch (ParseException | RuntimeException e) {
+                return false;
+            }
+        }
+
+        private void copyTo(final List<Stmt> stmtList) {
+            for(int i = 0; i < size; i++) {
+                stmtList.set(indexes[i], stmts[i]);
+            }
+        }
+    }
 }
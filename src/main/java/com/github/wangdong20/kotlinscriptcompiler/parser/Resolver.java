@@ -0,0 +1,229 @@
+package com.github.wangdong20.kotlinscriptcompiler.parser;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
+
+import java.util.*;
+
+/**
+ * Resolves the names of a parsed program once, before Typechecker and CodeGenerator.
+ * Every variable name gets a dense id, set on each VariableExp of that name, so later phases keep
+ * what is in scope in arrays indexed by id instead of maps hashing names. Calls of a function which
+ * is declared once at the top level get that FunctionDeclareStmt. Ids only depend on the program,
+ * so resolving a program again sets the very same ones.
+ */
+public class Resolver {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<List<FunctionDeclareStmt>> functions = new ArrayList<>();     // by name id
+    private final List<FunctionInstanceExp> calls = new ArrayList<>();
+
+    private Resolver() {
+    }
+
+    public static Resolver resolve(final Program program) {
+        final Resolver resolver = new Resolver();
+        final Deque<Object> stack = new ArrayDeque<>();
+        final List<Stmt> stmtList = program.getStmtList();
+        for(int i = stmtList.size() - 1; i >= 0; i--) {
+            stack.push(stmtList.get(i));
+        }
+        for(Stmt s : stmtList) {
+            if(s instanceof FunctionDeclareStmt) {
+                final int id = resolver.idOf(((FunctionDeclareStmt) s).getFuncName());
+                resolver.functions.get(id).add((FunctionDeclareStmt) s);
+            }
+        }
+        while(!stack.isEmpty()) {
+            resolver.visit(stack.pop(), stack);
+        }
+        for(FunctionInstanceExp call : resolver.calls) {
+            final List<FunctionDeclareStmt> declared = resolver.functions.get(call.getFuncName().getId());
+            call.setFunction(declared.size() == 1 ? declared.get(0) : null);
+        }
+        return resolver;
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+    public String getName(final int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Top level functions named by id in program order, empty when there is none.
+     */
+    public List<FunctionDeclareStmt> getFunctions(final int id) {
+        return functions.get(id);
+    }
+
+    private int idOf(final VariableExp variable) {
+        Integer id = ids.get(variable.getName());
+        if(id == null) {
+            id = names.size();
+            ids.put(variable.getName(), id);
+            names.add(variable.getName());
+            functions.add(new ArrayList<>(1));
+        }
+        variable.setId(id);
+        return id;
+    }
+
+    // Resolves node if it is a variable or a call, and pushes its children so they are visited in source order
+    private void visit(final Object node, final Deque<Object> stack) {
+        if(node instanceof Exp) {
+            visitExp((Exp) node, stack);
+        } else {
+            visitStmt((Stmt) node, stack);
+        }
+    }
+
+    private void visitExp(final Exp node, final Deque<Object> stack) {
+        switch(node.getKind()) {
+            case EXP_INT:
+            case EXP_BOOLEAN:
+                break;
+            case EXP_VARIABLE:
+                idOf((VariableExp) node);
+                break;
+            case EXP_STRING:
+                if(((StringExp) node).getInterpolationExp() != null) {
+                    pushAll(((StringExp) node).getInterpolationExp().values(), stack);
+                }
+                break;
+            case EXP_ADDITIVE:
+            case EXP_MULTIPLICATIVE:
+                push(stack, ((BinaryIntExp) node).getLeft(), ((BinaryIntExp) node).getRight());
+                break;
+            case EXP_COMPARABLE:
+                push(stack, ((ComparableExp) node).getLeft(), ((ComparableExp) node).getRight());
+                break;
+            case EXP_BILOGICAL:
+                push(stack, ((BiLogicalExp) node).getLeft(), ((BiLogicalExp) node).getRight());
+                break;
+            case EXP_NOT:
+                push(stack, ((NotExp) node).getValue());
+                break;
+            case EXP_ARRAY_WITH_INDEX:
+                push(stack, ((ArrayWithIndexExp) node).getVariableExp(), ((ArrayWithIndexExp) node).getIndexExp());
+                break;
+            case EXP_SELF_OPERATION:
+                push(stack, ((SelfOperationExp) node).getVariableExp());
+                break;
+            case EXP_FUNCTION_INSTANCE: {
+                calls.add((FunctionInstanceExp) node);
+                final List<Object> children = new ArrayList<>();
+                children.add(((FunctionInstanceExp) node).getFuncName());
+                if(((FunctionInstanceExp) node).getParameterList() != null) {
+                    children.addAll(((FunctionInstanceExp) node).getParameterList());
+                }
+                pushAll(children, stack);
+                break;
+            }
+            case EXP_ARRAY_OF:
+                if(((ArrayOfExp) node).getExpList() != null) {
+                    pushAll(((ArrayOfExp) node).getExpList(), stack);
+                }
+                break;
+            case EXP_MUTABLE_LIST_OF:
+                if(((MutableListOfExp) node).getExpList() != null) {
+                    pushAll(((MutableListOfExp) node).getExpList(), stack);
+                }
+                break;
+            case EXP_ARRAY:
+                push(stack, ((ArrayExp) node).getSize(), ((ArrayExp) node).getLambdaExp());
+                break;
+            case EXP_MUTABLE_LIST:
+                push(stack, ((MutableListExp) node).getSize(), ((MutableListExp) node).getLambdaExp());
+                break;
+            case EXP_LAMBDA: {
+                final List<Object> children = new ArrayList<>();
+                if(((LambdaExp) node).getParameterList() != null) {
+                    children.addAll(((LambdaExp) node).getParameterList().keySet());
+                }
+                children.add(((LambdaExp) node).getReturnExp());
+                pushAll(children, stack);
+                break;
+            }
+            case EXP_RANGE:
+                push(stack, ((RangeExp) node).getStart(), ((RangeExp) node).getEnd());
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot resolve names in " + node);
+        }
+    }
+
+    private void visitStmt(final Stmt node, final Deque<Object> stack) {
+        switch(node.getKind()) {
+            case STMT_CONTROL_LOOP:
+                break;
+            case STMT_ASSIGN:
+                push(stack, ((AssignStmt) node).getVariable(), ((AssignStmt) node).getExpression());
+                break;
+            case STMT_COMPOUND_ASSIGN:
+                push(stack, ((CompoundAssignStmt) node).getVariable(), ((CompoundAssignStmt) node).getExpression());
+                break;
+            case STMT_VARIABLE_DECLARE:
+                push(stack, ((VariableDeclareStmt) node).getVariableExp());
+                break;
+            case STMT_BLOCK:
+                if(((BlockStmt) node).getStmtList() != null) {
+                    pushAll(((BlockStmt) node).getStmtList(), stack);
+                }
+                break;
+            case STMT_FOR: {
+                final ForStmt stmt = (ForStmt) node;
+                push(stack, stmt.getIteratorExp(), stmt.getArrayExp(), stmt.getRangeExp(), stmt.getStepExp(), stmt.getBlockStmt());
+                break;
+            }
+            case STMT_FUNCTION_DECLARE: {
+                final FunctionDeclareStmt stmt = (FunctionDeclareStmt) node;
+                final List<Object> children = new ArrayList<>();
+                children.add(stmt.getFuncName());
+                if(stmt.getParameterList() != null) {
+                    children.addAll(stmt.getParameterList().keySet());
+                }
+                children.add(stmt.getBlockStmt());
+                pushAll(children, stack);
+                break;
+            }
+            case STMT_FUNCTION_INSTANCE:
+                push(stack, ((FunctionInstanceStmt) node).getFunctionInstanceExp());
+                break;
+            case STMT_IF:
+                push(stack, ((IfStmt) node).getCondition(), ((IfStmt) node).getTrueBranch(), ((IfStmt) node).getFalseBranch());
+                break;
+            case STMT_PRINT:
+                push(stack, ((PrintStmt) node).getValue());
+                break;
+            case STMT_PRINTLN:
+                push(stack, ((PrintlnStmt) node).getValue());
+                break;
+            case STMT_RETURN:
+                push(stack, ((ReturnStmt) node).getReturnExp());
+                break;
+            case STMT_SELF_OPERATION:
+                push(stack, ((SelfOperationStmt) node).getSelfOperationExp());
+                break;
+            case STMT_WHILE:
+                push(stack, ((WhileStmt) node).getCondition(), ((WhileStmt) node).getBlockStmt());
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot resolve names in " + node);
+        }
+    }
+
+    private static void push(final Deque<Object> stack, final Object... children) {
+        for(int i = children.length - 1; i >= 0; i--) {
+            if(children[i] != null) {
+                stack.push(children[i]);
+            }
+        }
+    }
+
+    private static void pushAll(final Collection<?> children, final Deque<Object> stack) {
+        push(stack, children.toArray());
+    }
+}
@@ -1,14 +1,19 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
+import java.util.Objects;
+
 public class AdditiveExp extends BinaryIntExp {
     private final Exp left;
     private final Exp right;
     private final AdditiveOp op;
+    private final int hash;     // from the cached hash codes of the operands, so nothing walks down the tree
 
     public AdditiveExp(Exp left, Exp right, AdditiveOp op) {
+        super(ExpKind.EXP_ADDITIVE);
         this.left = left;
         this.right = right;
         this.op = op;
+        this.hash = 31 * (31 * Objects.hashCode(left) + Objects.hashCode(right)) + op.hashCode();
     }
 
     public Exp getLeft() {
@@ -35,6 +40,11 @@ public class AdditiveExp extends BinaryIntExp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "AdditiveExp{" +
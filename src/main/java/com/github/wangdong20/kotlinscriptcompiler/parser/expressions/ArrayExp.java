@@ -3,11 +3,12 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 /**
  * ArrayExp initial an array with ArrayExp, for instance var b = Array(10, {i -> "s" + i * 2})
  */
-public class ArrayExp implements Exp {
+public class ArrayExp extends Exp {
     private final Exp size;
     private final LambdaExp lambdaExp;
 
     public ArrayExp(Exp size, LambdaExp lambdaExp) {
+        super(ExpKind.EXP_ARRAY);
         this.size = size;
         this.lambdaExp = lambdaExp;
     }
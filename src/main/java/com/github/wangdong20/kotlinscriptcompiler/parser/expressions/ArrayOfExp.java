@@ -2,10 +2,11 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
 import java.util.List;
 
-public class ArrayOfExp implements Exp {
+public class ArrayOfExp extends Exp {
     private final List<Exp> expList;
 
     public ArrayOfExp(List<Exp> expList) {
+        super(ExpKind.EXP_ARRAY_OF);
         this.expList = expList;
     }
 
@@ -1,13 +1,17 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
+import java.util.Objects;
 
-public class ArrayWithIndexExp implements Exp, Variable {
+public class ArrayWithIndexExp extends Exp implements Variable {
     private final VariableExp variableExp;
     private final Exp indexExp;
+    private final int hash;
 
     public ArrayWithIndexExp(VariableExp variableExp, Exp indexExp) {
+        super(ExpKind.EXP_ARRAY_WITH_INDEX);
         this.variableExp = variableExp;
         this.indexExp = indexExp;
+        this.hash = 31 * Objects.hashCode(variableExp) + Objects.hashCode(indexExp);
     }
 
     public VariableExp getVariableExp() {
@@ -29,6 +33,11 @@ public class ArrayWithIndexExp implements Exp, Variable {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "ArrayWithIndexExp{" +
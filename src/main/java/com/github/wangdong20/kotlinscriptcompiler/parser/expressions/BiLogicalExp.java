@@ -1,9 +1,12 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class BiLogicalExp implements Exp {
+import java.util.Objects;
+
+public class BiLogicalExp extends Exp {
     private final Exp left;
     private final Exp right;
     private final BiLogicalOp op;
+    private final int hash;
 
     public BiLogicalOp getOp() {
         return op;
@@ -18,9 +21,11 @@ public class BiLogicalExp implements Exp {
     }
 
     public BiLogicalExp(Exp left, Exp right, BiLogicalOp op) {
+        super(ExpKind.EXP_BILOGICAL);
         this.left = left;
         this.right = right;
         this.op = op;
+        this.hash = 31 * (31 * Objects.hashCode(left) + Objects.hashCode(right)) + op.hashCode();
     }
 
     @Override
@@ -34,6 +39,11 @@ public class BiLogicalExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "BiLogicalExp{" +
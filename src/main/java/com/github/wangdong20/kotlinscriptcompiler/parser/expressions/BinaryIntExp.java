@@ -1,6 +1,10 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public abstract class BinaryIntExp implements Exp {
+public abstract class BinaryIntExp extends Exp {
+    protected BinaryIntExp(final ExpKind kind) {
+        super(kind);
+    }
+
     public abstract Exp getLeft();
     public abstract Exp getRight();
 }
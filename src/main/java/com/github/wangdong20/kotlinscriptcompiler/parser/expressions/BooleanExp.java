@@ -1,9 +1,10 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class BooleanExp implements Exp {
+public class BooleanExp extends Exp {
     private final boolean value;
 
     public BooleanExp(boolean value) {
+        super(ExpKind.EXP_BOOLEAN);
         this.value = value;
     }
 
@@ -21,6 +22,11 @@ public class BooleanExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(value);
+    }
+
     @Override
     public String toString() {
         return "BooleanExp{" +
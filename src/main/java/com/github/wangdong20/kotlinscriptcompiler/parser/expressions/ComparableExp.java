@@ -1,14 +1,19 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class ComparableExp implements Exp {
+import java.util.Objects;
+
+public class ComparableExp extends Exp {
     private final Exp left;
     private final Exp right;
     private final ComparableOp op;
+    private final int hash;
 
     public ComparableExp(Exp left, Exp right, ComparableOp op) {
+        super(ExpKind.EXP_COMPARABLE);
         this.left = left;
         this.right = right;
         this.op = op;
+        this.hash = 31 * (31 * Objects.hashCode(left) + Objects.hashCode(right)) + op.hashCode();
     }
 
     public Exp getLeft() {
@@ -34,6 +39,11 @@ public class ComparableExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "ComparableExp{" +
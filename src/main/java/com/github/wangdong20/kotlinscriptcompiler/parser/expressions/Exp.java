@@ -1,4 +1,14 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public interface Exp {
+public abstract class Exp {
+    private final ExpKind kind;
+
+    protected Exp(final ExpKind kind) {
+        this.kind = kind;
+    }
+
+    // a field rather than a method each class overrides, so switching on it costs no virtual call
+    public final ExpKind getKind() {
+        return kind;
+    }
 }
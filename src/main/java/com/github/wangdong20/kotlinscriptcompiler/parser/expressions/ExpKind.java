@@ -0,0 +1,23 @@
+package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
+
+// What kind of expression an Exp is, for phases to switch on instead of testing instanceof one class after another
+public enum ExpKind {
+    EXP_INT,
+    EXP_BOOLEAN,
+    EXP_STRING,
+    EXP_VARIABLE,
+    EXP_ADDITIVE,
+    EXP_MULTIPLICATIVE,
+    EXP_COMPARABLE,
+    EXP_BILOGICAL,
+    EXP_NOT,
+    EXP_ARRAY_WITH_INDEX,
+    EXP_SELF_OPERATION,
+    EXP_FUNCTION_INSTANCE,
+    EXP_ARRAY_OF,
+    EXP_MUTABLE_LIST_OF,
+    EXP_ARRAY,
+    EXP_MUTABLE_LIST,
+    EXP_LAMBDA,
+    EXP_RANGE
+}
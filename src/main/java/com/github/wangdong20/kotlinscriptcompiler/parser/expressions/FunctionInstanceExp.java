@@ -1,12 +1,16 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.FunctionDeclareStmt;
+
 import java.util.List;
 
-public class FunctionInstanceExp implements Exp {
+public class FunctionInstanceExp extends Exp {
     private final VariableExp funcName;
     private final List<Exp> parameterList;
+    private FunctionDeclareStmt function;   // set by Resolver
 
     public FunctionInstanceExp(VariableExp funcName, List<Exp> parameterList) {
+        super(ExpKind.EXP_FUNCTION_INSTANCE);
         this.funcName = funcName;
         this.parameterList = parameterList;
     }
@@ -19,6 +23,17 @@ public class FunctionInstanceExp implements Exp {
         return parameterList;
     }
 
+    /**
+     * The function called, null before Resolver ran or when no function or more than one is declared with the name.
+     */
+    public FunctionDeclareStmt getFunction() {
+        return function;
+    }
+
+    public void setFunction(final FunctionDeclareStmt function) {
+        this.function = function;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof FunctionInstanceExp) {
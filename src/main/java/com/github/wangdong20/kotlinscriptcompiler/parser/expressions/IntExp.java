@@ -1,9 +1,10 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class IntExp implements Exp {
+public class IntExp extends Exp {
     private final int value;
 
     public IntExp(int value) {
+        super(ExpKind.EXP_INT);
         this.value = value;
     }
 
@@ -21,6 +22,11 @@ public class IntExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return value;
+    }
+
     @Override
     public String toString() {
         return "IntExp{" +
@@ -5,7 +5,7 @@ import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
 import java.util.LinkedHashMap;
 import java.util.Objects;
 
-public class LambdaExp implements Exp {
+public class LambdaExp extends Exp {
     /**
      * If we do not record type information in parse proces, how can we do type check
      * val a = { i: Int -> i + 1 } in this case, i is record as VariableExp in parse process,
@@ -15,6 +15,7 @@ public class LambdaExp implements Exp {
     private final Exp returnExp;
 
     public LambdaExp(LinkedHashMap<VariableExp, Type> parameterList, Exp returnExp) {
+        super(ExpKind.EXP_LAMBDA);
         this.parameterList = parameterList;
         this.returnExp = returnExp;
     }
@@ -1,14 +1,19 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
+import java.util.Objects;
+
 public class MultiplicativeExp extends BinaryIntExp {
     private final Exp left;
     private final Exp right;
     private final MultiplicativeOp op;
+    private final int hash;
 
     public MultiplicativeExp(Exp left, Exp right, MultiplicativeOp op) {
+        super(ExpKind.EXP_MULTIPLICATIVE);
         this.left = left;
         this.right = right;
         this.op = op;
+        this.hash = 31 * (31 * Objects.hashCode(left) + Objects.hashCode(right)) + op.hashCode();
     }
 
     public Exp getLeft() {
@@ -34,6 +39,11 @@ public class MultiplicativeExp extends BinaryIntExp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "MultiplicativeExp{" +
@@ -3,11 +3,12 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 /**
  * MutableListExp initial an MutableList with MutableListExp, for instance var b = MutableList(10, {i -> "s" + i * 2})
  */
-public class MutableListExp implements Exp {
+public class MutableListExp extends Exp {
     private final Exp size;
     private final LambdaExp lambdaExp;
 
     public MutableListExp(Exp size, LambdaExp lambdaExp) {
+        super(ExpKind.EXP_MUTABLE_LIST);
         this.size = size;
         this.lambdaExp = lambdaExp;
     }
@@ -2,10 +2,11 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
 import java.util.List;
 
-public class MutableListOfExp implements Exp {
+public class MutableListOfExp extends Exp {
     private final List<Exp> expList;
 
     public MutableListOfExp(List<Exp> expList) {
+        super(ExpKind.EXP_MUTABLE_LIST_OF);
         this.expList = expList;
     }
 
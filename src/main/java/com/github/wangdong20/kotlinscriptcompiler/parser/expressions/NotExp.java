@@ -1,10 +1,15 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class NotExp implements Exp {
+import java.util.Objects;
+
+public class NotExp extends Exp {
     private final Exp value;
+    private final int hash;
 
     public NotExp(Exp value) {
+        super(ExpKind.EXP_NOT);
         this.value = value;
+        this.hash = 31 * Objects.hashCode(value) + 1;
     }
 
     public Exp getValue() {
@@ -21,6 +26,11 @@ public class NotExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "NotExp{" +
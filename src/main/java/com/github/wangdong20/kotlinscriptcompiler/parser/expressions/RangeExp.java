@@ -1,15 +1,20 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
+import java.util.Objects;
+
 /**
  * range expression, 1..5, range from 1 to 5 contain 1 and 5
  */
-public class RangeExp implements Exp {
+public class RangeExp extends Exp {
     private final Exp start;
     private final Exp end;
+    private final int hash;
 
     public RangeExp(Exp start, Exp end) {
+        super(ExpKind.EXP_RANGE);
         this.start = start;
         this.end = end;
+        this.hash = 31 * Objects.hashCode(start) + Objects.hashCode(end);
     }
 
     public Exp getStart() {
@@ -30,6 +35,11 @@ public class RangeExp implements Exp {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "RangeExp{" +
@@ -1,11 +1,12 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
-public class SelfOperationExp implements Exp {
+public class SelfOperationExp extends Exp {
     private final Variable variableExp;
     private final SelfOp op;
     private final boolean isPreOrder;   // if true, then ++i else , then i++
 
     public SelfOperationExp(Variable variableExp, SelfOp op, boolean isPreOrder) {
+        super(ExpKind.EXP_SELF_OPERATION);
         this.variableExp = variableExp;
         this.op = op;
         this.isPreOrder = isPreOrder;
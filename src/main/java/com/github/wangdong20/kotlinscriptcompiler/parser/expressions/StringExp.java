@@ -2,11 +2,12 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
 import java.util.LinkedHashMap;
 
-public class StringExp implements Exp {
+public class StringExp extends Exp {
     private String strWithoutInterpolation;
     private LinkedHashMap<Integer, Exp> interpolationExp;     // Integer is the interpolation expression position in String
 
     public StringExp(String strWithoutInterpolation, LinkedHashMap<Integer, Exp> interpolationExp) {
+        super(ExpKind.EXP_STRING);
         this.strWithoutInterpolation = strWithoutInterpolation;
         this.interpolationExp = interpolationExp;
     }
@@ -1,10 +1,12 @@
 package com.github.wangdong20.kotlinscriptcompiler.parser.expressions;
 
 
-public class VariableExp implements Exp, Variable {
+public class VariableExp extends Exp implements Variable {
     private final String name;
+    private int id = -1;    // set by Resolver
 
     public VariableExp(final String name) {
+        super(ExpKind.EXP_VARIABLE);
         this.name = name;
     }
 
@@ -12,8 +14,22 @@ public class VariableExp implements Exp, Variable {
         return name;
     }
 
+    /**
+     * Dense id of the name in its program, the same for all variables of the name, -1 before Resolver ran.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(final int id) {
+        this.id = id;
+    }
+
     @Override
     public boolean equals(Object obj) {
+        if(obj == this) {   // variables from one Parser are shared
+            return true;
+        }
         if(obj instanceof VariableExp) {
             if(((VariableExp) obj).getName().equals(name)) {
                 return true;
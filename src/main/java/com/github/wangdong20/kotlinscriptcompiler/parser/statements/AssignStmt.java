@@ -48,6 +48,11 @@ public class AssignStmt implements Stmt {
         this.isNew = isNew;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_ASSIGN;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof AssignStmt) {
@@ -13,6 +13,11 @@ public class BlockStmt implements Stmt {
         return stmtList;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_BLOCK;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof BlockStmt) {
@@ -38,6 +38,11 @@ public class CompoundAssignStmt implements Stmt {
         return op;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_COMPOUND_ASSIGN;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof CompoundAssignStmt) {
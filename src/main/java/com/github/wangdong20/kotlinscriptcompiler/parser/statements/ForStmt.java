@@ -59,6 +59,11 @@ public class ForStmt implements Stmt {
         return stepExp;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_FOR;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof ForStmt) {
@@ -35,6 +35,11 @@ public class FunctionDeclareStmt implements Stmt {
         return blockStmt;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_FUNCTION_DECLARE;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof FunctionDeclareStmt) {
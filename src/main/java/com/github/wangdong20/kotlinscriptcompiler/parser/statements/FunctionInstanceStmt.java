@@ -13,6 +13,11 @@ public class FunctionInstanceStmt implements Stmt {
         return functionInstanceExp;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_FUNCTION_INSTANCE;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof FunctionInstanceStmt) {
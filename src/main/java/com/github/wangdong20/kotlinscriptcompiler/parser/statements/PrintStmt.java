@@ -13,6 +13,11 @@ public class PrintStmt implements Stmt {
         return value;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_PRINT;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof PrintStmt) {
@@ -13,6 +13,11 @@ public class SelfOperationStmt implements Stmt {
         return selfOperationExp;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_SELF_OPERATION;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof SelfOperationStmt) {
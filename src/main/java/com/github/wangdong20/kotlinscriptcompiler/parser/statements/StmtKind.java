@@ -0,0 +1,19 @@
+package com.github.wangdong20.kotlinscriptcompiler.parser.statements;
+
+// What kind of statement a Stmt is, for phases to switch on instead of testing instanceof one class after another
+public enum StmtKind {
+    STMT_ASSIGN,
+    STMT_BLOCK,
+    STMT_COMPOUND_ASSIGN,
+    STMT_CONTROL_LOOP,
+    STMT_FOR,
+    STMT_FUNCTION_DECLARE,
+    STMT_FUNCTION_INSTANCE,
+    STMT_IF,
+    STMT_PRINT,
+    STMT_PRINTLN,
+    STMT_RETURN,
+    STMT_SELF_OPERATION,
+    STMT_VARIABLE_DECLARE,
+    STMT_WHILE
+}
@@ -21,6 +21,11 @@ public class WhileStmt implements Stmt {
         return blockStmt;
     }
 
+    @Override
+    public StmtKind getKind() {
+        return StmtKind.STMT_WHILE;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof WhileStmt) {
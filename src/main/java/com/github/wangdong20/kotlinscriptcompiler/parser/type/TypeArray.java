@@ -3,12 +3,26 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.type;
 import java.util.Objects;
 
 public class TypeArray implements Type {
+    private static final TypeArray[] SHARED = new TypeArray[BasicType.values().length];
     private final BasicType basicType;
 
+    static {
+        for(BasicType basicType : BasicType.values()) {
+            SHARED[basicType.ordinal()] = new TypeArray(basicType);
+        }
+    }
+
     public TypeArray(BasicType basicType) {
         this.basicType = basicType;
     }
 
+    /**
+     * The one shared TypeArray of basicType, so typing an expression allocates no type.
+     */
+    public static TypeArray of(BasicType basicType) {
+        return SHARED[basicType.ordinal()];
+    }
+
     public BasicType getBasicType() {
         return basicType;
     }
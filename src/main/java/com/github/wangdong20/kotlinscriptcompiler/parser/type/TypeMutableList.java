@@ -3,12 +3,26 @@ package com.github.wangdong20.kotlinscriptcompiler.parser.type;
 import java.util.Objects;
 
 public class TypeMutableList implements Type {
+    private static final TypeMutableList[] SHARED = new TypeMutableList[BasicType.values().length];
     private final BasicType basicType;
 
+    static {
+        for(BasicType basicType : BasicType.values()) {
+            SHARED[basicType.ordinal()] = new TypeMutableList(basicType);
+        }
+    }
+
     public TypeMutableList(BasicType basicType) {
         this.basicType = basicType;
     }
 
+    /**
+     * The one shared TypeMutableList of basicType, so typing an expression allocates no type.
+     */
+    public static TypeMutableList of(BasicType basicType) {
+        return SHARED[basicType.ordinal()];
+    }
+
     public BasicType getBasicType() {
         return basicType;
     }
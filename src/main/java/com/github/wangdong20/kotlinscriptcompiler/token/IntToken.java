@@ -1,12 +1,29 @@
 package com.github.wangdong20.kotlinscriptcompiler.token;
 
 public class IntToken implements Token {
+    // Small numbers are shared, an IntToken can not be changed
+    private static final int CACHE_MIN = -128;
+    private static final IntToken[] CACHE = new IntToken[1024 - CACHE_MIN];
+
+    static {
+        for(int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new IntToken(i + CACHE_MIN);
+        }
+    }
+
     private final int value;
 
     public IntToken(int value) {
         this.value = value;
     }
 
+    public static IntToken valueOf(int value) {
+        if(value >= CACHE_MIN && value < CACHE_MIN + CACHE.length) {
+            return CACHE[value - CACHE_MIN];
+        }
+        return new IntToken(value);
+    }
+
     public int getValue() {
         return value;
     }
@@ -0,0 +1,186 @@
+package com.github.wangdong20.kotlinscriptcompiler.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tokens stored as parallel arrays instead of one object per token: kind, start offset and length in the source,
+ * and a payload which is the value of an Int, the index of a String literal or the symbol of a variable.
+ * Variables are interned in a SymbolTable. token(i) hands out the shared Token of position i, so reading the buffer,
+ * e.g. by Parser, does not create tokens again.
+ */
+public class PackedTokenBuffer implements TokenSource {
+    private static final int INITIAL_SIZE = 1024;
+
+    public static final int KIND_INT = 0;
+    public static final int KIND_STRING = 1;
+    public static final int KIND_VARIABLE = 2;
+
+    // Kinds from KIND_FIXED_START on are the enum tokens, in the order of FIXED_TOKENS
+    private static final int KIND_FIXED_START = 3;
+    private static final Token[] FIXED_TOKENS;
+    private static final int KEYWORD_START;
+    private static final int BRACKETS_START;
+    private static final int BINOP_START;
+    private static final int UNOP_START;
+    private static final int SYMBOL_START;
+    private static final int TYPE_START;
+
+    static {
+        final List<Token> fixed = new ArrayList<>();
+        KEYWORD_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(KeywordToken.values()));
+        BRACKETS_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(BracketsToken.values()));
+        BINOP_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(BinopToken.values()));
+        UNOP_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(UnopToken.values()));
+        SYMBOL_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(SymbolToken.values()));
+        TYPE_START = KIND_FIXED_START + fixed.size();
+        fixed.addAll(Arrays.asList(TypeToken.values()));
+        FIXED_TOKENS = fixed.toArray(new Token[0]);
+        if(KIND_FIXED_START + FIXED_TOKENS.length > Byte.MAX_VALUE) {
+            throw new IllegalStateException("Too many kinds of tokens for a byte");
+        }
+    }
+
+    private byte[] kinds;       // there are less than 128 kinds
+    private int[] starts;
+    private int[] lengths;
+    private int[] payloads;
+    private int size;
+    private final SymbolTable symbols;
+    private final List<StringToken> strings;    // indexed by the payload of KIND_STRING
+    private int next;       // position of nextToken()
+
+    PackedTokenBuffer(final SymbolTable symbols) {
+        this.kinds = new byte[INITIAL_SIZE];
+        this.starts = new int[INITIAL_SIZE];
+        this.lengths = new int[INITIAL_SIZE];
+        this.payloads = new int[INITIAL_SIZE];
+        this.size = 0;
+        this.symbols = symbols;
+        this.strings = new ArrayList<>();
+        this.next = 0;
+    }
+
+    /**
+     * Kind of a token, KIND_INT, KIND_STRING, KIND_VARIABLE or the kind of an enum token.
+     */
+    public static int kindOf(final Token token) {
+        if(token instanceof IntToken) {
+            return KIND_INT;
+        } else if(token instanceof StringToken) {
+            return KIND_STRING;
+        } else if(token instanceof VariableToken) {
+            return KIND_VARIABLE;
+        } else if(token instanceof KeywordToken) {
+            return KEYWORD_START + ((KeywordToken) token).ordinal();
+        } else if(token instanceof BracketsToken) {
+            return BRACKETS_START + ((BracketsToken) token).ordinal();
+        } else if(token instanceof BinopToken) {
+            return BINOP_START + ((BinopToken) token).ordinal();
+        } else if(token instanceof UnopToken) {
+            return UNOP_START + ((UnopToken) token).ordinal();
+        } else if(token instanceof SymbolToken) {
+            return SYMBOL_START + ((SymbolToken) token).ordinal();
+        } else if(token instanceof TypeToken) {
+            return TYPE_START + ((TypeToken) token).ordinal();
+        }
+        throw new IllegalArgumentException("Unknown token " + token);
+    }
+
+    void add(final Token token, final int start, final int length, final int symbol) {
+        if(size == kinds.length) {
+            final int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        final int kind = kindOf(token);
+        kinds[size] = (byte) kind;
+        starts[size] = start;
+        lengths[size] = length;
+        switch (kind) {
+            case KIND_INT:
+                payloads[size] = ((IntToken) token).getValue();
+                break;
+            case KIND_STRING:
+                payloads[size] = strings.size();
+                strings.add((StringToken) token);
+                break;
+            case KIND_VARIABLE:
+                payloads[size] = symbol;
+                break;
+            default:
+                payloads[size] = 0;
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(final int position) {
+        checkPosition(position);
+        return kinds[position];
+    }
+
+    public int start(final int position) {
+        checkPosition(position);
+        return starts[position];
+    }
+
+    public int length(final int position) {
+        checkPosition(position);
+        return lengths[position];
+    }
+
+    /**
+     * Value of an Int, index of a String literal or symbol of a variable, 0 for the other kinds.
+     */
+    public int payload(final int position) {
+        checkPosition(position);
+        return payloads[position];
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public Token token(final int position) {
+        checkPosition(position);
+        final int kind = kinds[position];
+        switch (kind) {
+            case KIND_INT:
+                return IntToken.valueOf(payloads[position]);
+            case KIND_STRING:
+                return strings.get(payloads[position]);
+            case KIND_VARIABLE:
+                return symbols.token(payloads[position]);
+            default:
+                return FIXED_TOKENS[kind - KIND_FIXED_START];
+        }
+    }
+
+    private void checkPosition(final int position) {
+        if(position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position out of bounds: " + position);
+        }
+    }
+
+    @Override
+    public Token nextToken() {
+        return next < size ? token(next++) : null;
+    }
+
+    @Override
+    public Token peek(final int k) {
+        return next + k < size ? token(next + k) : null;
+    }
+}
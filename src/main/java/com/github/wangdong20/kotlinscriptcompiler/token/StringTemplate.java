@@ -0,0 +1,67 @@
+package com.github.wangdong20.kotlinscriptcompiler.token;
+
+/**
+ * A string literal split into its literal text and its placeholders, $name and ${exp}.
+ * The literal is the value without the placeholders, each placeholder has a position in it
+ * and a range of tokens, all placeholder tokens are kept one after another in one array.
+ */
+public class StringTemplate {
+    private static final int[] NO_POSITIONS = new int[0];
+    private static final int[] NO_STARTS = new int[]{0};
+    private static final Token[] NO_TOKENS = new Token[0];
+
+    private final String literal;
+    private final int[] positions;  // where placeholder i goes in literal
+    private final int[] starts;     // placeholder i has tokens[starts[i], starts[i + 1])
+    private final Token[] tokens;
+
+    StringTemplate(final String literal) {
+        this(literal, NO_POSITIONS, NO_STARTS, NO_TOKENS);
+    }
+
+    StringTemplate(final String literal, final int[] positions, final int[] starts, final Token[] tokens) {
+        this.literal = literal;
+        this.positions = positions;
+        this.starts = starts;
+        this.tokens = tokens;
+    }
+
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * Number of placeholders.
+     */
+    public int size() {
+        return positions.length;
+    }
+
+    public int getPosition(final int placeholder) {
+        return positions[placeholder];
+    }
+
+    public int getStart(final int placeholder) {
+        return starts[placeholder];
+    }
+
+    public int getEnd(final int placeholder) {
+        return starts[placeholder + 1];
+    }
+
+    // Called by Tokenizer only, before the template is shared with other threads
+    void intern(final SymbolTable symbols) {
+        for(int i = 0; i < tokens.length; i++) {
+            if(tokens[i] instanceof VariableToken) {
+                tokens[i] = symbols.intern((VariableToken) tokens[i]);
+            }
+        }
+    }
+
+    /**
+     * Tokens of all placeholders, the array is shared, do not modify it.
+     */
+    public Token[] getTokens() {
+        return tokens;
+    }
+}
@@ -2,15 +2,39 @@ package com.github.wangdong20.kotlinscriptcompiler.token;
 
 public class StringToken implements Token {
     private final String value;
+    // Set by Tokenizer, or lexed on first use. StringTemplate is immutable, so lexing it twice on two threads is harmless.
+    private StringTemplate template;
 
     public StringToken(String value) {
+        this(value, null);
+    }
+
+    StringToken(String value, StringTemplate template) {
         this.value = value;
+        this.template = template;
     }
 
     public String getValue() {
         return value;
     }
 
+    /**
+     * Literal text and placeholders of the value.
+     */
+    public StringTemplate getTemplate() throws TokenizerException {
+        if(template == null) {
+            template = Tokenizer.lexTemplate(value, new SymbolTable());
+        }
+        return template;
+    }
+
+    // Placeholder names interned in symbols instead, before the token is shared with other threads
+    void intern(final SymbolTable symbols) {
+        if(template != null) {
+            template.intern(symbols);
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof StringToken) {
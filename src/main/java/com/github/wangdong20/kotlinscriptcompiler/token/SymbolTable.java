@@ -0,0 +1,103 @@
+package com.github.wangdong20.kotlinscriptcompiler.token;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifiers: every distinct name gets a symbol id, counting from 0 in the order names are first seen,
+ * and one shared VariableToken. Names are looked up straight from a char[] range, only a name not seen before
+ * is copied into a String.
+ */
+public class SymbolTable {
+    private static final int INITIAL_SIZE = 64;
+
+    private int[] slots;        // open hash table of symbol id + 1, 0 is an empty slot
+    private VariableToken[] tokens;     // indexed by symbol id
+    private int size;
+
+    public SymbolTable() {
+        this.slots = new int[INITIAL_SIZE];
+        this.tokens = new VariableToken[INITIAL_SIZE / 2];
+        this.size = 0;
+    }
+
+    /**
+     * Symbol id of chars[start, start + length), hash is the String.hashCode() of these characters.
+     */
+    int intern(final char[] chars, final int start, final int length, final int hash) {
+        int slot = slotOf(hash);
+        int entry;
+        while((entry = slots[slot]) != 0) {
+            final String name = tokens[entry - 1].getName();
+            if(name.length() == length && name.hashCode() == hash) {
+                int i = 0;
+                while(i < length && name.charAt(i) == chars[start + i]) {
+                    i++;
+                }
+                if(i == length) {
+                    return entry - 1;
+                }
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        add(new VariableToken(new String(chars, start, length)), slot);
+        return size - 1;
+    }
+
+    /**
+     * Shared token of the name of token, token itself becomes the shared one when the name is new.
+     */
+    VariableToken intern(final VariableToken token) {
+        final String name = token.getName();
+        int slot = slotOf(name.hashCode());
+        int entry;
+        while((entry = slots[slot]) != 0) {
+            if(tokens[entry - 1].getName().equals(name)) {
+                return tokens[entry - 1];
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        add(token, slot);
+        return token;
+    }
+
+    private void add(final VariableToken token, final int slot) {
+        if(size == tokens.length) {
+            tokens = Arrays.copyOf(tokens, size * 2);
+        }
+        tokens[size] = token;
+        slots[slot] = ++size;
+        if(size * 2 > slots.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for(int id = 0; id < size; id++) {
+            int slot = slotOf(tokens[id].getName().hashCode());
+            while(slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private int slotOf(final int hash) {
+        return (hash ^ (hash >>> 16)) & (slots.length - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public VariableToken token(final int symbol) {
+        if(symbol < 0 || symbol >= size) {
+            throw new IndexOutOfBoundsException("No symbol " + symbol);
+        }
+        return tokens[symbol];
+    }
+
+    public String name(final int symbol) {
+        return token(symbol).getName();
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.wangdong20.kotlinscriptcompiler.token;
+
+/**
+ * Pull based access to a token stream, so the whole token list never has to be built in memory.
+ */
+public interface TokenSource {
+    /**
+     * Consume the next token, null when there is no more token.
+     */
+    Token nextToken() throws TokenizerException;
+
+    /**
+     * Look at the token k positions ahead without consuming it, peek(0) is the token nextToken() returns next.
+     * null when the input ends before that token.
+     */
+    Token peek(int k) throws TokenizerException;
+}
@@ -1,411 +1,825 @@
 package com.github.wangdong20.kotlinscriptcompiler.token;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
-public class Tokenizer {
-    private static char[] input;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Tokenizer works in two modes. Constructed from a String or char[] the whole input is in memory,
+ * constructed from a Reader, ReadableByteChannel or ByteBuffer the input is pulled through a fixed size buffer,
+ * so memory stays bounded no matter how big the source file is (the buffer only grows for a token longer than it).
+ * Either way tokens can be pulled one by one with nextToken() / peek(k), or all at once with tokenize().
+ * Each token is read in a single pass, the class of its first character in a table decides what is read next,
+ * keywords and types are looked up in the input buffer directly, without building a String first.
+ * All lexing state belongs to the instance and the shared keyword / operator tables are read only,
+ * so different Tokenizer instances can run on different threads at the same time.
+ * A single instance is not thread safe and should be used by one thread at a time, an input in memory
+ * can still be lexed by many threads with tokenize(ForkJoinPool).
+ */
+public class Tokenizer implements TokenSource {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private char[] input;
     private int inputPos;
-    private static Map<String, Token> keywordMap;
-    private static Map<String, Token> bracketsMap;
-    private static Map<String, Token> binopMap;
-    private static Map<String, Token> unopMap;
-    private static Map<String, Token> symbolMap;
-    private static Map<String, Token> typeMap;
+    private int inputLimit;         // input[0, inputLimit) holds valid characters
+    private final Reader reader;    // null when the whole input is already in memory
+    private final ByteBuffer bytes;     // UTF-8 source, e.g. a mapped file, read instead of reader
+    private final CharsetDecoder decoder;   // only used for non ASCII runs in bytes
+    private boolean endOfInput;
+    private final List<Token> lookahead;    // tokens read by peek(k) but not consumed yet
+    private int tokenStart;     // start of the token being read, -1 between tokens, kept in the buffer by fill()
+    private final SymbolTable symbols;  // same name gives the same VariableToken
+    private long consumed;      // characters dropped from the front of the buffer so far
+    private long lastStart;     // offset in the source of the last token read, and of the end of it
+    private long lastEnd;
+    private int lastSymbol;     // symbol of the last token read, when it is a VariableToken
+    private boolean chunked;    // lexing a chunk, a string or comment may run over inputLimit
+    private int cutStart = -1;  // start of the string or comment which ran over inputLimit in a chunk
+
+    // Chunks of tokenize(ForkJoinPool), inputs shorter than two chunks are lexed by one thread
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    private static final int CHUNKS_PER_THREAD = 4;     // so a slow chunk does not keep the other threads idle
+
+    // Every ASCII character has a class, the class of the first character decides how the token is read
+    private static final byte OTHER = 0;
+    private static final byte WHITESPACE = 1;   // except '\n', which is a token
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte QUOTE = 4;
+    private static final byte SINGLE = 5;       // always a token of one character
+    private static final byte OPERATOR = 6;     // may be followed by '=' or by itself, e.g. +=, ++
+    private static final byte[] CHAR_CLASS = new byte[128];
+    private static final Token[] SINGLE_TOKENS = new Token[128];    // token of the character on its own
+    private static final Token[] EQUAL_TOKENS = new Token[128];     // token of the character followed by '='
+    private static final Token[] DOUBLE_TOKENS = new Token[128];    // token of the character twice
+
+    // Keywords and types in an open table without collisions, indexed by wordHash
+    private static final int WORD_TABLE_SIZE = 64;
+    private static final char[][] WORDS = new char[WORD_TABLE_SIZE][];
+    private static final Token[] WORD_TOKENS = new Token[WORD_TABLE_SIZE];
 
     static {
-        keywordMap = new HashMap<String, Token>();
-        keywordMap.put("if", KeywordToken.TK_IF);
-        keywordMap.put("else", KeywordToken.TK_ELSE);
-        keywordMap.put("break", KeywordToken.TK_BREAK);
-        keywordMap.put("continue", KeywordToken.TK_CONTINUE);
-        keywordMap.put("while", KeywordToken.TK_WHILE);
-        keywordMap.put("for", KeywordToken.TK_FOR);
-        keywordMap.put("fun", KeywordToken.TK_FUN);
-        keywordMap.put("var", KeywordToken.TK_VAR);
-        keywordMap.put("val", KeywordToken.TK_VAL);
-        keywordMap.put("in", KeywordToken.TK_IN);
-        keywordMap.put("step", KeywordToken.TK_STEP);
-        keywordMap.put("return", KeywordToken.TK_RETURN);
-        keywordMap.put("print", KeywordToken.TK_PRINT);
-        keywordMap.put("println", KeywordToken.TK_PRINTLN);
-        keywordMap.put("true", KeywordToken.TK_TRUE);
-        keywordMap.put("false", KeywordToken.TK_FALSE);
-        keywordMap.put("main", KeywordToken.TK_MAIN);
-        keywordMap.put("arrayOf", KeywordToken.TK_ARRAY_OF);
-        keywordMap.put("mutableListOf", KeywordToken.TK_MUTABLE_LIST_OF);
-
-        bracketsMap = new HashMap<String, Token>();
-        bracketsMap.put("(", BracketsToken.TK_LPAREN);
-        bracketsMap.put(")", BracketsToken.TK_RPAREN);
-        bracketsMap.put("{", BracketsToken.TK_LCURLY);
-        bracketsMap.put("}", BracketsToken.TK_RCURLY);
-        bracketsMap.put("[", BracketsToken.TK_LBRACKET);
-        bracketsMap.put("]", BracketsToken.TK_RBRACKET);
-
+        for(char c = 0; c < 128; c++) {
+            if(Character.isWhitespace(c) && c != '\n') {
+                CHAR_CLASS[c] = WHITESPACE;
+            } else if(Character.isLetter(c)) {
+                CHAR_CLASS[c] = LETTER;
+            } else if(Character.isDigit(c)) {
+                CHAR_CLASS[c] = DIGIT;
+            }
+        }
+        CHAR_CLASS['"'] = QUOTE;
+
+        single('(', BracketsToken.TK_LPAREN);
+        single(')', BracketsToken.TK_RPAREN);
+        single('{', BracketsToken.TK_LCURLY);
+        single('}', BracketsToken.TK_RCURLY);
+        single('[', BracketsToken.TK_LBRACKET);
+        single(']', BracketsToken.TK_RBRACKET);
         // Angle brackets may have conflict with greater, less token, so comment first
-//        bracketsMap.put("<", BracketsToken.TK_LANGLE);
-//        bracketsMap.put(">", BracketsToken.TK_RANGLE);
-
-        binopMap = new HashMap<String, Token>();
-        binopMap.put("+", BinopToken.TK_PLUS);
-        binopMap.put("-", BinopToken.TK_MINUS);
-        binopMap.put("*", BinopToken.TK_MULTIPLY);
-        binopMap.put("/", BinopToken.TK_DIVIDE);
-        binopMap.put("%", BinopToken.TK_MOD);
-        binopMap.put("+=", BinopToken.TK_PLUS_EQUAL);
-        binopMap.put("-=", BinopToken.TK_MINUS_EQUAL);
-        binopMap.put("*=", BinopToken.TK_MULTIPLY_EQUAL);
-        binopMap.put("/=", BinopToken.TK_DIVIDE_EQUAL);
-        binopMap.put("||", BinopToken.TK_OR);
-        binopMap.put("&&", BinopToken.TK_AND);
-        binopMap.put("!=", BinopToken.TK_NOT_EQUAL);
-        binopMap.put(">", BinopToken.TK_GREATER_THAN);
-        binopMap.put("<", BinopToken.TK_LESS_THAN);
-        binopMap.put("==", BinopToken.TK_EQUAL_EQUAL);
-        binopMap.put(">=", BinopToken.TK_GREATER_OR_EQUAL);
-        binopMap.put("<=", BinopToken.TK_LESS_OR_EQUAL);
-        binopMap.put("=", BinopToken.TK_EQUAL);
-
-        unopMap = new HashMap<String, Token>();
-        unopMap.put("!", UnopToken.TK_NOT);
-        unopMap.put("++", UnopToken.TK_PLUS_PLUS);
-        unopMap.put("--", UnopToken.TK_MINUS_MINUS);
-
-        symbolMap = new HashMap<String, Token>();
-        symbolMap.put(":", SymbolToken.TK_COLON);
-        symbolMap.put(";", SymbolToken.TK_SEMICOLON);
-        symbolMap.put("\n", SymbolToken.TK_LINE_BREAK);
-        symbolMap.put("->", SymbolToken.TK_ARROW);
-        symbolMap.put(",", SymbolToken.TK_COMMA);
-        symbolMap.put(".", SymbolToken.TK_DOT);
-        symbolMap.put("..", SymbolToken.TK_DOT_DOT);
-        symbolMap.put("$", SymbolToken.TK_DOLLAR_MARK);
-
-
-        typeMap = new HashMap<String, Token>();
-        typeMap.put("Int", TypeToken.TK_TYPE_INT);
-        typeMap.put("String", TypeToken.TK_TYPE_STRING);
-        typeMap.put("Boolean", TypeToken.TK_TYPE_BOOLEAN);
-        typeMap.put("Unit", TypeToken.TK_TYPE_UNIT);
-        typeMap.put("Array", TypeToken.TK_ARRAY);
-        typeMap.put("MutableList", TypeToken.TK_MUTABLE_LIST);
-        typeMap.put("Any", TypeToken.TK_ANY);
+//        single('<', BracketsToken.TK_LANGLE);
+//        single('>', BracketsToken.TK_RANGLE);
+        single('%', BinopToken.TK_MOD);
+        single(':', SymbolToken.TK_COLON);
+        single(';', SymbolToken.TK_SEMICOLON);
+        single('\n', SymbolToken.TK_LINE_BREAK);
+        single(',', SymbolToken.TK_COMMA);
+        single('$', SymbolToken.TK_DOLLAR_MARK);
+
+        operator('+', BinopToken.TK_PLUS, BinopToken.TK_PLUS_EQUAL, UnopToken.TK_PLUS_PLUS);
+        operator('-', BinopToken.TK_MINUS, BinopToken.TK_MINUS_EQUAL, UnopToken.TK_MINUS_MINUS);
+        operator('*', BinopToken.TK_MULTIPLY, BinopToken.TK_MULTIPLY_EQUAL, null);
+        operator('/', BinopToken.TK_DIVIDE, BinopToken.TK_DIVIDE_EQUAL, null);
+        operator('!', UnopToken.TK_NOT, BinopToken.TK_NOT_EQUAL, null);
+        operator('=', BinopToken.TK_EQUAL, BinopToken.TK_EQUAL_EQUAL, null);
+        operator('>', BinopToken.TK_GREATER_THAN, BinopToken.TK_GREATER_OR_EQUAL, null);
+        operator('<', BinopToken.TK_LESS_THAN, BinopToken.TK_LESS_OR_EQUAL, null);
+        operator('|', null, null, BinopToken.TK_OR);
+        operator('&', null, null, BinopToken.TK_AND);
+        operator('.', SymbolToken.TK_DOT, null, SymbolToken.TK_DOT_DOT);
+
+        word("if", KeywordToken.TK_IF);
+        word("else", KeywordToken.TK_ELSE);
+        word("break", KeywordToken.TK_BREAK);
+        word("continue", KeywordToken.TK_CONTINUE);
+        word("while", KeywordToken.TK_WHILE);
+        word("for", KeywordToken.TK_FOR);
+        word("fun", KeywordToken.TK_FUN);
+        word("var", KeywordToken.TK_VAR);
+        word("val", KeywordToken.TK_VAL);
+        word("in", KeywordToken.TK_IN);
+        word("step", KeywordToken.TK_STEP);
+        word("return", KeywordToken.TK_RETURN);
+        word("print", KeywordToken.TK_PRINT);
+        word("println", KeywordToken.TK_PRINTLN);
+        word("true", KeywordToken.TK_TRUE);
+        word("false", KeywordToken.TK_FALSE);
+        word("main", KeywordToken.TK_MAIN);
+        word("arrayOf", KeywordToken.TK_ARRAY_OF);
+        word("mutableListOf", KeywordToken.TK_MUTABLE_LIST_OF);
+
+        word("Int", TypeToken.TK_TYPE_INT);
+        word("String", TypeToken.TK_TYPE_STRING);
+        word("Boolean", TypeToken.TK_TYPE_BOOLEAN);
+        word("Unit", TypeToken.TK_TYPE_UNIT);
+        word("Array", TypeToken.TK_ARRAY);
+        word("MutableList", TypeToken.TK_MUTABLE_LIST);
+        word("Any", TypeToken.TK_ANY);
         // I think high order function token will be a class not a enum case, so will not add this token
     }
 
+    private static void single(final char c, final Token token) {
+        CHAR_CLASS[c] = SINGLE;
+        SINGLE_TOKENS[c] = token;
+    }
+
+    private static void operator(final char c, final Token alone, final Token withEqual, final Token doubled) {
+        CHAR_CLASS[c] = OPERATOR;
+        SINGLE_TOKENS[c] = alone;
+        EQUAL_TOKENS[c] = withEqual;
+        DOUBLE_TOKENS[c] = doubled;
+    }
+
+    private static void word(final String word, final Token token) {
+        final int hash = wordHash(word.charAt(0), word.charAt(word.length() - 1), word.length());
+        if(WORDS[hash] != null) {
+            throw new IllegalStateException("Keywords " + new String(WORDS[hash]) + " and " + word + " have the same hash");
+        }
+        WORDS[hash] = word.toCharArray();
+        WORD_TOKENS[hash] = token;
+    }
+
+    // Perfect hash of all keywords and types, every one of them lands in its own slot
+    private static int wordHash(final char first, final char last, final int length) {
+        return (first * 5 + last * 29 + length) & (WORD_TABLE_SIZE - 1);
+    }
+
     public Tokenizer(final String input) {
-        this.input = input.toCharArray();
-        this.inputPos = 0;
+        this(input.toCharArray());
     }
 
     public Tokenizer(final char[] input) {
+        this(input, new SymbolTable());
+    }
+
+    private Tokenizer(final char[] input, final SymbolTable symbols) {
         this.input = input;
         this.inputPos = 0;
+        this.inputLimit = input.length;
+        this.reader = null;
+        this.bytes = null;
+        this.decoder = null;
+        this.endOfInput = true;
+        this.lookahead = new ArrayList<>();
+        this.tokenStart = -1;
+        this.symbols = symbols;
     }
 
-    private IntToken tryTokenizeInteger() {
-        String digits = "";
+    public Tokenizer(final Reader reader) {
+        this(reader, DEFAULT_BUFFER_SIZE);
+    }
 
-        if(inputPos < input.length && input[inputPos] == '-' && inputPos + 1 < input.length &&
-            Character.isDigit(input[inputPos + 1])) {
-            digits += input[inputPos];
-            inputPos++;
-        }
+    /**
+     * Streaming mode, the reader is never read further than needed for the next token and
+     * it is not closed by the tokenizer.
+     */
+    public Tokenizer(final Reader reader, final int bufferSize) {
+        this(reader, null, bufferSize);
+    }
 
-        while(inputPos < input.length && Character.isDigit(input[inputPos])) {
-            digits += input[inputPos];
-            inputPos++;
+    /**
+     * Streaming mode over UTF-8 encoded bytes, malformed input is replaced instead of failing the whole file.
+     */
+    public Tokenizer(final ReadableByteChannel channel) {
+        this(Channels.newReader(channel, newUtf8Decoder(), -1), DEFAULT_BUFFER_SIZE);
+    }
+
+    public Tokenizer(final ByteBuffer bytes) {
+        this(bytes, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Streaming mode over UTF-8 bytes from position to limit of the buffer. ASCII is copied from the
+     * bytes into the buffer as it is, only runs of non ASCII bytes go through the decoder.
+     * The ByteBuffer itself is not modified.
+     */
+    public Tokenizer(final ByteBuffer bytes, final int bufferSize) {
+        this(null, bytes.duplicate(), bufferSize);
+    }
+
+    private Tokenizer(final Reader reader, final ByteBuffer bytes, final int bufferSize) {
+        if(bufferSize < 4) {
+            throw new IllegalArgumentException("Buffer size should be at least 4, but got " + bufferSize);
         }
+        this.input = new char[bufferSize];
+        this.inputPos = 0;
+        this.inputLimit = 0;
+        this.reader = reader;
+        this.bytes = bytes;
+        this.decoder = bytes == null ? null : newUtf8Decoder();
+        this.endOfInput = false;
+        this.lookahead = new ArrayList<>();
+        this.tokenStart = -1;
+        this.symbols = new SymbolTable();
+    }
 
-        if(digits.length() > 0) {
-            return new IntToken(Integer.parseInt(digits));
+    /**
+     * Tokenizer for a source file: the file is memory mapped and lexed from the mapping,
+     * so it goes from disk to tokens without reading it into a String. Files too big to be
+     * mapped at once are streamed through the channel instead, so keep the channel open until
+     * tokenizing is done.
+     */
+    public static Tokenizer forFile(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if(size <= Integer.MAX_VALUE) {
+            return new Tokenizer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } else {
+            return new Tokenizer(channel);
         }
-        return null;
     }
 
-    private Token tryTokenizeVariableOrKeywordOrType() {
-        String letters = "";
+    private static CharsetDecoder newUtf8Decoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
 
-        if(inputPos < input.length && Character.isLetter(input[inputPos])) {
-            letters += input[inputPos];
-            inputPos++;
+    // Is input[inputPos + k] readable? In streaming mode this pulls more characters into the buffer.
+    private boolean has(final int k) throws TokenizerException {
+        if(inputPos + k < inputLimit) {
+            return true;
+        } else if(endOfInput) {
+            return false;
+        }
+        fill();
+        return inputPos + k < inputLimit;
+    }
 
-            while(inputPos < input.length && Character.isLetterOrDigit(input[inputPos])) {
-                letters += input[inputPos];
-                inputPos++;
+    private void fill() throws TokenizerException {
+        // Keep the token being read and one character before inputPos, readOperator looks back at it.
+        int keep = inputPos > 0 ? inputPos - 1 : 0;
+        if(tokenStart >= 0 && tokenStart < keep) {
+            keep = tokenStart;
+        }
+        if(keep > 0) {
+            System.arraycopy(input, keep, input, 0, inputLimit - keep);
+            inputLimit -= keep;
+            inputPos -= keep;
+            consumed += keep;
+            if(tokenStart >= 0) {
+                tokenStart -= keep;
+            }
+        } else if(inputLimit == input.length) {    // token longer than the buffer
+            input = Arrays.copyOf(input, input.length * 2);
+        }
+        if(bytes != null) {
+            fillFromBytes();
+            return;
+        }
+        try {
+            while(inputLimit < input.length) {
+                int read = reader.read(input, inputLimit, input.length - inputLimit);
+                if(read < 0) {
+                    endOfInput = true;
+                    break;
+                } else if(read == 0) {
+                    break;
+                }
+                inputLimit += read;
             }
+        } catch (IOException e) {
+            throw new TokenizerException("Unable to read input: " + e.getMessage());
+        }
+    }
 
-            // Now consider all the keyword case
-            if(keywordMap.containsKey(letters)) {
-                return keywordMap.get(letters);
+    private void fillFromBytes() {
+        int pos = bytes.position();
+        final int end = bytes.limit();
+        while(inputLimit < input.length && pos < end) {
+            final byte b = bytes.get(pos);
+            if(b >= 0) {    // ASCII
+                input[inputLimit++] = (char) b;
+                pos++;
             } else {
-                if(typeMap.containsKey(letters)) {
-                    return typeMap.get(letters);
-                } else {
-                    return new VariableToken(letters);
+                // UTF-8 never has bytes below 0x80 inside a multi byte character, so a run of
+                // non ASCII bytes holds whole characters and can be decoded on its own.
+                int runEnd = pos + 1;
+                while(runEnd < end && bytes.get(runEnd) < 0) {
+                    runEnd++;
+                }
+                final ByteBuffer run = bytes.duplicate();
+                run.limit(runEnd).position(pos);
+                final CharBuffer out = CharBuffer.wrap(input, inputLimit, input.length - inputLimit);
+                decoder.reset();
+                decoder.decode(run, out, true);
+                decoder.flush(out);
+                if(run.position() == pos) {     // not even one character fits, fill again after compact
+                    break;
                 }
+                inputLimit = out.position();
+                pos = run.position();
             }
-        } else {
-            return null;
+        }
+        bytes.position(pos);
+        if(pos == end) {
+            endOfInput = true;
         }
     }
 
-    private Token tryTokenizeBracket() {
-        if(inputPos < input.length) {
-            String key = Character.toString(input[inputPos]);
-            if(bracketsMap.containsKey(key)) {
-                inputPos++;
-                return bracketsMap.get(key);
+    private static boolean isDigit(final char c) {
+        return c < 128 ? CHAR_CLASS[c] == DIGIT : Character.isDigit(c);
+    }
+
+    private static boolean isLetterOrDigit(final char c) {
+        return c < 128 ? CHAR_CLASS[c] == LETTER || CHAR_CLASS[c] == DIGIT : Character.isLetterOrDigit(c);
+    }
+
+    // starts on the first digit, or on '-' followed by a digit
+    private IntToken readInteger() throws TokenizerException {
+        final boolean negative = input[inputPos] == '-';
+        if(negative) {
+            inputPos++;
+        }
+        long value = 0;
+        boolean overflow = false;
+        while((inputPos < inputLimit || has(0)) && isDigit(input[inputPos])) {
+            final char c = input[inputPos];
+            value = value * 10 + (c < 128 ? c - '0' : Character.digit(c, 10));
+            if(value > -(long) Integer.MIN_VALUE) {
+                overflow = true;
+                value = 0;
             }
+            inputPos++;
         }
-        return null;
+        if(negative) {
+            value = -value;
+        }
+        if(overflow || value > Integer.MAX_VALUE) {
+            // Let Integer.parseInt report the number which does not fit in Int
+            return new IntToken(Integer.parseInt(new String(input, tokenStart, inputPos - tokenStart)));
+        }
+        return IntToken.valueOf((int) value);
     }
 
-    // now combine binop and unop together to figure out which token is
-    private Token tryTokenizeOp() {
-        if(inputPos < input.length) {
-            switch (input[inputPos]) {
-                case '+':
-                case '-':
-                    if(inputPos + 1 < input.length && (input[inputPos + 1] == '=' || input[inputPos + 1] == input[inputPos])) {
-                        char first = input[inputPos];
-                        char second = input[inputPos + 1];
-                        String key = Character.toString(first) + second;
-
-                        if(input[inputPos + 1] == '=') {    // +=, -= case
-                            inputPos += 2;
-                            return binopMap.get(key);
-                        } else if(input[inputPos + 1] == input[inputPos]) {  // ++, -- case
-                            inputPos += 2;
-                            return unopMap.get(key);
-                        } else {
-                            return null;
-                        }
-
-                    } else if((inputPos + 1 < input.length && input[inputPos] != '-' || input[inputPos + 1] != '>') || inputPos + 1 >= input.length) {    // +, - case but exclude ->
-                        String key = Character.toString(input[inputPos]);
-                        if(binopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return binopMap.get(key);
-                        } else if(unopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return unopMap.get(key);
-                        } else {
-                            return null;
-                        }
-                    } else {
-                        return null;
-                    }
-                case '!':
-                case '=':
-                case '>':
-                case '<':
-                case '*':
-                case '/':
-                    if(inputPos - 1 >= 0 && input[inputPos - 1] == '-' && input[inputPos] == '>') {
-                        return null;
-                    }
-                    if(inputPos + 1 < input.length && input[inputPos + 1] == '=') { // !=, ==, >=, <=, *=, /= case
-                        char first = input[inputPos];
-                        char second = input[inputPos + 1];
-                        inputPos += 2;
-                        return binopMap.get(Character.toString(first) + second);
-                    } else {    // !, =, <, >
-                        String key = Character.toString(input[inputPos]);
-                        if(binopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return binopMap.get(key);
-                        } else if(unopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return unopMap.get(key);
-                        } else {
-                            return null;
-                        }
-                    }
-                case '|':
-                    if(inputPos + 1 < input.length && input[inputPos + 1] == '|') { // ||
-                        inputPos += 2;
-                        return binopMap.get("||");
-                    } else {
-                        return null;
-                    }
-                case '&':
-                    if(inputPos + 1 < input.length && input[inputPos + 1] == '&') { // &&
-                        inputPos += 2;
-                        return binopMap.get("&&");
-                    } else {
-                        return null;
-                    }
-                default:
-                    String key = Character.toString(input[inputPos]);
-                    if(input[inputPos] != '-') {
-                        if (binopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return binopMap.get(key);
-                        } else if (unopMap.containsKey(key)) {
-                            inputPos += 1;
-                            return unopMap.get(key);
-                        } else {
-                            return null;
-                        }
-                    } else {
-                        return null;
-                    }
+    // Keyword, type or variable, starts on a letter
+    private Token readWord() throws TokenizerException {
+        int hash = input[inputPos];
+        inputPos++;
+        while((inputPos < inputLimit || has(0)) && isLetterOrDigit(input[inputPos])) {
+            hash = 31 * hash + input[inputPos];
+            inputPos++;
+        }
+        final int length = inputPos - tokenStart;
+        final int wordHash = wordHash(input[tokenStart], input[inputPos - 1], length);
+        final char[] word = WORDS[wordHash];
+        if(word != null && word.length == length) {
+            int i = 0;
+            while(i < length && word[i] == input[tokenStart + i]) {
+                i++;
+            }
+            if(i == length) {
+                return WORD_TOKENS[wordHash];
             }
-        } else {
-            return null;
         }
+        lastSymbol = symbols.intern(input, tokenStart, length, hash);
+        return symbols.token(lastSymbol);
     }
 
-    private Token tryTokenizeSymbol() {
-        if(inputPos < input.length) {
-            switch (input[inputPos]) {
-                case '\n':
-                    inputPos++;
-                    return symbolMap.get("\n");
-                case ';':
-                    inputPos++;
-                    return symbolMap.get(";");
-                case ':':
-                    inputPos++;
-                    return symbolMap.get(":");
-                case ',':
-                    inputPos++;
-                    return symbolMap.get(",");
-                case '-':
-                    if(inputPos + 1 < input.length && input[inputPos + 1] == '>') {
-                        inputPos += 2;
-                        return symbolMap.get("->");
-                    } else {
-                        return null;
-                    }
-                case '.':
-                    if(inputPos + 1 < input.length && input[inputPos + 1] == '.') {
-                        inputPos += 2;
-                        return symbolMap.get("..");
-                    } else {
-                        inputPos += 1;
-                        return symbolMap.get(".");
+    // starts on the opening '"', a string without its closing '"' is an error
+    private StringToken readString() throws TokenizerException {
+        inputPos++;
+        boolean dollar = false;
+        while(has(0)) {
+            final char c = input[inputPos];
+            if(c == '"') {
+                inputPos++;
+                final String value = new String(input, tokenStart + 1, inputPos - tokenStart - 2);
+                StringTemplate template = null;
+                if(dollar) {
+                    try {
+                        template = lexTemplate(value, symbols);
+                    } catch (TokenizerException e) {
+                        // a broken placeholder is reported when the string is parsed, like before
                     }
-                case '$':
-                    inputPos++;
-                    return symbolMap.get("$");
-                default:
-                    return null;
+                }
+                return new StringToken(value, template);
             }
-        } else {
+            dollar |= c == '$';
+            inputPos++;
+        }
+        if(cut(tokenStart)) {
             return null;
         }
+        throw new TokenizerException("Has more input!");
     }
 
-    private Token tryTokenizeString() {
-        if(inputPos < input.length) {
-
-            String value = "";
-
-            // This can be the end of string token or start of string token
-            if(input[inputPos] == '"') {
-                inputPos++;
-                boolean isStringToken = false;
-                while(inputPos < input.length) {
-                    if(input[inputPos] != '"') {
-                        value += input[inputPos];
-                        inputPos++;
-                    } else {
-                        isStringToken = true;
-                        inputPos++;
-                        break;
+    /**
+     * Splits the value of a string literal into literal text and the tokens of its placeholders in one pass.
+     * ${exp} runs to the first '}', $name is a letter followed by letters and digits, any other '$' is literal.
+     * Positions count the characters of the literal before the placeholder, where "$ " counts one more.
+     * All placeholders are lexed by the same Tokenizer, which interns names in symbols.
+     */
+    static StringTemplate lexTemplate(final String value, final SymbolTable symbols) throws TokenizerException {
+        if(value.indexOf('$') < 0) {
+            return new StringTemplate(value);
+        }
+        final char[] chars = value.toCharArray();
+        final int length = chars.length;
+        final StringBuilder literal = new StringBuilder(length);
+        final List<Token> tokens = new ArrayList<>();
+        int[] positions = new int[4];
+        int[] starts = new int[5];
+        int placeholders = 0;
+        Tokenizer lexer = null;
+        int location = 0;
+        int index = 0;
+        while(index < length) {
+            final char c = chars[index];
+            int start = -1;
+            int end = -1;
+            if(c == '$' && index + 1 < length) {
+                final char next = chars[index + 1];
+                if(next == '{') {
+                    start = index + 2;
+                    end = start;
+                    while(end < length && chars[end] != '}') {
+                        end++;
                     }
+                    if(end == length) {
+                        throw new TokenizerException("Invalid string interpolation! Expect }");
+                    }
+                    index = end + 1;
+                } else if(Character.isLetter(next)) {
+                    start = index + 1;
+                    end = start + 1;
+                    while(end < length && Character.isLetterOrDigit(chars[end])) {
+                        end++;
+                    }
+                    index = end;
+                } else if(Character.isWhitespace(next)) {
+                    location++;
                 }
-                if(isStringToken) {
-                    return new StringToken(value);
-                }
-                else {
-                    return null;
-                }
             }
+            if(start < 0) {
+                literal.append(c);
+                location++;
+                index++;
+                continue;
+            }
+            if(lexer == null) {
+                lexer = new Tokenizer(chars, symbols);
+            }
+            lexer.inputPos = start;
+            lexer.inputLimit = end;
+            Token token;
+            while((token = lexer.readNextToken()) != null) {
+                tokens.add(token);
+            }
+            if(placeholders == positions.length) {
+                positions = Arrays.copyOf(positions, placeholders * 2);
+                starts = Arrays.copyOf(starts, placeholders * 2 + 1);
+            }
+            positions[placeholders] = location;
+            starts[++placeholders] = tokens.size();
         }
-        return null;
+        return new StringTemplate(literal.toString(), Arrays.copyOf(positions, placeholders),
+                Arrays.copyOf(starts, placeholders + 1), tokens.toArray(new Token[0]));
     }
 
-    private void skipWhiteSpace() {
-        while(inputPos < input.length && Character.isWhitespace(input[inputPos]) && input[inputPos] != '\n') {
+    // +, -, *, /, !, =, >, <, |, &, . on their own, followed by '=' or by themselves
+    private Token readOperator(final char c) throws TokenizerException {
+        if(c == '-' && has(1)) {
+            if(isDigit(input[inputPos + 1])) {
+                return readInteger();
+            } else if(input[inputPos + 1] == '>') {
+                inputPos += 2;
+                return SymbolToken.TK_ARROW;
+            }
+        }
+        // -- followed by > is not accepted
+        if(c == '>' && inputPos > 0 && input[inputPos - 1] == '-') {
+            throw new TokenizerException("Has more input!");
+        }
+        if(has(1)) {
+            final char next = input[inputPos + 1];
+            if(next == '=' && EQUAL_TOKENS[c] != null) {
+                inputPos += 2;
+                return EQUAL_TOKENS[c];
+            } else if(next == c && DOUBLE_TOKENS[c] != null) {
+                inputPos += 2;
+                return DOUBLE_TOKENS[c];
+            }
+        }
+        if(SINGLE_TOKENS[c] != null) {
             inputPos++;
+            return SINGLE_TOKENS[c];
+        }
+        throw new TokenizerException("Has more input!");
+    }
+
+    // Whether the string or comment from start, which runs to inputLimit, is cut by the end of a chunk
+    private boolean cut(final int start) {
+        if(chunked && inputLimit < input.length) {
+            cutStart = start;
+            return true;
         }
+        return false;
     }
 
-    private void skipComment() {
-        if(inputPos < input.length) {
+    // return whether a comment was skipped
+    private boolean skipComment() throws TokenizerException {
+        if(has(0)) {
             // "//" comment case
-            if(input[inputPos] == '/' && inputPos + 1 < input.length && input[inputPos + 1] == '/') {
+            if(input[inputPos] == '/' && has(1) && input[inputPos + 1] == '/') {
                 inputPos += 2;
-                while(inputPos < input.length && input[inputPos] != '\n') {
+                while(has(0) && input[inputPos] != '\n') {
                     inputPos++;
                 }
+                return true;
             }
             // "/*  */" comment case
-            else if(input[inputPos] == '/' && inputPos + 1 < input.length && input[inputPos + 1] == '*') {
+            else if(input[inputPos] == '/' && has(1) && input[inputPos + 1] == '*') {
+                final int start = inputPos;
                 inputPos += 2;
-                while(inputPos < input.length) {
-                    if(input[inputPos] == '*' && inputPos + 1 < input.length && input[inputPos + 1] == '/') {
+                while(has(0)) {
+                    if(input[inputPos] == '*' && has(1) && input[inputPos + 1] == '/') {
                         inputPos += 2;
-                        break;
+                        return true;
                     } else {
                         inputPos++;
                     }
                 }
+                cut(start);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // null means no more token in input
+    private Token readNextToken() throws TokenizerException {
+        while(inputPos < inputLimit || has(0)) {
+            final char c = input[inputPos];
+            if(c < 128 ? CHAR_CLASS[c] == WHITESPACE : Character.isWhitespace(c)) {
+                inputPos++;
+            } else if(c != '/' || !skipComment()) {
+                tokenStart = inputPos;
+                final Token token = tokenizeOne();
+                lastStart = consumed + tokenStart;
+                lastEnd = consumed + inputPos;
+                tokenStart = -1;
+                return token;
             }
         }
+        return null;
+    }
+
+    @Override
+    public Token nextToken() throws TokenizerException {
+        if(!lookahead.isEmpty()) {
+            return lookahead.remove(0);
+        }
+        return readNextToken();
+    }
+
+    @Override
+    public Token peek(final int k) throws TokenizerException {
+        while(lookahead.size() <= k) {
+            Token token = readNextToken();
+            if(token == null) {
+                return null;
+            }
+            lookahead.add(token);
+        }
+        return lookahead.get(k);
+    }
+
+    /**
+     * Reads all remaining tokens into the compact form, none of them may have been peeked yet.
+     */
+    public PackedTokenBuffer tokenizePacked() throws TokenizerException {
+        if(!lookahead.isEmpty()) {
+            throw new IllegalStateException("Tokens were peeked, their positions are lost");
+        }
+        final PackedTokenBuffer packed = new PackedTokenBuffer(symbols);
+        Token token;
+        while((token = readNextToken()) != null) {
+            packed.add(token, Math.toIntExact(lastStart), (int) (lastEnd - lastStart), lastSymbol);
+        }
+        return packed;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
     }
 
     public List<Token> tokenize() throws TokenizerException {
         List<Token> tokens = new ArrayList<Token>();
-        while(inputPos < input.length) {
-            skipWhiteSpace();
-            skipComment();
-            skipWhiteSpace();
-            if(inputPos < input.length) {
-                tokens.add(tokenizeOne());
-            }
+        Token token;
+        while((token = nextToken()) != null) {
+            tokens.add(token);
         }
         return tokens;
     }
 
-    // assume it's not starting on whitespace
-    private Token tokenizeOne() throws TokenizerException {
-        Token read = tryTokenizeString();
-        if(read != null) {
-            return read;
-        } else {
-            read = tryTokenizeVariableOrKeywordOrType();
-            if (read != null) {
-                return read;
-            } else {
-                read = tryTokenizeInteger();
-                if (read != null) {
-                    return read;
+    /**
+     * Same tokens as tokenize() for an input in memory, lexed on the pool a chunk at a time.
+     * Every chunk starts right after a line break, which ends every token except a string or a comment,
+     * and is lexed as if it does not start inside one of them. Joining the chunks in order checks that:
+     * when a string or comment runs over the end of a chunk, it is read to its end, and the input after it
+     * is lexed here up to the next chunk start which is between two tokens, where the chunk is right again.
+     * Chunks intern names in their own SymbolTable, the joined tokens are interned again in the one of this
+     * Tokenizer, so the result and its symbols are the same as after tokenize(). An error is the first one
+     * tokenize() would run into. In streaming mode and for a short input this is tokenize().
+     */
+    public List<Token> tokenize(final ForkJoinPool pool) throws TokenizerException {
+        if(reader != null || bytes != null || inputLimit - inputPos < 2 * MIN_CHUNK_SIZE) {
+            return tokenize();
+        }
+        final int[] starts = chunkStarts(pool.getParallelism() * CHUNKS_PER_THREAD);
+        final Chunk[] chunks = new Chunk[starts.length];
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(starts.length);
+        final ArrayList<Token> tokens = new ArrayList<>(lookahead);
+        lookahead.clear();
+        try {
+            for(int i = 0; i < starts.length; i++) {
+                chunks[i] = new Chunk(input, starts[i], i + 1 < starts.length ? starts[i + 1] : inputLimit);
+                tasks.add(pool.submit(chunks[i]));
+            }
+            final Tokenizer lexer = new Tokenizer(input, symbols);
+            lexer.chunked = true;
+            int next = 0;
+            while(next < starts.length) {
+                tasks.get(next).join();
+                final Chunk chunk = chunks[next];
+                chunk.throwError();
+                chunk.addTo(tokens, symbols);
+                if(chunk.lexer.cutStart < 0) {
+                    next++;
                 } else {
-                    read = tryTokenizeBracket();
-                    if (read != null) {
-                        return read;
-                    } else {
-                        read = tryTokenizeOp();
-                        if(read != null) {
-                            return read;
-                        } else {
-                            read = tryTokenizeSymbol();
-                            if(read != null) {
-                                return read;
-                            } else {
-                                throw new TokenizerException("Has more input!");
-                            }
+                    lexer.inputPos = chunk.lexer.cutStart;
+                    next = lexPastCut(lexer, starts, next + 1, tokens);
+                }
+            }
+        } finally {
+            for(ForkJoinTask<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        inputPos = inputLimit;
+        return tokens;
+    }
+
+    // Starts of about count chunks from inputPos on, each right after a line break
+    private int[] chunkStarts(final int count) {
+        final int size = Math.max(MIN_CHUNK_SIZE, (inputLimit - inputPos) / count);
+        final int[] starts = new int[(inputLimit - inputPos) / size + 1];
+        int chunks = 0;
+        starts[chunks++] = inputPos;
+        int pos = inputPos + size;
+        while(pos < inputLimit && chunks < starts.length) {
+            while(pos < inputLimit && input[pos - 1] != '\n') {
+                pos++;
+            }
+            if(pos < inputLimit) {
+                starts[chunks++] = pos;
+            }
+            pos += size;
+        }
+        return Arrays.copyOf(starts, chunks);
+    }
+
+    /**
+     * Reads the string or comment cut at lexer.inputPos to its end, then lexes on up to the first chunk start
+     * from next on which is between two tokens, and returns the index of that chunk.
+     * A string or comment cut again is read past the same way, the end of input gives starts.length.
+     */
+    private static int lexPastCut(final Tokenizer lexer, final int[] starts, int next, final List<Token> tokens)
+            throws TokenizerException {
+        while(true) {
+            lexer.inputLimit = lexer.input.length;
+            lexer.cutStart = -1;
+            // the string itself, or the token after the comment
+            Token token = lexer.readNextToken();
+            if(token != null) {
+                tokens.add(token);
+            }
+            while(next < starts.length && starts[next] < lexer.inputPos) {
+                next++;
+            }
+            if(next < starts.length) {
+                lexer.inputLimit = starts[next];
+            }
+            while((token = lexer.readNextToken()) != null) {
+                tokens.add(token);
+            }
+            if(lexer.cutStart < 0) {
+                return next;
+            }
+            lexer.inputPos = lexer.cutStart;
+        }
+    }
+
+    // Tokens of input[start, end), lexed on a thread of the pool as if start is not in a string or comment
+    private static final class Chunk implements Runnable {
+        private final Tokenizer lexer;
+        private final List<Token> tokens;
+        private int[] symbolIds;    // symbol of each VariableToken in tokens, in the SymbolTable of lexer
+        private Exception error;
+
+        Chunk(final char[] input, final int start, final int end) {
+            this.lexer = new Tokenizer(input, new SymbolTable());
+            this.lexer.inputPos = start;
+            this.lexer.inputLimit = end;
+            this.lexer.chunked = true;
+            this.tokens = new ArrayList<>();
+            this.symbolIds = new int[64];
+        }
+
+        @Override
+        public void run() {
+            int variables = 0;
+            try {
+                Token token;
+                while((token = lexer.readNextToken()) != null) {
+                    tokens.add(token);
+                    if(token instanceof VariableToken) {
+                        if(variables == symbolIds.length) {
+                            symbolIds = Arrays.copyOf(symbolIds, variables * 2);
                         }
+                        symbolIds[variables++] = lexer.lastSymbol;
                     }
                 }
+            } catch (TokenizerException | RuntimeException e) {
+                error = e;
+            }
+        }
+
+        void throwError() throws TokenizerException {
+            if(error instanceof TokenizerException) {
+                throw (TokenizerException) error;
+            } else if(error != null) {
+                throw (RuntimeException) error;
             }
         }
+
+        // Each symbol of the chunk is interned in symbols once, where it is first seen, like tokenize() does
+        void addTo(final ArrayList<Token> result, final SymbolTable symbols) {
+            result.ensureCapacity(result.size() + tokens.size());
+            final VariableToken[] shared = new VariableToken[lexer.symbols.size()];
+            int variables = 0;
+            for(Token token : tokens) {
+                if(token instanceof VariableToken) {
+                    final int id = symbolIds[variables++];
+                    if(shared[id] == null) {
+                        shared[id] = symbols.intern((VariableToken) token);
+                    }
+                    token = shared[id];
+                } else if(token instanceof StringToken) {
+                    ((StringToken) token).intern(symbols);
+                }
+                result.add(token);
+            }
+        }
+    }
+
+    // assume it's not starting on whitespace
+    private Token tokenizeOne() throws TokenizerException {
+        final char c = input[inputPos];
+        if(c >= 128) {
+            if(Character.isLetter(c)) {
+                return readWord();
+            } else if(Character.isDigit(c)) {
+                return readInteger();
+            }
+            throw new TokenizerException("Has more input!");
+        }
+        switch (CHAR_CLASS[c]) {
+            case LETTER:
+                return readWord();
+            case DIGIT:
+                return readInteger();
+            case QUOTE:
+                return readString();
+            case SINGLE:
+                inputPos++;
+                return SINGLE_TOKENS[c];
+            case OPERATOR:
+                return readOperator(c);
+            default:
+                throw new TokenizerException("Has more input!");
+        }
     }
 }
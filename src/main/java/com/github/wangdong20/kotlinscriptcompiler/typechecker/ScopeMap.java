@@ -0,0 +1,111 @@
+package com.github.wangdong20.kotlinscriptcompiler.typechecker;
+
+/**
+ * Immutable map from the ids Resolver gave names in scope, a hash array mapped trie indexed by the bits
+ * of the id. plus gives a new map sharing all but the O(log n) nodes on the path to the new entry,
+ * so a scope is extended without copying its parent, and the parent stays valid for the statements
+ * after the block. Ids are not negative.
+ */
+public final class ScopeMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+    private static final ScopeMap<?> EMPTY = new ScopeMap<>(EMPTY_NODE, 0);
+
+    /**
+     * Entries and children under one node. For every bit set in bitmap the array holds an id and its value,
+     * or null and a child node for the ids sharing those bits. Distinct ids differ in some bit,
+     * so two of them never end up in one slot.
+     */
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] array;
+
+        private Node(final int bitmap, final Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private ScopeMap(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> ScopeMap<V> empty() {
+        return (ScopeMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(final int id) {
+        return get(id) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final int id) {
+        Node node = root;
+        for(int shift = 0; ; shift += BITS) {
+            final int bit = 1 << ((id >>> shift) & MASK);
+            if((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+            final Object key = node.array[index];
+            if(key == null) {
+                node = (Node) node.array[index + 1];
+            } else {
+                return (Integer) key == id ? (V) node.array[index + 1] : null;
+            }
+        }
+    }
+
+    /**
+     * This map with id bound to value, replacing a binding of id, e.g. of a shadowed name, if any.
+     */
+    public ScopeMap<V> plus(final int id, final V value) {
+        final boolean[] added = new boolean[1];
+        final Node newRoot = put(root, 0, id, value, added);
+        return new ScopeMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    private static Node put(final Node node, final int shift, final int id, final Object value, final boolean[] added) {
+        final int bit = 1 << ((id >>> shift) & MASK);
+        final int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+        if((node.bitmap & bit) == 0) {
+            final Object[] array = new Object[node.array.length + 2];
+            System.arraycopy(node.array, 0, array, 0, index);
+            array[index] = id;
+            array[index + 1] = value;
+            System.arraycopy(node.array, index, array, index + 2, node.array.length - index);
+            added[0] = true;
+            return new Node(node.bitmap | bit, array);
+        }
+        final Object key = node.array[index];
+        final Object v = node.array[index + 1];
+        if(key == null) {
+            return replace(node, index + 1, put((Node) v, shift + BITS, id, value, added));
+        } else if((Integer) key == id) {
+            return replace(node, index + 1, value);
+        }
+        // Two ids in one slot, both move down a level
+        Node child = put(EMPTY_NODE, shift + BITS, (Integer) key, v, added);
+        child = put(child, shift + BITS, id, value, added);
+        final Object[] array = node.array.clone();
+        array[index] = null;
+        array[index + 1] = child;
+        return new Node(node.bitmap, array);
+    }
+
+    private static Node replace(final Node node, final int index, final Object value) {
+        final Object[] array = node.array.clone();
+        array[index] = value;
+        return new Node(node.bitmap, array);
+    }
+}
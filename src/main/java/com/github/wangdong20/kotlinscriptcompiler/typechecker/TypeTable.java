@@ -0,0 +1,49 @@
+package com.github.wangdong20.kotlinscriptcompiler.typechecker;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.Exp;
+import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Types Typechecker inferred for the expressions of a program, keyed by the expression instance.
+ * An instance the parser shares between places where it has different types, e.g. variable x
+ * declared Int in one function and String in another, has no type here.
+ */
+public class TypeTable {
+    // in place of the type of an expression which has more than one
+    private static final Type AMBIGUOUS = new Type() {
+        @Override
+        public String toString() {
+            return "AMBIGUOUS";
+        }
+    };
+
+    private final Map<Exp, Type> types = new IdentityHashMap<>();
+
+    /**
+     * The type of exp, null when exp was not typechecked or it has more than one.
+     */
+    public Type get(final Exp exp) {
+        final Type type = types.get(exp);
+        return type == AMBIGUOUS ? null : type;
+    }
+
+    public int size() {
+        return types.size();
+    }
+
+    void put(final Exp exp, final Type type) {
+        final Type before = types.put(exp, type);
+        if(before != null && before != type && !before.equals(type)) {
+            types.put(exp, AMBIGUOUS);
+        }
+    }
+
+    void putAll(final TypeTable other) {
+        for(Map.Entry<Exp, Type> entry : other.types.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+}
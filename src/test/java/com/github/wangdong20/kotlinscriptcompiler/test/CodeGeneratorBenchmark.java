@@ -0,0 +1,74 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.TypeTable;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
+
+import java.io.File;
+
+/**
+ * Time of writing the class file of copies of the sample programs, and of lines of long + chains,
+ * typechecked before the clock starts, with the types from Typechecker and without.
+ * The class file is written to the working directory and deleted at the end.
+ */
+public class CodeGeneratorBenchmark {
+    private static final long WARMUP_NANOS = 3_000_000_000L;
+    private static final int ROUNDS = 5;
+    private static final String CLASS_NAME = "CodeGeneratorBenchmarkOutput";
+
+    private static void write(Program program, TypeTable types) throws Exception {
+        new CodeGenerator(CLASS_NAME, "compiledProgram").writeProgram(program, types);
+    }
+
+    private static void measure(String name, Program program, TypeTable types) throws Exception {
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        do {
+            write(program, types);
+        } while(System.nanoTime() < warmupEnd);
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            write(program, types);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("  %-24s codegen %8.1f ms%n", name, best / 1e6);
+    }
+
+    private static void measureBoth(String name, String source) throws Exception {
+        final Program program = new Parser(new Tokenizer(source).tokenizePacked()).parseToplevelProgram();
+        final Typechecker typechecker = new Typechecker();
+        typechecker.typecheck(program);
+        System.out.println(name + ":");
+        measure("without types", program, null);
+        measure("types from Typechecker", program, typechecker.getTypes());
+    }
+
+    // lines of var s<i> = "s" + s<i - 1> + 1 + ... + 1 and println(s<i> + 1 + ... + 1)
+    private static String chains(int lines, int length) {
+        final StringBuilder source = new StringBuilder("var s0 = \"s\"\n");
+        for(int i = 1; i <= lines; i++) {
+            source.append("var s").append(i).append(" = \"s\" + s").append(i - 1);
+            for(int j = 0; j < length; j++) {
+                source.append(" + 1");
+            }
+            source.append("\nprintln(s").append(i);
+            for(int j = 0; j < length; j++) {
+                source.append(" + 1");
+            }
+            source.append(")\n");
+        }
+        return source.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        try {
+            measureBoth("100 copies of the sample programs", ScriptGenerator.generateChunks(100));
+            measureBoth("40 lines of + chains of 300", chains(20, 300));
+        } finally {
+            new File(CLASS_NAME + ".class").delete();
+        }
+    }
+}
@@ -8,8 +8,16 @@ import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.IllTypedException;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.TypeTable;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInfo;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -17,6 +25,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class CodeGeneratorTest {
@@ -48,9 +57,14 @@ public class CodeGeneratorTest {
 
     public String[] runTest(final Program program, String testName)
             throws CodeGeneratorException, IOException {
+        return runTest(program, testName, null);
+    } // runTest
+
+    public String[] runTest(final Program program, String testName, final TypeTable types)
+            throws CodeGeneratorException, IOException {
         currentClassName = CLASS_NAME_PREFIX + testName;
         final CodeGenerator generator = new CodeGenerator(currentClassName, METHOD_NAME);
-        generator.writeProgram(program);
+        generator.writeProgram(program, types);
         final ProcessBuilder builder = new ProcessBuilder("java", currentClassName);
         builder.redirectErrorStream(true);
         final Process process = builder.start();
@@ -692,4 +706,349 @@ public class CodeGeneratorTest {
         ), "-2");
     }
 
+    @Test
+    // var s = "a" + 1 + 2
+    // var a = arrayOf(1, "b")
+    // println(s)
+    // for(x in a) {
+    //     println(x)
+    // }
+    // written with the types from Typechecker
+    public void testTypesFromTypechecker(TestInfo testInfo) throws CodeGeneratorException, IOException, IllTypedException {
+        List<Exp> exps = new ArrayList<>();
+        exps.add(new IntExp(1));
+        exps.add(new StringExp("b", null));
+        List<Stmt> stmtsInFor = new ArrayList<>();
+        stmtsInFor.add(new PrintlnStmt(new VariableExp("x")));
+        final Program program = makeProgram(
+                new AssignStmt(new AdditiveExp(new AdditiveExp(new StringExp("a", null), new IntExp(1), AdditiveOp.EXP_PLUS),
+                        new IntExp(2), AdditiveOp.EXP_PLUS), new VariableExp("s"), false, true),
+                new AssignStmt(new ArrayOfExp(exps), new VariableExp("a"), false, true),
+                new PrintlnStmt(new VariableExp("s")),
+                new ForStmt(new VariableExp("x"), new VariableExp("a"), new BlockStmt(stmtsInFor)));
+        final Typechecker typechecker = new Typechecker();
+        typechecker.typecheck(program);
+        assertArrayEquals(new String[] {"a12", "1", "b"},
+                runTest(program, testInfo.getDisplayName(), typechecker.getTypes()));
+        new File(currentClassName + ".class").delete();
+    }
+
+    @Test
+    // for(i in 1..4) {
+    //     if(i == 2) {
+    //         var s = "two"
+    //         println(s)
+    //     } else {
+    //         var s = i
+    //         println(s)
+    //     }
+    // }
+    public void testSameNameInBothBranchesInLoop(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        List<Stmt> stmtsInFor = new ArrayList<>();
+        stmtsInFor.add(new IfStmt(new ComparableExp(new VariableExp("i"), new IntExp(2), ComparableOp.OP_EQUAL_EQUAL),
+                new BlockStmt(stmts(new AssignStmt(new StringExp("two", null), new VariableExp("s"), false, true),
+                        new PrintlnStmt(new VariableExp("s")))),
+                new BlockStmt(stmts(new AssignStmt(new VariableExp("i"), new VariableExp("s"), false, true),
+                        new PrintlnStmt(new VariableExp("s"))))));
+        assertOutput(testInfo.getDisplayName(), makeProgram(
+                new ForStmt(new VariableExp("i"), new RangeExp(new IntExp(1), new IntExp(4)),
+                        new BlockStmt(stmtsInFor))
+        ), "1", "two", "3");
+    }
+
+    @Test
+    // for(i in 1..3) {
+    //     var a = i
+    //     println(a)
+    // }
+    // for(j in 3..5) {
+    //     var b = j
+    //     println(b)
+    // }
+    // for(k in 5..7) {
+    //     var c = k
+    //     println(c)
+    // }
+    // each loop reuses the slots of the one before it
+    public void testSequentialLoopsShareSlots(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        final Stmt[] loops = new Stmt[3];
+        for(int n = 0; n < loops.length; n++) {
+            final String iterator = String.valueOf((char) ('i' + n));
+            final String variable = String.valueOf((char) ('a' + n));
+            loops[n] = new ForStmt(new VariableExp(iterator), new RangeExp(new IntExp(2 * n + 1), new IntExp(2 * n + 3)),
+                    new BlockStmt(stmts(new AssignStmt(new VariableExp(iterator), new VariableExp(variable), false, true),
+                            new PrintlnStmt(new VariableExp(variable)))));
+        }
+        assertArrayEquals(new String[] {"1", "2", "3", "4", "5", "6"}, runTest(makeProgram(loops), testInfo.getDisplayName()));
+        final int[] maxLocals = new int[1];
+        final File classFile = new File(currentClassName + ".class");
+        try (InputStream stream = new FileInputStream(classFile)) {
+            new ClassReader(stream).accept(new ClassVisitor(Opcodes.ASM8) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    if(!name.equals(METHOD_NAME)) {
+                        return null;
+                    }
+                    return new MethodVisitor(Opcodes.ASM8) {
+                        @Override
+                        public void visitMaxs(int maxStack, int locals) {
+                            maxLocals[0] = locals;
+                        }
+                    };
+                }
+            }, 0);
+        } finally {
+            classFile.delete();
+        }
+        // iterator, end of range and the variable of one loop
+        assertEquals(3, maxLocals[0]);
+    }
+
+    @Test
+    // var i = 0
+    // var total = 0
+    // while(i < 6) {
+    //     i++
+    //     if(i == 3) {
+    //         continue
+    //     }
+    //     total += i
+    // }
+    // println(total)
+    public void testWhileContinue(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        List<Stmt> stmtsInWhile = new ArrayList<>();
+        stmtsInWhile.add(new SelfOperationStmt(new SelfOperationExp(new VariableExp("i"), SelfOp.OP_SELF_INCREASE, false)));
+        stmtsInWhile.add(new IfStmt(new ComparableExp(new VariableExp("i"), new IntExp(3), ComparableOp.OP_EQUAL_EQUAL),
+                new BlockStmt(stmts(ControlLoopStmt.STMT_CONTINUE))));
+        stmtsInWhile.add(new CompoundAssignStmt(new VariableExp("i"), new VariableExp("total"), CompoundAssignOp.EXP_PLUS_EQUAL));
+        assertOutput(testInfo.getDisplayName(), makeProgram(
+                new AssignStmt(new IntExp(0), new VariableExp("i"), false, true),
+                new AssignStmt(new IntExp(0), new VariableExp("total"), false, true),
+                new WhileStmt(new ComparableExp(new VariableExp("i"), new IntExp(6), ComparableOp.OP_LESS_THAN),
+                        new BlockStmt(stmtsInWhile)),
+                new PrintlnStmt(new VariableExp("total"))
+        ), "18");
+    }
+
+    @Test
+    // var a = 1
+    // var b = 0
+    // if(a > 5 && ++b > 0) {
+    //     println("and")
+    // }
+    // if(a < 5 || ++b > 0) {
+    //     println("or")
+    // }
+    // if(!(a == 1) || b != 0) {
+    //     println("not")
+    // } else {
+    //     println(b)
+    // }
+    // var c = !(a > 0 && b == 0) || a == 1
+    // println(c)
+    public void testConditionsShortCircuit(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        final Exp increaseB = new ComparableExp(new SelfOperationExp(new VariableExp("b"), SelfOp.OP_SELF_INCREASE, true),
+                new IntExp(0), ComparableOp.OP_GREATER_THAN);
+        assertOutput(testInfo.getDisplayName(), makeProgram(
+                new AssignStmt(new IntExp(1), new VariableExp("a"), false, true),
+                new AssignStmt(new IntExp(0), new VariableExp("b"), false, true),
+                new IfStmt(new BiLogicalExp(new ComparableExp(new VariableExp("a"), new IntExp(5), ComparableOp.OP_GREATER_THAN),
+                        increaseB, BiLogicalOp.OP_AND),
+                        new BlockStmt(stmts(new PrintlnStmt(new StringExp("and", null))))),
+                new IfStmt(new BiLogicalExp(new ComparableExp(new VariableExp("a"), new IntExp(5), ComparableOp.OP_LESS_THAN),
+                        increaseB, BiLogicalOp.OP_OR),
+                        new BlockStmt(stmts(new PrintlnStmt(new StringExp("or", null))))),
+                new IfStmt(new BiLogicalExp(new NotExp(new ComparableExp(new VariableExp("a"), new IntExp(1), ComparableOp.OP_EQUAL_EQUAL)),
+                        new ComparableExp(new VariableExp("b"), new IntExp(0), ComparableOp.OP_NOT_EQUAL), BiLogicalOp.OP_OR),
+                        new BlockStmt(stmts(new PrintlnStmt(new StringExp("not", null)))),
+                        new BlockStmt(stmts(new PrintlnStmt(new VariableExp("b"))))),
+                new AssignStmt(new BiLogicalExp(new NotExp(new BiLogicalExp(
+                        new ComparableExp(new VariableExp("a"), new IntExp(0), ComparableOp.OP_GREATER_THAN),
+                        new ComparableExp(new VariableExp("b"), new IntExp(0), ComparableOp.OP_EQUAL_EQUAL), BiLogicalOp.OP_AND)),
+                        new ComparableExp(new VariableExp("a"), new IntExp(1), ComparableOp.OP_EQUAL_EQUAL), BiLogicalOp.OP_OR),
+                        new VariableExp("c"), false, true),
+                new PrintlnStmt(new VariableExp("c"))
+        ), "or", "0", "true");
+    }
+
+    @Test
+    // var a = 3
+    // var b = true
+    // println("$a and ${a + 1}")
+    // println("[$b]")
+    public void testStringInterpolationAtEnds(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        LinkedHashMap<Integer, Exp> atEnds = new LinkedHashMap<>();
+        atEnds.put(0, new VariableExp("a"));
+        atEnds.put(5, new AdditiveExp(new VariableExp("a"), new IntExp(1), AdditiveOp.EXP_PLUS));
+        LinkedHashMap<Integer, Exp> inside = new LinkedHashMap<>();
+        inside.put(1, new VariableExp("b"));
+        assertOutput(testInfo.getDisplayName(), makeProgram(
+                new AssignStmt(new IntExp(3), new VariableExp("a"), false, true),
+                new AssignStmt(new BooleanExp(true), new VariableExp("b"), false, true),
+                new PrintlnStmt(new StringExp(" and ", atEnds)),
+                new PrintlnStmt(new StringExp("[]", inside))
+        ), "3 and 4", "[true]");
+    }
+
+    @Test
+    // var i = 7
+    // var s = "i=" + i + ", next ${i + 1}!"
+    // s += true
+    // println(s)
+    // written for Java 11, each string is made by one invokedynamic and no StringBuilder
+    public void testJava11Concatenation(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        LinkedHashMap<Integer, Exp> interpolation = new LinkedHashMap<>();
+        interpolation.put(7, new AdditiveExp(new VariableExp("i"), new IntExp(1), AdditiveOp.EXP_PLUS));
+        final Program program = makeProgram(
+                new AssignStmt(new IntExp(7), new VariableExp("i"), false, true),
+                new AssignStmt(new AdditiveExp(new AdditiveExp(new StringExp("i=", null), new VariableExp("i"), AdditiveOp.EXP_PLUS),
+                        new StringExp(", next !", interpolation), AdditiveOp.EXP_PLUS), new VariableExp("s"), false, true),
+                new CompoundAssignStmt(new BooleanExp(true), new VariableExp("s"), CompoundAssignOp.EXP_PLUS_EQUAL),
+                new PrintlnStmt(new VariableExp("s")));
+        currentClassName = CLASS_NAME_PREFIX + testInfo.getDisplayName();
+        new CodeGenerator(currentClassName, METHOD_NAME, true).writeProgram(program);
+        final File classFile = new File(currentClassName + ".class");
+        final int[] version = new int[1];
+        final int[] concatenations = new int[1];
+        final int[] builders = new int[1];
+        try {
+            final ProcessBuilder builder = new ProcessBuilder("java", currentClassName);
+            builder.redirectErrorStream(true);
+            final Process process = builder.start();
+            try {
+                assertArrayEquals(new String[] {"i=7, next 8!true"}, readUntilClose(process.getInputStream()));
+            } finally {
+                process.getOutputStream().close();
+            }
+            try (InputStream stream = new FileInputStream(classFile)) {
+                new ClassReader(stream).accept(new ClassVisitor(Opcodes.ASM8) {
+                    @Override
+                    public void visit(int classVersion, int access, String name, String signature, String superName, String[] interfaces) {
+                        version[0] = classVersion;
+                    }
+
+                    @Override
+                    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                        return new MethodVisitor(Opcodes.ASM8) {
+                            @Override
+                            public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrap, Object... arguments) {
+                                concatenations[0]++;
+                            }
+
+                            @Override
+                            public void visitTypeInsn(int opcode, String type) {
+                                if(type.equals("java/lang/StringBuilder")) {
+                                    builders[0]++;
+                                }
+                            }
+                        };
+                    }
+                }, 0);
+            }
+        } finally {
+            classFile.delete();
+        }
+        assertEquals(Opcodes.V11, version[0]);
+        assertEquals(2, concatenations[0]);
+        assertEquals(0, builders[0]);
+    }
+
+    @Test
+    // var s = "a"
+    // var i = 0
+    // while(i < 5) {
+    //     i++
+    //     if(i == 4) {
+    //         break
+    //     }
+    //     s += i
+    // }
+    // println(s)
+    // for(j in 0..2) {
+    //     s = "b"
+    //     s += j
+    // }
+    // println(s)
+    // s is built in one StringBuilder for each loop
+    public void testStringAccumulatedInLoops(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        final Program program = makeProgram(
+                new AssignStmt(new StringExp("a", null), new VariableExp("s"), false, true),
+                new AssignStmt(new IntExp(0), new VariableExp("i"), false, true),
+                new WhileStmt(new ComparableExp(new VariableExp("i"), new IntExp(5), ComparableOp.OP_LESS_THAN), new BlockStmt(stmts(
+                        new SelfOperationStmt(new SelfOperationExp(new VariableExp("i"), SelfOp.OP_SELF_INCREASE, false)),
+                        new IfStmt(new ComparableExp(new VariableExp("i"), new IntExp(4), ComparableOp.OP_EQUAL_EQUAL),
+                                new BlockStmt(stmts(ControlLoopStmt.STMT_BREAK))),
+                        new CompoundAssignStmt(new VariableExp("i"), new VariableExp("s"), CompoundAssignOp.EXP_PLUS_EQUAL)))),
+                new PrintlnStmt(new VariableExp("s")),
+                new ForStmt(new VariableExp("j"), new RangeExp(new IntExp(0), new IntExp(2)), new BlockStmt(stmts(
+                        new AssignStmt(new StringExp("b", null), new VariableExp("s"), false, false),
+                        new CompoundAssignStmt(new VariableExp("j"), new VariableExp("s"), CompoundAssignOp.EXP_PLUS_EQUAL)))),
+                new PrintlnStmt(new VariableExp("s")));
+        assertArrayEquals(new String[] {"a123", "b1"}, runTest(program, testInfo.getDisplayName()));
+        final int[] builders = new int[1];
+        final File classFile = new File(currentClassName + ".class");
+        try (InputStream stream = new FileInputStream(classFile)) {
+            new ClassReader(stream).accept(new ClassVisitor(Opcodes.ASM8) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM8) {
+                        @Override
+                        public void visitTypeInsn(int opcode, String type) {
+                            if(type.equals("java/lang/StringBuilder")) {
+                                builders[0]++;
+                            }
+                        }
+                    };
+                }
+            }, 0);
+        } finally {
+            classFile.delete();
+        }
+        assertEquals(2, builders[0]);
+    }
+
+    @Test
+    // var s = "ab"
+    // for(i in 1..3) {
+    //     s += "x" + s
+    // }
+    // println(s)
+    // var t = "q"
+    // for(i in 0..2) {
+    //     t += "x$t"
+    // }
+    // println(t)
+    // var u = ""
+    // var k = 0
+    // while(k < 3) {
+    //     k++
+    //     if(k == 2) {
+    //         u += k
+    //     }
+    //     println(u)
+    // }
+    // strings read in the loop are not kept in a StringBuilder
+    public void testStringReadInLoopIsNotAccumulated(TestInfo testInfo) throws CodeGeneratorException, IOException {
+        LinkedHashMap<Integer, Exp> interpolation = new LinkedHashMap<>();
+        interpolation.put(1, new VariableExp("t"));
+        assertOutput(testInfo.getDisplayName(), makeProgram(
+                new AssignStmt(new StringExp("ab", null), new VariableExp("s"), false, true),
+                new ForStmt(new VariableExp("i"), new RangeExp(new IntExp(1), new IntExp(3)), new BlockStmt(stmts(
+                        new CompoundAssignStmt(new AdditiveExp(new StringExp("x", null), new VariableExp("s"), AdditiveOp.EXP_PLUS),
+                                new VariableExp("s"), CompoundAssignOp.EXP_PLUS_EQUAL)))),
+                new PrintlnStmt(new VariableExp("s")),
+                new AssignStmt(new StringExp("q", null), new VariableExp("t"), false, true),
+                new ForStmt(new VariableExp("i"), new RangeExp(new IntExp(0), new IntExp(2)), new BlockStmt(stmts(
+                        new CompoundAssignStmt(new StringExp("x", interpolation), new VariableExp("t"), CompoundAssignOp.EXP_PLUS_EQUAL)))),
+                new PrintlnStmt(new VariableExp("t")),
+                new AssignStmt(new StringExp("", null), new VariableExp("u"), false, true),
+                new AssignStmt(new IntExp(0), new VariableExp("k"), false, true),
+                new WhileStmt(new ComparableExp(new VariableExp("k"), new IntExp(3), ComparableOp.OP_LESS_THAN), new BlockStmt(stmts(
+                        new SelfOperationStmt(new SelfOperationExp(new VariableExp("k"), SelfOp.OP_SELF_INCREASE, false)),
+                        new IfStmt(new ComparableExp(new VariableExp("k"), new IntExp(2), ComparableOp.OP_EQUAL_EQUAL),
+                                new BlockStmt(stmts(new CompoundAssignStmt(new VariableExp("k"), new VariableExp("u"), CompoundAssignOp.EXP_PLUS_EQUAL)))),
+                        new PrintlnStmt(new VariableExp("u")))))
+        ), "abxabxabxab", "qxqxqxq", "", "2", "2");
+    }
+
 }
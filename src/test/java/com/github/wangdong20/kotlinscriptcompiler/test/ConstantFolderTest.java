@@ -0,0 +1,131 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.optimizer.ConstantFolder;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConstantFolderTest {
+
+    private static Program parse(final String source) throws Exception {
+        return new Parser(new Tokenizer(source).tokenizePacked()).parseToplevelProgram();
+    }
+
+    private static Program typecheck(final String source) throws Exception {
+        final Program program = parse(source);
+        new Typechecker().typecheck(program);
+        return program;
+    }
+
+    private static ConstantFolder assertFolds(final String source, final String expected) throws Exception {
+        final ConstantFolder folder = new ConstantFolder();
+        assertEquals(parse(expected), folder.fold(typecheck(source)));
+        return folder;
+    }
+
+    @Test
+    // var x = 2 * 3 + 10 / 3 - 7 % 4
+    public void foldsArithmetic() throws Exception {
+        final ConstantFolder folder = assertFolds("var x = 2 * 3 + 10 / 3 - 7 % 4\n", "var x = 6\n");
+        assertEquals(5, folder.getFolded());
+        assertEquals(0, folder.getPropagated());
+    }
+
+    @Test
+    // var x = 1 / 0
+    // var y = 4 % (2 - 2)
+    public void leavesDivisionByZero() throws Exception {
+        assertFolds("var x = 1 / 0\nvar y = 4 % (2 - 2)\n", "var x = 1 / 0\nvar y = 4 % 0\n");
+    }
+
+    @Test
+    // var a = 2
+    // var b = 1 < 2 && !(3 == 4)
+    // var c = false || a > 1
+    // var d = a > 1 && true
+    public void foldsConditions() throws Exception {
+        assertFolds("var a = 2\nvar b = 1 < 2 && !(3 == 4)\nvar c = false || a > 1\nvar d = a > 1 && true\n",
+                "var a = 2\nvar b = true\nvar c = a > 1\nvar d = a > 1 && true\n");
+    }
+
+    @Test
+    // var x = 4
+    // val n = 10
+    // var s = "a" + 1 + "b" + 2 * 3
+    // var t = "n is $n, next ${n + 1}, x is $x"
+    public void foldsStrings() throws Exception {
+        final ConstantFolder folder = assertFolds(
+                "var x = 4\nval n = 10\nvar s = \"a\" + 1 + \"b\" + 2 * 3\nvar t = \"n is $n, next ${n + 1}, x is $x\"\n",
+                "var x = 4\nval n = 10\nvar s = \"a1b6\"\nvar t = \"n is 10, next 11, x is $x\"\n");
+        assertEquals(7, folder.getFolded());
+        assertEquals(2, folder.getPropagated());
+    }
+
+    @Test
+    // val k = 5
+    // var w = 3
+    // fun f(k: Int): Int {
+    //     return k + w
+    // }
+    // fun g(): Int {
+    //     return k * 2
+    // }
+    // w = k * 2
+    // for(i in 0..k + 1) {
+    //     w += i
+    // }
+    public void propagatesVals() throws Exception {
+        assertFolds("val k = 5\nvar w = 3\nfun f(k: Int): Int {\nreturn k + w\n}\nfun g(): Int {\nreturn k * 2\n}\n" +
+                        "w = k * 2\nfor(i in 0..k + 1) {\nw += i\n}\n",
+                "val k = 5\nvar w = 3\nfun f(k: Int): Int {\nreturn k + w\n}\nfun g(): Int {\nreturn 10\n}\n" +
+                        "w = 10\nfor(i in 0..6) {\nw += i\n}\n");
+    }
+
+    @Test
+    // var a = 1
+    // println(a + 2)
+    public void unchangedProgramIsKept() throws Exception {
+        final Program program = typecheck("var a = 1\nprintln(a + 2)\n");
+        final ConstantFolder folder = new ConstantFolder();
+        assertSame(program, folder.fold(program));
+        assertEquals(0, folder.getFolded());
+    }
+
+    @Test
+    // val lines = 3
+    // val star = "*"
+    // for(i in 0..lines + 1) {
+    //     var row = ""
+    //     for(j in 0..i) {
+    //         row += star + ""
+    //     }
+    //     if(lines > 2 && i % 2 == 0) {
+    //         println("$i ${lines * 2} $row")
+    //     }
+    // }
+    public void foldedProgramPrintsTheSame() throws Exception {
+        final String source = "val lines = 3\nval star = \"*\"\nfor(i in 0..lines + 1) {\nvar row = \"\"\nfor(j in 0..i) {\n" +
+                "row += star + \"\"\n}\nif(lines > 2 && i % 2 == 0) {\nprintln(\"$i ${lines * 2} $row\")\n}\n}\n";
+        final Program program = typecheck(source);
+        final Program folded = new ConstantFolder().fold(program);
+        final Typechecker typechecker = new Typechecker();
+        typechecker.typecheck(folded);
+        new CodeGenerator("CompiledFoldedProgram", CodeGeneratorTest.METHOD_NAME).writeProgram(folded, typechecker.getTypes());
+        final ProcessBuilder builder = new ProcessBuilder("java", "CompiledFoldedProgram");
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        try {
+            assertArrayEquals(new String[] { "0 6 ", "2 6 **" }, CodeGeneratorTest.readUntilClose(process.getInputStream()));
+        } finally {
+            process.getOutputStream().close();
+            new File("CompiledFoldedProgram.class").delete();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.optimizer.ConstantFolder;
+import com.github.wangdong20.kotlinscriptcompiler.optimizer.DeadCodeEliminator;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.BooleanExp;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.BlockStmt;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.IfStmt;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.WhileStmt;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeadCodeEliminatorTest {
+
+    private static Program parse(final String source) throws Exception {
+        return new Parser(new Tokenizer(source).tokenizePacked()).parseToplevelProgram();
+    }
+
+    // Type checked and folded, as dwks has it before eliminating dead code
+    private static Program fold(final String source) throws Exception {
+        final Program program = parse(source);
+        new Typechecker().typecheck(program);
+        return new ConstantFolder().fold(program);
+    }
+
+    private static DeadCodeEliminator assertEliminates(final String source, final String expected) throws Exception {
+        final DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        assertEquals(parse(expected), eliminator.eliminate(fold(source)));
+        return eliminator;
+    }
+
+    private static String[] run(final Program program, final String className) throws Exception {
+        final Typechecker typechecker = new Typechecker();
+        typechecker.typecheck(program);
+        new CodeGenerator(className, CodeGeneratorTest.METHOD_NAME).writeProgram(program, typechecker.getTypes());
+        final ProcessBuilder builder = new ProcessBuilder("java", className);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        try {
+            return CodeGeneratorTest.readUntilClose(process.getInputStream());
+        } finally {
+            process.getOutputStream().close();
+            new File(className + ".class").delete();
+        }
+    }
+
+    @Test
+    // var a = 1
+    // if(false) {
+    //     println(a)
+    // }
+    // if(1 < 2) {
+    //     println(a)
+    // } else {
+    //     println(0)
+    // }
+    // while(false) {
+    //     println(2)
+    // }
+    public void removesBranchesNeverTaken() throws Exception {
+        final DeadCodeEliminator eliminator = assertEliminates(
+                "var a = 1\nif(false) {\nprintln(a)\n}\nif(1 < 2) {\nprintln(a)\n} else {\nprintln(0)\n}\nwhile(false) {\nprintln(2)\n}\n",
+                "var a = 1\nprintln(a)\n");
+        assertEquals(6, eliminator.getRemoved());
+    }
+
+    @Test
+    // var b = 3
+    // if(true) {
+    //     var c = b + 1
+    //     println(c)
+    // }
+    // var c = 5
+    // println(c)
+    public void takenBranchDeclaringKeepsItsScope() throws Exception {
+        final Program program = new DeadCodeEliminator().eliminate(
+                fold("var b = 3\nif(true) {\nvar c = b + 1\nprintln(c)\n}\nvar c = 5\nprintln(c)\n"));
+        assertEquals(4, program.getStmtList().size());
+        assertTrue(program.getStmtList().get(1) instanceof BlockStmt);
+        assertArrayEquals(new String[] { "4", "5" }, run(program, "CompiledTakenBranch"));
+    }
+
+    @Test
+    // var i = 0
+    // while(i < 5) {
+    //     i++
+    //     if(false) {
+    //         println(0)
+    //     } else {
+    //         var limit = i * 2
+    //         if(limit > 3) {
+    //             break
+    //         }
+    //     }
+    //     println(i)
+    // }
+    public void takenBranchWithBreakStaysInAnIf() throws Exception {
+        final Program program = new DeadCodeEliminator().eliminate(fold("var i = 0\nwhile(i < 5) {\ni++\n" +
+                "if(false) {\nprintln(0)\n} else {\nvar limit = i * 2\nif(limit > 3) {\nbreak\n}\n}\nprintln(i)\n}\n"));
+        final IfStmt kept = (IfStmt) ((WhileStmt) program.getStmtList().get(1)).getBlockStmt().getStmtList().get(1);
+        assertEquals(new BooleanExp(true), kept.getCondition());
+        assertNull(kept.getFalseBranch());
+        assertArrayEquals(new String[] { "1" }, run(program, "CompiledTakenBreak"));
+    }
+
+    @Test
+    // fun sign(a: Int): Int {
+    //     if(a > 0) {
+    //         return 1
+    //     } else {
+    //         return 0
+    //     }
+    //     println("never")
+    // }
+    // var j = 0
+    // while(j < 3) {
+    //     j++
+    //     continue
+    //     println(j)
+    // }
+    public void removesStatementsAfterJumps() throws Exception {
+        assertEliminates("fun sign(a: Int): Int {\nif(a > 0) {\nreturn 1\n} else {\nreturn 0\n}\nprintln(\"never\")\n}\n" +
+                        "var j = 0\nwhile(j < 3) {\nj++\ncontinue\nprintln(j)\n}\n",
+                "fun sign(a: Int): Int {\nif(a > 0) {\nreturn 1\n} else {\nreturn 0\n}\n}\n" +
+                        "var j = 0\nwhile(j < 3) {\nj++\ncontinue\n}\n");
+    }
+
+    @Test
+    // var u = 5
+    // u = 6
+    // var x = 1
+    // var y = x + 1
+    // var z = 0
+    // var d = 10 / z
+    // var arr = arrayOf(1, 2)
+    // arr[0] = 5
+    // println(0)
+    public void removesStoresNeverRead() throws Exception {
+        final DeadCodeEliminator eliminator = assertEliminates(
+                "var u = 5\nu = 6\nvar x = 1\nvar y = x + 1\nvar z = 0\nvar d = 10 / z\nvar arr = arrayOf(1, 2)\narr[0] = 5\nprintln(0)\n",
+                "var z = 0\nvar d = 10 / z\nvar arr = arrayOf(1, 2)\narr[0] = 5\nprintln(0)\n");
+        assertEquals(4, eliminator.getRemoved());
+    }
+
+    @Test
+    // var n = 4
+    // for(i in 0..n) {
+    //     var t = i * 2
+    // }
+    // for(k in 5..2) {
+    //     println(k)
+    // }
+    // if(n > 2) {
+    //     var w = n
+    // }
+    // println(n)
+    public void removesLoopsAndIfsWithoutEffects() throws Exception {
+        assertEliminates("var n = 4\nfor(i in 0..n) {\nvar t = i * 2\n}\nfor(k in 5..2) {\nprintln(k)\n}\n" +
+                        "if(n > 2) {\nvar w = n\n}\nprintln(n)\n",
+                "var n = 4\nprintln(n)\n");
+    }
+
+    @Test
+    // var e = 2147483647
+    // for(i in 0..e step 2) {
+    // }
+    // for(j in 0..2147483647 step 2) {
+    // }
+    // for(k in 0..2147483646 step 2) {
+    // }
+    // println("done")
+    public void keepsSteppedLoopsThatOverflow() throws Exception {
+        assertEliminates("var e = 2147483647\nfor(i in 0..e step 2) {\n}\nfor(j in 0..2147483647 step 2) {\n}\n" +
+                        "for(k in 0..2147483646 step 2) {\n}\nprintln(\"done\")\n",
+                "var e = 2147483647\nfor(i in 0..e step 2) {\n}\nfor(j in 0..2147483647 step 2) {\n}\nprintln(\"done\")\n");
+    }
+
+    @Test
+    // var a = 1
+    // println(a)
+    public void programWithoutDeadCodeIsKept() throws Exception {
+        final Program program = fold("var a = 1\nprintln(a)\n");
+        final DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        assertSame(program, eliminator.eliminate(program));
+        assertEquals(0, eliminator.getRemoved());
+    }
+
+    @Test
+    // the sample programs print the same folded and without dead code
+    public void samplesPrintTheSame() throws Exception {
+        for(String sample : new String[] { "FindPrimeNumbers", "PrintStar", "TestBubbleSort" }) {
+            final String source = new String(Files.readAllBytes(Paths.get(sample + ".ks")), StandardCharsets.UTF_8);
+            final Program program = parse(source);
+            new Typechecker().typecheck(program);
+            final String[] expected = run(program, "Compiled" + sample);
+            assertArrayEquals(expected, run(new DeadCodeEliminator().eliminate(fold(source)), "CompiledOptimized" + sample));
+        }
+    }
+}
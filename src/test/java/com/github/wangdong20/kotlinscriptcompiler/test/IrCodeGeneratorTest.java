@@ -0,0 +1,221 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGenerator;
+import com.github.wangdong20.kotlinscriptcompiler.codegen.CodeGeneratorException;
+import com.github.wangdong20.kotlinscriptcompiler.ir.*;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.parser.statements.ControlLoopStmt;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IrCodeGeneratorTest {
+    private static final String FUNCTION_NAME = CodeGeneratorTest.METHOD_NAME;
+
+    private static Program parse(final String source) throws Exception {
+        final Program program = new Parser(new Tokenizer(source).tokenizePacked()).parseToplevelProgram();
+        new Typechecker().typecheck(program);
+        return program;
+    }
+
+    private static String[] run(final String className) throws IOException {
+        final ProcessBuilder builder = new ProcessBuilder("java", className);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        try {
+            return CodeGeneratorTest.readUntilClose(process.getInputStream());
+        } finally {
+            process.getErrorStream().close();
+            process.getOutputStream().close();
+            new File(className + ".class").delete();
+        }
+    } // run
+
+    private static String[] runThroughIr(final String source, final String testName) throws Exception {
+        final String className = "CompiledIr" + testName;
+        new IrCodeGenerator(className, FUNCTION_NAME).writeProgram(parse(source));
+        return run(className);
+    }
+
+    private static void assertOutput(final String testName, final String source, final String... expectedOutput) throws Exception {
+        assertArrayEquals(expectedOutput, runThroughIr(source, testName));
+    }
+
+    private static IrFunction lower(final String source, final String function) throws Exception {
+        for(IrFunction lowered : IrBuilder.build(parse(source), FUNCTION_NAME).getFunctions()) {
+            if(lowered.getName().equals(function)) {
+                return lowered;
+            }
+        }
+        throw new AssertionError("No function " + function);
+    }
+
+    @Test
+    // the sample programs print the same compiled either way
+    public void testSamplesMatchCodeGenerator(TestInfo testInfo) throws Exception {
+        for(String sample : new String[] { "FindPrimeNumbers", "PrintStar", "TestBubbleSort" }) {
+            final String source = new String(Files.readAllBytes(Paths.get(sample + ".ks")), StandardCharsets.UTF_8);
+            final String className = "Compiled" + sample;
+            new CodeGenerator(className, FUNCTION_NAME).writeProgram(parse(source));
+            final String[] expected = run(className);
+            assertArrayEquals(expected, runThroughIr(source, sample));
+        }
+    }
+
+    @Test
+    // var i = 0
+    // var total = 0
+    // while(i < 10) {
+    //     i++
+    //     if(i % 2 == 0) {
+    //         continue
+    //     }
+    //     if(i > 7) {
+    //         break
+    //     }
+    //     total += i
+    // }
+    // println(total)
+    public void testBreakAndContinue(TestInfo testInfo) throws Exception {
+        assertOutput(testInfo.getDisplayName(),
+                "var i = 0\nvar total = 0\nwhile(i < 10) {\ni++\nif(i % 2 == 0) {\ncontinue\n}\n" +
+                        "if(i > 7) {\nbreak\n}\ntotal += i\n}\nprintln(total)\n",
+                "16");
+    }
+
+    @Test
+    // fun fib(n: Int): Int {
+    //     if(n < 2) {
+    //         return n
+    //     }
+    //     val a = n - 1
+    //     val b = n - 2
+    //     return fib(a) + fib(b)
+    // }
+    // fun firstOver(arr: Array<Int>, limit: Int): Int {
+    //     for(x in arr) {
+    //         if(x > limit) {
+    //             return x
+    //         }
+    //     }
+    //     return 0
+    // }
+    // println(fib(10))
+    // println(firstOver(arrayOf(1, 5, 12, 20), 10))
+    public void testReturnInsideBlocks(TestInfo testInfo) throws Exception {
+        assertOutput(testInfo.getDisplayName(),
+                "fun fib(n: Int): Int {\nif(n < 2) {\nreturn n\n}\nval a = n - 1\nval b = n - 2\nreturn fib(a) + fib(b)\n}\n" +
+                        "fun firstOver(arr: Array<Int>, limit: Int): Int {\nfor(x in arr) {\nif(x > limit) {\nreturn x\n}\n}\nreturn 0\n}\n" +
+                        "var numbers = arrayOf(1, 5, 12, 20)\nprintln(fib(10))\nprintln(firstOver(numbers, 10))\n",
+                "55", "12");
+    }
+
+    @Test
+    // var a = 1
+    // var b = a++ + a
+    // var c = ++a * 2
+    // println("$a $b $c")
+    public void testSelfOperationValues(TestInfo testInfo) throws Exception {
+        assertOutput(testInfo.getDisplayName(),
+                "var a = 1\nvar b = a++ + a\nvar c = ++a * 2\nprintln(\"$a $b $c\")\n",
+                "3 3 6");
+    }
+
+    @Test
+    // var a = 2
+    // var b = 3
+    // val t = a > 1 && b < 100
+    // val f = !t || a == 0
+    // println(t)
+    // println(f)
+    // if(!(a == 2 && b == 4) || f) {
+    //     println("taken")
+    // }
+    public void testLogicalOperators(TestInfo testInfo) throws Exception {
+        assertOutput(testInfo.getDisplayName(),
+                "var a = 2\nvar b = 3\nval t = a > 1 && b < 100\nval f = !t || a == 0\nprintln(t)\nprintln(f)\n" +
+                        "if(!(a == 2 && b == 4) || f) {\nprintln(\"taken\")\n}\n",
+                "true", "false", "taken");
+    }
+
+    @Test
+    // var arr = Array(5, {j -> j * j})
+    // arr[2] += 10
+    // arr[3]++
+    // var s = "x"
+    // for(k in 0..3) {
+    //     s += k
+    // }
+    // var any = arrayOf(1, "two", true)
+    // println(s)
+    // println(any[1])
+    // println("sum ${arr[2] + arr[3]} done")
+    public void testArraysAndStrings(TestInfo testInfo) throws Exception {
+        assertOutput(testInfo.getDisplayName(),
+                "var arr = Array(5, {j -> j * j})\narr[2] += 10\narr[3]++\nvar s = \"x\"\nfor(k in 0..3) {\ns += k\n}\n" +
+                        "var any = arrayOf(1, \"two\", true)\nprintln(s)\nprintln(any[1])\nprintln(\"sum ${arr[2] + arr[3]} done\")\n",
+                "x012", "two", "sum 24 done");
+    }
+
+    @Test
+    // var i = 0
+    // while(i < 3) {
+    //     i++
+    // }
+    // println(i)
+    public void testLoopVariableGetsPhi() throws Exception {
+        final IrFunction function = lower("var i = 0\nwhile(i < 3) {\ni++\n}\nprintln(i)\n", FUNCTION_NAME);
+        int phis = 0;
+        for(Block block : function.getBlocks()) {
+            for(Phi phi : block.getPhis()) {
+                assertEquals("i", phi.getTarget().getName());
+                assertEquals(2, phi.getOperands().size());
+                phis++;
+            }
+            for(Instruction instruction : block.getInstructions()) {
+                if(instruction instanceof Assign) {
+                    assertTrue(((Assign) instruction).getTarget().isSsa());
+                }
+            }
+        }
+        assertEquals(1, phis);
+    }
+
+    @Test
+    // fun f(a: Int, b: Int): Int {
+    //     if(a < 1 && !(b > 2)) {
+    //         return 1
+    //     }
+    //     return 2
+    // }
+    public void testConditionsJumpOnComparisons() throws Exception {
+        final IrFunction function = lower("fun f(a: Int, b: Int): Int {\nif(a < 1 && !(b > 2)) {\n" +
+                "return 1\n}\nreturn 2\n}\n", "f");
+        int branches = 0;
+        for(Block block : function.getBlocks()) {
+            assertTrue(block.getPhis().isEmpty());
+            if(block.getTerminator() instanceof Branch) {
+                assertTrue(((Branch) block.getTerminator()).getCondition() instanceof Binary);
+                branches++;
+            }
+        }
+        assertEquals(2, branches);
+    }
+
+    @Test
+    // break outside of a loop
+    public void testBreakOutsideLoop() {
+        assertThrows(CodeGeneratorException.class, () -> IrBuilder.build(
+                CodeGeneratorTest.makeProgram(ControlLoopStmt.STMT_BREAK), FUNCTION_NAME));
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.AstArena;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.token.PackedTokenBuffer;
+import com.github.wangdong20.kotlinscriptcompiler.token.Token;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time and allocation per token of tokenizing and then parsing generated scripts, copies of the sample programs
+ * and expression heavy statements, with the tokens as Token objects in an array or packed in a PackedTokenBuffer.
+ * The sample programs are also parsed with their functions in parallel on pools of 1, 2, 4 and 8 threads,
+ * and the heap kept by their AST is compared between the objects of Program and an AstArena.
+ * Run with the number of tokens in millions as argument, 1 by default.
+ */
+public class ParserBenchmark {
+    private static final long WARMUP_NANOS = 3_000_000_000L;
+    private static final int ROUNDS = 5;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private static Object retained;     // keeps what measureMemory is measuring reachable
+
+    private interface Phase {
+        Object run(Object input) throws Exception;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void measure(String name, String source, int tokens, Phase tokenize, Phase parse) throws Exception {
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        do {
+            parse.run(tokenize.run(source));
+        } while(System.nanoTime() < warmupEnd);
+        long bestTokenize = Long.MAX_VALUE;
+        long bestParse = Long.MAX_VALUE;
+        long tokenizeBytes = 0;
+        long parseBytes = 0;
+        for(int i = 0; i < ROUNDS; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            final Object tokenized = tokenize.run(source);
+            long middle = System.nanoTime();
+            long middleBytes = allocatedBytes();
+            parse.run(tokenized);
+            bestTokenize = Math.min(bestTokenize, middle - start);
+            bestParse = Math.min(bestParse, System.nanoTime() - middle);
+            tokenizeBytes = middleBytes - bytes;
+            parseBytes = allocatedBytes() - middleBytes;
+        }
+        System.out.printf("  %-8s tokenize %7.1f ms %6.1f bytes/token, parse %7.1f ms %6.1f bytes/token%n", name,
+                bestTokenize / 1e6, (double) tokenizeBytes / tokens, bestParse / 1e6, (double) parseBytes / tokens);
+    }
+
+    private static void measureScript(String name, String source) throws Exception {
+        final int tokens = new Tokenizer(source).tokenizePacked().size();
+        System.out.println(name + ", " + tokens + " tokens:");
+        measure("objects", source, tokens,
+                s -> new Tokenizer((String) s).tokenize().toArray(new Token[0]),
+                t -> new Parser((Token[]) t).parseToplevelProgram());
+        measure("packed", source, tokens,
+                s -> new Tokenizer((String) s).tokenizePacked(),
+                t -> new Parser((PackedTokenBuffer) t).parseToplevelProgram());
+    }
+
+    // Only the time, the allocation happens on the threads of the pool
+    private static void measureParallel(String source) throws Exception {
+        final Token[] tokens = new Tokenizer(source).tokenize().toArray(new Token[0]);
+        for(int threads : THREADS) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+                do {
+                    new Parser(tokens).parseToplevelProgram(pool);
+                } while(System.nanoTime() < warmupEnd);
+                long best = Long.MAX_VALUE;
+                for(int i = 0; i < ROUNDS; i++) {
+                    final long start = System.nanoTime();
+                    new Parser(tokens).parseToplevelProgram(pool);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("  parallel on %d thread(s), parse %7.1f ms%n", threads, best / 1e6);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // The tokens are kept all along, so names shared with them count for neither
+    private static void measureMemory(String source) throws Exception {
+        final Token[] tokens = new Tokenizer(source).tokenize().toArray(new Token[0]);
+        long before = usedHeapAfterGc();
+        retained = new Parser(tokens).parseToplevelProgram();
+        final long objectBytes = usedHeapAfterGc() - before;
+        retained = null;
+        before = usedHeapAfterGc();
+        final Parser sharing = new Parser(tokens);
+        sharing.setShareSubtrees(true);
+        retained = sharing.parseToplevelProgram();
+        final long sharedBytes = usedHeapAfterGc() - before;
+        retained = null;
+        before = usedHeapAfterGc();
+        final AstArena arena = new Parser(tokens).parseToplevelArena();
+        retained = arena;
+        final long arenaBytes = usedHeapAfterGc() - before;
+        retained = null;
+        System.out.printf("  AST of %d nodes: objects %7.1f MB %5.1f bytes/node, shared subtrees %7.1f MB %5.1f bytes/node,"
+                        + " arena %7.1f MB %5.1f bytes/node%n",
+                arena.size(), objectBytes / 1e6, (double) objectBytes / arena.size(),
+                sharedBytes / 1e6, (double) sharedBytes / arena.size(),
+                arenaBytes / 1e6, (double) arenaBytes / arena.size());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final double millions = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        final int programTokens = new Tokenizer(ScriptGenerator.generateChunks(1)).tokenizePacked().size();
+        final String programs = ScriptGenerator.generateChunks((int) (millions * 1_000_000 / programTokens) + 1);
+        measureScript("Sample programs", programs);
+        measureParallel(programs);
+        measureMemory(programs);
+        final int expressionTokens = new Tokenizer(ScriptGenerator.generateExpressions(1)).tokenizePacked().size();
+        measureScript("Expressions",
+                ScriptGenerator.generateExpressions((int) (millions * 1_000_000 / expressionTokens) + 1));
+    }
+}
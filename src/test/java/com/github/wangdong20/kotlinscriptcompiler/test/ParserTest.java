@@ -11,9 +11,11 @@ import com.github.wangdong20.kotlinscriptcompiler.token.*;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -889,6 +891,13 @@ class ParserTest {
                 new VariableToken("b"), BracketsToken.TK_RCURLY);
     }
 
+    @Test
+    // { 1 -> 2 }
+    public void lambdaExpWithoutParameterNameGivesParseError() {
+        assertExpectedException(null, BracketsToken.TK_LCURLY, new IntToken(1), SymbolToken.TK_ARROW, new IntToken(2),
+                BracketsToken.TK_RCURLY);
+    }
+
     @Test
     // Array(10, {i -> "s" + i * 2})
     public void arrayExpParses() throws ParseException {
@@ -973,6 +982,74 @@ class ParserTest {
                 new IntToken(2), BinopToken.TK_MULTIPLY, new IntToken(4), BinopToken.TK_AND, KeywordToken.TK_FALSE);
     }
 
+    @Test
+    // a && b || c
+    public void andBindsTighterThanOrParses() throws ParseException {
+        assertParses(new BiLogicalExp(new BiLogicalExp(new VariableExp("a"), new VariableExp("b"), BiLogicalOp.OP_AND),
+                new VariableExp("c"), BiLogicalOp.OP_OR),
+                new VariableToken("a"), BinopToken.TK_AND, new VariableToken("b"), BinopToken.TK_OR, new VariableToken("c"));
+    }
+
+    @Test
+    // a || b && c > 1
+    public void orOfAndParses() throws ParseException {
+        assertParses(new BiLogicalExp(new VariableExp("a"), new BiLogicalExp(new VariableExp("b"),
+                new ComparableExp(new VariableExp("c"), new IntExp(1), ComparableOp.OP_GREATER_THAN), BiLogicalOp.OP_AND),
+                BiLogicalOp.OP_OR),
+                new VariableToken("a"), BinopToken.TK_OR, new VariableToken("b"), BinopToken.TK_AND,
+                new VariableToken("c"), BinopToken.TK_GREATER_THAN, new IntToken(1));
+    }
+
+    @Test
+    // ((((...(1)...)))) nested deeper than the call stack would allow
+    public void deeplyNestedParenthesesParse() throws ParseException {
+        final int depth = 100000;
+        final Token[] tokens = new Token[depth * 2 + 1];
+        for(int i = 0; i < depth; i++) {
+            tokens[i] = BracketsToken.TK_LPAREN;
+            tokens[depth + 1 + i] = BracketsToken.TK_RPAREN;
+        }
+        tokens[depth] = new IntToken(1);
+        assertParses(new IntExp(1), tokens);
+    }
+
+    @Test
+    // 1 + 1 + ... + 1 and a[a[...a[1]...]]
+    public void longChainsParse() throws ParseException, TokenizerException {
+        final int length = 100000;
+        final StringBuilder chain = new StringBuilder("1");
+        final StringBuilder index = new StringBuilder();
+        for(int i = 1; i < length; i++) {
+            chain.append(" + 1");
+        }
+        for(int i = 0; i < length; i++) {
+            index.append("a[");
+        }
+        index.append('1');
+        for(int i = 0; i < length; i++) {
+            index.append(']');
+        }
+
+        Exp exp = new Parser(new Tokenizer(chain.toString()).tokenize().toArray(new Token[0])).parseToplevelExp();
+        int terms = 1;
+        while(exp instanceof AdditiveExp) {
+            assertEquals(new IntExp(1), ((AdditiveExp) exp).getRight());
+            exp = ((AdditiveExp) exp).getLeft();
+            terms++;
+        }
+        assertEquals(new IntExp(1), exp);
+        assertEquals(length, terms);
+
+        exp = new Parser(new Tokenizer(index.toString()).tokenize().toArray(new Token[0])).parseToplevelExp();
+        int depth = 0;
+        while(exp instanceof ArrayWithIndexExp) {
+            exp = ((ArrayWithIndexExp) exp).getIndexExp();
+            depth++;
+        }
+        assertEquals(new IntExp(1), exp);
+        assertEquals(length, depth);
+    }
+
     @Test
     // 1 * 2 %3 - 4 / 5
     public void additiveAndMultiplicativeParses() throws ParseException {
@@ -1018,6 +1095,34 @@ class ParserTest {
                 new StringToken("a is ${a + b}, b is $beer, c is $ c, sum is ${a + beer}"));
     }
 
+    @Test
+    // "$" not followed by a name or a block is kept as it is
+    public void stringDollarParses() throws ParseException {
+        LinkedHashMap<Integer, Exp> map = new LinkedHashMap();
+        map.put(3, new VariableExp("x"));
+        assertParses(new StringExp("$1 , $", map), new StringToken("$1 $x, $"));
+    }
+
+    @Test
+    public void stringWithManyPlaceholdersParses() throws ParseException {
+        final int placeholders = 20000;
+        final StringBuilder value = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+        final LinkedHashMap<Integer, Exp> map = new LinkedHashMap();
+        for(int i = 0; i < placeholders; i++) {
+            value.append("v").append(i).append(" ${a").append(i).append(" * 2}");
+            literal.append("v").append(i).append(' ');
+            map.put(literal.length(), new MultiplicativeExp(new VariableExp("a" + i), new IntExp(2),
+                    MultiplicativeOp.OP_MULTIPLY));
+        }
+        assertParses(new StringExp(literal.toString(), map), new StringToken(value.toString()));
+    }
+
+    @Test
+    public void stringWithoutClosingCurlyGivesParseError() {
+        assertExpectedException(null, new StringToken("a is ${a + b"));
+    }
+
     @Test
     public void plusIsLeftAssociative() throws ParseException {
         assertParses(new AdditiveExp(new AdditiveExp(new IntExp(1),
@@ -1036,4 +1141,222 @@ class ParserTest {
                 new IntToken(1),
                 BinopToken.TK_PLUS);
     }
-}
\ No newline at end of file
+
+    @Test
+    // Parser pulling tokens from a streaming tokenizer builds the same program as the one given all tokens
+    public void parseProgramFromTokenSource() throws ParseException, TokenizerException {
+        final String input = "fun max(a : Int, b : Int): Int {\n" +
+                "    if(a > b) {\n" +
+                "        return a\n" +
+                "    } else {\n" +
+                "        return b\n" +
+                "    }\n" +
+                "}\n\n" +
+                "var x = 1 + 2 * 3\n" +
+                "for(i in 1..10 step 2) {\n" +
+                "    x += max(i, x)\n" +
+                "}\n" +
+                "println(\"x is $x\")\n";
+        final Token[] tokens = new Tokenizer(input).tokenize().toArray(new Token[0]);
+        final Program expected = new Parser(tokens).parseToplevelProgram();
+        assertEquals(expected, new Parser(new Tokenizer(new StringReader(input), 4)).parseToplevelProgram());
+        assertEquals(expected, new Parser(new Tokenizer(input).tokenizePacked()).parseToplevelProgram());
+    }
+
+    @Test
+    // Functions parsed on a pool give the same program as the sequential parser, whatever the token source
+    public void parseProgramInParallel() throws ParseException, TokenizerException {
+        final String input = ScriptGenerator.generateChunks(300) + "fun last() {\n    println(\"}\")\n};";
+        final Program expected = new Parser(new Tokenizer(input).tokenize().toArray(new Token[0])).parseToplevelProgram();
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(expected, new Parser(new Tokenizer(input).tokenize().toArray(new Token[0])).parseToplevelProgram(pool));
+            assertEquals(expected, new Parser(new Tokenizer(input).tokenizePacked()).parseToplevelProgram(pool));
+            assertEquals(expected, new Parser(new Tokenizer(new StringReader(input))).parseToplevelProgram(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parseProgramInParallelGivesSameError() throws TokenizerException {
+        final String[] inputs = {
+                ScriptGenerator.generateChunks(50) + "fun broken(a : Int) {\n    val = 1\n}\n" + ScriptGenerator.generateChunks(50),
+                ScriptGenerator.generateChunks(50) + "fun noSeparator() {} var y = 1\n",
+                "fun unclosed() {\n    println(1)\n"
+        };
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for(String input : inputs) {
+                final Token[] tokens = new Tokenizer(input).tokenize().toArray(new Token[0]);
+                final ParseException expected = assertThrows(ParseException.class,
+                        () -> new Parser(tokens).parseToplevelProgram());
+                final ParseException actual = assertThrows(ParseException.class,
+                        () -> new Parser(tokens).parseToplevelProgram(pool));
+                assertEquals(expected.getMessage(), actual.getMessage());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    // Every kind of node goes into the arena and comes back as the same objects
+    public void programInArenaGivesSameProgram() throws ParseException, TokenizerException {
+        final String input = ScriptGenerator.generateChunks(3) +
+                "val f = { x: Int, y: Int -> x + y * 2 }\n" +
+                "var arr = Array(5, { i -> i * 2 })\n" +
+                "var list = MutableList(3, { i -> \"s$i\" })\n" +
+                "var other = mutableListOf(1, 2, 3)\n" +
+                "var a : Int = 1\n" +
+                "var s : String\n" +
+                "fun g(a : Int, b : String): Int {\n" +
+                "    for (i in arr) {\n" +
+                "        a += i\n" +
+                "        continue\n" +
+                "    }\n" +
+                "    for (i in 0..10 step 2) {\n" +
+                "        if (!(a > 3) && b == \"x\" || a != 2) {\n" +
+                "            break\n" +
+                "        } else {\n" +
+                "            a--\n" +
+                "        }\n" +
+                "    }\n" +
+                "    while (a < 10) {\n" +
+                "        ++a\n" +
+                "        arr[a] = a % 3\n" +
+                "    }\n" +
+                "    return a\n" +
+                "}\n" +
+                "println(\"a is ${a + 1}, s is $s\")\n" +
+                "print(g(1, \"b\"))\n" +
+                "h()\n";
+        final Program expected = new Parser(new Tokenizer(input).tokenize().toArray(new Token[0])).parseToplevelProgram();
+        final AstArena arena = new Parser(new Tokenizer(input).tokenizePacked()).parseToplevelArena();
+        assertEquals(expected.getStmtList().size(), arena.getStmtCount());
+        assertEquals(expected, arena.toProgram());
+        assertEquals(expected, AstArena.of(expected).toProgram());
+    }
+
+    @Test
+    public void arenaNodes() throws ParseException, TokenizerException {
+        final AstArena arena = new Parser(new Tokenizer("var x = 1 + y\nif (x > 2) {\n    x++\n}\n")
+                .tokenize().toArray(new Token[0])).parseToplevelArena();
+        final int assign = arena.getStmt(0);
+        assertEquals(AstArena.KIND_ASSIGN, arena.kind(assign));
+        assertTrue(arena.hasFlag(assign, AstArena.FLAG_NEW));
+        assertFalse(arena.hasFlag(assign, AstArena.FLAG_READ_ONLY));
+        assertNull(arena.type(assign));
+        final int sum = arena.child(assign, 0);
+        assertEquals(AstArena.KIND_ADDITIVE, arena.kind(sum));
+        assertEquals(AdditiveOp.EXP_PLUS.ordinal(), arena.op(sum));
+        assertEquals(1, arena.payload(arena.child(sum, 0)));
+        assertEquals("y", arena.string(arena.child(sum, 1)));
+        assertEquals("x", arena.string(arena.child(assign, 1)));
+        final int ifStmt = arena.getStmt(1);
+        assertEquals(AstArena.KIND_IF, arena.kind(ifStmt));
+        assertEquals(3, arena.childCount(ifStmt));
+        assertEquals(AstArena.NONE, arena.child(ifStmt, 2));
+        assertEquals(AstArena.KIND_BLOCK, arena.kind(arena.child(ifStmt, 1)));
+        assertEquals(new SelfOperationStmt(new SelfOperationExp(new VariableExp("x"), SelfOp.OP_SELF_INCREASE, false)),
+                arena.toStmt(arena.child(arena.child(ifStmt, 1), 0)));
+    }
+
+    @Test
+    public void deepExpressionInArena() throws ParseException, TokenizerException {
+        final StringBuilder input = new StringBuilder("var x = 0");
+        for(int i = 0; i < 100000; i++) {
+            input.append(" + ").append(i);
+        }
+        final AstArena arena = new Parser(new Tokenizer(input.toString()).tokenizePacked()).parseToplevelArena();
+        assertEquals(200003, arena.size());
+        final Stmt stmt = arena.toStmt(arena.getStmt(0));
+        assertEquals(AstArena.KIND_ADDITIVE, arena.kind(arena.child(arena.getStmt(0), 0)));
+        assertEquals(new IntExp(99999), ((AdditiveExp) ((AssignStmt) stmt).getExpression()).getRight());
+    }
+
+    private static AdditiveExp rightOfAssign(final Program program, final int index) {
+        return (AdditiveExp) ((AssignStmt) program.getStmtList().get(index)).getExpression();
+    }
+
+    @Test
+    public void equalLeavesAreShared() throws ParseException, TokenizerException {
+        final Program program = new Parser(new Tokenizer("var x = a + 1\nvar y = a + 1\n").tokenizePacked())
+                .parseToplevelProgram();
+        final AdditiveExp first = rightOfAssign(program, 0);
+        final AdditiveExp second = rightOfAssign(program, 1);
+        assertSame(first.getLeft(), second.getLeft());
+        assertSame(first.getRight(), second.getRight());
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void equalSubtreesAreSharedWhenAsked() throws ParseException, TokenizerException {
+        final String input = ScriptGenerator.generateChunks(2) + "var x = a + 1\nvar y = a + 1\n";
+        final Parser parser = new Parser(new Tokenizer(input).tokenizePacked());
+        parser.setShareSubtrees(true);
+        final Program shared = parser.parseToplevelProgram();
+        final int last = shared.getStmtList().size() - 1;
+        assertSame(rightOfAssign(shared, last - 1), rightOfAssign(shared, last));
+        assertEquals(new Parser(new Tokenizer(input).tokenizePacked()).parseToplevelProgram(), shared);
+    }
+
+    @Test
+    // var x = a + b * 2
+    // break
+    public void nodesTellTheirKind() throws ParseException, TokenizerException {
+        final Program program = new Parser(new Tokenizer("var x = a + b * 2\n").tokenizePacked()).parseToplevelProgram();
+        final AssignStmt assign = (AssignStmt) program.getStmtList().get(0);
+        final AdditiveExp sum = rightOfAssign(program, 0);
+        assertEquals(StmtKind.STMT_ASSIGN, assign.getKind());
+        assertEquals(ExpKind.EXP_VARIABLE, ((Exp) assign.getVariable()).getKind());
+        assertEquals(ExpKind.EXP_ADDITIVE, sum.getKind());
+        assertEquals(ExpKind.EXP_MULTIPLICATIVE, sum.getRight().getKind());
+        assertEquals(ExpKind.EXP_INT, ((MultiplicativeExp) sum.getRight()).getRight().getKind());
+        assertEquals(StmtKind.STMT_CONTROL_LOOP, ControlLoopStmt.STMT_BREAK.getKind());
+    }
+
+    @Test
+    // fun f(a: Int): Int {
+    //     return a + 1
+    // }
+    // var a = f(2)
+    // var b = a
+    public void resolverGivesNamesIdsAndCallsTheirFunction() throws ParseException, TokenizerException {
+        final Program program = new Parser(new Tokenizer("fun f(a: Int): Int {\nreturn a + 1\n}\nvar a = f(2)\nvar b = a\n")
+                .tokenizePacked()).parseToplevelProgram();
+        final Resolver resolver = Resolver.resolve(program);
+        final FunctionDeclareStmt function = (FunctionDeclareStmt) program.getStmtList().get(0);
+        final AssignStmt callA = (AssignStmt) program.getStmtList().get(1);
+        final AssignStmt assignB = (AssignStmt) program.getStmtList().get(2);
+        final VariableExp parameter = (VariableExp) function.getParameterList().keySet().iterator().next();
+
+        assertEquals(3, resolver.getNameCount());
+        assertEquals(parameter.getId(), ((VariableExp) callA.getVariable()).getId());
+        assertEquals(parameter.getId(), ((VariableExp) assignB.getExpression()).getId());
+        assertNotEquals(parameter.getId(), ((VariableExp) assignB.getVariable()).getId());
+        assertEquals("b", resolver.getName(((VariableExp) assignB.getVariable()).getId()));
+        assertSame(function, ((FunctionInstanceExp) callA.getExpression()).getFunction());
+        assertEquals(1, resolver.getFunctions(function.getFuncName().getId()).size());
+    }
+
+    @Test
+    public void syntaxErrorInsideOperandGivesParseError() {
+        assertThrows(ParseException.class,
+                ()->{
+                    new Parser(new Tokenizer("a * (b + c").tokenize().toArray(new Token[0])).parseToplevelExp();
+                });
+        assertThrows(ParseException.class,
+                ()->{
+                    new Parser(new Tokenizer("a > ++1").tokenize().toArray(new Token[0])).parseToplevelExp();
+                });
+    }
+
+    @Test
+    public void extraTokensFromTokenSourceGivesParseError() {
+        assertThrows(ParseException.class,
+                ()->{
+                    new Parser(new Tokenizer(new StringReader("1 + 2 3"))).parseToplevelExp();
+                });
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+/**
+ * Generates big but valid .ks scripts for the benchmarks, made of copies of the sample programs
+ * with every function renamed so the copies do not clash.
+ */
+public class ScriptGenerator {
+    private static final String CHUNK =
+            "/**\n" +
+            " * Find and print all prime numbers less or equal to given number n\n" +
+            " */\n" +
+            "fun findAndPrintPrimes#(n : Int) {\n" +
+            "    var primes = Array(n + 1, {i -> true});\n" +
+            "    for(k in 2..n / k + 1) {\n" +
+            "        if(primes[k]) {\n" +
+            "            for(i in k..n / k + 1) {\n" +
+            "                primes[k * i] = false   // k * i is not prime\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "    val NUMPERLINE = 10\n" +
+            "    var count = 0\n" +
+            "    if(n < 3) {\n" +
+            "        println(2)\n" +
+            "        count++\n" +
+            "    } else {\n" +
+            "        print(\"2     \")\n" +
+            "        count++\n" +
+            "        for(i in 3..n + 1 step 2) {\n" +
+            "            if(primes[i]) {\n" +
+            "                count++;\n" +
+            "                if(count % NUMPERLINE == 0) {\n" +
+            "                    println(\"$i     \")\n" +
+            "                } else {\n" +
+            "                    print(\"$i     \")\n" +
+            "                }\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "    println(\"$count prime(s) less than or equal to $n\")\n" +
+            "}\n" +
+            "\n" +
+            "fun printStar#(lines : Int) {\n" +
+            "    for(i in 1..lines + 1) {\n" +
+            "        for(j in 1..lines - i + 1) {\n" +
+            "            print(\" \")\n" +
+            "        }\n" +
+            "        for(k in 1..2 * i) {\n" +
+            "            print(\"*\")\n" +
+            "        }\n" +
+            "        println(\"\")\n" +
+            "    }\n" +
+            "}\n" +
+            "\n" +
+            "fun bubbleSort#(arr : Array<Int>, length: Int): Unit {\n" +
+            "    for (i in 0..length - 1) {\n" +
+            "        for (j in 0..length - i - 1) {\n" +
+            "            if (arr[j] > arr[j + 1]) {\n" +
+            "                var temp = arr[j];\n" +
+            "                arr[j] = arr[j + 1];\n" +
+            "                arr[j + 1] = temp;\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "}\n" +
+            "\n" +
+            "var a# = arrayOf(3, 2, 5, 6, 8, 9, 2, 4) // Create array with arrayOf expression\n" +
+            "bubbleSort#(a#, 8)\n";
+
+    private static final String EXPRESSIONS =
+            "var x# = (a + b * 3 - c / 2) % 7 + d * (e - 1)\n" +
+            "val y# = a * b + c * d - e * f + (g - h) * (i + j) / 3\n" +
+            "var z# = a + 1 > b - 2 && c * 3 <= d || !e\n" +
+            "x# += a * (b + c * (d - e * (f + g))) - h % 5\n" +
+            "println(\"x is ${x# + y#}, y is $y#\")\n";
+
+    /**
+     * Script with at least the given number of characters.
+     */
+    public static String generate(final long minLength) {
+        final StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, minLength + CHUNK.length() * 2));
+        int id = 0;
+        while(builder.length() < minLength) {
+            builder.append(CHUNK.replace("#", Integer.toString(id)));
+            id++;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Script made of exactly the given number of copies of the sample programs.
+     */
+    public static String generateChunks(final int chunks) {
+        final StringBuilder builder = new StringBuilder(chunks * (CHUNK.length() + 32));
+        for(int id = 0; id < chunks; id++) {
+            builder.append(CHUNK.replace("#", Integer.toString(id)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Script of the given number of copies of a few arithmetic and logic heavy statements.
+     */
+    public static String generateExpressions(final int chunks) {
+        final StringBuilder builder = new StringBuilder(chunks * (EXPRESSIONS.length() + 32));
+        for(int id = 0; id < chunks; id++) {
+            builder.append(EXPRESSIONS.replace("#", Integer.toString(id)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.token.Token;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.token.TokenizerException;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures tokens per second of tokenize() on a source already in memory, and compares loading a source file
+ * into a String before tokenizing against lexing it straight from a memory mapping.
+ * The source in memory is also lexed in chunks on pools of 1, 2, 4 and 8 threads, the allocation of these
+ * runs is only the part on the calling thread.
+ * Run with the sizes in megabytes as arguments, 1 and 100 by default.
+ */
+public class TokenizerBenchmark {
+    private static final long WARMUP_NANOS = 3_000_000_000L;    // let the JIT settle before measuring
+    private static final int ROUNDS = 10;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    // How Dwks used to read a source file before tokenizing it
+    private static String readKsToString(File file) throws IOException {
+        StringBuilder stringBuilder = new StringBuilder();
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = null;
+            String ls = System.getProperty("line.separator");
+            while ((line = reader.readLine()) != null) {
+                stringBuilder.append(line);
+                stringBuilder.append(ls);
+            }
+        }
+        if(stringBuilder.length() > 0) {
+            stringBuilder.deleteCharAt(stringBuilder.length() - 1);
+        }
+        return stringBuilder.toString();
+    }
+
+    private static long viaString(File file) throws IOException, TokenizerException {
+        return new Tokenizer(readKsToString(file)).tokenize().size();
+    }
+
+    private static long inMemory(String source) throws TokenizerException {
+        return new Tokenizer(source).tokenize().size();
+    }
+
+    private static long inParallel(String source, ForkJoinPool pool) throws TokenizerException {
+        return new Tokenizer(source).tokenize(pool).size();
+    }
+
+    private static long viaMapping(File file) throws IOException, TokenizerException {
+        long count = 0;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Tokenizer tokenizer = Tokenizer.forFile(channel);
+            while(tokenizer.nextToken() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private interface Run {
+        long run(File file) throws Exception;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void measure(String name, Run run, File file) throws Exception {
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        do {
+            run.run(file);
+        } while(System.nanoTime() < warmupEnd);
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        long tokens = 0;
+        for(int i = 0; i < ROUNDS; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            tokens = run.run(file);
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytesBefore;
+        }
+        System.out.printf("  %-9s %8.1f ms %10.1f MB allocated %10d tokens %8.2f M tokens/s%n",
+                name, best / 1e6, allocated / 1e6, tokens, tokens * 1e3 / best);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 0) {
+            args = new String[] {"1", "100"};
+        }
+        for(String arg : args) {
+            long size = Long.parseLong(arg) * 1024 * 1024;
+            File file = File.createTempFile("benchmark", ".ks");
+            file.deleteOnExit();
+            try {
+                Files.write(file.toPath(), ScriptGenerator.generate(size).getBytes(StandardCharsets.UTF_8));
+                System.out.println(arg + " MB source:");
+                final String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                measure("tokenize", f -> inMemory(source), file);
+                measure("string", TokenizerBenchmark::viaString, file);
+                measure("mapped", TokenizerBenchmark::viaMapping, file);
+                for(int threads : THREADS) {
+                    final ForkJoinPool pool = new ForkJoinPool(threads);
+                    try {
+                        measure(threads + (threads == 1 ? " thread" : " threads"), f -> inParallel(source, pool), file);
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
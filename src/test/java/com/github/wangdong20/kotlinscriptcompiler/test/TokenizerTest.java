@@ -1,12 +1,51 @@
 package com.github.wangdong20.kotlinscriptcompiler.test;
 
 import com.github.wangdong20.kotlinscriptcompiler.token.*;
+import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class TokenizerTest {
 
+    private static final String PROGRAM = "/**\n * Bubble sort\n */\n" +
+            "fun bubbleSort(arr : Array<Int>, length: Int): Unit {\n" +
+            "    for (i in 0..length - 1) {\n" +
+            "        for (j in 0..length - i - 1) {\n" +
+            "            if (arr[j] > arr[j + 1]) {\n" +
+            "                // swap arr[j+1] and arr[i]\n" +
+            "                var temp = arr[j];\n" +
+            "                arr[j] = arr[j + 1];\n" +
+            "                arr[j + 1] = temp;\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "}\n" +
+            "var a = arrayOf(3, 2, 5, 6, 8, 9, 2, 4) /* inline */ /* twice */\n" +
+            "bubbleSort(a, 8)\n" +
+            "println(\"sorted: $a, first is ${a[0]}\")\n";
+
     // input: "("
     // output: BracketsToken.TK_LPAREN
     public static void testLeftParen() throws TokenizerException {
@@ -147,6 +186,223 @@ public class TokenizerTest {
                 new IntToken(1), BracketsToken.TK_RPAREN, KeywordToken.TK_RETURN, KeywordToken.TK_TRUE, SymbolToken.TK_SEMICOLON);
     }
 
+    @Test
+    // Buffer of 4 characters forces a refill inside almost every token
+    public void testStreamingMatchesInMemory() throws TokenizerException {
+        final List<Token> expected = new Tokenizer(PROGRAM).tokenize();
+        for(int bufferSize : new int[]{4, 5, 7, 16, Tokenizer.DEFAULT_BUFFER_SIZE}) {
+            assertEquals(expected, new Tokenizer(new StringReader(PROGRAM), bufferSize).tokenize());
+        }
+    }
+
+    @Test
+    public void testStreamingFromChannel() throws TokenizerException {
+        final String input = "val s = \"h\u00e9llo \u4e16\u754c\"\nprintln(s)";
+        final Tokenizer tokenizer = new Tokenizer(Channels.newChannel(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(new Tokenizer(input).tokenize(), tokenizer.tokenize());
+    }
+
+    @Test
+    // Non ASCII runs are decoded on their own, also when they cross the buffer boundary
+    public void testByteBufferMatchesInMemory() throws TokenizerException {
+        final String input = PROGRAM + "println(\"gr\u00fc\u00dfe \u4e16\u754c \ud83d\ude00!\")\n// \u00e9t\u00e9\nvar \u00e9 = 1";
+        final List<Token> expected = new Tokenizer(input).tokenize();
+        final ByteBuffer bytes = ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8));
+        for(int bufferSize : new int[]{4, 5, 7, 16, Tokenizer.DEFAULT_BUFFER_SIZE}) {
+            assertEquals(expected, new Tokenizer(bytes, bufferSize).tokenize());
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws TokenizerException, IOException {
+        final Path file = Files.createTempFile("tokenizer", ".ks");
+        try {
+            Files.write(file, PROGRAM.getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file)) {
+                assertEquals(new Tokenizer(PROGRAM).tokenize(), Tokenizer.forFile(channel).tokenize());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    // Hundreds of different files lexed on a thread pool, each in a different way, must give the single threaded result
+    public void testConcurrentTokenizers() throws Exception {
+        final int files = 400;
+        final List<String> inputs = new ArrayList<>();
+        final List<List<Token>> expected = new ArrayList<>();
+        for(int i = 0; i < files; i++) {
+            final String input = ScriptGenerator.generateChunks(i % 7 + 1) + PROGRAM.replace("bubbleSort", "sort" + i);
+            inputs.add(input);
+            expected.add(new Tokenizer(input).tokenize());
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<Token>>> results = new ArrayList<>();
+            for(int i = 0; i < files; i++) {
+                final String input = inputs.get(i);
+                final int mode = i % 3;
+                results.add(pool.submit(() -> {
+                    switch (mode) {
+                        case 0:
+                            return new Tokenizer(input).tokenize();
+                        case 1:
+                            return new Tokenizer(new StringReader(input), 16).tokenize();
+                        default:
+                            return new Tokenizer(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)), 16).tokenize();
+                    }
+                }));
+            }
+            for(int i = 0; i < files; i++) {
+                assertEquals(expected.get(i), results.get(i).get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    // Words which look like keywords, and tokens longer than the streaming buffer
+    public void testWordsAndLongTokens() throws TokenizerException {
+        final String longName = "averyveryveryveryveryverylongname1";
+        final String input = "iff Int1 Ints mutableListOfx i in " + longName + " \"" + longName + "\" 123456789 -2147483648 2147483647";
+        final List<Token> expected = Arrays.asList(new VariableToken("iff"), new VariableToken("Int1"),
+                new VariableToken("Ints"), new VariableToken("mutableListOfx"), new VariableToken("i"),
+                KeywordToken.TK_IN, new VariableToken(longName), new StringToken(longName),
+                new IntToken(123456789), new IntToken(Integer.MIN_VALUE), new IntToken(Integer.MAX_VALUE));
+        assertEquals(expected, new Tokenizer(input).tokenize());
+        assertEquals(expected, new Tokenizer(new StringReader(input), 4).tokenize());
+    }
+
+    @Test
+    public void testSameVariableSameToken() throws TokenizerException {
+        final List<Token> tokens = new Tokenizer("abc = abc + ab").tokenize();
+        assertSame(tokens.get(0), tokens.get(2));
+        assertEquals(new VariableToken("ab"), tokens.get(4));
+    }
+
+    @Test
+    // Placeholders are lexed together with the string, names inside and outside it are the same token
+    public void testStringTemplate() throws TokenizerException {
+        final List<Token> tokens = new Tokenizer("beer + \"a is ${a + 2}, b is $beer, c is $ c\"").tokenize();
+        final StringTemplate template = ((StringToken) tokens.get(2)).getTemplate();
+        assertEquals("a is , b is , c is $ c", template.getLiteral());
+        assertEquals(2, template.size());
+        assertEquals(5, template.getPosition(0));
+        assertEquals(12, template.getPosition(1));
+        final Token[] placeholders = template.getTokens();
+        assertEquals(0, template.getStart(0));
+        assertEquals(3, template.getEnd(0));
+        assertEquals(3, template.getStart(1));
+        assertEquals(4, template.getEnd(1));
+        assertEquals(new VariableToken("a"), placeholders[0]);
+        assertEquals(BinopToken.TK_PLUS, placeholders[1]);
+        assertEquals(new IntToken(2), placeholders[2]);
+        assertSame(tokens.get(0), placeholders[3]);
+    }
+
+    @Test
+    public void testIntegerTooBig() {
+        assertThrows(NumberFormatException.class, () -> new Tokenizer("2147483648").tokenize());
+        assertThrows(NumberFormatException.class, () -> new Tokenizer("-99999999999999999999").tokenize());
+    }
+
+    @Test
+    public void testPackedTokens() throws TokenizerException {
+        final List<Token> expected = new Tokenizer(PROGRAM).tokenize();
+        final PackedTokenBuffer packed = new Tokenizer(new StringReader(PROGRAM), 8).tokenizePacked();
+        assertEquals(expected.size(), packed.size());
+        for(int i = 0; i < packed.size(); i++) {
+            assertEquals(expected.get(i), packed.token(i));
+            assertEquals(PackedTokenBuffer.kindOf(expected.get(i)), packed.kind(i));
+            final String text = PROGRAM.substring(packed.start(i), packed.start(i) + packed.length(i));
+            if(packed.kind(i) == PackedTokenBuffer.KIND_VARIABLE) {
+                assertEquals(text, packed.getSymbols().name(packed.payload(i)));
+                assertSame(packed.getSymbols().token(packed.payload(i)), packed.token(i));
+            } else if(packed.kind(i) == PackedTokenBuffer.KIND_INT) {
+                assertEquals(Integer.parseInt(text), packed.payload(i));
+            }
+        }
+        assertEquals(expected.get(0), packed.nextToken());
+        assertEquals(expected.get(1), packed.peek(0));
+    }
+
+    @Test
+    public void testPeekAndNextToken() throws TokenizerException {
+        final Tokenizer tokenizer = new Tokenizer(new StringReader("var a = 1"), 4);
+        assertEquals(new IntToken(1), tokenizer.peek(3));
+        assertEquals(KeywordToken.TK_VAR, tokenizer.peek(0));
+        assertNull(tokenizer.peek(4));
+        assertEquals(KeywordToken.TK_VAR, tokenizer.nextToken());
+        assertEquals(new VariableToken("a"), tokenizer.nextToken());
+        assertEquals(BinopToken.TK_EQUAL, tokenizer.peek(0));
+        assertEquals(BinopToken.TK_EQUAL, tokenizer.nextToken());
+        assertEquals(new IntToken(1), tokenizer.nextToken());
+        assertNull(tokenizer.nextToken());
+        assertNull(tokenizer.peek(0));
+    }
+
+    // Same tokens, the same VariableToken for every name and the same symbols as tokenize()
+    private static void assertParallelMatches(final String input, final ForkJoinPool pool) throws TokenizerException {
+        final Tokenizer sequential = new Tokenizer(input);
+        final List<Token> expected = sequential.tokenize();
+        final Tokenizer parallel = new Tokenizer(input);
+        final List<Token> tokens = parallel.tokenize(pool);
+        assertEquals(expected, tokens);
+        final SymbolTable symbols = parallel.getSymbols();
+        assertEquals(sequential.getSymbols().size(), symbols.size());
+        final Map<String, Token> shared = new HashMap<>();
+        for(int i = 0; i < symbols.size(); i++) {
+            assertEquals(sequential.getSymbols().name(i), symbols.name(i));
+            shared.put(symbols.name(i), symbols.token(i));
+        }
+        for(Token token : tokens) {
+            if(token instanceof VariableToken) {
+                assertSame(shared.get(((VariableToken) token).getName()), token);
+            }
+        }
+        assertNull(parallel.nextToken());
+    }
+
+    @Test
+    // Strings and comments running over many chunk ends, with line breaks, quotes and comment marks in them
+    public void testParallelTokenize() throws TokenizerException {
+        final String program = ScriptGenerator.generateChunks(300);
+        final StringBuilder comment = new StringBuilder("/* \"quoted\" // not a line comment\n");
+        final StringBuilder string = new StringBuilder("val s = \"$s ${s + 1} /* not a comment */");
+        for(int i = 0; i < 20000; i++) {
+            comment.append("fun f").append(i).append("() \"\n");
+            string.append("line ").append(i).append(" $s\n");
+        }
+        final String input = program + comment + "*/" + program + string + "\"\n" + program + "// last line";
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertParallelMatches(input, pool);
+            assertParallelMatches(program + comment, pool);
+            assertParallelMatches(string + "\" + " + string + "\"", pool);
+            final Tokenizer peeked = new Tokenizer(input);
+            assertEquals(KeywordToken.TK_FUN, peeked.peek(1));
+            assertEquals(new Tokenizer(input).tokenize(), peeked.tokenize(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelTokenizeGivesSameError() {
+        final String program = ScriptGenerator.generateChunks(300);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertThrows(TokenizerException.class, () -> new Tokenizer(program + "\"never closed\n" + program).tokenize(pool));
+            assertThrows(TokenizerException.class, () -> new Tokenizer(program + "a # b\n" + program).tokenize(pool));
+            assertThrows(NumberFormatException.class, () -> new Tokenizer(program + "99999999999\n" + program).tokenize(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     public static void main(String[] args) throws TokenizerException {
         // write your code here
         testLeftParen();
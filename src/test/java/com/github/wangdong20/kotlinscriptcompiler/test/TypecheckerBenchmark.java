@@ -0,0 +1,78 @@
+package com.github.wangdong20.kotlinscriptcompiler.test;
+
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
+import com.github.wangdong20.kotlinscriptcompiler.token.Token;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.IllTypedException;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time of typechecking copies of the sample programs, and a function of 50,000 local variables,
+ * parsed before the clock starts, sequentially and with function bodies checked on pools of THREADS.
+ * Run with the numbers of copies as arguments, 100 and 1000 by default.
+ */
+public class TypecheckerBenchmark {
+    private static final long WARMUP_NANOS = 3_000_000_000L;
+    private static final int ROUNDS = 5;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private interface Check {
+        void run(Program program) throws IllTypedException;
+    }
+
+    private static void measure(String name, Program program, Check check) throws Exception {
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        do {
+            check.run(program);
+        } while(System.nanoTime() < warmupEnd);
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            check.run(program);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("  %-24s typecheck %8.1f ms%n", name, best / 1e6);
+    }
+
+    // fun f(): Int { var v0 = 0 var v1 = v0 + 1 ... return v<n - 1> }
+    private static String functionOfDeclarations(int n) {
+        final StringBuilder source = new StringBuilder("fun f(): Int {\n    var v0 = 0\n");
+        for(int i = 1; i < n; i++) {
+            source.append("    var v").append(i).append(" = v").append(i - 1).append(" + 1\n");
+        }
+        return source.append("    return v").append(n - 1).append("\n}\n").toString();
+    }
+
+    private static Program parse(String source) throws Exception {
+        return new Parser(new Tokenizer(source).tokenize().toArray(new Token[0])).parseToplevelProgram();
+    }
+
+    private static void measureAll(String name, Program program) throws Exception {
+        measure(name, program, Typechecker::typecheckProgram);
+        for(int threads : THREADS) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                measure("  " + threads + (threads == 1 ? " thread" : " threads"), program,
+                        p -> new Typechecker().typecheck(p, pool));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 0) {
+            args = new String[] {"100", "1000"};
+        }
+        for(String arg : args) {
+            final String source = ScriptGenerator.generateChunks(Integer.parseInt(arg));
+            System.out.println(arg + " copies of the sample programs:");
+            measureAll("sample programs", parse(source));
+        }
+        System.out.println("One function:");
+        measureAll("50000 declarations", parse(functionOfDeclarations(50000)));
+    }
+}
@@ -1,21 +1,31 @@
 package com.github.wangdong20.kotlinscriptcompiler.test;
 
+import com.github.wangdong20.kotlinscriptcompiler.parser.ParseException;
+import com.github.wangdong20.kotlinscriptcompiler.parser.Parser;
 import com.github.wangdong20.kotlinscriptcompiler.parser.Program;
 import com.github.wangdong20.kotlinscriptcompiler.parser.expressions.*;
 import com.github.wangdong20.kotlinscriptcompiler.parser.statements.*;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.BasicType;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.Type;
 import com.github.wangdong20.kotlinscriptcompiler.parser.type.TypeArray;
+import com.github.wangdong20.kotlinscriptcompiler.token.Tokenizer;
+import com.github.wangdong20.kotlinscriptcompiler.token.TokenizerException;
 import com.github.wangdong20.kotlinscriptcompiler.typechecker.IllTypedException;
 import com.github.wangdong20.kotlinscriptcompiler.typechecker.Pair;
+import com.github.wangdong20.kotlinscriptcompiler.typechecker.TypeTable;
 import com.github.wangdong20.kotlinscriptcompiler.typechecker.Typechecker;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class TypecheckerTest {
@@ -1006,4 +1016,173 @@ public class TypecheckerTest {
         assertTypecheckProgram(program);
     }
 
+    @Test
+    // var Aa = 1
+    // var BB = "b"
+    // Aa += 1
+    // BB += "c"
+    // Aa = "a"
+    // Aa and BB have the same hash code
+    public void variablesWithSameHashCode() throws IllTypedException {
+        List<Stmt> stmtList = new ArrayList<>();
+        stmtList.add(new AssignStmt(new IntExp(1), new VariableExp("Aa"), false, true));
+        stmtList.add(new AssignStmt(new StringExp("b", null), new VariableExp("BB"), false, true));
+        stmtList.add(new CompoundAssignStmt(new IntExp(1), new VariableExp("Aa"), CompoundAssignOp.EXP_PLUS_EQUAL));
+        stmtList.add(new CompoundAssignStmt(new StringExp("c", null), new VariableExp("BB"), CompoundAssignOp.EXP_PLUS_EQUAL));
+        assertTypecheckProgram(new Program(new ArrayList<>(stmtList)));
+        stmtList.add(new AssignStmt(new StringExp("a", null), new VariableExp("Aa"), false, false));
+        assertTypecheckProgramExpectedException(new Program(stmtList));
+    }
+
+    @Test
+    // fun f(): Int {
+    //     var v0 = 0
+    //     var v1 = v0 + 1
+    //     ...
+    //     if(true) {
+    //         var inner = 1
+    //     }
+    //     return v19999
+    // }
+    // print(inner)
+    public void manyDeclarationsInFunction() throws IllTypedException {
+        final int count = 20000;
+        List<Stmt> stmtsInBlock = new ArrayList<>();
+        stmtsInBlock.add(new AssignStmt(new IntExp(0), new VariableExp("v0"), false, true));
+        for(int i = 1; i < count; i++) {
+            stmtsInBlock.add(new AssignStmt(new AdditiveExp(new VariableExp("v" + (i - 1)), new IntExp(1), AdditiveOp.EXP_PLUS),
+                    new VariableExp("v" + i), false, true));
+        }
+        List<Stmt> stmtsInIf = new ArrayList<>();
+        stmtsInIf.add(new AssignStmt(new IntExp(1), new VariableExp("inner"), false, true));
+        stmtsInBlock.add(new IfStmt(new BooleanExp(true), new BlockStmt(stmtsInIf)));
+        stmtsInBlock.add(new ReturnStmt(new VariableExp("v" + (count - 1))));
+        List<Stmt> stmtList = new ArrayList<>();
+        stmtList.add(new FunctionDeclareStmt(new VariableExp("f"), BasicType.TYPE_INT, new LinkedHashMap<>(),
+                new BlockStmt(stmtsInBlock)));
+        assertTypecheckProgram(new Program(new ArrayList<>(stmtList)));
+        stmtList.add(new PrintStmt(new VariableExp("inner")));
+        assertTypecheckProgramExpectedException(new Program(stmtList));
+    }
+
+    @Test
+    // fun f(a: Int): Int {
+    //     return a
+    // }
+    // fun f(a: String): String {
+    //     return a
+    // }
+    // var x: Int = f(1)
+    // var y: String = f("s")
+    public void overloadedFunctions() throws Exception {
+        final String functions = "fun f(a: Int): Int {\nreturn a\n}\nfun f(a: String): String {\nreturn a\n}\n";
+        assertTypecheckProgram(parse(functions + "var x: Int = f(1)\nvar y: String = f(\"s\")\n"));
+        assertTypecheckProgramExpectedException(parse(functions + "var x: Int = f(true)\n"));
+        assertTypecheckProgramExpectedException(parse(functions + "fun f(b: Int): Int {\nreturn b\n}\n"));
+    }
+
+    private static Program parse(final String input) throws ParseException, TokenizerException {
+        return new Parser(new Tokenizer(input).tokenizePacked()).parseToplevelProgram();
+    }
+
+    // The parallel check throws the same error as the sequential one, or none when that throws none.
+    // Gives the message of the error, null when there is none.
+    private static String assertParallelTypecheckMatches(final Program program) {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            String expected = null;
+            try {
+                new Typechecker().typecheck(program);
+            } catch (IllTypedException e) {
+                expected = e.getMessage();
+            }
+            String actual = null;
+            try {
+                new Typechecker().typecheck(program, pool);
+            } catch (IllTypedException e) {
+                actual = e.getMessage();
+            }
+            assertEquals(expected, actual);
+            return expected;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelTypecheck() throws ParseException, TokenizerException {
+        final String programs = ScriptGenerator.generateChunks(50);
+        assertNull(assertParallelTypecheckMatches(parse(programs)));
+        final String badFunction = "fun bad(): Int {\n    return true\n}\n";
+        final String badStmt = "var wrong: Int = \"s\"\n";
+        assertNotNull(assertParallelTypecheckMatches(parse(programs + badFunction + programs + badStmt + programs)));
+        assertNotNull(assertParallelTypecheckMatches(parse(programs + badStmt + programs + badFunction + programs)));
+        assertNotNull(assertParallelTypecheckMatches(parse(badFunction + programs + badFunction.replace("bad", "worse"))));
+        assertNotNull(assertParallelTypecheckMatches(parse(programs + "fun useLater(): Int {\n    return later\n}\nvar later = 1\n")));
+    }
+
+    @Test
+    // Each program checked by its own Typechecker, at the same time
+    public void typecheckersOnManyThreads() throws Exception {
+        final Program good = parse(ScriptGenerator.generateChunks(20));
+        final Program bad = parse(ScriptGenerator.generateChunks(20) + "var wrong: Int = \"s\"\n");
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < 16; i++) {
+                final Program program = i % 2 == 0 ? good : bad;
+                results.add(pool.submit(() -> {
+                    try {
+                        new Typechecker().typecheck(program);
+                        return true;
+                    } catch (IllTypedException e) {
+                        return false;
+                    }
+                }));
+            }
+            for(int i = 0; i < results.size(); i++) {
+                assertEquals(i % 2 == 0, results.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    // var a = arrayOf(1, 2)
+    // var s = "x" + 1
+    // fun f(x: Int): Int {
+    //     return x + 1
+    // }
+    // fun g(x: String): String {
+    //     return x + 1
+    // }
+    public void typesOfExpressions() throws ParseException, TokenizerException, IllTypedException {
+        final Program program = parse("var a = arrayOf(1, 2)\nvar s = \"x\" + 1\n" +
+                "fun f(x: Int): Int {\n    return x + 1\n}\nfun g(x: String): String {\n    return x + 1\n}\n");
+        final Typechecker typechecker = new Typechecker();
+        typechecker.typecheck(program);
+        final TypeTable types = typechecker.getTypes();
+        final Exp array = ((AssignStmt) program.getStmtList().get(0)).getExpression();
+        assertSame(TypeArray.of(BasicType.TYPE_INT), types.get(array));
+        assertEquals(BasicType.TYPE_STRING, types.get(((AssignStmt) program.getStmtList().get(1)).getExpression()));
+        final Exp inF = ((ReturnStmt) ((FunctionDeclareStmt) program.getStmtList().get(2)).getBlockStmt().getStmtList().get(0)).getReturnExp();
+        final Exp inG = ((ReturnStmt) ((FunctionDeclareStmt) program.getStmtList().get(3)).getBlockStmt().getStmtList().get(0)).getReturnExp();
+        assertEquals(BasicType.TYPE_INT, types.get(inF));
+        assertEquals(BasicType.TYPE_STRING, types.get(inG));
+        // one shared x, Int in f and String in g
+        assertNull(types.get(((AdditiveExp) inF).getLeft()));
+
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final Typechecker parallel = new Typechecker();
+            parallel.typecheck(program, pool);
+            assertEquals(types.size(), parallel.getTypes().size());
+            assertEquals(BasicType.TYPE_STRING, parallel.getTypes().get(inG));
+            assertNull(parallel.getTypes().get(((AdditiveExp) inF).getLeft()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
 }